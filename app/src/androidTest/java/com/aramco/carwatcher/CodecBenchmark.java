@@ -0,0 +1,307 @@
+package com.aramco.carwatcher;
+
+import android.content.Context;
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.aramco.carwatcher.SettingsActivity.QUALITY_BALANCED;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encodes the same synthetic driving clip with H.264 and H.265, using the profiles the app
+ * would record with, and reports the bytes per minute and the quality (luma PSNR) of each.
+ * Run it on the device in question with:
+ * ./gradlew connectedAndroidTest -Pandroid.testInstrumentationRunnerArguments.class=com.aramco.carwatcher.CodecBenchmark
+ */
+@RunWith(AndroidJUnit4.class)
+public class CodecBenchmark
+{
+    private static final String TAG = "CodecBenchmark";
+    private static final int CLIP_SECONDS = 20;
+    private static final long TIMEOUT_US = 10000;
+    //how many pixels the scene moves by in every frame
+    private static final int PAN_SPEED = 4;
+
+    /**
+     * The outcome of encoding the clip with one codec.
+     */
+    private static class Result
+    {
+        long bytes;
+        double psnr;
+    }
+
+    /**
+     * A single encoded frame.
+     */
+    private static class Sample
+    {
+        byte[] data;
+        long presentationTimeUs;
+        int flags;
+    }
+
+    private int width;
+    private int height;
+    private int frameRate;
+    //the scene the frames are cut out of; it is wider than a frame so it can pan
+    private byte[] texture;
+    private int textureWidth;
+
+    @Test
+    public void compareCodecs() throws Exception
+    {
+        Context context = InstrumentationRegistry.getTargetContext();
+        EncoderProfile avc = EncoderProfileResolver.resolve(context, EncoderProfileResolver.MIME_AVC, QUALITY_BALANCED);
+        EncoderProfile hevc = EncoderProfileResolver.resolve(context, EncoderProfileResolver.MIME_HEVC, QUALITY_BALANCED);
+        width = avc.getWidth();
+        height = avc.getHeight();
+        frameRate = avc.getFrameRate();
+        createTexture();
+
+        Result avcResult = encode(avc);
+        log(avc, avcResult);
+        //the resolver falls back to H.264 without a hardware H.265 encoder
+        Assume.assumeTrue("No hardware HEVC encoder", hevc.getMimeType().equals(EncoderProfileResolver.MIME_HEVC));
+        Result hevcResult = encode(hevc);
+        log(hevc, hevcResult);
+        double ratio = (double)hevcResult.bytes / avcResult.bytes;
+        Log.i(TAG, String.format("HEVC/AVC size: %.2f, PSNR difference: %.2f dB", ratio, hevcResult.psnr - avcResult.psnr));
+        //H.265 should save at least 40% without losing more than half a dB
+        assertTrue(ratio <= 0.6);
+        assertTrue(hevcResult.psnr >= avcResult.psnr - 0.5);
+    }
+
+    private void log(EncoderProfile profile, Result result)
+    {
+        long bytesPerMinute = result.bytes * 60 / CLIP_SECONDS;
+        Log.i(TAG, String.format("%s: %d bytes/min (%.1f MB/min), PSNR %.2f dB", profile,
+                bytesPerMinute, bytesPerMinute / 1048576.0, result.psnr));
+    }
+
+    /**
+     * Encodes the clip with the specified profile, then decodes it again to measure its quality.
+     */
+    private Result encode(EncoderProfile profile) throws Exception
+    {
+        MediaFormat format = MediaFormat.createVideoFormat(profile.getMimeType(), width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, profile.getBitRate());
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+        MediaCodec encoder = MediaCodec.createEncoderByType(profile.getMimeType());
+        encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        encoder.start();
+
+        List<Sample> samples = new ArrayList<Sample>();
+        MediaFormat outputFormat = null;
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        int frameCount = CLIP_SECONDS * frameRate;
+        int frame = 0;
+        boolean done = false;
+        Result result = new Result();
+        while (!done)
+        {
+            if (frame <= frameCount)
+            {
+                int index = encoder.dequeueInputBuffer(TIMEOUT_US);
+                if (index >= 0)
+                {
+                    if (frame == frameCount)
+                    {
+                        encoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    }
+                    else
+                    {
+                        Image image = encoder.getInputImage(index);
+                        fillFrame(image, frame);
+                        encoder.queueInputBuffer(index, 0, width * height * 3 / 2, getPresentationTimeUs(frame), 0);
+                    }
+                    frame++;
+                }
+            }
+            int index = encoder.dequeueOutputBuffer(info, TIMEOUT_US);
+            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED)
+            {
+                outputFormat = encoder.getOutputFormat();
+            }
+            else if (index >= 0)
+            {
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0)
+                {
+                    ByteBuffer data = encoder.getOutputBuffer(index);
+                    Sample sample = new Sample();
+                    sample.data = new byte[info.size];
+                    data.position(info.offset);
+                    data.get(sample.data);
+                    sample.presentationTimeUs = info.presentationTimeUs;
+                    sample.flags = info.flags;
+                    samples.add(sample);
+                    result.bytes += info.size;
+                }
+                encoder.releaseOutputBuffer(index, false);
+                done = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+            }
+        }
+        encoder.stop();
+        encoder.release();
+        result.psnr = measurePsnr(outputFormat, samples);
+        return result;
+    }
+
+    /**
+     * Decodes the encoded clip and compares its luma against the source frames.
+     *
+     * @return the average luma PSNR (in dB) over all frames
+     */
+    private double measurePsnr(MediaFormat format, List<Sample> samples) throws Exception
+    {
+        MediaCodec decoder = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+        decoder.configure(format, null, null, 0);
+        decoder.start();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        double psnrSum = 0;
+        int frames = 0;
+        int next = 0;
+        boolean done = false;
+        while (!done)
+        {
+            if (next <= samples.size())
+            {
+                int index = decoder.dequeueInputBuffer(TIMEOUT_US);
+                if (index >= 0)
+                {
+                    if (next == samples.size())
+                    {
+                        decoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    }
+                    else
+                    {
+                        Sample sample = samples.get(next);
+                        decoder.getInputBuffer(index).put(sample.data);
+                        decoder.queueInputBuffer(index, 0, sample.data.length, sample.presentationTimeUs, 0);
+                    }
+                    next++;
+                }
+            }
+            int index = decoder.dequeueOutputBuffer(info, TIMEOUT_US);
+            if (index >= 0)
+            {
+                if (info.size > 0)
+                {
+                    Image image = decoder.getOutputImage(index);
+                    int frame = (int)Math.round(info.presentationTimeUs * frameRate / 1000000.0);
+                    psnrSum += lumaPsnr(image, frame);
+                    frames++;
+                    image.close();
+                }
+                decoder.releaseOutputBuffer(index, false);
+                done = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+            }
+        }
+        decoder.stop();
+        decoder.release();
+        return psnrSum / frames;
+    }
+
+    private double lumaPsnr(Image image, int frame)
+    {
+        Image.Plane plane = image.getPlanes()[0];
+        ByteBuffer data = plane.getBuffer();
+        int offset = (frame * PAN_SPEED) % (textureWidth - width);
+        double squaredError = 0;
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                int decoded = data.get(y * plane.getRowStride() + x * plane.getPixelStride()) & 0xff;
+                int source = texture[y * textureWidth + x + offset] & 0xff;
+                squaredError += (decoded - source) * (decoded - source);
+            }
+        }
+        double mse = Math.max(squaredError / (width * height), 1e-10);
+        return 10 * Math.log10(255 * 255 / mse);
+    }
+
+    private long getPresentationTimeUs(int frame)
+    {
+        return frame * 1000000L / frameRate;
+    }
+
+    /**
+     * Writes the specified frame of the clip: the scene panned by PAN_SPEED pixels per frame,
+     * with a flat chroma.
+     */
+    private void fillFrame(Image image, int frame)
+    {
+        int offset = (frame * PAN_SPEED) % (textureWidth - width);
+        Image.Plane[] planes = image.getPlanes();
+        ByteBuffer luma = planes[0].getBuffer();
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                luma.put(y * planes[0].getRowStride() + x * planes[0].getPixelStride(),
+                        texture[y * textureWidth + x + offset]);
+            }
+        }
+        for (int p = 1; p < 3; p++)
+        {
+            ByteBuffer chroma = planes[p].getBuffer();
+            for (int y = 0; y < height / 2; y++)
+            {
+                for (int x = 0; x < width / 2; x++)
+                {
+                    chroma.put(y * planes[p].getRowStride() + x * planes[p].getPixelStride(), (byte)(128 + (x + y) % 16));
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a scene with smooth shapes and a bit of grain, which compresses somewhere
+     * between a flat image and pure noise, like a real road.
+     */
+    private void createTexture()
+    {
+        Random random = new Random(42);
+        textureWidth = width + 2048;
+        texture = new byte[textureWidth * height];
+        int cell = 32;
+        int cellsX = textureWidth / cell + 2;
+        int cellsY = height / cell + 2;
+        int[] corners = new int[cellsX * cellsY];
+        for (int i = 0; i < corners.length; i++)
+        {
+            corners[i] = 30 + random.nextInt(190);
+        }
+        for (int y = 0; y < height; y++)
+        {
+            int cy = y / cell;
+            int fy = y % cell;
+            for (int x = 0; x < textureWidth; x++)
+            {
+                int cx = x / cell;
+                int fx = x % cell;
+                int top = corners[cy * cellsX + cx] * (cell - fx) + corners[cy * cellsX + cx + 1] * fx;
+                int bottom = corners[(cy + 1) * cellsX + cx] * (cell - fx) + corners[(cy + 1) * cellsX + cx + 1] * fx;
+                int value = (top * (cell - fy) + bottom * fy) / (cell * cell) + random.nextInt(9) - 4;
+                texture[y * textureWidth + x] = (byte)Math.max(0, Math.min(255, value));
+            }
+        }
+    }
+}
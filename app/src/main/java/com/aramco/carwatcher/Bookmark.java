@@ -0,0 +1,94 @@
+package com.aramco.carwatcher;
+
+/**
+ * A moment of a continuous capture marked by the user. The recording isn't touched: the
+ * bookmark only points into the loop segment that was being recorded, and a clip of the
+ * moment (preMillis before it through postMillis after it) is cut out of the segments later,
+ * along with the other pending bookmarks.
+ */
+public class Bookmark
+{
+    //the video id of a bookmark no clip has been extracted for yet
+    public static final long VIDEO_PENDING = 0;
+    //the video id of a bookmark whose clip could not be extracted (e.g. its segment is gone)
+    public static final long VIDEO_FAILED = -1;
+
+    private long id;
+    //the file name of the loop slot holding the segment, and the sequence of the segment (the
+    //slot holds a different one once it's reused)
+    private String segment;
+    private long sequence;
+    //when the bookmark was made (in milliseconds since the epoch)
+    private long time;
+    //where the bookmark is in the segment (in microseconds from its first frame)
+    private long mediaTimeUs;
+    //how much of the capture before and after the bookmark goes into its clip
+    private long preMillis;
+    private long postMillis;
+    private long videoId = VIDEO_PENDING;
+
+    public Bookmark(long id, String segment, long sequence, long time, long mediaTimeUs, long preMillis, long postMillis)
+    {
+        this.id = id;
+        this.segment = segment;
+        this.sequence = sequence;
+        this.time = time;
+        this.mediaTimeUs = mediaTimeUs;
+        this.preMillis = preMillis;
+        this.postMillis = postMillis;
+    }
+
+    public long getId()
+    {
+        return id;
+    }
+
+    public void setId(long id)
+    {
+        this.id = id;
+    }
+
+    public String getSegment()
+    {
+        return segment;
+    }
+
+    public long getSequence()
+    {
+        return sequence;
+    }
+
+    public long getTime()
+    {
+        return time;
+    }
+
+    public long getMediaTimeUs()
+    {
+        return mediaTimeUs;
+    }
+
+    public long getPreMillis()
+    {
+        return preMillis;
+    }
+
+    public long getPostMillis()
+    {
+        return postMillis;
+    }
+
+    /**
+     * @return the id of the video extracted for the bookmark, or one of VIDEO_PENDING and
+     * VIDEO_FAILED
+     */
+    public long getVideoId()
+    {
+        return videoId;
+    }
+
+    public void setVideoId(long videoId)
+    {
+        this.videoId = videoId;
+    }
+}
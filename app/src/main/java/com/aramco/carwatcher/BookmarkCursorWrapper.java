@@ -0,0 +1,32 @@
+package com.aramco.carwatcher;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import com.aramco.carwatcher.VideoDbSchema.BookmarkTable;
+
+/**
+ * This private helper class handles cursor operations involving Bookmark objects.
+ */
+public class BookmarkCursorWrapper extends CursorWrapper
+{
+    public BookmarkCursorWrapper(Cursor cursor)
+    {
+        super(cursor);
+    }
+
+    /**
+     * Returns a single Bookmark object from the cursor's current position.
+     */
+    public Bookmark getBookmark()
+    {
+        Bookmark bookmark = new Bookmark(getLong(getColumnIndex("_id")),
+                getString(getColumnIndex(BookmarkTable.Cols.SEGMENT)),
+                getLong(getColumnIndex(BookmarkTable.Cols.SEQUENCE)),
+                getLong(getColumnIndex(BookmarkTable.Cols.TIME)),
+                getLong(getColumnIndex(BookmarkTable.Cols.MEDIA_TIME)),
+                getLong(getColumnIndex(BookmarkTable.Cols.PRE)),
+                getLong(getColumnIndex(BookmarkTable.Cols.POST)));
+        bookmark.setVideoId(getLong(getColumnIndex(BookmarkTable.Cols.VIDEO_ID)));
+        return bookmark;
+    }
+}
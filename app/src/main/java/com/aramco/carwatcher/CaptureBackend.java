@@ -0,0 +1,143 @@
+package com.aramco.carwatcher;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A CaptureBackend turns the frames the camera sends to its input surface into video files.
+ * CaptureService drives the backend; the backend reports back through its Listener.
+ */
+public interface CaptureBackend
+{
+    /**
+     * Receives events from a running backend. Callbacks may come on any thread.
+     */
+    interface Listener
+    {
+        /**
+         * Called when the current output file is close to the maximum file size or duration.
+         * The listener hands the backend the file to continue in through rollOver, from its
+         * own thread, or does nothing to let the output grow.
+         */
+        void onNextSegmentNeeded();
+
+        /**
+         * Called when the backend has switched to the next output file. This may come on the
+         * encoder's own thread, which should not be held up.
+         *
+         * @param lastTimeUs the presentation time of the last frame written to the previous
+         * file, or -1 if the backend doesn't know it
+         * @param firstTimeUs the presentation time of the first frame of the new file, or -1
+         * if the backend doesn't know it
+         */
+        void onSegmentStarted(long lastTimeUs, long firstTimeUs);
+
+        /**
+         * Called when the current output file reached its maximum size or duration and the
+         * backend could not switch to the next one by itself. The backend stopped writing, or
+         * keeps writing to the current file until it's stopped; either way the recording has
+         * to be restarted in a new file.
+         */
+        void onSegmentLimitReached();
+
+        /**
+         * Called when the format of the encoded frames is known (only for backends
+         * providing encoded frames).
+         */
+        void onEncoderFormatChanged(MediaFormat format);
+
+        /**
+         * Called for every encoded frame (only for backends providing encoded frames).
+         * The data is only valid for the duration of the call.
+         */
+        void onEncodedFrame(ByteBuffer data, MediaCodec.BufferInfo info);
+    }
+
+    void setListener(Listener listener);
+
+    /**
+     * Makes the backend record from the specified persistent input surface (created with
+     * MediaCodec.createPersistentInputSurface, API 23+) instead of creating its own surface
+     * on every prepare. Since the surface stays the same, a capture session targeting it can
+     * be kept across recordings.
+     *
+     * @param surface the persistent input surface, or null to go back to per-recording surfaces
+     */
+    void setInputSurface(Surface surface);
+
+    /**
+     * Prepares the backend for recording into the specified file. After this call,
+     * getSurface returns the surface the camera should render into.
+     */
+    void prepare(EncoderConfig config, String outputPath) throws IOException;
+
+    /**
+     * @return the input surface of the prepared backend
+     */
+    Surface getSurface();
+
+    /**
+     * Starts recording; the camera should already be sending frames to the surface.
+     */
+    void start();
+
+    /**
+     * Stops recording and finalizes the current output file. The backend can be prepared
+     * again afterwards.
+     */
+    void stop();
+
+    /**
+     * Releases all resources held by the backend.
+     */
+    void release();
+
+    /**
+     * Asks the backend to continue in the specified file as soon as it can, without
+     * interrupting the recording: right away, or once the current file is full for backends
+     * that can only switch files then. onSegmentStarted is called once it did.
+     *
+     * @param nextPath the path of the next output file
+     * @return false if the backend can't do that, in which case nothing happens
+     */
+    boolean rollOver(String nextPath);
+
+    /**
+     * Changes the target bit rate of the recording in progress.
+     *
+     * @param bitRate the new target bit rate (in bits per second)
+     * @return false if the backend can't do that, in which case the bit rate only changes
+     * the next time it is prepared
+     */
+    boolean setBitRate(int bitRate);
+
+    /**
+     * Hands the backend the latest location, to be written to the metadata track of the
+     * recording (see EncoderConfig.setMetadataRate) along with the frames that follow.
+     *
+     * @param location the latest location, or null to stop writing locations
+     * @return false if the backend can't write a metadata track, in which case nothing
+     * happens
+     */
+    boolean setLocation(LocationMetadata location);
+
+    /**
+     * @return true if the backend reports every encoded frame through onEncodedFrame
+     */
+    boolean providesEncodedFrames();
+
+    /**
+     * @return true if the backend can switch output files without interrupting the recording
+     */
+    boolean isGapless();
+
+    /**
+     * @param mimeType the mime type of a video codec
+     * @return true if the backend can record with the specified codec
+     */
+    boolean supportsCodec(String mimeType);
+}
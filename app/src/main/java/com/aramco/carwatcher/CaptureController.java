@@ -0,0 +1,424 @@
+package com.aramco.carwatcher;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Decides what CaptureService does with the commands it receives. The controller is a state
+ * machine with a command queue: a command only runs once the capture is in a stable state
+ * (not starting or stopping), so overlapping commands can never tear down a session that is
+ * still being set up. While commands wait, redundant ones are coalesced: a command that undoes
+ * the previous one within COALESCE_WINDOW cancels out with it (e.g. a double press, or a
+ * bluetooth connection that flaps), and rotations and motion are rejected unless a continuous
+ * capture is running undisturbed.
+ *
+ * The controller must only be used from one thread (the main thread in the service); it does
+ * no work itself, it tells its Host which action to perform.
+ */
+public class CaptureController
+{
+    //commands (i.e. what was asked for)
+    //the user toggled the capture (button, notification, etc.)
+    public static final int COMMAND_TOGGLE = 0;
+    //start/stop a continuous capture (vehicle connected/disconnected)
+    public static final int COMMAND_MONITOR_START = 1;
+    public static final int COMMAND_MONITOR_STOP = 2;
+    //start a continuous capture if there is none, stop it otherwise
+    public static final int COMMAND_MONITOR_TOGGLE = 3;
+    //roll a continuous capture over to its next segment
+    public static final int COMMAND_ROTATE = 4;
+    //motion was seen; a continuous capture saves a clip of it
+    public static final int COMMAND_MOTION = 5;
+
+    //states
+    //nothing is being recorded
+    public static final int STATE_IDLE = 0;
+    //a recording is being started
+    public static final int STATE_STARTING = 1;
+    //the user's recording is running
+    public static final int STATE_RECORDING = 2;
+    //a continuous capture is running
+    public static final int STATE_MONITORING = 3;
+    //a continuous capture is running and the user's clip is being saved from it
+    public static final int STATE_CLIP = 4;
+    //a recording is being stopped (and maybe restarted, e.g. for a rotation)
+    public static final int STATE_STOPPING = 5;
+
+    //actions (i.e. what the host has to do)
+    public static final int ACTION_START_RECORDING = 0;
+    public static final int ACTION_STOP_RECORDING = 1;
+    public static final int ACTION_START_MONITORING = 2;
+    public static final int ACTION_STOP_MONITORING = 3;
+    public static final int ACTION_START_CLIP = 4;
+    public static final int ACTION_STOP_CLIP = 5;
+    public static final int ACTION_ROTATE = 6;
+    //mark the current moment of a continuous capture, without touching the recording
+    public static final int ACTION_BOOKMARK = 7;
+
+    //commands undoing each other within this time (in milliseconds) cancel out
+    public static final long COALESCE_WINDOW = 300;
+    //a start or stop that takes longer than this (in milliseconds) is considered stuck
+    public static final long TRANSITION_TIMEOUT = 10000;
+
+    /**
+     * Carries out the actions decided by the controller.
+     */
+    public interface Host
+    {
+        /**
+         * @return the current time in milliseconds (monotonic)
+         */
+        long now();
+
+        /**
+         * Runs the specified task on the controller's thread after the specified delay.
+         */
+        void schedule(Runnable task, long delay);
+
+        /**
+         * Performs the specified action.
+         *
+         * @return true if the action completes asynchronously, in which case the host has to
+         * call onRecordingStarted/onRecordingStopped/onRecordingFailed once it's done
+         */
+        boolean perform(int action);
+
+        /**
+         * @return whether the host is actually recording, used to recover from a transition
+         * that never completed
+         */
+        boolean isRecording();
+    }
+
+    /**
+     * A command waiting in the queue.
+     */
+    private static class Command
+    {
+        final int type;
+        final long time;
+        //the command is not run before this time, so it can still be cancelled
+        long notBefore;
+
+        Command(int type, long time)
+        {
+            this.type = type;
+            this.time = time;
+        }
+    }
+
+    private final Host host;
+    private final LinkedList<Command> queue = new LinkedList<Command>();
+    private int state = STATE_IDLE;
+    //the stable state a transition ends in
+    private int target = STATE_IDLE;
+    //a continuous capture was asked for while the user was recording; it starts afterwards
+    private boolean monitorPending = false;
+    //the last command that was run, and when
+    private int lastCommand = -1;
+    private long lastCommandTime;
+    //identifies the current transition, so that a stale timeout is ignored
+    private int transition = 0;
+    private boolean drainScheduled = false;
+    //whether the user's toggles bookmark a continuous capture instead of saving clips of it
+    private boolean bookmarking = false;
+
+    public CaptureController(Host host)
+    {
+        this.host = host;
+    }
+
+    public int getState()
+    {
+        return state;
+    }
+
+    /**
+     * @param bookmarking whether the user's toggles should bookmark a running continuous
+     * capture instead of saving a clip of it
+     */
+    public void setBookmarking(boolean bookmarking)
+    {
+        this.bookmarking = bookmarking;
+    }
+
+    /**
+     * @return whether a continuous capture is running (or being started/stopped into one)
+     */
+    public boolean isMonitoring()
+    {
+        int current = isTransitioning() ? target : state;
+        return current == STATE_MONITORING || current == STATE_CLIP;
+    }
+
+    /**
+     * @return the number of commands waiting to run
+     */
+    public int getQueueSize()
+    {
+        return queue.size();
+    }
+
+    private boolean isTransitioning()
+    {
+        return state == STATE_STARTING || state == STATE_STOPPING;
+    }
+
+    /**
+     * Hands a command to the controller. It is run right away if possible, otherwise it is
+     * queued (or dropped if it turns out to be redundant).
+     *
+     * @return false if the command was dropped or cancelled out with another one
+     */
+    public boolean submit(int type)
+    {
+        long now = host.now();
+        if (type == COMMAND_MONITOR_TOGGLE)
+        {
+            type = isMonitoringAfterQueue() ? COMMAND_MONITOR_STOP : COMMAND_MONITOR_START;
+        }
+        if (type == COMMAND_ROTATE || type == COMMAND_MOTION)
+        {
+            //a rotation (or a clip of some motion) only makes sense for a continuous capture
+            //that is left alone
+            if (state != STATE_MONITORING || !queue.isEmpty())
+            {
+                return false;
+            }
+        }
+        else if (type == COMMAND_MONITOR_START && isMonitoringAfterQueue())
+        {
+            return false;
+        }
+        else if (type == COMMAND_MONITOR_STOP && !isMonitoringAfterQueue() && !monitorPending)
+        {
+            return false;
+        }
+        Command command = new Command(type, now);
+        Command last = queue.isEmpty() ? null : queue.getLast();
+        if (last != null)
+        {
+            //a waiting command that is undone right away cancels out with this one
+            if (undoes(type, last.type) && now - last.time < COALESCE_WINDOW)
+            {
+                queue.removeLast();
+                return false;
+            }
+        }
+        else if (undoes(type, lastCommand) && now - lastCommandTime < COALESCE_WINDOW)
+        {
+            //this undoes the command that just ran, so wait in case it gets undone itself
+            command.notBefore = lastCommandTime + COALESCE_WINDOW;
+        }
+        queue.add(command);
+        drain();
+        return true;
+    }
+
+    /**
+     * Called by the host once a recording it was asked to start (or restart) is running.
+     */
+    public void onRecordingStarted()
+    {
+        if (isTransitioning() && target != STATE_IDLE)
+        {
+            finishTransition(target);
+        }
+    }
+
+    /**
+     * Called by the host once a recording it was asked to stop is stopped for good.
+     */
+    public void onRecordingStopped()
+    {
+        if (isTransitioning())
+        {
+            finishTransition(STATE_IDLE);
+        }
+    }
+
+    /**
+     * Called by the host if a recording could not be started.
+     */
+    public void onRecordingFailed()
+    {
+        monitorPending = false;
+        if (isTransitioning())
+        {
+            finishTransition(STATE_IDLE);
+        }
+        else
+        {
+            state = STATE_IDLE;
+        }
+    }
+
+    private void finishTransition(int newState)
+    {
+        transition++;
+        state = newState;
+        //a continuous capture that was waiting on the user's recording starts now
+        if (state == STATE_IDLE && monitorPending)
+        {
+            monitorPending = false;
+            queue.addFirst(new Command(COMMAND_MONITOR_START, host.now()));
+        }
+        drain();
+    }
+
+    /**
+     * Runs the queued commands for as long as the capture is stable.
+     */
+    private void drain()
+    {
+        while (!isTransitioning() && !queue.isEmpty())
+        {
+            Command command = queue.getFirst();
+            long now = host.now();
+            if (command.notBefore > now)
+            {
+                if (!drainScheduled)
+                {
+                    drainScheduled = true;
+                    host.schedule(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            drainScheduled = false;
+                            drain();
+                        }
+                    }, command.notBefore - now);
+                }
+                return;
+            }
+            queue.removeFirst();
+            lastCommand = command.type;
+            lastCommandTime = now;
+            run(command.type);
+        }
+    }
+
+    private void run(int type)
+    {
+        switch (type)
+        {
+            case COMMAND_TOGGLE:
+                if (state == STATE_IDLE)
+                {
+                    perform(ACTION_START_RECORDING, STATE_STARTING, STATE_RECORDING);
+                }
+                else if (state == STATE_RECORDING)
+                {
+                    perform(ACTION_STOP_RECORDING, STATE_STOPPING, STATE_IDLE);
+                }
+                else if (state == STATE_MONITORING && bookmarking)
+                {
+                    perform(ACTION_BOOKMARK, STATE_MONITORING, STATE_MONITORING);
+                }
+                else if (state == STATE_MONITORING)
+                {
+                    perform(ACTION_START_CLIP, STATE_STARTING, STATE_CLIP);
+                }
+                else if (state == STATE_CLIP)
+                {
+                    perform(ACTION_STOP_CLIP, STATE_STOPPING, STATE_MONITORING);
+                }
+                break;
+            case COMMAND_MONITOR_START:
+                if (state == STATE_IDLE)
+                {
+                    perform(ACTION_START_MONITORING, STATE_STARTING, STATE_MONITORING);
+                }
+                else if (state == STATE_RECORDING)
+                {
+                    monitorPending = true;
+                }
+                break;
+            case COMMAND_MONITOR_STOP:
+                monitorPending = false;
+                if (state == STATE_MONITORING || state == STATE_CLIP)
+                {
+                    perform(ACTION_STOP_MONITORING, STATE_STOPPING, STATE_IDLE);
+                }
+                break;
+            case COMMAND_ROTATE:
+                if (state == STATE_MONITORING)
+                {
+                    perform(ACTION_ROTATE, STATE_STOPPING, STATE_MONITORING);
+                }
+                break;
+            case COMMAND_MOTION:
+                if (state == STATE_MONITORING)
+                {
+                    perform(ACTION_START_CLIP, STATE_STARTING, STATE_CLIP);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Has the host perform an action, going through the specified transition state if the
+     * action completes asynchronously.
+     */
+    private void perform(int action, int transitionState, int stableState)
+    {
+        target = stableState;
+        state = transitionState;
+        final int id = ++transition;
+        if (!host.perform(action))
+        {
+            state = stableState;
+            return;
+        }
+        //the host may have completed the action already
+        if (transition != id)
+        {
+            return;
+        }
+        host.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (transition == id && isTransitioning())
+                {
+                    //the transition got stuck, go with whatever the host is actually doing
+                    finishTransition(host.isRecording() ? target : STATE_IDLE);
+                }
+            }
+        }, TRANSITION_TIMEOUT);
+    }
+
+    /**
+     * @return whether a continuous capture will be running once the queue has been run
+     */
+    private boolean isMonitoringAfterQueue()
+    {
+        boolean monitoring = isMonitoring();
+        Iterator<Command> iterator = queue.iterator();
+        while (iterator.hasNext())
+        {
+            int type = iterator.next().type;
+            if (type == COMMAND_MONITOR_START)
+            {
+                monitoring = true;
+            }
+            else if (type == COMMAND_MONITOR_STOP)
+            {
+                monitoring = false;
+            }
+        }
+        return monitoring;
+    }
+
+    /**
+     * @return whether the specified command undoes the other one
+     */
+    private static boolean undoes(int type, int other)
+    {
+        return (type == COMMAND_TOGGLE && other == COMMAND_TOGGLE) ||
+            (type == COMMAND_MONITOR_START && other == COMMAND_MONITOR_STOP) ||
+            (type == COMMAND_MONITOR_STOP && other == COMMAND_MONITOR_START);
+    }
+}
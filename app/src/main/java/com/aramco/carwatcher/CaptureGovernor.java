@@ -0,0 +1,139 @@
+package com.aramco.carwatcher;
+
+/**
+ * Picks the capture tier from the phone's temperature and battery, so that a phone cooking on
+ * the dashboard (or running out of battery) records less instead of recording at full quality
+ * until the camera gives out. Each tier records less than the one before it:
+ *
+ * TIER_FULL: the configured quality
+ * TIER_REDUCED: the configured quality at 75% of its bit rate
+ * TIER_SAVER: the storage saver quality (720p), with H.264 in place of HEVC
+ * TIER_CRITICAL: the storage saver quality at half the frame rate and bit rate
+ *
+ * There is no thermal status before API 29, so the battery temperature stands in for the
+ * phone's. A tier is entered as soon as its threshold is crossed, but only left after the
+ * phone stayed past a lower threshold for COOL_DOWN, one tier at a time, so the tier doesn't
+ * flap while the temperature hovers around a threshold.
+ */
+public class CaptureGovernor
+{
+    public static final int TIER_FULL = 0;
+    public static final int TIER_REDUCED = 1;
+    public static final int TIER_SAVER = 2;
+    public static final int TIER_CRITICAL = 3;
+    //the battery temperature (in tenths of a degree) from which each tier is entered, and
+    //below which it can be left
+    private static final int[] ENTER_TEMPERATURE = {0, 420, 450, 480};
+    private static final int[] EXIT_TEMPERATURE = {0, 390, 420, 450};
+    //the battery level (in percent) at which each tier is entered when not charging, and
+    //above which it can be left
+    private static final int[] ENTER_BATTERY = {100, 30, 20, 10};
+    private static final int[] EXIT_BATTERY = {100, 35, 25, 15};
+    //how long the phone has to allow a lower tier before going down to it (in milliseconds)
+    static final long COOL_DOWN = 60000;
+
+    private int tier = TIER_FULL;
+    //since when the phone allows a lower tier, -1 if it doesn't
+    private long coolingSince = -1;
+
+    /**
+     * Called with every battery update.
+     *
+     * @param timeMillis when the update came (on a monotonic clock)
+     * @param temperature the battery temperature in tenths of a degree Celsius, or
+     * Integer.MIN_VALUE if unknown
+     * @param batteryLevel the battery level in percent, or -1 if unknown
+     * @param charging whether the phone is charging (or full)
+     * @return true if the tier changed
+     */
+    public synchronized boolean onSample(long timeMillis, int temperature, int batteryLevel, boolean charging)
+    {
+        int enter = getTier(temperature, batteryLevel, charging, ENTER_TEMPERATURE, ENTER_BATTERY);
+        if (enter > tier)
+        {
+            tier = enter;
+            coolingSince = -1;
+            return true;
+        }
+        if (getTier(temperature, batteryLevel, charging, EXIT_TEMPERATURE, EXIT_BATTERY) >= tier)
+        {
+            coolingSince = -1;
+            return false;
+        }
+        if (coolingSince < 0)
+        {
+            coolingSince = timeMillis;
+        }
+        else if (timeMillis - coolingSince >= COOL_DOWN)
+        {
+            tier--;
+            //the next tier down has to wait its turn
+            coolingSince = timeMillis;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized int getTier()
+    {
+        return tier;
+    }
+
+    /**
+     * @return the highest tier whose threshold is crossed
+     */
+    private static int getTier(int temperature, int batteryLevel, boolean charging,
+            int[] temperatures, int[] batteryLevels)
+    {
+        for (int tier = TIER_CRITICAL; tier > TIER_FULL; tier--)
+        {
+            if (temperature >= temperatures[tier] ||
+                    (!charging && batteryLevel >= 0 && batteryLevel <= batteryLevels[tier]))
+            {
+                return tier;
+            }
+        }
+        return TIER_FULL;
+    }
+
+    /**
+     * @return whether the tier records the storage saver quality instead of the configured one
+     */
+    public static boolean lowersResolution(int tier)
+    {
+        return tier >= TIER_SAVER;
+    }
+
+    /**
+     * @return whether the tier records with the configured codec (or H.264 otherwise)
+     */
+    public static boolean keepsCodec(int tier)
+    {
+        return tier < TIER_SAVER;
+    }
+
+    /**
+     * @param bitRate the bit rate of the quality the tier records
+     * @return the bit rate to record at
+     */
+    public static int getBitRate(int tier, int bitRate)
+    {
+        switch (tier)
+        {
+            case TIER_REDUCED:
+                return (int)((long)bitRate * 3 / 4);
+            case TIER_CRITICAL:
+                return bitRate / 2;
+        }
+        return bitRate;
+    }
+
+    /**
+     * @param frameRate the frame rate of the quality the tier records
+     * @return the frame rate to record at
+     */
+    public static int getFrameRate(int tier, int frameRate)
+    {
+        return (tier == TIER_CRITICAL) ? Math.max(1, frameRate / 2) : frameRate;
+    }
+}
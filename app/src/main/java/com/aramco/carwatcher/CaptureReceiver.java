@@ -3,8 +3,11 @@ package com.aramco.carwatcher;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * Created by support$ on 1/10/2018.
  */
@@ -12,6 +15,11 @@ import android.util.Log;
 public class CaptureReceiver extends BroadcastReceiver
 {
     private static final String TAG = "CaptureReceiver";
+    //how long ago the button was pressed (in seconds), for presses the Flic button queued
+    //while it was disconnected
+    public static final String EXTRA_TIME_DIFF = "timeDiff";
+    //the action a held button sends to take a still
+    public static final String ACTION_TAKE_STILL = "com.aramco.carwatcher.TAKESTILL";
 
     @Override
     public void onReceive(Context context, Intent intent)
@@ -24,8 +32,14 @@ public class CaptureReceiver extends BroadcastReceiver
             context.startService(captureIntent);
             return;
         }
-        //same intent is used for capture/stop capturing
-        Intent captureIntent = CaptureService.newIntent(context, false);
+        //same intent is used for capture/stop capturing, a hold takes a still instead
+        Intent captureIntent = ACTION_TAKE_STILL.equals(intent.getAction()) ?
+            CaptureService.newStillIntent(context) : CaptureService.newIntent(context, false);
+        //let the capture trace start from the moment the button was pressed
+        long now = SystemClock.elapsedRealtimeNanos();
+        long timeDiff = intent.getIntExtra(EXTRA_TIME_DIFF, 0);
+        captureIntent.putExtra(CaptureService.EXTRA_PRESS_TIME, now - TimeUnit.SECONDS.toNanos(timeDiff));
+        captureIntent.putExtra(CaptureService.EXTRA_RECEIVE_TIME, now);
         context.startService(captureIntent);
     }
 }
@@ -7,29 +7,42 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.database.sqlite.SQLiteDatabase;
+import android.graphics.ImageFormat;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.media.CamcorderProfile;
-import android.media.MediaMetadataRetriever;
-import android.media.MediaRecorder;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
 import android.media.RingtoneManager;
 import android.net.Uri;
+import android.os.BatteryManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
@@ -47,20 +60,46 @@ import android.util.Log;
 import android.util.Size;
 import android.util.SparseIntArray;
 import android.view.Surface;
+import android.widget.Toast;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import static android.app.PendingIntent.FLAG_UPDATE_CURRENT;
+import static com.aramco.carwatcher.SettingsActivity.BOOKMARK_SETTING;
+import static com.aramco.carwatcher.SettingsActivity.CODEC_H264;
+import static com.aramco.carwatcher.SettingsActivity.CODEC_HEVC;
+import static com.aramco.carwatcher.SettingsActivity.CODEC_SETTING;
+import static com.aramco.carwatcher.SettingsActivity.DEFAULT_LOOP;
+import static com.aramco.carwatcher.SettingsActivity.DEFAULT_METADATA_RATE;
+import static com.aramco.carwatcher.SettingsActivity.DEFAULT_PRE_ROLL;
 import static com.aramco.carwatcher.SettingsActivity.DEFAULT_TIMEOUT;
+import static com.aramco.carwatcher.SettingsActivity.ENGINE_MEDIA_CODEC;
+import static com.aramco.carwatcher.SettingsActivity.ENGINE_MEDIA_RECORDER;
+import static com.aramco.carwatcher.SettingsActivity.ENGINE_SETTING;
+import static com.aramco.carwatcher.SettingsActivity.LOOP_SETTING;
+import static com.aramco.carwatcher.SettingsActivity.METADATA_RATE_SETTING;
+import static com.aramco.carwatcher.SettingsActivity.MOTION_SETTING;
+import static com.aramco.carwatcher.SettingsActivity.PARKING_SETTING;
+import static com.aramco.carwatcher.SettingsActivity.PRE_ROLL_SETTING;
+import static com.aramco.carwatcher.SettingsActivity.PROXY_SETTING;
+import static com.aramco.carwatcher.SettingsActivity.QUALITY_BALANCED;
+import static com.aramco.carwatcher.SettingsActivity.QUALITY_SAVER;
+import static com.aramco.carwatcher.SettingsActivity.QUALITY_SETTING;
 import static com.aramco.carwatcher.SettingsActivity.SETTINGS_FILE;
+import static com.aramco.carwatcher.SettingsActivity.STILL_SETTING;
 import static com.aramco.carwatcher.SettingsActivity.TIMEOUT_SETTING;
 
 public class CaptureService extends Service
@@ -75,17 +114,63 @@ public class CaptureService extends Service
     private static final String EXTRA_ROTATION = "EXTRA_ROTATION";
     private static final String EXTRA_SET_RUNNING = "EXTRA_SET_RUNNING";
     private static final String EXTRA_SET_STOPPED = "EXTRA_SET_STOPPED";
-    //the interval (in seconds) for recorder rotation during continuous capture mode
-    private static final long ROTATION_INTERVAL = TimeUnit.SECONDS.toMillis(400);
+    private static final String EXTRA_ARM = "EXTRA_ARM";
+    private static final String EXTRA_STILL = "EXTRA_STILL";
+    private static final String EXTRA_REQUEST_TIME = "EXTRA_REQUEST_TIME";
+    //when the button behind the request was pressed and its broadcast received (elapsedRealtimeNanos)
+    public static final String EXTRA_PRESS_TIME = "EXTRA_PRESS_TIME";
+    public static final String EXTRA_RECEIVE_TIME = "EXTRA_RECEIVE_TIME";
+    //how often the capture trace is written out while the service runs
+    private static final long TRACE_FLUSH_INTERVAL = 30000;
+    //how often the storage is probed while recording, and how much each probe writes
+    private static final long WRITE_PROBE_INTERVAL = 2000;
+    //how often it's probed once the storage keeps up easily
+    private static final long WRITE_PROBE_IDLE_INTERVAL = 10000;
+    private static final int WRITE_PROBE_SIZE = 16 * 1024;
+    private static final String WRITE_PROBE_FILE = ".write_probe";
+    private static final String CHANNEL_ID = "carwatcher_channel";
+    //continuous capture is cut into segments of at most this duration and size; the backend
+    //moves on to the next segment by itself once either is reached
+    private static final long SEGMENT_DURATION = TimeUnit.MINUTES.toMillis(5);
+    private static final long MAX_SEGMENT_SIZE = 256L * 1024 * 1024;
+    //how long to wait before retrying a rotation the controller was not ready for
+    private static final long ROTATION_RETRY_DELAY = 1000;
+    //segments recorded less than this long after the one before them (in milliseconds, on top
+    //of SEGMENT_DURATION) are taken to be part of the same continuous capture
+    private static final long SEGMENT_SLACK = 10000;
+    //how often (in milliseconds) the path of a capture is sampled (GPS is asked for fixes more
+    //often when the metadata track takes more), and the least accurate fix (in meters) that
+    //is kept
+    private static final long TRACK_INTERVAL = 1000;
+    private static final float TRACK_ACCURACY = 50;
+    //once the track of a long continuous capture grows past this many bytes, only the last
+    //TRACK_KEEP milliseconds of it are kept (which still covers every segment in the loop)
+    private static final int TRACK_MAX_SIZE = 512 * 1024;
+    private static final long TRACK_KEEP = TimeUnit.HOURS.toMillis(6);
+    //the frames per second a parked car is recorded at, as a time-lapse
+    private static final double PARKING_CAPTURE_RATE = 1.0;
+    //the interval (in seconds) between key frames, for backends that allow setting it
+    private static final int KEY_FRAME_INTERVAL = 1;
     //the action sent when a new video is captured
     public static final String ACTION_NEW_VIDEO = "com.aramco.carwatcher.CHECK_VIDEOS";
     //how long after a click to stop a running continuous capture
     public static final int CONTINUOUS_DURATION = 30;
+    //motion keeps a clip going for CONTINUOUS_DURATION after it was last seen, up to this
+    //many seconds
+    private static final int MAX_CLIP_DURATION = 300;
+    //motion is looked for in the smallest YUV stream at least this wide, in at most one frame
+    //every MOTION_FRAME_INTERVAL (in milliseconds)
+    private static final int MOTION_WIDTH = 320;
+    private static final long MOTION_FRAME_INTERVAL = 100;
     //the opened camera device
     private CameraDevice cameraDevice;
-    //the media recorder that's going to be capturing video
-    //points to one of primaryRecorder or secondaryRecorder;
-    private MediaRecorder mediaRecorder;
+    //the backend that's going to be capturing video (MediaRecorder or MediaCodec)
+    private CaptureBackend captureBackend;
+    //records a low bit rate proxy of standalone recordings from the same camera frames, or
+    //null if proxies are disabled
+    private CaptureBackend proxyBackend;
+    //the proxy file of the recording in progress, or null if it has none
+    private String proxyFileName;
     //lock to prevent app from closing before releasing camera access
     private Semaphore cameraLock = new Semaphore(1);
     private Integer sensorOrientation;
@@ -94,15 +179,78 @@ public class CaptureService extends Service
     private Handler backgroundHandler;
     private HandlerThread backgroundThread;
     //whether or not service is currently recording
-    private boolean isRecordingVideo = false;
+    private volatile boolean isRecordingVideo = false;
     //whether service is running in continuous mode
     private boolean continuousCapture = false;
     //whether a recording in the current continuous capture has been started yet
     private boolean continuousRecording = false;
     //the UI thread handler
     private Handler uiHandler;
-    //the size of the video to capture
-    private Size videoSize;
+    //the resolution, bit rate and frame rate picked for this device and quality setting
+    private EncoderProfile encoderProfile;
+    //steps the recording down from encoderProfile when the phone gets too hot or its battery
+    //runs low; the tier is picked up whenever the backend is prepared
+    private CaptureGovernor governor = new CaptureGovernor();
+    //the tier and profile the backend was last prepared with
+    private int captureTier = CaptureGovernor.TIER_FULL;
+    private EncoderProfile captureProfile;
+    //while the car is parked, a continuous capture records a time-lapse instead
+    private boolean parkingEnabled;
+    private ParkingDetector parkingDetector = new ParkingDetector();
+    private SensorManager sensorManager;
+    //whether the backend was last prepared for a time-lapse
+    private boolean parkingMode = false;
+    //during a continuous capture, motion in front of the camera saves a clip; it's looked
+    //for in a small YUV stream next to the recording, analyzed on a thread of its own
+    private boolean motionEnabled;
+    private ImageReader motionReader;
+    private MotionDetector motionDetector;
+    private HandlerThread motionThread;
+    private Handler motionHandler;
+    private long lastMotionFrameTime = 0;
+    //holding the button takes a JPEG from the running capture session; when enabled, the JPEG
+    //stream is part of every session but only targeted by still requests, and the stills are
+    //written on a thread of their own
+    private boolean stillEnabled;
+    //the proxy, motion and still streams are left out of the sessions once a session with them
+    //could not be configured (the device doesn't guarantee every combination of streams)
+    private boolean optionalStreamsFailed = false;
+    //whether the session being configured has any of those streams, and the surface it
+    //records into, so it can be configured again without them
+    private boolean sessionOptional = false;
+    private Surface sessionSurface;
+    private ImageReader stillReader;
+    private HandlerThread stillThread;
+    private Handler stillHandler;
+    //the stills requested whose JPEG hasn't come yet, oldest first
+    private final ConcurrentLinkedQueue<Still> stillQueue = new ConcurrentLinkedQueue<>();
+    //the stills taken since the last video was added, which get linked to the next one
+    private final List<String> pendingStills = new ArrayList<>();
+    //during a continuous capture, a click bookmarks the moment instead of saving a clip; the
+    //clips of the bookmarks are cut out of the loop in batches as their segments finish, on
+    //a thread of their own
+    private boolean bookmarkEnabled;
+    private HandlerThread bookmarkThread;
+    private Handler bookmarkHandler;
+    //the bookmarks whose clips were handed to the finalizer and aren't done yet
+    private final Set<Long> extractingBookmarks = new HashSet<>();
+    //the path of the current (or last) capture, which the clips take the part they were
+    //recorded over from
+    private GpsTrack captureTrack;
+    //the listener adding to captureTrack while the camera is capturing, or null if none is
+    private LocationListener trackListener;
+    //the location samples per second written to the metadata track of the recordings (0 if
+    //they have none)
+    private int metadataRate;
+    /**
+     * A still that was requested from the camera.
+     */
+    private static class Still
+    {
+        String fileName;
+        //when the button was held (elapsedRealtimeNanos)
+        long pressTime;
+    }
     //the current capture session
     private CameraCaptureSession previewSession;
     //the capture session builder
@@ -112,20 +260,31 @@ public class CaptureService extends Service
     //we need a notification id to update the notification upon completion
     private int notifyId = 1;
     private int notifyIdContinuous = 2;
+    private int notifyIdArmed = 3;
     //keep reference to notification builder for updating notification
     private NotificationCompat.Builder notifyBuilder;
     private NotificationCompat.Builder notifyBuilderContinuous;
     //and the notification manager as well
     private NotificationManager notifyManager;
-    //this variable keeps track of the last rotated video file, which will need to
-    //be deleted when a new one comes in
+    //continuous capture records its segments into the slots of this loop, so the last few
+    //hours are always kept without creating and deleting files
+    private SegmentLoop segmentLoop;
+    //the loop slot the current segment is being recorded into
+    private SegmentLoop.Slot currentSlot = null;
+    //the loop slot the recorder will roll over to during a gapless rotation
+    private SegmentLoop.Slot nextSlot = null;
+    //if the loop has no slot available (e.g. storage is full), segments are recorded into
+    //regular files instead, and this keeps track of the last rotated one, which will need
+    //to be deleted when a new one comes in
     private File rotationFile = null;
     //this will only be true for the first run; it is needed to allow the first
     //startRecordingVideo to be called after the camera is open
     private boolean firstRun;
-    //the first trigger of the alarm should be ignored since it will start
-    //immediately when the alarm is set
-    private boolean firstAlarm;
+    //true once the backend stopped on a segment limit, until the recording is restarted
+    private volatile boolean segmentLimitReached = false;
+    //true once the capture tier or parking mode changed during a continuous capture, until
+    //the recording is restarted with the new settings
+    private volatile boolean configChanged = false;
     //in continuous mode, this is the most recently saved file in the current run
     private File lastVideoFile = null;
     //a VideoLocationRequest encapsulates a request for location data for a video
@@ -151,29 +310,191 @@ public class CaptureService extends Service
     //this handler will stop a continuousRecording after 30 seconds if the user
     //does not stop it manually
     private Handler continuousHandler = new Handler();
+    //the file name of the segment the recorder will roll over to during a gapless rotation
+    private String nextVideoFileName = null;
+    //measures how many frames are lost every time a continuous capture rotates
+    private SegmentGapMeter segmentGapMeter;
+    //throttles the recording when the storage can't keep up with it; the storage is probed
+    //on a thread of its own, since a probe can take a while exactly when that happens
+    private WriteThroughputMonitor writeMonitor = new WriteThroughputMonitor();
+    private HandlerThread writeProbeThread;
+    private Handler writeProbeHandler;
+    private final byte[] writeProbeData = new byte[WRITE_PROBE_SIZE];
+    //the bit rate the recording is set up with, before the storage throttles it; it's read
+    //on the probe thread
+    private volatile int captureBitRate;
+    //how many seconds of footage from before a click should be saved with it
+    private int preRollSeconds;
+    //holds the last preRollSeconds of encoded video; only allocated when the capture
+    //backend provides encoded frames
+    private PreRollBuffer preRollBuffer;
+    //the format of the encoded frames, needed to mux them into a clip
+    private MediaFormat encoderFormat;
+    //while a user-requested clip is being written from the pre-roll buffer, this
+    //writer receives every encoded frame
+    private PreRollWriter preRollWriter;
+    private String preRollFileName;
+    //when the current continuous capture started (in milliseconds since the epoch), and when
+    //the user asked for the current clip (elapsedRealtime); a clip that isn't written from
+    //the pre-roll buffer is cut out of the segments afterwards
+    private long monitorStartTime;
+    private long clipStartTime;
+    //encoded frames arrive on the encoder thread, clips are started/stopped on the main thread
+    private final Object preRollLock = new Object();
+    //in armed mode, the service stays in the foreground with the camera open and a capture
+    //session on a persistent encoder surface, so a click only has to start the encoder
+    private boolean armed = false;
+    //the persistent encoder input surface used while armed
+    private Surface armedSurface;
+    //whether the current capture session targets armedSurface (and is kept across recordings)
+    private boolean sessionArmed = false;
+    //while armed, the backend is prepared ahead of the next recording; this is whether it
+    //currently is, and whether that was for a continuous capture
+    private boolean backendPrepared = false;
+    private boolean backendPreparedContinuous = false;
+    //when the recording that is being started was requested (elapsedRealtime), used to
+    //measure the click-to-first-frame latency
+    private long captureRequestTime = 0;
+    private boolean captureRequestArmed = false;
+    //the timing of the frames written to the current file, as they are played back. It's
+    //swapped for a new one on the encoder thread when the backend switches files
+    private volatile FrameTiming frameTiming = new FrameTiming();
+    //the timing of the segment in currentSlot (or videoFileName), which is frameTiming except
+    //between a switch of files and the camera thread catching up with it
+    private FrameTiming slotTiming = frameTiming;
+    //the timing of the file the backend switched to, until the switch is taken care of on
+    //the camera thread (null when no switch is pending)
+    private volatile FrameTiming switchedTiming = null;
+    //for backends that don't report their encoded frames, frameTiming is fed from the camera;
+    //in a time-lapse the camera frames are spaced timeLapseIntervalUs apart and scaled to
+    //the time they're played back at
+    private volatile long timeLapseIntervalUs = 0;
+    private volatile double timeLapseScale = 0;
+    private long lastTimeLapseFrameUs = -1;
+    //how steadily the camera delivers frames, since the current recording (or clip) started
+    private FrameStats frameStats;
+    //when the last user request was made (elapsedRealtime)
+    private long requestTime = 0;
+    //decides what to do with the commands sent to the service (used on the main thread only)
+    private CaptureController controller;
+    private Handler controllerHandler = new Handler();
+    //adds finished clips to the database, away from the camera thread
+    private ClipFinalizer clipFinalizer;
 
     @Override
     public void onCreate()
     {
         super.onCreate();
         firstRun = true;
+        //create the selected capture backend before the camera is opened
+        SharedPreferences sharedPref = getSharedPreferences(SETTINGS_FILE, Context.MODE_PRIVATE);
+        if (sharedPref.getInt(ENGINE_SETTING, ENGINE_MEDIA_RECORDER) == ENGINE_MEDIA_CODEC)
+        {
+            captureBackend = new MediaCodecBackend();
+        }
+        else
+        {
+            captureBackend = new MediaRecorderBackend();
+        }
+        captureBackend.setListener(backendListener);
+        if (sharedPref.getInt(PROXY_SETTING, 0) == 1)
+        {
+            proxyBackend = new MediaCodecBackend();
+        }
+        //HEVC is only used if the backend can record it (and the resolver finds a hardware
+        //encoder for it), otherwise recording falls back to H.264
+        String mimeType = EncoderProfileResolver.MIME_AVC;
+        if (sharedPref.getInt(CODEC_SETTING, CODEC_H264) == CODEC_HEVC &&
+                captureBackend.supportsCodec(EncoderProfileResolver.MIME_HEVC))
+        {
+            mimeType = EncoderProfileResolver.MIME_HEVC;
+        }
+        encoderProfile = EncoderProfileResolver.resolve(this, mimeType, sharedPref.getInt(QUALITY_SETTING, QUALITY_BALANCED));
+        captureProfile = encoderProfile;
+        segmentGapMeter = new SegmentGapMeter(encoderProfile.getFrameRate());
+        frameStats = new FrameStats(encoderProfile.getFrameRate());
+        //the current battery state comes right away, since the broadcast is sticky
+        registerReceiver(batteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
         //start the camera's background thread
         startBackgroundThread();
+        backgroundHandler.postDelayed(traceFlusher, TRACE_FLUSH_INTERVAL);
+        writeProbeThread = new HandlerThread("WriteProbe");
+        writeProbeThread.start();
+        writeProbeHandler = new Handler(writeProbeThread.getLooper());
+        writeProbeHandler.postDelayed(writeProber, WRITE_PROBE_INTERVAL);
+        motionEnabled = sharedPref.getInt(MOTION_SETTING, 0) == 1;
+        if (motionEnabled)
+        {
+            motionThread = new HandlerThread("Motion");
+            motionThread.start();
+            motionHandler = new Handler(motionThread.getLooper());
+        }
+        stillEnabled = sharedPref.getInt(STILL_SETTING, 0) == 1;
+        if (stillEnabled)
+        {
+            stillThread = new HandlerThread("Still");
+            stillThread.start();
+            stillHandler = new Handler(stillThread.getLooper());
+        }
         //open the camera for recording
         openCamera();
         //initialize the location queue
         locationQueue = new LinkedList<VideoLocationRequest>();
         apiConnector = new ApiConnector();
         //if timeout setting is specified, use that
-        SharedPreferences sharedPref = getSharedPreferences(SETTINGS_FILE, Context.MODE_PRIVATE);
         locationTimeout = sharedPref.getInt(TIMEOUT_SETTING, DEFAULT_TIMEOUT);
+        preRollSeconds = sharedPref.getInt(PRE_ROLL_SETTING, DEFAULT_PRE_ROLL);
+        metadataRate = sharedPref.getInt(METADATA_RATE_SETTING, DEFAULT_METADATA_RATE);
+        parkingEnabled = sharedPref.getInt(PARKING_SETTING, 1) == 1;
+        sensorManager = (SensorManager)getSystemService(Context.SENSOR_SERVICE);
+        //the loop has as many slots as segments are needed to cover the loop length
+        long loopSeconds = TimeUnit.MINUTES.toSeconds(sharedPref.getInt(LOOP_SETTING, DEFAULT_LOOP));
+        long segmentSeconds = TimeUnit.MILLISECONDS.toSeconds(SEGMENT_DURATION);
+        int slotCount = (int)Math.max(2, (loopSeconds + segmentSeconds - 1) / segmentSeconds);
+        //slots get some headroom since the encoder doesn't stick to its bit rate exactly
+        segmentLoop = new SegmentLoop(new File(getVideoFilePath("loop", this)), slotCount, getSegmentFileSize() * 5 / 4);
+        segmentLoop.open();
+        clipFinalizer = new ClipFinalizer(this, finalizerListener);
+        controller = new CaptureController(controllerHost);
+        bookmarkEnabled = sharedPref.getInt(BOOKMARK_SETTING, 0) == 1;
+        controller.setBookmarking(bookmarkEnabled);
+        if (bookmarkEnabled)
+        {
+            bookmarkThread = new HandlerThread("Bookmark");
+            bookmarkThread.start();
+            bookmarkHandler = new Handler(bookmarkThread.getLooper());
+        }
     }
 
     @Override
     public void onDestroy()
     {
         closeCamera();
+        stopTrack();
+        unregisterReceiver(batteryReceiver);
+        sensorManager.unregisterListener(parkingListener);
+        writeProbeThread.quit();
+        if (motionThread != null)
+        {
+            motionThread.quitSafely();
+        }
+        if (stillThread != null)
+        {
+            stillThread.quitSafely();
+        }
+        if (bookmarkThread != null)
+        {
+            bookmarkThread.quitSafely();
+        }
         stopBackgroundThread();
+        clipFinalizer.quit();
+        controllerHandler.removeCallbacksAndMessages(null);
+        CaptureTrace.flush(this);
+        if (armedSurface != null)
+        {
+            armedSurface.release();
+            armedSurface = null;
+        }
     }
 
     /**
@@ -189,6 +510,36 @@ public class CaptureService extends Service
         //starting/stopping continuous captures are not driven by the user
         //but by conditions like charging/bluetooth
         intent.putExtra(EXTRA_USER_DRIVEN, !continuous);
+        //keep the time of the request to measure how long it takes to start recording
+        intent.putExtra(EXTRA_REQUEST_TIME, SystemClock.elapsedRealtime());
+        return intent;
+    }
+
+    /**
+     * Creates an intent that arms or disarms the CaptureService. An armed service keeps the
+     * camera ready in the foreground so that captures start as fast as possible.
+     *
+     * @param context the application context
+     * @param arm whether to arm or disarm the service
+     * @return an intent that you can send to CaptureService to arm/disarm it
+     */
+    public static Intent newArmIntent(Context context, boolean arm)
+    {
+        Intent intent = new Intent(context, CaptureService.class);
+        intent.putExtra(EXTRA_ARM, arm);
+        return intent;
+    }
+
+    /**
+     * Creates an intent that takes a still from the running capture, without interrupting it.
+     *
+     * @param context the application context
+     * @return an intent that you can send to CaptureService to take a still
+     */
+    public static Intent newStillIntent(Context context)
+    {
+        Intent intent = new Intent(context, CaptureService.class);
+        intent.putExtra(EXTRA_STILL, true);
         return intent;
     }
 
@@ -218,767 +569,2529 @@ public class CaptureService extends Service
     @Override
     public int onStartCommand(Intent intent, int flags, int startId)
     {
-        //the bluetooth receiver may send commands that target a specific state, unlike
-        //other intents that only toggle without regard to current state
-        if (intent.hasExtra(EXTRA_SET_RUNNING) && continuousCapture)
+        if (intent.hasExtra(EXTRA_ARM))
+        {
+            setArmed(intent.getBooleanExtra(EXTRA_ARM, false));
+            return START_NOT_STICKY;
+        }
+        //a still doesn't change the state of the capture
+        if (intent.getBooleanExtra(EXTRA_STILL, false))
         {
-            //if we're targeting a running continuous capture but
-            //it's already running..do nothing
+            long now = SystemClock.elapsedRealtimeNanos();
+            takeStill(intent.getLongExtra(EXTRA_PRESS_TIME, now));
+            stopServiceIfPossible();
             return START_NOT_STICKY;
         }
-        else if (intent.hasExtra(EXTRA_SET_STOPPED) && !continuousCapture)
+        //segments are cut by the backend now, a rotation alarm set by an older version is
+        //all that still sends these
+        if (intent.getBooleanExtra(EXTRA_ROTATION, false))
         {
-            //if we're targeting a stopped continuous capture but
-            //it's already stopped..do nothing
+            cancelRotationAlarm(this);
+            stopServiceIfPossible();
             return START_NOT_STICKY;
         }
         //check if this is for continuous capture (i.e. not user-driven)
-        //TODO: what if there's a non-continuous capture in progress
-        boolean userDriven = true;
-        if (intent.hasExtra("EXTRA_USER_DRIVEN"))
+        boolean userDriven = intent.getBooleanExtra(EXTRA_USER_DRIVEN, true);
+        //every start/stop request by the user gets traced
+        if (userDriven)
         {
-            userDriven = intent.getExtras().getBoolean(EXTRA_USER_DRIVEN);
+            long now = SystemClock.elapsedRealtimeNanos();
+            CaptureTrace.begin(intent.getLongExtra(EXTRA_PRESS_TIME, now));
+            if (intent.hasExtra(EXTRA_RECEIVE_TIME))
+            {
+                CaptureTrace.mark(CaptureTrace.STAGE_RECEIVER, intent.getLongExtra(EXTRA_RECEIVE_TIME, now));
+            }
+            CaptureTrace.mark(CaptureTrace.STAGE_START_COMMAND, now);
+            //kept for the click-to-first-frame latency, in case this starts a recording
+            requestTime = intent.getLongExtra(EXTRA_REQUEST_TIME, 0);
         }
-        if (!continuousCapture && !userDriven)
+        //the controller decides what is done with the command, once the capture is ready for it
+        if (userDriven)
         {
-            continuousCapture = true;
-            //always reset the rotation file when starting a continuous capture
-            rotationFile = null;
+            controller.submit(CaptureController.COMMAND_TOGGLE);
         }
-        //the continuousRecord flag is what starts and stops the user-requested recording during
-        //a continuous capture
-        boolean rotate = intent.getExtras().getBoolean(EXTRA_ROTATION);
-
-        //check if we need to start or stop recording
-        if (!isRecordingVideo)
+        //the bluetooth receiver may send commands that target a specific state, unlike
+        //other intents that only toggle without regard to current state
+        else if (intent.hasExtra(EXTRA_SET_RUNNING))
         {
-            //if this is a rotation but there is no capture currently going, do nothing
-            //TODO: that should never happen though??
-            if (!rotate)
-            {
-                showNotification(userDriven, true);
-                if (userDriven)
-                {
-                    getLocation(this);
-                }
-                //start the actual recording unless its the firstRun
-                if (!firstRun)
-                {
-                    startRecordingVideo();
-                }
-                firstRun = false;
-                //if its going to run in continuous mode,
-                //schedule a 30-second recorder shift
-                if (continuousCapture)
-                {
-                    setAlarm(this, true);
-                }
-            }
+            controller.submit(CaptureController.COMMAND_MONITOR_START);
+        }
+        else if (intent.hasExtra(EXTRA_SET_STOPPED))
+        {
+            controller.submit(CaptureController.COMMAND_MONITOR_STOP);
         }
         else
         {
-            //if we're continuousRecording, but this is a user-driven command, stop recording
-            //(also stop recording if this is not a continuous capture)
-            //(also stop recording for a rotation)
-            if (!continuousCapture || (!userDriven && !rotate) || (rotate ^ continuousRecording))
+            controller.submit(CaptureController.COMMAND_MONITOR_TOGGLE);
+        }
+        //a command that was dropped may leave nothing to do
+        stopServiceIfPossible();
+
+        //don't restart this service if it's closed by the OS
+        return START_NOT_STICKY;
+    }
+
+    /**
+     * Carries out what the controller decides; this is where recordings are actually started
+     * and stopped.
+     */
+    private CaptureController.Host controllerHost = new CaptureController.Host()
+    {
+        @Override
+        public long now()
+        {
+            return SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void schedule(Runnable task, long delay)
+        {
+            controllerHandler.postDelayed(task, delay);
+        }
+
+        @Override
+        public boolean isRecording()
+        {
+            return isRecordingVideo;
+        }
+
+        @Override
+        public boolean perform(int action)
+        {
+            switch (action)
             {
-                if (continuousCapture && !rotate && !userDriven)
-                {
+                case CaptureController.ACTION_START_MONITORING:
+                    continuousCapture = true;
+                    monitorStartTime = System.currentTimeMillis();
+                    //always reset the rotation file when starting a continuous capture
+                    rotationFile = null;
+                    showNotification(false, true);
+                    startParkingDetection();
+                    if (motionDetector != null)
+                    {
+                        motionDetector.reset();
+                    }
+                    startTrack();
+                    startCapture();
+                    return true;
+                case CaptureController.ACTION_START_RECORDING:
+                    showNotification(true, true);
+                    getLocation(CaptureService.this);
+                    captureRequestTime = requestTime;
+                    captureRequestArmed = armed;
+                    startTrack();
+                    startCapture();
+                    return true;
+                case CaptureController.ACTION_ROTATE:
+                    stopRecordingVideo(true, false, CaptureService.this);
+                    return true;
+                case CaptureController.ACTION_STOP_RECORDING:
+                    //show the video captured notification
+                    showNotification(true, false);
+                    stopTrack();
+                    stopRecordingVideo(false, true, CaptureService.this);
+                    return true;
+                case CaptureController.ACTION_STOP_MONITORING:
                     showNotification(false, false);
-                    setAlarm(this, false);
-                }
-                //if we're about to stop a continuousRecording or non-continuous capture
-                //show the video captured notification
-                if (!rotate)
-                {
-                    if (continuousRecording || !continuousCapture)
+                    sensorManager.unregisterListener(parkingListener);
+                    if (continuousRecording)
                     {
                         showNotification(true, false);
                         //stopping a continuousRecording, so cancel the continuousHandler
-                        if (continuousRecording)
+                        continuousHandler.removeCallbacksAndMessages(null);
+                        //a clip that is being written from the pre-roll buffer is finished
+                        //without touching the recorder
+                        if (preRollWriter != null)
                         {
-                            continuousHandler.removeCallbacksAndMessages(null);
+                            finishPreRollClip(CaptureService.this);
+                            continuousRecording = false;
                         }
                     }
-                }
-                stopRecordingVideo(rotate, userDriven, this);
-            }
-            //if a continuous capture was running, no recording was in progress,
-            //and this is a user-driven command
-            else if (continuousCapture && !continuousRecording)
-            {
-                continuousRecording = true;
-                //show notfication for user-driven
-                getLocation(this);
-                showNotification(true, true);
-                //the handler will stop this continuous recording in CONTINUOUS_DURATION seconds
-                //unless the user does so manually before that
-                continuousHandler.postDelayed(new Runnable() {
-                    @Override
-                    public void run()
+                    stopTrack();
+                    stopRecordingVideo(false, false, CaptureService.this);
+                    return true;
+                case CaptureController.ACTION_START_CLIP:
+                    clipStartTime = SystemClock.elapsedRealtime();
+                    frameStats.reset(encoderProfile.getFrameRate());
+                    parkingDetector.wake();
+                    //the rest of the clip is recorded in real time, so a time-lapse is restarted
+                    //right away (no rotation can run until the clip is over). This has to be
+                    //asked for before the clip starts, since a clip is never rotated
+                    boolean restart = isRecordingVideo && parkingMode;
+                    if (restart)
+                    {
+                        stopRecordingVideo(true, false, CaptureService.this);
+                    }
+                    continuousRecording = true;
+                    //show notfication for user-driven
+                    getLocation(CaptureService.this);
+                    showNotification(true, true);
+                    //the handler will stop this continuous recording in CONTINUOUS_DURATION seconds
+                    //unless the user does so manually before that
+                    continuousHandler.postDelayed(clipTimeout, CONTINUOUS_DURATION * 1000);
+                    if (restart)
+                    {
+                        //the pre-roll buffer only holds the time-lapse, the clip takes the last
+                        //few seconds from the segments instead
+                        return true;
+                    }
+                    //if the last few seconds are available, the clip will start before the click
+                    startPreRollClip();
+                    return false;
+                case CaptureController.ACTION_BOOKMARK:
+                    addBookmark();
+                    return false;
+                case CaptureController.ACTION_STOP_CLIP:
+                    showNotification(true, false);
+                    continuousHandler.removeCallbacksAndMessages(null);
+                    //a clip that is being written from the pre-roll buffer is finished
+                    //without touching the recorder, and the capture goes on as is
+                    if (preRollWriter != null)
                     {
-                        Intent captureIntent = CaptureService.newIntent(CaptureService.this, false);
-                        startService(captureIntent);
+                        finishPreRollClip(CaptureService.this);
+                        continuousRecording = false;
+                        return false;
                     }
-                }, CONTINUOUS_DURATION * 1000);
+                    stopRecordingVideo(false, true, CaptureService.this);
+                    return true;
             }
+            return false;
         }
+    };
 
-        //don't restart this service if it's closed by the OS
-        return START_NOT_STICKY;
-    }
-
-    private void showNotification(boolean userDriven, boolean start)
+    /**
+     * Stops the current clip of a continuous capture once it ran long enough.
+     */
+    private Runnable clipTimeout = new Runnable()
     {
-        Resources resources = getResources();
-        //certain configs only need to be done once
-        if (notifyManager == null)
-        {
-            //show the notification
-            notifyManager = (NotificationManager)getSystemService(Context.NOTIFICATION_SERVICE);
-            //channel id
-            String channelId = "carwatcher_channel";
-            //user-visible name of the channel
-            CharSequence name = resources.getString(R.string.notify_channel_name);
-            //user-visible description of the channel
-            String description = resources.getString(R.string.notify_channel_description);
-            int importance = NotificationManager.IMPORTANCE_HIGH;
-            //get the Uri for the default notification sound
-            Uri uri = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION);
-            //we only need to create a channel on API > 26
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
-            {
-                NotificationChannel channel = new NotificationChannel(channelId, name, importance);
-                channel.setDescription(description);
-                channel.enableVibration(false);
-                notifyManager.createNotificationChannel(channel);
-            }
-
-            notifyBuilder = new NotificationCompat.Builder(this, channelId)
-                .setSmallIcon(R.drawable.ic_shutter_white)
-                .setSound(uri)
-                .setPriority(NotificationCompat.PRIORITY_HIGH)
-                .setAutoCancel(true);
-            notifyBuilderContinuous = new NotificationCompat.Builder(this, channelId)
-                .setSmallIcon(R.drawable.ic_shutter_white)
-                .setContentTitle(resources.getString(R.string.notify_continuous_title))
-                .setContentText(resources.getString(R.string.notify_continuous_text))
-                .setSound(uri)
-                .setPriority(NotificationCompat.PRIORITY_HIGH)
-                .setAutoCancel(true);
+        @Override
+        public void run()
+        {
+            Intent captureIntent = CaptureService.newIntent(CaptureService.this, false);
+            startService(captureIntent);
         }
-        if (userDriven)
+    };
+
+    /**
+     * Analyzes the frames of the motion stream, at most one every MOTION_FRAME_INTERVAL. The
+     * luma plane is handed to the detector as is, so nothing is copied or allocated per frame.
+     */
+    private ImageReader.OnImageAvailableListener motionListener = new ImageReader.OnImageAvailableListener()
+    {
+        @Override
+        public void onImageAvailable(ImageReader reader)
         {
-            if (start)
+            Image image = reader.acquireLatestImage();
+            if (image == null)
             {
-                //when user clicks on notification, it's as if flic was clicked to
-                //stop the userDriven capture
-                Intent captureIntent = CaptureService.newIntent(this, false);
-                PendingIntent pendingIntent = PendingIntent.getService(this, 0, captureIntent, FLAG_UPDATE_CURRENT);
-                notifyBuilder
-                    .setContentTitle(resources.getString(R.string.notify_capturing_title))
-                    .setContentText(resources.getString(R.string.notify_capturing_text))
-                    .setContentIntent(pendingIntent);
+                return;
             }
-            else
+            try
             {
-                //when user clicks on notification, captured video should start playing
-                String videoFilePath = getVideoFilePath(videoFileName, this);
-                Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse(videoFilePath));
-                intent.setDataAndType(Uri.parse(videoFilePath), "video/mp4");
-                PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, intent, FLAG_UPDATE_CURRENT);
-                notifyBuilder
-                    .setContentTitle(resources.getString(R.string.notify_done_capturing_title))
-                    .setContentText(resources.getString(R.string.notify_done_capturing_text))
-                    .setContentIntent(pendingIntent);
+                long now = SystemClock.elapsedRealtime();
+                if (now - lastMotionFrameTime < MOTION_FRAME_INTERVAL)
+                {
+                    return;
+                }
+                lastMotionFrameTime = now;
+                Image.Plane luma = image.getPlanes()[0];
+                if (motionDetector.onFrame(luma.getBuffer(), luma.getRowStride(), luma.getPixelStride()))
+                {
+                    controllerHandler.removeCallbacks(motionReporter);
+                    controllerHandler.post(motionReporter);
+                }
+            }
+            finally
+            {
+                image.close();
             }
-            notifyManager.notify(notifyId, notifyBuilder.build());
         }
-        else
+    };
+
+    /**
+     * Called on the main thread when there is motion in front of the camera: it starts a clip
+     * of the continuous capture, or keeps the current one going.
+     */
+    private Runnable motionReporter = new Runnable()
+    {
+        @Override
+        public void run()
         {
-            if (start)
+            if (!continuousCapture)
             {
-                //when user clicks on notification, monitor mode should stop
-                Intent intent = CaptureService.newIntent(this, true);
-                PendingIntent pendingIntent = PendingIntent.getService(this, 0, intent, FLAG_UPDATE_CURRENT);
-                notifyBuilderContinuous
-                    .setContentTitle(resources.getString(R.string.notify_continuous_title))
-                    .setContentText(resources.getString(R.string.notify_continuous_text))
-                    .setContentIntent(pendingIntent);
-                //do-not-disturb should be activated when monitoring mode starts, but only for API > 23
-                if (false && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
-                {
-                    if (notifyManager.isNotificationPolicyAccessGranted())
-                    {
-                        Intent dndIntent = new Intent(Settings.ACTION_NOTIFICATION_POLICY_ACCESS_SETTINGS);
-                        startActivity(dndIntent);
-                    }
-                    else
-                    {
-                        notifyManager.setInterruptionFilter(NotificationManager.INTERRUPTION_FILTER_NONE);
-                    }
-                }
+                return;
             }
-            else
+            if (continuousRecording)
             {
-                //this notification should take no action, so contentIntent is set to null
-                notifyBuilderContinuous
-                    .setContentTitle(resources.getString(R.string.notify_done_continuous_title))
-                    .setContentText(resources.getString(R.string.notify_done_continuous_text))
-                    .setContentIntent(null);
-                //do-not-disturb should be deactivated when monitoring mode stops, but only for API > 23
-                if (false && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
-                {
-                    if (notifyManager.isNotificationPolicyAccessGranted())
-                    {
-                        Intent dndIntent = new Intent(Settings.ACTION_NOTIFICATION_POLICY_ACCESS_SETTINGS);
-                        startActivity(dndIntent);
-                    }
-                    else
-                    {
-                        notifyManager.setInterruptionFilter(NotificationManager.INTERRUPTION_FILTER_ALL);
-                    }
-                }
+                extendClip();
+            }
+            else if (controller.submit(CaptureController.COMMAND_MOTION))
+            {
+                Log.i(TAG, "Motion detected, saving a clip");
             }
-            notifyManager.notify(notifyIdContinuous, notifyBuilderContinuous.build());
         }
-        wakeScreen(5);
+    };
+
+    /**
+     * Pushes the end of the current clip back to CONTINUOUS_DURATION from now, as long as the
+     * clip stays within MAX_CLIP_DURATION.
+     */
+    private void extendClip()
+    {
+        long now = SystemClock.elapsedRealtime();
+        long end = Math.max(clipStartTime + CONTINUOUS_DURATION * 1000,
+                Math.min(now + CONTINUOUS_DURATION * 1000, clipStartTime + MAX_CLIP_DURATION * 1000));
+        continuousHandler.removeCallbacks(clipTimeout);
+        continuousHandler.postDelayed(clipTimeout, end - now);
     }
 
     /**
-     * Sets up the callback for getting user location. The callback will check if there are any newly
-     * added videos waiting for location data and update the database entries if so. For videos that
-     * have not been completed yet, the locationQueue entries will be populated with location data
-     * so that upon completion, the location is readily available.
+     * Takes a still from the running capture session. The still request goes to the same
+     * targets as the repeating one plus the JPEG stream, so the recording keeps the frame and
+     * the still is a frame the camera was capturing anyway: nothing is refocused, exposed again
+     * or reconfigured.
+     *
+     * @param pressTime when the button was held (elapsedRealtimeNanos)
      */
-    private int attempt = 0;
-    private void getLocation(final Context context)
+    private void takeStill(final long pressTime)
     {
-        //add new location request to the queue
-        locationQueue.add(new VideoLocationRequest());
-        //we might still be getting location for a previous capture
-        if (updatingLocation)
+        //the session is only looked at on the camera thread
+        backgroundHandler.post(new Runnable()
         {
-            //and if so, we just a new entry on the queue..wait for the location listener
-            //to update it
+            @Override
+            public void run()
+            {
+                captureStill(pressTime);
+            }
+        });
+    }
+
+    /**
+     * Sends the request of a still to the running capture session. The request is built on
+     * its own, leaving the builder of the repeating request alone.
+     *
+     * @param pressTime when the button was held (elapsedRealtimeNanos)
+     */
+    private void captureStill(long pressTime)
+    {
+        if (stillReader == null || cameraDevice == null || previewSession == null || sessionSurface == null ||
+                !isRecordingVideo)
+        {
+            Log.i(TAG, "No running capture to take a still from");
             return;
         }
-        //we should cancel getting a good location after 2 minutes of trying
-        final Handler cancelHandler = new Handler();
-        //handler is called after locationListener is defined
-        //we'll now be getting location updates
-        updatingLocation = true;
-        attempt = 0;
-        final LocationManager locationManager =
-            (LocationManager)this.getSystemService(Context.LOCATION_SERVICE);
-        final LocationListener locationListener = new LocationListener() {
-            @Override
-            public void onLocationChanged(Location location)
+        Still still = new Still();
+        still.fileName = VideoStills.getFileName(System.currentTimeMillis());
+        still.pressTime = pressTime;
+        try
+        {
+            CaptureRequest.Builder builder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_VIDEO_SNAPSHOT);
+            setUpCaptureRequestBuilder(builder);
+            builder.addTarget(sessionSurface);
+            if (proxyFileName != null)
             {
-                //if the location is not accurate to within 20 meters, reject it
-                //also, I noticed some trailing calls after removing the listener, so make sure
-                //updaingLocation is actually true
-                //TODO: for testing, I'll just accept the fourth attempt, no matter how inaccurate
-                if (!updatingLocation || (location.getAccuracy() > 20 && attempt < 3))
-                {
-                    attempt++;
-                    return;
-                }
-                //cancel the handler since we have a location now
-                cancelHandler.removeCallbacksAndMessages(null);
-                //its a solid location, check for any queue items awaiting location data
-                final List<VideoLocationRequest> toRemove = new ArrayList<VideoLocationRequest>();
-                //if any already captured videos were located, the list needs refresh
-                boolean needsRefresh = false;
-                for (VideoLocationRequest request : locationQueue)
+                builder.addTarget(proxyBackend.getSurface());
+            }
+            builder.addTarget(stillReader.getSurface());
+            builder.set(CaptureRequest.JPEG_ORIENTATION, getOrientationHint());
+            builder.setTag(still);
+            stillQueue.add(still);
+            synchronized (pendingStills)
+            {
+                pendingStills.add(still.fileName);
+            }
+            previewSession.capture(builder.build(), stillCallback, backgroundHandler);
+        }
+        //the session may be on its way out (e.g. a segment is being rotated)
+        catch (CameraAccessException | IllegalStateException | IllegalArgumentException e)
+        {
+            Log.e(TAG, "Could not take a still", e);
+            dropStill(still);
+        }
+    }
+
+    /**
+     * Forgets a still whose JPEG isn't coming.
+     */
+    private void dropStill(Still still)
+    {
+        stillQueue.remove(still);
+        synchronized (pendingStills)
+        {
+            pendingStills.remove(still.fileName);
+        }
+    }
+
+    /**
+     * Follows still requests. Their frames also go to the recording, so they are accounted
+     * for like the frames of the repeating request.
+     */
+    private CameraCaptureSession.CaptureCallback stillCallback = new CameraCaptureSession.CaptureCallback()
+    {
+        @Override
+        public void onCaptureStarted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request,
+                long timestamp, long frameNumber)
+        {
+            captureCallback.onCaptureStarted(session, request, timestamp, frameNumber);
+        }
+
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request,
+                @NonNull TotalCaptureResult result)
+        {
+            captureCallback.onCaptureCompleted(session, request, result);
+        }
+
+        @Override
+        public void onCaptureFailed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request,
+                @NonNull CaptureFailure failure)
+        {
+            captureCallback.onCaptureFailed(session, request, failure);
+            if (!failure.wasImageCaptured())
+            {
+                Log.w(TAG, "Still failed: " + failure.getReason());
+                dropStill((Still)request.getTag());
+            }
+        }
+    };
+
+    /**
+     * Writes the stills as their JPEGs come in, straight from the camera buffer.
+     */
+    private ImageReader.OnImageAvailableListener stillListener = new ImageReader.OnImageAvailableListener()
+    {
+        @Override
+        public void onImageAvailable(ImageReader reader)
+        {
+            Image image = reader.acquireNextImage();
+            if (image == null)
+            {
+                return;
+            }
+            //JPEGs come in the order they were requested
+            Still still = stillQueue.poll();
+            try
+            {
+                if (still != null)
                 {
-                    //if video was already captured but not yet located,
-                    //update the db entry and pop item from the queue
-                    if (request.video != null && request.video.getLatLng() == null)
+                    saveStill(image, still);
+                }
+            }
+            finally
+            {
+                image.close();
+            }
+        }
+    };
+
+    private void saveStill(Image image, Still still)
+    {
+        File file = new File(getVideoFilePath(still.fileName, this));
+        FileOutputStream out = null;
+        try
+        {
+            out = new FileOutputStream(file);
+            out.getChannel().write(image.getPlanes()[0].getBuffer());
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Could not write " + still.fileName, e);
+            file.delete();
+            return;
+        }
+        finally
+        {
+            if (out != null)
+            {
+                try
+                {
+                    out.close();
+                }
+                catch (IOException e)
+                {
+                    //nothing to do
+                }
+            }
+        }
+        ClickLatencyStats.recordStill(this, (SystemClock.elapsedRealtimeNanos() - still.pressTime) / 1000000);
+    }
+
+    /**
+     * @return the size of the still stream: the largest JPEG size, or below LEVEL_3 the largest
+     * one no bigger than the recording, since a JPEG stream of the recording size next to the
+     * recording (a video snapshot) is the only combination every camera guarantees
+     */
+    private static Size chooseStillSize(Size[] sizes, int hardwareLevel, int maxWidth, int maxHeight)
+    {
+        boolean capped = Build.VERSION.SDK_INT < Build.VERSION_CODES.N ||
+            hardwareLevel != CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_3;
+        Size best = null;
+        for (Size size : sizes)
+        {
+            if (capped && (size.getWidth() > maxWidth || size.getHeight() > maxHeight))
+            {
+                continue;
+            }
+            if (best == null || (long)size.getWidth() * size.getHeight() > (long)best.getWidth() * best.getHeight())
+            {
+                best = size;
+            }
+        }
+        //a camera recording at a size it has no JPEG size below gets the smallest one
+        if (best == null)
+        {
+            best = sizes[0];
+            for (Size size : sizes)
+            {
+                if ((long)size.getWidth() * size.getHeight() < (long)best.getWidth() * best.getHeight())
+                {
+                    best = size;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the size of the motion stream: the smallest YUV size at least MOTION_WIDTH wide
+     * (or the largest one if none is)
+     */
+    private static Size chooseMotionSize(Size[] sizes)
+    {
+        Size best = sizes[0];
+        for (Size size : sizes)
+        {
+            boolean fits = size.getWidth() >= MOTION_WIDTH;
+            boolean bestFits = best.getWidth() >= MOTION_WIDTH;
+            //a size that is wide enough beats one that isn't; among those that are, the
+            //smallest wins, among the others the widest
+            if ((fits && (!bestFits || size.getWidth() < best.getWidth())) ||
+                    (!fits && !bestFits && size.getWidth() > best.getWidth()))
+            {
+                best = size;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Starts the first recording of a capture, unless the camera is still being opened (in
+     * which case it starts once the camera is open).
+     */
+    private void startCapture()
+    {
+        if (!firstRun || cameraDevice != null)
+        {
+            startRecordingVideo();
+        }
+        firstRun = false;
+    }
+
+    /**
+     * Restarts the recording in a new segment after the backend stopped on a segment limit,
+     * or after the capture tier or parking mode changed. If the controller is busy with
+     * something else (e.g. a clip being saved), it is tried again a bit later, unless the
+     * recording was restarted in the meantime.
+     */
+    private void rotateSegment()
+    {
+        if ((!segmentLimitReached && !configChanged) || !continuousCapture)
+        {
+            return;
+        }
+        if (!controller.submit(CaptureController.COMMAND_ROTATE))
+        {
+            controllerHandler.postDelayed(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    rotateSegment();
+                }
+            }, ROTATION_RETRY_DELAY);
+        }
+    }
+
+    /**
+     * Lets the controller know (on the main thread) how a recording it asked for turned out.
+     *
+     * @param started true if a recording is now running, false if it was stopped
+     */
+    private void notifyController(final boolean started)
+    {
+        controllerHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (started)
+                {
+                    controller.onRecordingStarted();
+                }
+                else
+                {
+                    controller.onRecordingStopped();
+                }
+                stopServiceIfPossible();
+            }
+        });
+    }
+
+    /**
+     * Lets the controller know (on the main thread) that a recording could not be started.
+     */
+    private void notifyControllerFailed()
+    {
+        controllerHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                controller.onRecordingFailed();
+                stopServiceIfPossible();
+            }
+        });
+    }
+
+    /**
+     * Sets up the notification channel and builders; this only needs to be done once.
+     */
+    private void initNotifications()
+    {
+        if (notifyManager != null)
+        {
+            return;
+        }
+        Resources resources = getResources();
+        //show the notification
+        notifyManager = (NotificationManager)getSystemService(Context.NOTIFICATION_SERVICE);
+        //user-visible name of the channel
+        CharSequence name = resources.getString(R.string.notify_channel_name);
+        //user-visible description of the channel
+        String description = resources.getString(R.string.notify_channel_description);
+        int importance = NotificationManager.IMPORTANCE_HIGH;
+        //get the Uri for the default notification sound
+        Uri uri = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION);
+        //we only need to create a channel on API > 26
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+        {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID, name, importance);
+            channel.setDescription(description);
+            channel.enableVibration(false);
+            notifyManager.createNotificationChannel(channel);
+        }
+
+        notifyBuilder = new NotificationCompat.Builder(this, CHANNEL_ID)
+            .setSmallIcon(R.drawable.ic_shutter_white)
+            .setSound(uri)
+            .setPriority(NotificationCompat.PRIORITY_HIGH)
+            .setAutoCancel(true);
+        notifyBuilderContinuous = new NotificationCompat.Builder(this, CHANNEL_ID)
+            .setSmallIcon(R.drawable.ic_shutter_white)
+            .setContentTitle(resources.getString(R.string.notify_continuous_title))
+            .setContentText(resources.getString(R.string.notify_continuous_text))
+            .setSound(uri)
+            .setPriority(NotificationCompat.PRIORITY_HIGH)
+            .setAutoCancel(true);
+    }
+
+    private void showNotification(boolean userDriven, boolean start)
+    {
+        Resources resources = getResources();
+        initNotifications();
+        if (userDriven)
+        {
+            if (start)
+            {
+                //when user clicks on notification, it's as if flic was clicked to
+                //stop the userDriven capture
+                Intent captureIntent = CaptureService.newIntent(this, false);
+                PendingIntent pendingIntent = PendingIntent.getService(this, 0, captureIntent, FLAG_UPDATE_CURRENT);
+                notifyBuilder
+                    .setContentTitle(resources.getString(R.string.notify_capturing_title))
+                    .setContentText(resources.getString(R.string.notify_capturing_text))
+                    .setContentIntent(pendingIntent);
+            }
+            else
+            {
+                //when user clicks on notification, captured video should start playing
+                String videoFilePath = getVideoFilePath(videoFileName, this);
+                Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse(videoFilePath));
+                intent.setDataAndType(Uri.parse(videoFilePath), "video/mp4");
+                PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, intent, FLAG_UPDATE_CURRENT);
+                notifyBuilder
+                    .setContentTitle(resources.getString(R.string.notify_done_capturing_title))
+                    .setContentText(resources.getString(R.string.notify_done_capturing_text))
+                    .setContentIntent(pendingIntent);
+            }
+            notifyManager.notify(notifyId, notifyBuilder.build());
+        }
+        else
+        {
+            if (start)
+            {
+                //when user clicks on notification, monitor mode should stop
+                Intent intent = CaptureService.newIntent(this, true);
+                PendingIntent pendingIntent = PendingIntent.getService(this, 0, intent, FLAG_UPDATE_CURRENT);
+                notifyBuilderContinuous
+                    .setContentTitle(resources.getString(R.string.notify_continuous_title))
+                    .setContentText(resources.getString(R.string.notify_continuous_text))
+                    .setContentIntent(pendingIntent);
+                //do-not-disturb should be activated when monitoring mode starts, but only for API > 23
+                if (false && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+                {
+                    if (notifyManager.isNotificationPolicyAccessGranted())
                     {
-                        SQLiteDatabase database = new VideoBaseHelper(context).getWritableDatabase();
-                        VideoBaseHelper.geocodeVideo(request.video,
-                                location.getLatitude(), location.getLongitude(), database);
-                        toRemove.add(request);
-                        needsRefresh = true;
+                        Intent dndIntent = new Intent(Settings.ACTION_NOTIFICATION_POLICY_ACCESS_SETTINGS);
+                        startActivity(dndIntent);
                     }
-                    //if video is not done capturing, just store the location and wait for
-                    //the onReady method to fetch it when creating the db entry
                     else
                     {
-                        request.location = location;
+                        notifyManager.setInterruptionFilter(NotificationManager.INTERRUPTION_FILTER_NONE);
                     }
                 }
-
-                //now go through the videos, removing them from the queue
-                for (VideoLocationRequest request : toRemove)
-                {
-                    locationQueue.remove(request);
-                }
-                //if refresh is needed, send the broadcast
-                if (needsRefresh)
+            }
+            else
+            {
+                //this notification should take no action, so contentIntent is set to null
+                notifyBuilderContinuous
+                    .setContentTitle(resources.getString(R.string.notify_done_continuous_title))
+                    .setContentText(resources.getString(R.string.notify_done_continuous_text))
+                    .setContentIntent(null);
+                //do-not-disturb should be deactivated when monitoring mode stops, but only for API > 23
+                if (false && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
                 {
-                    sendBroadcast(new Intent(ACTION_NEW_VIDEO));
+                    if (notifyManager.isNotificationPolicyAccessGranted())
+                    {
+                        Intent dndIntent = new Intent(Settings.ACTION_NOTIFICATION_POLICY_ACCESS_SETTINGS);
+                        startActivity(dndIntent);
+                    }
+                    else
+                    {
+                        notifyManager.setInterruptionFilter(NotificationManager.INTERRUPTION_FILTER_ALL);
+                    }
                 }
-                //if there is still one video being captured (i.e. in the queue) then keep a record of it
-                //so its address can be set
-                if (locationQueue.size() > 0)
+            }
+            notifyManager.notify(notifyIdContinuous, notifyBuilderContinuous.build());
+        }
+        wakeScreen(5);
+    }
+
+    /**
+     * Sets up the callback for getting user location. The callback will check if there are any newly
+     * added videos waiting for location data and update the database entries if so. For videos that
+     * have not been completed yet, the locationQueue entries will be populated with location data
+     * so that upon completion, the location is readily available.
+     */
+    private int attempt = 0;
+    private void getLocation(final Context context)
+    {
+        //add new location request to the queue
+        locationQueue.add(new VideoLocationRequest());
+        //we might still be getting location for a previous capture
+        if (updatingLocation)
+        {
+            //and if so, we just a new entry on the queue..wait for the location listener
+            //to update it
+            return;
+        }
+        //we should cancel getting a good location after 2 minutes of trying
+        final Handler cancelHandler = new Handler();
+        //handler is called after locationListener is defined
+        //we'll now be getting location updates
+        updatingLocation = true;
+        attempt = 0;
+        final LocationManager locationManager =
+            (LocationManager)this.getSystemService(Context.LOCATION_SERVICE);
+        final LocationListener locationListener = new LocationListener() {
+            @Override
+            public void onLocationChanged(Location location)
+            {
+                //if the location is not accurate to within 20 meters, reject it
+                //also, I noticed some trailing calls after removing the listener, so make sure
+                //updaingLocation is actually true
+                //TODO: for testing, I'll just accept the fourth attempt, no matter how inaccurate
+                if (!updatingLocation || (location.getAccuracy() > 20 && attempt < 3))
+                {
+                    attempt++;
+                    return;
+                }
+                //cancel the handler since we have a location now
+                cancelHandler.removeCallbacksAndMessages(null);
+                //its a solid location, check for any queue items awaiting location data
+                final List<VideoLocationRequest> toRemove = new ArrayList<VideoLocationRequest>();
+                //if any already captured videos were located, the list needs refresh
+                boolean needsRefresh = false;
+                for (VideoLocationRequest request : locationQueue)
+                {
+                    //if video was already captured but not yet located,
+                    //update the db entry and pop item from the queue
+                    if (request.video != null && request.video.getLatLng() == null)
+                    {
+                        SQLiteDatabase database = new VideoBaseHelper(context).getWritableDatabase();
+                        VideoBaseHelper.geocodeVideo(request.video,
+                                location.getLatitude(), location.getLongitude(), database);
+                        toRemove.add(request);
+                        needsRefresh = true;
+                    }
+                    //if video is not done capturing, just store the location and wait for
+                    //the onReady method to fetch it when creating the db entry
+                    else
+                    {
+                        request.location = location;
+                    }
+                }
+
+                //now go through the videos, removing them from the queue
+                for (VideoLocationRequest request : toRemove)
+                {
+                    locationQueue.remove(request);
+                }
+                //if refresh is needed, send the broadcast
+                if (needsRefresh)
+                {
+                    sendBroadcast(new Intent(ACTION_NEW_VIDEO));
+                }
+                //if there is still one video being captured (i.e. in the queue) then keep a record of it
+                //so its address can be set
+                if (locationQueue.size() > 0)
+                {
+                    toRemove.add(locationQueue.getLast());
+                }
+                //now we need to reverse geocode to get location string
+                apiConnector.getAddress(location.getLatitude(), location.getLongitude(), new GetAddressListener() {
+                    @Override
+                    public void onResponse(String address)
+                    {
+                        SQLiteDatabase database = new VideoBaseHelper(context).getWritableDatabase();
+                        boolean needsRefresh = false;
+                        //if we're getting the location of some already captured video(s),
+                        //update the db entries
+                        for (VideoLocationRequest request : toRemove)
+                        {
+                            //check for null in case an element was being captured and still didn't finish
+                            if (request.video != null)
+                            {
+                                VideoBaseHelper.addressVideo(request.video, address, database);
+                                needsRefresh = true;
+                            }
+                            else
+                            {
+                                //if it's not done capturing yet, just store the address info and
+                                //onReady will get it
+                                request.address = address;
+                            }
+                        }
+                        //if database entries were modified, send broadcast for view updates
+                        if (needsRefresh)
+                        {
+                            sendBroadcast(new Intent(ACTION_NEW_VIDEO));
+                        }
+                        stopServiceIfPossible();
+                    }
+
+                    @Override
+                    public void onErrorResponse()
+                    {
+                        //do nothing and hope for the best
+                        stopServiceIfPossible();
+                    }
+                });
+
+                //once an accurate location is obtained, there is no need to listen for further
+                //location changes..the next capture will retrigger listening
+                locationManager.removeUpdates(this);
+                //done updating location
+                updatingLocation = false;
+            }
+
+            @Override
+            public void onStatusChanged(String provider, int status, Bundle extras) {}
+
+            @Override
+            public void onProviderEnabled(String provider) {}
+
+            @Override
+            public void onProviderDisabled(String provider) {}
+        };
+        cancelHandler.postDelayed(new Runnable() {
+            @Override
+            public void run()
+            {
+                //if this was called that means locationListener is surely still
+                //running since otherwise it would have been cancelled
+                locationManager.removeUpdates(locationListener);
+            }
+        }, locationTimeout * 1000);
+        try
+        {
+            locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, locationListener);
+            locationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, 0, 0, locationListener);
+        }
+        catch (SecurityException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts sampling the path of a new capture from GPS, about once a second, until stopTrack
+     * is called. The fixes are also handed to the backends for the metadata track.
+     */
+    private void startTrack()
+    {
+        stopTrack();
+        captureTrack = new GpsTrack();
+        trackListener = new LocationListener() {
+            //when the last sample was added to the track
+            private long lastTrackTime = 0;
+
+            @Override
+            public void onLocationChanged(Location location)
+            {
+                if (location.getAccuracy() > TRACK_ACCURACY)
+                {
+                    return;
+                }
+                //samples are timed like the clips, so a clip can find the ones it spans
+                long now = System.currentTimeMillis();
+                float speed = location.hasSpeed() ? location.getSpeed() : -1;
+                //the recordings embed every fix, timed with the frames they come with
+                LocationMetadata metadata = new LocationMetadata(now, location.getLatitude(),
+                        location.getLongitude(), speed, location.hasBearing() ? location.getBearing() : -1);
+                captureBackend.setLocation(metadata);
+                if (proxyBackend != null)
+                {
+                    proxyBackend.setLocation(metadata);
+                }
+                if (now - lastTrackTime < TRACK_INTERVAL)
+                {
+                    return;
+                }
+                lastTrackTime = now;
+                captureTrack.add(now, location.getLatitude(), location.getLongitude(), speed);
+                if (captureTrack.getSize() > TRACK_MAX_SIZE)
+                {
+                    captureTrack = captureTrack.slice(now - TRACK_KEEP, now);
+                }
+            }
+
+            @Override
+            public void onStatusChanged(String provider, int status, Bundle extras) {}
+
+            @Override
+            public void onProviderEnabled(String provider) {}
+
+            @Override
+            public void onProviderDisabled(String provider) {}
+        };
+        LocationManager locationManager = (LocationManager)getSystemService(Context.LOCATION_SERVICE);
+        try
+        {
+            long interval = (metadataRate > 0) ? Math.min(TRACK_INTERVAL, 1000 / metadataRate) : TRACK_INTERVAL;
+            locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, interval, 0, trackListener);
+        }
+        catch (SecurityException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops sampling the path of the capture. The track is kept for the clips that are still
+     * to be added.
+     */
+    private void stopTrack()
+    {
+        if (trackListener != null)
+        {
+            LocationManager locationManager = (LocationManager)getSystemService(Context.LOCATION_SERVICE);
+            locationManager.removeUpdates(trackListener);
+            trackListener = null;
+        }
+        //the last fix shouldn't end up in the next capture
+        if (captureBackend != null)
+        {
+            captureBackend.setLocation(null);
+        }
+        if (proxyBackend != null)
+        {
+            proxyBackend.setLocation(null);
+        }
+    }
+
+    /**
+     * @return the part of the capture's track between start and end (in milliseconds since
+     * the epoch), or null if there is no track
+     */
+    private GpsTrack sliceTrack(long start, long end)
+    {
+        return (captureTrack != null) ? captureTrack.slice(start, end) : null;
+    }
+
+    /**
+     * Cancels the repeating alarm older versions used to rotate the recorder during continuous
+     * capture mode, if it is still set.
+     */
+    private static void cancelRotationAlarm(Context context)
+    {
+        Intent i = new Intent(context, CaptureService.class);
+        PendingIntent pi = PendingIntent.getService(context, 515, i, PendingIntent.FLAG_NO_CREATE);
+        if (pi != null)
+        {
+            AlarmManager alarmManager = (AlarmManager)context.getSystemService(Context.ALARM_SERVICE);
+            alarmManager.cancel(pi);
+            pi.cancel();
+        }
+    }
+
+    /**
+     * Returns null as this service doesn't provide binding.
+     */
+    public IBinder onBind(Intent intent)
+    {
+        return null;
+    }
+
+    /**
+     * Writes out the capture trace on the background thread every TRACE_FLUSH_INTERVAL.
+     */
+    private Runnable traceFlusher = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            CaptureTrace.flush(CaptureService.this);
+            backgroundHandler.postDelayed(this, TRACE_FLUSH_INTERVAL);
+        }
+    };
+
+    /**
+     * Probes the storage every WRITE_PROBE_INTERVAL while recording.
+     */
+    private Runnable writeProber = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            if (isRecordingVideo)
+            {
+                probeStorage(captureBitRate);
+            }
+            writeProbeHandler.postDelayed(this, writeMonitor.getProbeInterval(WRITE_PROBE_INTERVAL, WRITE_PROBE_IDLE_INTERVAL));
+        }
+    };
+
+    /**
+     * Times a small synchronous write to the CarWatcher directory, and throttles the recording
+     * if the storage turns out to be falling behind (or lifts the throttling once it
+     * recovers). The write goes through O_DSYNC ("rwd") rather than an fsync, so only the
+     * probe's own data has to reach the storage.
+     *
+     * @param baseBitRate the bit rate of the recording before throttling, as set up on the
+     * camera thread
+     */
+    private void probeStorage(int baseBitRate)
+    {
+        long start = SystemClock.elapsedRealtimeNanos();
+        RandomAccessFile file = null;
+        try
+        {
+            file = new RandomAccessFile(getVideoFilePath(WRITE_PROBE_FILE, this), "rwd");
+            file.write(writeProbeData);
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Could not probe the storage", e);
+            return;
+        }
+        finally
+        {
+            if (file != null)
+            {
+                try
+                {
+                    file.close();
+                }
+                catch (IOException e)
+                {
+                    //nothing to do
+                }
+            }
+        }
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (!writeMonitor.onProbe(now - start, now))
+        {
+            return;
+        }
+        final int level = writeMonitor.getLevel();
+        final int bitRate = writeMonitor.getBitRate(baseBitRate);
+        Log.i(TAG, "Recording writes " + writeMonitor.getBytesPerSecond() + " bytes/s, probe took " +
+                writeMonitor.getLatencyMillis() + " ms; throttling level " + level + " (" + bitRate + " bps)");
+        CaptureTrace.throttle(level, bitRate);
+        //the backend is only touched on the camera thread; if it can't change its bit rate
+        //while recording, the new one (and the frame rate) apply once it is prepared again
+        backgroundHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (isRecordingVideo)
+                {
+                    captureBackend.setBitRate(bitRate);
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts the background thread and its handler.
+     */
+    private void startBackgroundThread()
+    {
+        backgroundThread = new HandlerThread("CameraBackground");
+        backgroundThread.start();
+        backgroundHandler = new Handler(backgroundThread.getLooper());
+    }
+
+    /**
+     * Stops the background thread and its handler.
+     */
+    private void stopBackgroundThread()
+    {
+        backgroundThread.quitSafely();
+        try
+        {
+            backgroundThread.join();
+            backgroundThread = null;
+            backgroundHandler = null;
+        }
+        catch (InterruptedException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * This StateCallback gets called when the camera device status changes.
+     */
+    private CameraDevice.StateCallback stateCallback = new CameraDevice.StateCallback()
+    {
+        @Override
+        public void onOpened(@NonNull CameraDevice cameraDevice)
+        {
+            CaptureService.this.cameraDevice = cameraDevice;
+            cameraLock.release();
+            CaptureTrace.mark(CaptureTrace.STAGE_CAMERA_OPENED);
+            //a service that was only started to be armed waits for the first request
+            if (!firstRun)
+            {
+                startRecordingVideo();
+            }
+            armCapture();
+        }
+
+        @Override
+        public void onDisconnected(@NonNull CameraDevice cameraDevice)
+        {
+            cameraLock.release();
+            cameraDevice.close();
+            CaptureService.this.cameraDevice = null;
+        }
+
+        @Override
+        public void onError(@NonNull CameraDevice cameraDevice, int error)
+        {
+            cameraLock.release();
+            //cameraDevice.close();
+            //CaptureService.this.cameraDevice = null;
+        }
+    };
+
+    /**
+     * This sets up the capture backend with all necessary recording format info.
+     */
+    private void setUpCaptureBackend() throws IOException
+    {
+        //the governor and the storage may both need the recording stepped down
+        captureTier = governor.getTier();
+        captureProfile = getTierProfile(captureTier);
+        captureBitRate = CaptureGovernor.getBitRate(captureTier, captureProfile.getBitRate());
+        int frameRate = Math.min(CaptureGovernor.getFrameRate(captureTier, captureProfile.getFrameRate()),
+                writeMonitor.getFrameRate(captureProfile.getFrameRate()));
+        int bitRate = writeMonitor.getBitRate(captureBitRate);
+        EncoderConfig config = new EncoderConfig(captureProfile.getWidth(), captureProfile.getHeight(),
+                bitRate, frameRate, KEY_FRAME_INTERVAL, getOrientationHint());
+        if (frameRate < captureProfile.getFrameRate())
+        {
+            config.setMaxInputFrameRate(frameRate);
+        }
+        parkingMode = isParkingMode();
+        timeLapseIntervalUs = 0;
+        timeLapseScale = 0;
+        if (parkingMode)
+        {
+            config.setCaptureRate(PARKING_CAPTURE_RATE);
+            timeLapseIntervalUs = (long)(1000000 / PARKING_CAPTURE_RATE);
+            timeLapseScale = PARKING_CAPTURE_RATE / frameRate;
+        }
+        config.setMimeType(captureProfile.getMimeType());
+        config.setProfileLevel(captureProfile.getProfile(), captureProfile.getLevel());
+        config.setMetadataRate(metadataRate);
+        //in continuous mode, the backend cuts the segments itself; it hands over to the next
+        //file without stopping when it can, so the camera session and encoder keep running
+        if (continuousCapture)
+        {
+            config.setMaxFileSize(getSegmentFileSize());
+            config.setMaxDuration(SEGMENT_DURATION);
+        }
+        //set the recording destination file
+        captureBackend.prepare(config, continuousCapture ? getSegmentFilePath(this) : getVideoFilePath(this));
+    }
+
+    /**
+     * @return the encoder profile recorded at the specified capture tier
+     */
+    private EncoderProfile getTierProfile(int tier)
+    {
+        if (!CaptureGovernor.lowersResolution(tier))
+        {
+            return encoderProfile;
+        }
+        String mimeType = CaptureGovernor.keepsCodec(tier) ? encoderProfile.getMimeType() : EncoderProfileResolver.MIME_AVC;
+        return EncoderProfileResolver.resolve(this, mimeType, QUALITY_SAVER);
+    }
+
+    /**
+     * Feeds the governor with every battery update. When the tier changes during a continuous
+     * capture, the segment is rotated so the next one is recorded at the new tier; any other
+     * recording keeps its tier until it's done.
+     */
+    private BroadcastReceiver batteryReceiver = new BroadcastReceiver()
+    {
+        @Override
+        public void onReceive(Context context, Intent intent)
+        {
+            int temperature = intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, Integer.MIN_VALUE);
+            int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            int status = intent.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+            boolean charging = status == BatteryManager.BATTERY_STATUS_CHARGING ||
+                status == BatteryManager.BATTERY_STATUS_FULL;
+            int batteryLevel = (level >= 0 && scale > 0) ? level * 100 / scale : -1;
+            if (!governor.onSample(SystemClock.elapsedRealtime(), temperature, batteryLevel, charging))
+            {
+                return;
+            }
+            Log.i(TAG, "Capture tier " + governor.getTier() + " (battery at " + temperature / 10.0 + "C, " +
+                    batteryLevel + "%" + (charging ? ", charging" : "") + ")");
+            if (isRecordingVideo && continuousCapture && governor.getTier() != captureTier)
+            {
+                configChanged = true;
+                rotateSegment();
+            }
+        }
+    };
+
+    /**
+     * Starts watching the accelerometer for the car being parked, if parking mode is enabled.
+     */
+    private void startParkingDetection()
+    {
+        parkingDetector.reset();
+        Sensor accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        if (parkingEnabled && accelerometer != null)
+        {
+            sensorManager.registerListener(parkingListener, accelerometer, SensorManager.SENSOR_DELAY_NORMAL);
+        }
+    }
+
+    private SensorEventListener parkingListener = new SensorEventListener()
+    {
+        @Override
+        public void onSensorChanged(SensorEvent event)
+        {
+            if (parkingDetector.onSample(event.timestamp, event.values[0], event.values[1], event.values[2]))
+            {
+                onParkingChanged();
+            }
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy)
+        {
+        }
+    };
+
+    /**
+     * A parked car is only recorded as a time-lapse while no clip is being recorded.
+     */
+    private boolean isParkingMode()
+    {
+        return continuousCapture && !continuousRecording && parkingDetector.isParked();
+    }
+
+    /**
+     * Called when the car was found to be parked, or to be moving again. The continuous
+     * capture is rotated so the next segment is recorded as a time-lapse, or in real time.
+     */
+    private void onParkingChanged()
+    {
+        Log.i(TAG, parkingDetector.isParked() ? "Car parked, recording a time-lapse" : "Car moving, recording in real time");
+        if (isRecordingVideo && continuousCapture && isParkingMode() != parkingMode)
+        {
+            configChanged = true;
+            rotateSegment();
+        }
+    }
+
+    /**
+     * Continuous capture rolls over to the next file once this size is reached; it is
+     * SEGMENT_DURATION worth of video at the encoder's bit rate, up to MAX_SEGMENT_SIZE.
+     *
+     * @return the size (in bytes) of a continuous capture segment
+     */
+    private long getSegmentFileSize()
+    {
+        long size = (long)encoderProfile.getBitRate() / 8 * TimeUnit.MILLISECONDS.toSeconds(SEGMENT_DURATION);
+        return Math.min(size, MAX_SEGMENT_SIZE);
+    }
+
+    /**
+     * Gets the rotation (in degrees) that players should apply to captured video.
+     *
+     * @return the orientation hint for recorded files
+     */
+    private int getOrientationHint()
+    {
+        int rotation = getResources().getConfiguration().orientation;
+        switch (sensorOrientation)
+        {
+            case SENSOR_ORIENTATION_DEFAULT_DEGREES:
+                return DEFAULT_ORIENTATIONS.get(rotation);
+            case SENSOR_ORIENTATION_INVERSE_DEGREES:
+                return INVERSE_ORIENTATIONS.get(rotation);
+        }
+        return 0;
+    }
+
+    /**
+     * This listener drives rotations: when the current segment approaches its size or
+     * duration limit it hands the backend the next loop slot, and once the backend
+     * switches to it, the finished segment is kept in the loop. A backend that can't switch
+     * by itself stops instead, and the rotation goes through the controller. It also passes
+     * encoded frames on to the pre-roll buffer.
+     */
+    private CaptureBackend.Listener backendListener = new CaptureBackend.Listener()
+    {
+        @Override
+        public void onNextSegmentNeeded()
+        {
+            //the next segment is handed out on the camera thread, where the switch to it is
+            //taken care of as well
+            backgroundHandler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    requestNextSegment();
+                }
+            });
+        }
+
+        @Override
+        public void onSegmentStarted(long lastTimeUs, long firstTimeUs)
+        {
+            if (lastTimeUs < 0 || firstTimeUs < 0)
+            {
+                //the backend doesn't know the frames on both sides of the cut, so the next
+                //frame from the camera closes it
+                segmentGapMeter.markBoundary();
+            }
+            else if (segmentGapMeter.onCut(lastTimeUs, firstTimeUs))
+            {
+                onSegmentGap();
+            }
+            //only the switch of files happens on the encoder thread; the segments are kept
+            //track of on the camera thread, like the rest of the capture. The frames that
+            //follow are timed for the new file right away
+            FrameTiming timing = new FrameTiming();
+            frameTiming = timing;
+            switchedTiming = timing;
+            backgroundHandler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    startNextSegment();
+                }
+            });
+        }
+
+        @Override
+        public void onSegmentLimitReached()
+        {
+            segmentLimitReached = true;
+            controllerHandler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    rotateSegment();
+                }
+            });
+        }
+
+        @Override
+        public void onEncoderFormatChanged(MediaFormat format)
+        {
+            bufferEncoderFormat(format);
+        }
+
+        @Override
+        public void onEncodedFrame(ByteBuffer data, MediaCodec.BufferInfo info)
+        {
+            //these are the times the frames are written with, so a time-lapse is timed as
+            //it's played back
+            frameTiming.onFrame(info.presentationTimeUs);
+            writeMonitor.onBytesWritten(info.size);
+            bufferEncodedFrame(data, info);
+        }
+    };
+
+    /**
+     * Keeps the segment the backend just switched away from and moves on to the next one.
+     * This runs on the camera thread, once the backend reported the switch.
+     */
+    private void startNextSegment()
+    {
+        FrameTiming timing = switchedTiming;
+        if (timing == null)
+        {
+            return;
+        }
+        switchedTiming = null;
+        if (nextVideoFileName == null)
+        {
+            return;
+        }
+        //the segment that just finished is kept exactly like a regular rotation would.
+        //If a continuousRecording is in progress, the saved video will only cover the
+        //part recorded after this switch
+        finishSegment(CaptureService.this);
+        currentSlot = nextSlot;
+        nextSlot = null;
+        videoFileName = nextVideoFileName;
+        nextVideoFileName = null;
+        slotTiming = timing;
+        extractBookmarks();
+    }
+
+    /**
+     * Hands the backend the next segment of the recording, which it asked for.
+     */
+    private void requestNextSegment()
+    {
+        //the recording may have been stopped since, or the backend already have its next file
+        if (!isRecordingVideo || nextVideoFileName != null)
+        {
+            return;
+        }
+        nextSlot = segmentLoop.acquire();
+        nextVideoFileName = (nextSlot != null) ? nextSlot.getFileName() : System.currentTimeMillis() + ".mp4";
+        if (!captureBackend.rollOver(getVideoFilePath(nextVideoFileName, this)))
+        {
+            discardNextSegment(this);
+        }
+    }
+
+    /**
+     * Gives up the next segment handed to the backend, which it never switched to.
+     */
+    private void discardNextSegment(Context context)
+    {
+        if (nextSlot != null)
+        {
+            segmentLoop.discard(nextSlot);
+            nextSlot = null;
+        }
+        else if (nextVideoFileName != null)
+        {
+            new File(getVideoFilePath(nextVideoFileName, context)).delete();
+        }
+        nextVideoFileName = null;
+    }
+
+    /**
+     * Feeds frameTiming from the camera, for backends that don't report their encoded frames.
+     * The recorder stamps frames from its input surface with the sensor timestamp; in a
+     * time-lapse it only keeps a frame every timeLapseIntervalUs, played back at the
+     * recording's frame rate.
+     *
+     * @param timeUs the sensor timestamp of the frame (in microseconds)
+     */
+    private void onRecordedFrame(long timeUs)
+    {
+        if (timeLapseIntervalUs > 0)
+        {
+            if (lastTimeLapseFrameUs >= 0 && timeUs - lastTimeLapseFrameUs < timeLapseIntervalUs)
+            {
+                return;
+            }
+            lastTimeLapseFrameUs = timeUs;
+            timeUs = (long)(timeUs * timeLapseScale);
+        }
+        frameTiming.onFrame(timeUs);
+    }
+
+    /**
+     * Called when the gap left at a segment cut was measured. The gap goes with the stats of
+     * the video being recorded.
+     */
+    private void onSegmentGap()
+    {
+        frameStats.onSegmentGap(segmentGapMeter.getLastGapFrames());
+        Log.i(TAG, "Inter-segment gap: " + segmentGapMeter.getLastGapFrames() + " frames (" +
+                segmentGapMeter.getLastGapMillis() + " ms), max " + segmentGapMeter.getMaxGapFrames() +
+                " frames over " + segmentGapMeter.getBoundaries() + " rotations");
+    }
+
+    /**
+     * This callback follows the frames sent to the recorder, which is what the segment gap
+     * of a restarted recording is measured from.
+     */
+    private CameraCaptureSession.CaptureCallback captureCallback = new CameraCaptureSession.CaptureCallback()
+    {
+        @Override
+        public void onCaptureStarted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request,
+                long timestamp, long frameNumber)
+        {
+            //the first frame of a requested capture
+            if (captureRequestTime != 0)
+            {
+                ClickLatencyStats.record(CaptureService.this, captureRequestArmed,
+                        SystemClock.elapsedRealtime() - captureRequestTime);
+                captureRequestTime = 0;
+                CaptureTrace.end(CaptureTrace.STAGE_FIRST_FRAME);
+            }
+            if (!captureBackend.providesEncodedFrames())
+            {
+                onRecordedFrame(timestamp / 1000);
+            }
+            frameStats.onFrame(timestamp);
+            if (segmentGapMeter.onFrame(timestamp))
+            {
+                onSegmentGap();
+            }
+        }
+
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request,
+                @NonNull TotalCaptureResult result)
+        {
+            //not every device reports the exposure time
+            Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+            if (exposureTime != null)
+            {
+                frameStats.onExposure(exposureTime);
+            }
+        }
+
+        @Override
+        public void onCaptureFailed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request,
+                @NonNull CaptureFailure failure)
+        {
+            frameStats.onFailure();
+        }
+    };
+
+    /**
+     * Gets the backward-facing instance camera of the device, and asks for permission if required.
+     */
+    private void openCamera()
+    {
+        CameraManager manager = (CameraManager)getSystemService(Context.CAMERA_SERVICE);
+        try
+        {
+            //try to acquire a lock on the camera
+            if (!cameraLock.tryAcquire(2500, TimeUnit.MILLISECONDS))
+            {
+                throw new RuntimeException("Could not acquire lock on camera.");
+            }
+            String cameraId = manager.getCameraIdList()[0];
+            CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
+            //get the camera sensor orientation
+            sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+            //the motion stream lives as long as the camera, so every session can include it
+            StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            if (motionEnabled && !optionalStreamsFailed && motionReader == null && map != null)
+            {
+                Size motionSize = chooseMotionSize(map.getOutputSizes(ImageFormat.YUV_420_888));
+                motionDetector = new MotionDetector(motionSize.getWidth(), motionSize.getHeight());
+                motionReader = ImageReader.newInstance(motionSize.getWidth(), motionSize.getHeight(), ImageFormat.YUV_420_888, 2);
+                motionReader.setOnImageAvailableListener(motionListener, motionHandler);
+            }
+            //and so does the still stream
+            if (stillEnabled && !optionalStreamsFailed && stillReader == null && map != null)
+            {
+                Integer hardwareLevel = characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+                Size stillSize = chooseStillSize(map.getOutputSizes(ImageFormat.JPEG),
+                        (hardwareLevel != null) ? hardwareLevel : CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY,
+                        encoderProfile.getWidth(), encoderProfile.getHeight());
+                stillReader = ImageReader.newInstance(stillSize.getWidth(), stillSize.getHeight(), ImageFormat.JPEG, 2);
+                stillReader.setOnImageAvailableListener(stillListener, stillHandler);
+            }
+
+            manager.openCamera(cameraId, stateCallback, null);
+        }
+        catch (CameraAccessException | InterruptedException | SecurityException e)
+        {
+        }
+    }
+
+    /**
+     * Closes the camera device and releases the capture backend.
+     */
+    private void closeCamera()
+    {
+        try
+        {
+            cameraLock.acquire();
+            if (cameraDevice != null)
+            {
+                cameraDevice.close();
+                cameraDevice = null;
+            }
+            if (motionReader != null)
+            {
+                motionReader.close();
+                motionReader = null;
+            }
+            if (stillReader != null)
+            {
+                stillReader.close();
+                stillReader = null;
+                stillQueue.clear();
+            }
+            captureBackend.release();
+            if (proxyBackend != null)
+            {
+                proxyBackend.release();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            throw new RuntimeException("Could not acquire lock on camera.");
+        }
+        finally
+        {
+            cameraLock.release();
+        }
+    }
+
+    /**
+     * Starts the video recording process.
+     */
+    private void startRecordingVideo()
+    {
+        //only call this once you have the camera device ready
+        if (cameraDevice == null)
+        {
+            return;
+        }
+        isRecordingVideo = true;
+        segmentLimitReached = false;
+        configChanged = false;
+        writeMonitor.reset();
+        frameTiming = new FrameTiming();
+        slotTiming = frameTiming;
+        switchedTiming = null;
+        lastTimeLapseFrameUs = -1;
+        proxyFileName = null;
+        //a continuous capture keeps its stats across sessions, for the clip being recorded
+        if (!continuousCapture)
+        {
+            frameStats.reset(encoderProfile.getFrameRate());
+        }
+        frameStats.markBoundary();
+
+        try
+        {
+            if (armed)
+            {
+                //a backend prepared at another tier (or for a time-lapse that's no longer wanted)
+                //is prepared again, and if the size changes so does the session
+                if (backendPrepared && (governor.getTier() != captureTier || isParkingMode() != parkingMode))
                 {
-                    toRemove.add(locationQueue.getLast());
-                }
-                //now we need to reverse geocode to get location string
-                apiConnector.getAddress(location.getLatitude(), location.getLongitude(), new GetAddressListener() {
-                    @Override
-                    public void onResponse(String address)
+                    EncoderProfile profile = getTierProfile(governor.getTier());
+                    if (profile.getWidth() != captureProfile.getWidth() || profile.getHeight() != captureProfile.getHeight())
                     {
-                        SQLiteDatabase database = new VideoBaseHelper(context).getWritableDatabase();
-                        boolean needsRefresh = false;
-                        //if we're getting the location of some already captured video(s),
-                        //update the db entries
-                        for (VideoLocationRequest request : toRemove)
-                        {
-                            //check for null in case an element was being captured and still didn't finish
-                            if (request.video != null)
-                            {
-                                VideoBaseHelper.addressVideo(request.video, address, database);
-                                needsRefresh = true;
-                            }
-                            else
-                            {
-                                //if it's not done capturing yet, just store the address info and
-                                //onReady will get it
-                                request.address = address;
-                            }
-                        }
-                        //if database entries were modified, send broadcast for view updates
-                        if (needsRefresh)
+                        if (previewSession != null)
                         {
-                            sendBroadcast(new Intent(ACTION_NEW_VIDEO));
+                            previewSession.close();
+                            previewSession = null;
                         }
-                        stopServiceIfPossible();
+                        sessionArmed = false;
                     }
-
-                    @Override
-                    public void onErrorResponse()
+                    discardPreparedOutput();
+                    captureBackend.release();
+                    backendPrepared = false;
+                }
+                //the backend is normally prepared already, so this is quick
+                prepareArmedBackend();
+                backendPrepared = false;
+                //with an armed session, only the encoder needs to be started (if the session
+                //is still being configured, onConfigured will start it)
+                if (sessionArmed)
+                {
+                    if (previewSession != null)
                     {
-                        //do nothing and hope for the best
-                        stopServiceIfPossible();
+                        updatePreview();
+                        captureBackend.start();
+                        notifyController(true);
                     }
-                });
-
-                //once an accurate location is obtained, there is no need to listen for further
-                //location changes..the next capture will retrigger listening
-                locationManager.removeUpdates(this);
-                //done updating location
-                updatingLocation = false;
+                    return;
+                }
+            }
+            else
+            {
+                setUpCaptureBackend();
+                setUpProxyBackend();
+            }
+            previewBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+            List<Surface> surfaces = new ArrayList<>();
+            //the surface that will get recorded
+            Surface recorderSurface = captureBackend.getSurface();
+            surfaces.add(recorderSurface);
+            previewBuilder.addTarget(recorderSurface);
+            //the proxy is encoded from the very same frames
+            if (proxyFileName != null)
+            {
+                Surface proxySurface = proxyBackend.getSurface();
+                surfaces.add(proxySurface);
+                previewBuilder.addTarget(proxySurface);
             }
+            addOptionalSurfaces(surfaces);
+            //start the capture session
+            sessionArmed = armed;
+            sessionSurface = recorderSurface;
+            sessionOptional = surfaces.size() > 1;
+            cameraDevice.createCaptureSession(surfaces, sessionCallback, backgroundHandler);
+        }
+        catch (CameraAccessException | IOException e)
+        {
+            e.printStackTrace();
+            //if there is an exception, assume we're no longer recording
+            isRecordingVideo = false;
+            discardProxy();
+            notifyControllerFailed();
+        }
+    }
 
-            @Override
-            public void onStatusChanged(String provider, int status, Bundle extras) {}
+    /**
+     * Adds the surfaces of the motion and still streams to the surfaces of a session being
+     * created, if they're used.
+     */
+    private void addOptionalSurfaces(List<Surface> surfaces)
+    {
+        if (motionReader != null)
+        {
+            surfaces.add(motionReader.getSurface());
+        }
+        if (stillReader != null)
+        {
+            surfaces.add(stillReader.getSurface());
+        }
+    }
 
-            @Override
-            public void onProviderEnabled(String provider) {}
+    /**
+     * Drops the proxy, motion and still streams for good, after a session with them could not
+     * be configured.
+     */
+    private void dropOptionalStreams()
+    {
+        optionalStreamsFailed = true;
+        if (proxyFileName != null)
+        {
+            previewBuilder.removeTarget(proxyBackend.getSurface());
+            discardProxy();
+        }
+        //the readers are closed on their own threads, after any image they're handling
+        if (motionReader != null)
+        {
+            previewBuilder.removeTarget(motionReader.getSurface());
+            closeOn(motionHandler, motionReader);
+            motionReader = null;
+        }
+        if (stillReader != null)
+        {
+            closeOn(stillHandler, stillReader);
+            stillReader = null;
+            stillQueue.clear();
+        }
+    }
 
-            @Override
-            public void onProviderDisabled(String provider) {}
-        };
-        cancelHandler.postDelayed(new Runnable() {
+    private static void closeOn(Handler handler, final ImageReader reader)
+    {
+        handler.post(new Runnable()
+        {
             @Override
             public void run()
             {
-                //if this was called that means locationListener is surely still
-                //running since otherwise it would have been cancelled
-                locationManager.removeUpdates(locationListener);
+                reader.close();
             }
-        }, locationTimeout * 1000);
+        });
+    }
+
+    /**
+     * Prepares the proxy backend for the standalone recording being started, if proxies are
+     * enabled. Continuous captures are cut into clips afterwards, so they have no proxy. If
+     * the proxy can't be prepared, the recording goes on without it.
+     */
+    private void setUpProxyBackend()
+    {
+        if (proxyBackend == null || continuousCapture || optionalStreamsFailed)
+        {
+            return;
+        }
+        EncoderProfile profile = EncoderProfileResolver.resolve(this, VideoProxies.CODEC, EncoderProfileResolver.QUALITY_PROXY);
+        EncoderConfig config = new EncoderConfig(profile.getWidth(), profile.getHeight(),
+                profile.getBitRate(), profile.getFrameRate(), KEY_FRAME_INTERVAL, getOrientationHint());
+        config.setMimeType(profile.getMimeType());
+        config.setProfileLevel(profile.getProfile(), profile.getLevel());
+        config.setMetadataRate(metadataRate);
+        String fileName = VideoProxies.getFileName(videoFileName);
         try
         {
-            locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, locationListener);
-            locationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, 0, 0, locationListener);
+            proxyBackend.prepare(config, getVideoFilePath(fileName, this));
+            proxyFileName = fileName;
         }
-        catch (SecurityException e)
+        catch (IOException e)
         {
-            e.printStackTrace();
+            Log.e(TAG, "Could not prepare the proxy, recording without it", e);
+            proxyBackend.release();
         }
     }
 
     /**
-     * Sets up an alarm that will trigger the recorder rotation during continuous capture mode.
-     *
-     * @param enable whether to setup or terminate the alarm
+     * Gets rid of the proxy of a recording that never got going.
      */
-    private void setAlarm(Context context, boolean enable)
+    private void discardProxy()
     {
-        Intent i = new Intent(context, CaptureService.class);
-        i.putExtra(EXTRA_ROTATION, true);
-        //rotations are obviously not user-driven
-        i.putExtra(EXTRA_USER_DRIVEN, false);
-        //make sure to set one shot flag to prevent re-use
-        PendingIntent pi = PendingIntent.getService(context, 515, i, 0);
-        AlarmManager alarmManager = (AlarmManager)context.getSystemService(Context.ALARM_SERVICE);
-        if (enable)
-        {
-            firstAlarm = true;
-            alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP,
-                    SystemClock.elapsedRealtime() + ROTATION_INTERVAL, ROTATION_INTERVAL, pi);
-        }
-        else
+        if (proxyFileName == null)
         {
-            alarmManager.cancel(pi);
-            pi.cancel();
+            return;
         }
+        proxyBackend.release();
+        new File(getVideoFilePath(proxyFileName, this)).delete();
+        proxyFileName = null;
     }
 
     /**
-     * Returns null as this service doesn't provide binding.
+     * This callback follows the capture session: it starts recording once the session is
+     * configured, and finishes up the recording once the session is stopped.
      */
-    public IBinder onBind(Intent intent)
+    private CameraCaptureSession.StateCallback sessionCallback = new CameraCaptureSession.StateCallback()
     {
-        return null;
-    }
+        @Override
+        public void onConfigured(CameraCaptureSession cameraCaptureSession)
+        {
+            previewSession = cameraCaptureSession;
+            //an armed session is set up ahead of time, and only starts recording once requested
+            if (sessionArmed && !isRecordingVideo)
+            {
+                return;
+            }
+            CaptureTrace.mark(CaptureTrace.STAGE_SESSION_CONFIGURED);
+            updatePreview();
+            //once configured, start the actual recording (only on primary)
+            captureBackend.start();
+            if (proxyFileName != null)
+            {
+                proxyBackend.start();
+            }
+            notifyController(true);
+        }
+
+        @Override
+        public void onConfigureFailed(CameraCaptureSession cameraCaptureSession)
+        {
+            //the device may not support the extra streams next to the recording, so the
+            //session is tried again with the recording alone
+            if (sessionOptional && cameraDevice != null)
+            {
+                Log.w(TAG, "Could not configure the session, trying again without the optional streams");
+                sessionOptional = false;
+                dropOptionalStreams();
+                try
+                {
+                    cameraDevice.createCaptureSession(Collections.singletonList(sessionSurface), sessionCallback,
+                            backgroundHandler);
+                    return;
+                }
+                catch (CameraAccessException | IllegalStateException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+            sessionArmed = false;
+            discardProxy();
+            if (isRecordingVideo)
+            {
+                isRecordingVideo = false;
+                notifyControllerFailed();
+            }
+        }
+
+        @Override
+        public void onReady(CameraCaptureSession cameraCaptureSession)
+        {
+            //how can we know if this is the first onReady after abortCaptures
+            if (!onReadyRun)
+            {
+                return;
+            }
+            //block the next one
+            onReadyRun = false;
+            boolean rotate = onReadyRotate;
+            boolean userDriven = onReadyUserDriven;
+            Context context = onReadyContext;
+            //stop doing this here..wait for abort captures to complete (i.e onReady)
+            isRecordingVideo = false;
+            captureBackend.stop();
+            if (proxyFileName != null)
+            {
+                proxyBackend.stop();
+            }
+            //a switch the backend made while it was being stopped is taken care of first
+            startNextSegment();
+            if (!rotate)
+            {
+                CaptureTrace.mark(CaptureTrace.STAGE_STOPPED);
+            }
+            //if the recorder was stopped before it could switch to the next segment,
+            //that file was never used
+            discardNextSegment(context);
+            if (!rotate)
+            {
+                //We will only be adding a new video entry now if:
+                //1) This is not a continuous capture, and every stop should result in a new entry
+                //2) This is a continuous capture, but we're already continuousRecording and the
+                //   user is stopping the continuousRecording
+                //3) This is a continuous capture, and we're already continuousRecording but the
+                //   entire capture is being stopped (e.g. bluetooth out of range)
+                if (!continuousCapture)
+                {
+                    addCapturedVideo(videoFileName, proxyFileName, slotTiming);
+                    proxyFileName = null;
+                }
+                else if (continuousRecording)
+                {
+                    //the clip is cut out of the segments it spans, which stay where they are
+                    addSegmentClip(context);
+                }
+                //we should also update the notification if we're stopping a continuous capture
+                if (continuousCapture && !userDriven)
+                {
+                    continuousCapture = false;
+                    segmentGapMeter.reset();
+                    //the last segment stays in the loop like the ones before it
+                    if (currentSlot != null)
+                    {
+                        segmentLoop.commit(currentSlot);
+                        currentSlot = null;
+                    }
+                    //but a rotated file outside of the loop is deleted
+                    if (rotationFile != null)
+                    {
+                        rotationFile.delete();
+                    }
+                    //every bookmark of the capture is complete now
+                    extractBookmarks();
+                    //dont worry, it will be nullified on a new cont capture
+                }
+            }
+            else
+            {
+                //the old session will not deliver any more frames, so the next frame
+                //is the first one of the new segment
+                segmentGapMeter.markBoundary();
+                //if this is a rotation, keep the finished segment
+                finishSegment(context);
+                extractBookmarks();
+            }
+            //an armed session is kept for the next recording
+            if (previewSession != null && !(armed && sessionArmed))
+            {
+                previewSession.close();
+                previewSession = null;
+                sessionArmed = false;
+            }
+            //a service that was disarmed during the recording can let go of the armed surface
+            if (!armed && armedSurface != null)
+            {
+                releaseArmedSurface();
+            }
+            //if this is a rotation, we need to start another recording ASAP
+            //also start another recording if this is a continuous recording and we are stopping based on a
+            //user-driven request
+            if (rotate || (continuousRecording && userDriven))
+            {
+                startRecordingVideo();
+            }
+            else
+            {
+                //get ready for the next recording if armed
+                armCapture();
+                notifyController(false);
+            }
+
+            //we have to set continuousRecording to false, so this was moved to the onReady callback
+            //if this is a continuous capture, and recording is being stopped
+            //(not rotated) then we're no longer continuousRecording
+            if (!rotate)
+            {
+                continuousRecording = false;
+            }
+        }
+    };
 
     /**
-     * Starts the background thread and its handler.
+     * Arms or disarms the service. While armed, the service stays in the foreground with the
+     * camera open and a capture session ready on a persistent encoder surface (API 23+).
+     *
+     * @param arm whether to arm or disarm the service
      */
-    private void startBackgroundThread()
+    private void setArmed(boolean arm)
     {
-        backgroundThread = new HandlerThread("CameraBackground");
-        backgroundThread.start();
-        backgroundHandler = new Handler(backgroundThread.getLooper());
+        if (arm == armed)
+        {
+            return;
+        }
+        if (arm)
+        {
+            //persistent input surfaces were only added in API 23
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M)
+            {
+                stopServiceIfPossible();
+                return;
+            }
+            armed = true;
+            armedSurface = MediaCodec.createPersistentInputSurface();
+            captureBackend.setInputSurface(armedSurface);
+            startForeground(notifyIdArmed, buildArmedNotification());
+            //if a recording is running, the armed session is set up once it's done
+            armCapture();
+        }
+        else
+        {
+            armed = false;
+            stopForeground(true);
+            //a running recording still needs the armed surface, it will be let go in onReady
+            if (!isRecordingVideo)
+            {
+                if (backendPrepared)
+                {
+                    discardPreparedOutput();
+                    captureBackend.release();
+                    backendPrepared = false;
+                }
+                if (previewSession != null)
+                {
+                    previewSession.close();
+                    previewSession = null;
+                }
+                sessionArmed = false;
+                releaseArmedSurface();
+            }
+            stopServiceIfPossible();
+        }
     }
 
     /**
-     * Stops the background thread and its handler.
+     * Gets an armed service ready for the next recording: the backend is prepared and the
+     * capture session is created, unless that's already done.
      */
-    private void stopBackgroundThread()
+    private void armCapture()
     {
-        backgroundThread.quitSafely();
+        if (!armed || cameraDevice == null || isRecordingVideo)
+        {
+            return;
+        }
         try
         {
-            backgroundThread.join();
-            backgroundThread = null;
-            backgroundHandler = null;
+            prepareArmedBackend();
+            if (sessionArmed)
+            {
+                return;
+            }
+            previewBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+            previewBuilder.addTarget(armedSurface);
+            List<Surface> surfaces = new ArrayList<>();
+            surfaces.add(armedSurface);
+            addOptionalSurfaces(surfaces);
+            sessionArmed = true;
+            sessionSurface = armedSurface;
+            sessionOptional = surfaces.size() > 1;
+            cameraDevice.createCaptureSession(surfaces, sessionCallback, backgroundHandler);
         }
-        catch (InterruptedException e)
+        catch (CameraAccessException | IOException e)
         {
             e.printStackTrace();
+            sessionArmed = false;
         }
     }
 
     /**
-     * This StateCallback gets called when the camera device status changes.
+     * Prepares the backend for the next armed recording, if it isn't already prepared for the
+     * current capture mode.
      */
-    private CameraDevice.StateCallback stateCallback = new CameraDevice.StateCallback()
+    private void prepareArmedBackend() throws IOException
     {
-        @Override
-        public void onOpened(@NonNull CameraDevice cameraDevice)
+        if (backendPrepared && backendPreparedContinuous == continuousCapture)
         {
-            CaptureService.this.cameraDevice = cameraDevice;
-            cameraLock.release();
-            startRecordingVideo();
+            return;
+        }
+        //a backend prepared for the other mode has the wrong output file
+        if (backendPrepared)
+        {
+            discardPreparedOutput();
+        }
+        setUpCaptureBackend();
+        backendPrepared = true;
+        backendPreparedContinuous = continuousCapture;
+    }
+
+    /**
+     * Gets rid of the output file of a backend that was prepared but never started.
+     */
+    private void discardPreparedOutput()
+    {
+        if (currentSlot != null)
+        {
+            segmentLoop.discard(currentSlot);
+            currentSlot = null;
         }
+        else if (videoFileName != null)
+        {
+            new File(getVideoFilePath(videoFileName, this)).delete();
+        }
+    }
+
+    private void releaseArmedSurface()
+    {
+        captureBackend.setInputSurface(null);
+        armedSurface.release();
+        armedSurface = null;
+    }
+
+    /**
+     * Builds the ongoing notification shown while the service is armed; clicking on it
+     * disarms the service.
+     */
+    private Notification buildArmedNotification()
+    {
+        initNotifications();
+        Resources resources = getResources();
+        Intent intent = CaptureService.newArmIntent(this, false);
+        PendingIntent pendingIntent = PendingIntent.getService(this, 1, intent, FLAG_UPDATE_CURRENT);
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+            .setSmallIcon(R.drawable.ic_shutter_white)
+            .setContentTitle(resources.getString(R.string.notify_armed_title))
+            .setContentText(resources.getString(R.string.notify_armed_text))
+            .setContentIntent(pendingIntent)
+            .setOngoing(true)
+            .build();
+    }
 
-        @Override
-        public void onDisconnected(@NonNull CameraDevice cameraDevice)
+    /**
+     * Keeps the segment that was just finished during a continuous capture. A segment in the
+     * loop stays there until its slot comes around again; a segment that had to be recorded
+     * outside of the loop overwrites the last one (if there is one).
+     */
+    private void finishSegment(Context context)
+    {
+        if (currentSlot != null)
         {
-            cameraLock.release();
-            cameraDevice.close();
-            CaptureService.this.cameraDevice = null;
+            segmentLoop.commit(currentSlot);
+            currentSlot = null;
+            return;
         }
-
-        @Override
-        public void onError(@NonNull CameraDevice cameraDevice, int error)
+        if (rotationFile != null)
         {
-            cameraLock.release();
-            //cameraDevice.close();
-            //CaptureService.this.cameraDevice = null;
+            rotationFile.delete();
         }
-    };
+        //get the video file path for the newly rotated video file
+        rotationFile = new File(getVideoFilePath(videoFileName, context));
+    }
 
     /**
-     * This sets up the media recorder(s) with all necessary recording format info.
-     *
-     * @param recorder the media recorder to set up
+     * Hands the user's clip off to the finalizer, to be cut out of the segments of the
+     * continuous capture that was just stopped. The clip covers the time since the click and
+     * preRollSeconds before it, across as many segments as needed; the slots holding them
+     * are pinned until the clip is done.
      */
-    private void setUpMediaRecorder(MediaRecorder recorder, String suffix) throws IOException
+    private void addSegmentClip(Context context)
     {
-        //recorder.setAudioSource(MediaRecorder.AudioSource.MIC);
-        recorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
-        recorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
-        //set the recording destination file
-        //if there is a suffix-add it to the end
-        String outputFile = getVideoFilePath(this);
-        if (suffix != null)
+        if (currentSlot != null)
         {
-            outputFile += suffix;
+            segmentLoop.commit(currentSlot);
         }
-        recorder.setOutputFile(getVideoFilePath(this));
-        recorder.setVideoEncodingBitRate(10000000);
-        recorder.setVideoFrameRate(30);
-        recorder.setVideoSize(videoSize.getWidth(), videoSize.getHeight());
-        recorder.setVideoEncoder(MediaRecorder.VideoEncoder.H264);
-        //recorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
-
-        int rotation = getResources().getConfiguration().orientation;
-        switch (sensorOrientation)
+        long windowMillis = SystemClock.elapsedRealtime() - clipStartTime + TimeUnit.SECONDS.toMillis(preRollSeconds);
+        long windowStart = System.currentTimeMillis() - windowMillis;
+        List<ClipRemuxer.Source> sources = new LinkedList<ClipRemuxer.Source>();
+        //segments outside of the loop are the newest ones (the loop ran out of space)
+        if (currentSlot == null)
         {
-            case SENSOR_ORIENTATION_DEFAULT_DEGREES:
-                recorder.setOrientationHint(DEFAULT_ORIENTATIONS.get(rotation));
+            sources.add(new ClipRemuxer.Source(getVideoFilePath(videoFileName, context), 0, null));
+            if (rotationFile != null)
+            {
+                sources.add(0, new ClipRemuxer.Source(rotationFile.getAbsolutePath(), 0, null));
+                //it's the clip's to delete now
+                rotationFile = null;
+            }
+        }
+        //walk back through the loop until the start of the window is covered; a slot's start
+        //time is when it was handed out, which can be a bit before its first frame, so one
+        //more segment is taken
+        List<SegmentLoop.Slot> segments = segmentLoop.getSegments();
+        boolean covered = false;
+        for (int i = segments.size() - 1; i >= 0; i--)
+        {
+            SegmentLoop.Slot slot = segments.get(i);
+            //segments from before this capture don't belong in the clip
+            if (slot.getStartTime() < monitorStartTime)
+            {
                 break;
-            case SENSOR_ORIENTATION_INVERSE_DEGREES:
-                recorder.setOrientationHint(INVERSE_ORIENTATIONS.get(rotation));
+            }
+            segmentLoop.pin(slot);
+            sources.add(0, new ClipRemuxer.Source(slot.getFile().getAbsolutePath(), slot.getLength(), slot));
+            if (covered)
+            {
                 break;
+            }
+            covered = slot.getStartTime() <= windowStart;
         }
-        recorder.prepare();
+        currentSlot = null;
+        addCapturedVideo(System.currentTimeMillis() + ".mp4", null, null, sources, windowMillis);
     }
 
     /**
-     * Choose a video size with aspect ratio 3x4 and not larger than 1080p.
-     *
-     * @param choices the list of available sizes
-     * @return the video size
+     * Bookmarks the current moment of the continuous capture: where the recording is at in
+     * the segment being recorded goes into the database, and nothing else changes.
      */
-    private static Size chooseVideoSize(Size[] choices)
+    private void addBookmark()
     {
-        for (Size size : choices)
+        final long time = System.currentTimeMillis();
+        //the segment being recorded is only kept track of on the camera thread
+        backgroundHandler.post(new Runnable()
         {
-            if (size.getWidth() == size.getHeight() * 4 / 3 && size.getWidth() <= 1080)
+            @Override
+            public void run()
             {
-                return size;
+                addBookmark(time);
             }
-        }
-
-        Log.e(TAG, "Couldn't find a suitable video size");
-        return choices[choices.length - 1];
+        });
     }
 
     /**
-     * Gets the backward-facing instance camera of the device, and asks for permission if required.
+     * @param time when the bookmark was made (in milliseconds since the epoch)
      */
-    private void openCamera()
+    private void addBookmark(long time)
     {
-        CameraManager manager = (CameraManager)getSystemService(Context.CAMERA_SERVICE);
-        try
+        //a switch of segments the camera thread hasn't caught up with yet comes first
+        startNextSegment();
+        //a segment outside of the loop doesn't stay around long enough to cut a clip from later
+        SegmentLoop.Slot slot = currentSlot;
+        if (slot == null)
         {
-            //try to acquire a lock on the camera
-            if (!cameraLock.tryAcquire(2500, TimeUnit.MILLISECONDS))
-            {
-                throw new RuntimeException("Could not acquire lock on camera.");
-            }
-            String cameraId = manager.getCameraIdList()[0];
-            CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
-            StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-            if (map == null)
+            Log.w(TAG, "Not recording into the loop, the bookmark is lost");
+            return;
+        }
+        //the media time is where the last frame was written into the segment, which in a
+        //time-lapse is its played back time
+        final Bookmark bookmark = new Bookmark(0, slot.getFileName(), slot.getSequence(), time,
+                slotTiming.getMediaTimeUs(), TimeUnit.SECONDS.toMillis(preRollSeconds),
+                TimeUnit.SECONDS.toMillis(CONTINUOUS_DURATION));
+        bookmarkHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
             {
-                throw new RuntimeException("Could not get available video sizes");
+                SQLiteDatabase database = new VideoBaseHelper(CaptureService.this).getWritableDatabase();
+                if (VideoBaseHelper.addBookmark(bookmark, database))
+                {
+                    Log.i(TAG, "Bookmarked " + bookmark.getSegment() + " at " + bookmark.getMediaTimeUs() / 1000 + " ms");
+                    controllerHandler.post(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            Toast.makeText(CaptureService.this, R.string.bookmark_saved, Toast.LENGTH_SHORT).show();
+                        }
+                    });
+                }
             }
-            videoSize = chooseVideoSize(map.getOutputSizes(MediaRecorder.class));
-            //get the camera sensor orientation
-            sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        });
+    }
 
-            manager.openCamera(cameraId, stateCallback, null);
-        }
-        catch (CameraAccessException | InterruptedException | SecurityException e)
+    /**
+     * Hands the clips of the pending bookmarks to the finalizer, once the segments their
+     * windows span are all finished. A bookmark whose segment was overwritten in the meantime
+     * (e.g. the app was killed for longer than the loop) is given up on.
+     *
+     * This is called on the camera thread whenever a segment finishes; the database and the
+     * finalizer are only touched on the bookmark thread.
+     */
+    private void extractBookmarks()
+    {
+        if (!bookmarkEnabled)
         {
+            return;
         }
+        final SegmentLoop.Slot recording = currentSlot;
+        final String codec = captureProfile.getMimeType();
+        final int tier = captureTier;
+        bookmarkHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                extractBookmarks(recording, codec, tier);
+            }
+        });
     }
 
     /**
-     * Closes the camera device and releases the mediaRecorder.
+     * @param recording the slot being recorded into, or null if none is
+     * @param codec the mime type the segments are recorded with
+     * @param tier the capture tier the segments are recorded at
      */
-    private void closeCamera()
+    private void extractBookmarks(SegmentLoop.Slot recording, String codec, int tier)
     {
-        try
+        SQLiteDatabase database = new VideoBaseHelper(this).getWritableDatabase();
+        List<Bookmark> bookmarks = VideoBaseHelper.getPendingBookmarks(database);
+        List<SegmentLoop.Slot> segments = segmentLoop.getSegments();
+        for (Bookmark bookmark : bookmarks)
         {
-            cameraLock.acquire();
-            if (cameraDevice != null)
+            synchronized (extractingBookmarks)
             {
-                cameraDevice.close();
-                cameraDevice = null;
+                if (extractingBookmarks.contains(bookmark.getId()))
+                {
+                    continue;
+                }
+            }
+            //the end of the window may still be being recorded
+            if (recording != null && bookmark.getTime() + bookmark.getPostMillis() >= recording.getStartTime())
+            {
+                continue;
+            }
+            int index = -1;
+            for (int i = 0; i < segments.size(); i++)
+            {
+                SegmentLoop.Slot slot = segments.get(i);
+                if (slot.getSequence() == bookmark.getSequence() && slot.getFileName().equals(bookmark.getSegment()))
+                {
+                    index = i;
+                }
+            }
+            if (index < 0)
+            {
+                Log.w(TAG, "The segment of bookmark " + bookmark.getId() + " is gone");
+                VideoBaseHelper.setBookmarkVideo(bookmark.getId(), Bookmark.VIDEO_FAILED, database);
+                continue;
+            }
+            //the window can reach into the segments recorded right before and after
+            List<ClipRemuxer.Source> sources = new LinkedList<ClipRemuxer.Source>();
+            SegmentLoop.Slot slot = segments.get(index);
+            ClipRemuxer.Source anchor = new ClipRemuxer.Source(slot.getFile().getAbsolutePath(), slot.getLength(), slot);
+            if (index > 0 && bookmark.getMediaTimeUs() < bookmark.getPreMillis() * 1000 &&
+                    isNextSegment(segments.get(index - 1), slot))
+            {
+                SegmentLoop.Slot previous = segments.get(index - 1);
+                sources.add(new ClipRemuxer.Source(previous.getFile().getAbsolutePath(), previous.getLength(), previous));
+            }
+            sources.add(anchor);
+            if (index + 1 < segments.size() && isNextSegment(slot, segments.get(index + 1)))
+            {
+                SegmentLoop.Slot next = segments.get(index + 1);
+                sources.add(new ClipRemuxer.Source(next.getFile().getAbsolutePath(), next.getLength(), next));
+            }
+            for (ClipRemuxer.Source source : sources)
+            {
+                segmentLoop.pin(source.getSlot());
             }
-            if (mediaRecorder != null)
+            synchronized (extractingBookmarks)
             {
-                mediaRecorder.release();
-                mediaRecorder = null;
+                extractingBookmarks.add(bookmark.getId());
             }
+            ClipFinalizer.Clip clip = new ClipFinalizer.Clip();
+            clip.fileName = bookmark.getTime() + ".mp4";
+            clip.sources = sources;
+            clip.anchor = anchor;
+            clip.anchorUs = bookmark.getMediaTimeUs();
+            clip.preMillis = bookmark.getPreMillis();
+            clip.postMillis = bookmark.getPostMillis();
+            clip.bookmarkId = bookmark.getId();
+            clip.orientationHint = getOrientationHint();
+            clip.codec = codec;
+            clip.tier = tier;
+            clip.time = bookmark.getTime();
+            clip.track = sliceTrack(bookmark.getTime() - bookmark.getPreMillis(),
+                    bookmark.getTime() + bookmark.getPostMillis());
+            clip.address = "";
+            clipFinalizer.submit(clip);
         }
-        catch (InterruptedException e)
+    }
+
+    /**
+     * @return whether the second segment was recorded right after the first one, in the
+     * same continuous capture
+     */
+    private static boolean isNextSegment(SegmentLoop.Slot first, SegmentLoop.Slot second)
+    {
+        return second.getSequence() == first.getSequence() + 1 &&
+            second.getStartTime() - first.getStartTime() <= SEGMENT_DURATION + SEGMENT_SLACK;
+    }
+
+    /**
+     * Hands a finished clip off to the finalizer, which adds it to the database. Whatever is
+     * already known about the location of the clip goes with it.
+     *
+     * @param fileName the name of the clip's file
+     * @param proxyFileName the name of the clip's proxy file, or null if it has none
+     * @param timing the timing of the frames recorded into the clip
+     */
+    private void addCapturedVideo(String fileName, String proxyFileName, FrameTiming timing)
+    {
+        addCapturedVideo(fileName, proxyFileName, timing, null, 0);
+    }
+
+    /**
+     * Hands a finished clip off to the finalizer, which adds it to the database. Whatever is
+     * already known about the location of the clip goes with it.
+     *
+     * @param fileName the name of the clip's file
+     * @param proxyFileName the name of the clip's proxy file, or null if it has none
+     * @param timing the timing of the frames recorded into the clip, or null if the clip is
+     * cut out of segments
+     * @param sources the segments to cut the clip out of, or null if the file is the clip
+     * @param windowMillis how much of the end of the segments makes up the clip
+     */
+    private void addCapturedVideo(String fileName, String proxyFileName, FrameTiming timing,
+            List<ClipRemuxer.Source> sources, long windowMillis)
+    {
+        ClipFinalizer.Clip clip = new ClipFinalizer.Clip();
+        clip.fileName = fileName;
+        clip.proxy = proxyFileName;
+        if (timing != null)
         {
-            throw new RuntimeException("Could not acquire lock on camera.");
+            //the file only has to be probed if no frames were seen
+            clip.frameCount = timing.getFrameCount();
+            clip.duration = (clip.frameCount > 0) ? timing.getDurationMillis() : -1;
+            clip.frameRate = timing.getFrameRate();
         }
-        finally
+        clip.sources = sources;
+        clip.windowMillis = windowMillis;
+        clip.orientationHint = getOrientationHint();
+        clip.codec = captureProfile.getMimeType();
+        clip.tier = captureTier;
+        clip.frameStats = frameStats.encode();
+        synchronized (pendingStills)
         {
-            cameraLock.release();
+            clip.stills = VideoStills.join(pendingStills);
+            pendingStills.clear();
+        }
+        clip.time = System.currentTimeMillis();
+        clip.traceId = CaptureTrace.current();
+        //the clip ends now and started as long ago as it lasts, or with the capture if that
+        //isn't known
+        long clipLength = (sources != null) ? windowMillis : clip.duration;
+        clip.track = sliceTrack((clipLength >= 0) ? clip.time - clipLength : 0, clip.time);
+        clip.address = getResources().getString(R.string.getting_location);
+        //check if location was already obtained during capture; note that if it was, it would be in the
+        //last element added to the location queue
+        VideoLocationRequest request = locationQueue.isEmpty() ? null : locationQueue.getLast();
+        if (request != null && request.location != null)
+        {
+            clip.latLng = new LatLng(request.location.getLatitude(), request.location.getLongitude());
+            //if location was obtained, might as well check if address was too, otherwise
+            //address string will simply be the coordinates until the actual address is obtained
+            clip.address = (request.address != null) ? request.address :
+                String.format("%.6f, %.6f", clip.latLng.getLatitude(), clip.latLng.getLongitude());
         }
+        clip.tag = request;
+        clipFinalizer.submit(clip);
     }
 
     /**
-     * Starts the video recording process.
+     * Finishes up a clip once the finalizer has added it to the database: its location request
+     * is either done with or gets to update the new entry later on.
      */
-    private void startRecordingVideo()
+    private ClipFinalizer.Listener finalizerListener = new ClipFinalizer.Listener()
     {
-        //only call this once you have the camera device ready
-        if (cameraDevice == null)
-        {
-            return;
-        }
-        //a new media recorder is needed to start each session (dont ask questions)
-        mediaRecorder = new MediaRecorder();
-
-        isRecordingVideo = true;
-
-        try
+        @Override
+        public void onClipFinalized(ClipFinalizer.Clip clip, Video video)
         {
-            setUpMediaRecorder(mediaRecorder, null);
-            previewBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
-            List<Surface> surfaces = new ArrayList<>();
-            //the surface that will get recorded
-            Surface recorderSurface = mediaRecorder.getSurface();
-            surfaces.add(recorderSurface);
-            previewBuilder.addTarget(recorderSurface);
-            //start the capture session
-            cameraDevice.createCaptureSession(surfaces, new CameraCaptureSession.StateCallback() {
-                @Override
-                public void onConfigured(CameraCaptureSession cameraCaptureSession)
-                {
-                    previewSession = cameraCaptureSession;
-                    updatePreview();
-                    //once configured, start the actual recording (only on primary)
-                    mediaRecorder.start();
-                }
-
-                @Override
-                public void onConfigureFailed(CameraCaptureSession cameraCaptureSession)
+            if (clip.bookmarkId != 0)
+            {
+                synchronized (extractingBookmarks)
                 {
-                    //TODO: handle the error
+                    extractingBookmarks.remove(clip.bookmarkId);
                 }
-
-                @Override
-                public void onReady(CameraCaptureSession cameraCaptureSession)
+            }
+            //the segments the clip was cut out of are released
+            if (clip.sources != null)
+            {
+                for (ClipRemuxer.Source source : clip.sources)
                 {
-                    //how can we know if this is the first onReady after abortCaptures
-                    if (!onReadyRun)
-                    {
-                        return;
-                    }
-                    //block the next one
-                    onReadyRun = false;
-                    boolean rotate = onReadyRotate;
-                    boolean userDriven = onReadyUserDriven;
-                    Context context = onReadyContext;
-                    //stop doing this here..wait for abort captures to complete (i.e onReady)
-                    isRecordingVideo = false;
-                    mediaRecorder.stop();
-                    mediaRecorder.reset();
-                    if (!rotate)
-                    {
-                        //We will only be adding a new video entry now if:
-                        //1) This is not a continuous capture, and every stop should result in a new entry
-                        //2) This is a continuous capture, but we're already continuousRecording and the
-                        //   user is stopping the continuousRecording
-                        //3) This is a continuous capture, and we're already continuousRecording but the
-                        //   entire capture is being stopped (e.g. bluetooth out of range)
-                        if (!continuousCapture || continuousRecording)
-                        {
-                            String title = new SimpleDateFormat("yyyy/MM/dd - HH:mm").format(new Date());
-                            MediaMetadataRetriever mmr = new MediaMetadataRetriever();
-                            mmr.setDataSource(getVideoFilePath(videoFileName, context));
-                            int milliseconds = Integer.parseInt(mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION));
-                            int duration = milliseconds / 1000;
-                            //TODO: get the actual location
-                            LatLng latLng = null;
-                            String address = getResources().getString(R.string.getting_location);
-                            //check if location was already obtained during capture; note that if it was, it would be in the
-                            //last element added to the location queue
-                            boolean removeLast = false;
-                            if (locationQueue.getLast().location != null)
-                            {
-                                Location location = locationQueue.getLast().location;
-                                latLng = new LatLng(location.getLatitude(), location.getLongitude());
-                                //if location was obtained, might as well check if address was too
-                                if (locationQueue.getLast().address != null)
-                                {
-                                    address = locationQueue.getLast().address;
-                                    //locationListener has populated all fields in this location request
-                                    //remove it from the queue
-                                    locationQueue.removeLast();
-                                    removeLast = true;
-                                }
-                                else
-                                {
-                                    //otherwise address string will simply be the coordinates
-                                    //until the actual address is obtained
-                                    address = String.format("%.6f, %.6f", latLng.getLatitude(), latLng.getLongitude());
-                                }
-                            }
-                            Video newVideo = new Video(0, title, videoFileName, "", duration, address, false, latLng);
-                            //if the locationListener still needs to update this location request
-                            if (!removeLast)
-                            {
-                                locationQueue.getLast().video = newVideo;
-                            }
-                            SQLiteDatabase database = new VideoBaseHelper(context).getWritableDatabase();
-                            VideoBaseHelper.addVideo(newVideo, database);
-                            //when done creating a video, send a broadcast intent for interested listeners
-                            sendBroadcast(new Intent(ACTION_NEW_VIDEO));
-                        }
-                        //we should also update the notification if we're stopping a continuous capture
-                        if (continuousCapture && !userDriven)
-                        {
-                            continuousCapture = false;
-                            //delete the last rotated file when stopping a continuous capture
-                            if (rotationFile != null)
-                            {
-                                rotationFile.delete();
-                            }
-                            //dont worry, it will be nullified on a new cont capture
-                        }
-                    }
-                    else
-                    {
-                        //if this is a rotation, remember the video file,
-                        //and overwrite the last one (if there is one)
-                        if (rotationFile != null)
-                        {
-                            rotationFile.delete();
-                        }
-                        //get the video file path for the newly rotated video file
-                        rotationFile = new File(getVideoFilePath(videoFileName, context));
-                    }
-                    if (previewSession != null)
-                    {
-                        previewSession.close();
-                        previewSession = null;
-                    }
-                    //if this is a rotation, we need to start another recording ASAP
-                    //also start another recording if this is a continuous recording and we are stopping based on a
-                    //user-driven request
-                    if (rotate || (continuousRecording && userDriven))
+                    if (source.getSlot() != null)
                     {
-                        startRecordingVideo();
+                        segmentLoop.unpin(source.getSlot());
                     }
                     else
                     {
-                        stopServiceIfPossible();
+                        new File(source.getPath()).delete();
                     }
-
-                    //we have to set continuousRecording to false, so this was moved to the onReady callback
-                    //if this is a continuous capture, and recording is being stopped
-                    //(not rotated) then we're no longer continuousRecording
-                    if (!rotate)
+                }
+            }
+            VideoLocationRequest request = (VideoLocationRequest)clip.tag;
+            if (video == null)
+            {
+                locationQueue.remove(request);
+                stopServiceIfPossible();
+                return;
+            }
+            if (request != null)
+            {
+                SQLiteDatabase database = new VideoBaseHelper(CaptureService.this).getWritableDatabase();
+                //the location may have come in while the clip was waiting to be finalized
+                Location location = request.location;
+                if (clip.latLng == null && location != null)
+                {
+                    VideoBaseHelper.geocodeVideo(video, location.getLatitude(), location.getLongitude(), database);
+                }
+                if (location != null && request.address != null)
+                {
+                    if (!request.address.equals(clip.address))
                     {
-                        continuousRecording = false;
+                        VideoBaseHelper.addressVideo(video, request.address, database);
                     }
+                    //locationListener has populated all fields in this location request
+                    //remove it from the queue
+                    locationQueue.remove(request);
                 }
-            }, backgroundHandler);
-        }
-        catch (CameraAccessException | IOException e)
-        {
-            e.printStackTrace();
-            //if there is an exception, assume we're no longer recording
-            isRecordingVideo = false;
+                else
+                {
+                    //the locationListener still needs to update this location request
+                    request.video = video;
+                }
+            }
+            //when done creating a video, send a broadcast intent for interested listeners
+            sendBroadcast(new Intent(ACTION_NEW_VIDEO));
+            stopServiceIfPossible();
         }
-    }
+    };
 
     //these will be used by onReady function
     private boolean onReadyRotate = false;
@@ -1012,6 +3125,104 @@ public class CaptureService extends Service
         }
     }
 
+    /**
+     * Called whenever the format of the capture backend's encoded output is known (or
+     * changes). This is when the pre-roll buffer gets allocated.
+     *
+     * @param format the output format of the encoder
+     */
+    private void bufferEncoderFormat(MediaFormat format)
+    {
+        synchronized (preRollLock)
+        {
+            encoderFormat = format;
+            if (preRollSeconds > 0 && preRollBuffer == null)
+            {
+                //leave room for one extra second in each direction so the buffer can always
+                //start on a key frame
+                int seconds = preRollSeconds + 2;
+                preRollBuffer = new PreRollBuffer(encoderProfile.getBitRate() / 8 * seconds, encoderProfile.getFrameRate() * seconds,
+                        TimeUnit.SECONDS.toMicros(preRollSeconds));
+            }
+            else if (preRollBuffer != null)
+            {
+                //frames in the old format cannot be mixed with the new ones
+                preRollBuffer.clear();
+            }
+        }
+    }
+
+    /**
+     * Called for every frame encoded by the capture backend. The frame is kept in the pre-roll
+     * buffer and, if a user-requested clip is running, written to that clip.
+     *
+     * @param data the buffer containing the encoded frame
+     * @param info the offset, size, timestamp and flags of the frame
+     */
+    private void bufferEncodedFrame(ByteBuffer data, MediaCodec.BufferInfo info)
+    {
+        //codec config data is already part of encoderFormat
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || info.size == 0)
+        {
+            return;
+        }
+        boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        synchronized (preRollLock)
+        {
+            if (preRollWriter != null)
+            {
+                preRollWriter.writeFrame(data, info.offset, info.size, info.presentationTimeUs, keyFrame);
+            }
+            if (preRollBuffer != null)
+            {
+                preRollBuffer.write(data, info.offset, info.size, info.presentationTimeUs, keyFrame);
+            }
+        }
+    }
+
+    /**
+     * Starts writing a user-requested clip that begins with the footage currently held in
+     * the pre-roll buffer. Does nothing if no pre-roll is available.
+     */
+    private void startPreRollClip()
+    {
+        synchronized (preRollLock)
+        {
+            if (preRollBuffer == null || encoderFormat == null || preRollBuffer.getFrameCount() == 0)
+            {
+                return;
+            }
+            String fileName = System.currentTimeMillis() + ".mp4";
+            try
+            {
+                preRollWriter = new PreRollWriter(getVideoFilePath(fileName, this), encoderFormat, getOrientationHint());
+                preRollWriter.writeBuffered(preRollBuffer);
+                preRollFileName = fileName;
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+                preRollWriter = null;
+            }
+        }
+    }
+
+    /**
+     * Finalizes the clip started by startPreRollClip and adds it to the database.
+     */
+    private void finishPreRollClip(Context context)
+    {
+        FrameTiming timing;
+        synchronized (preRollLock)
+        {
+            timing = preRollWriter.finish();
+            preRollWriter = null;
+        }
+        CaptureTrace.mark(CaptureTrace.STAGE_STOPPED);
+        addCapturedVideo(preRollFileName, null, timing);
+        preRollFileName = null;
+    }
+
     /**
      * Update the camera preview.
      */
@@ -1025,9 +3236,21 @@ public class CaptureService extends Service
         try
         {
             setUpCaptureRequestBuilder(previewBuilder);
+            //motion is only looked for during a continuous capture
+            if (motionReader != null)
+            {
+                if (continuousCapture)
+                {
+                    previewBuilder.addTarget(motionReader.getSurface());
+                }
+                else
+                {
+                    previewBuilder.removeTarget(motionReader.getSurface());
+                }
+            }
             HandlerThread thread = new HandlerThread("CameraPreview");
             thread.start();
-            previewSession.setRepeatingRequest(previewBuilder.build(), null, backgroundHandler);
+            previewSession.setRepeatingRequest(previewBuilder.build(), captureCallback, backgroundHandler);
         }
         catch (CameraAccessException e)
         {
@@ -1057,6 +3280,22 @@ public class CaptureService extends Service
         return (dir == null ? "" : (dir.getAbsolutePath() + "/CarWatcher/")) + videoFileName;
     }
 
+    /**
+     * Generates a path for recording a new segment of a continuous capture, which is the next
+     * slot of the segment loop when one is available.
+     */
+    @NonNull
+    private String getSegmentFilePath(Context context)
+    {
+        currentSlot = segmentLoop.acquire();
+        if (currentSlot == null)
+        {
+            return getVideoFilePath(context);
+        }
+        videoFileName = currentSlot.getFileName();
+        return getVideoFilePath(videoFileName, context);
+    }
+
     /**
      * Gets the full path of a video given its file name by just prepending the standard
      * directory.
@@ -1095,7 +3334,9 @@ public class CaptureService extends Service
      */
     private void stopServiceIfPossible()
     {
-        if (!apiConnector.isBusy() && !updatingLocation && !isRecordingVideo)
+        if (!apiConnector.isBusy() && !updatingLocation && !isRecordingVideo && !armed &&
+                !clipFinalizer.isBusy() && controller.getState() == CaptureController.STATE_IDLE &&
+                controller.getQueueSize() == 0)
         {
             stopSelf();
         }
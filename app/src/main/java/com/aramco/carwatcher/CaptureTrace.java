@@ -0,0 +1,430 @@
+package com.aramco.carwatcher;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Traces where the time goes between a capture being requested and its video being saved.
+ * Every start or stop request by the user opens a trace, and each stage it goes through is stamped with
+ * the monotonic clock (elapsedRealtimeNanos). A start trace ends at the first frame, a stop
+ * trace ends once the video is in the database.
+ *
+ * Stamps are written into a fixed ring buffer without taking any locks, since they come from
+ * the main thread, the receivers and the camera thread. The buffer is flushed to a compact
+ * binary file by the capture service every now and then.
+ */
+public class CaptureTrace
+{
+    private static final String TAG = "CaptureTrace";
+    private static final String TRACE_FILE = "capture.trace";
+    private static final String OLD_TRACE_FILE = "capture.trace.old";
+    private static final int TRACE_MAGIC = 0x43575452;
+    private static final int TRACE_VERSION = 1;
+    //once the trace file gets this big, it replaces the old one and a new one is started
+    private static final long MAX_FILE_SIZE = 256 * 1024;
+    //the number of stamps the buffer holds (a power of 2)
+    private static final int CAPACITY = 1024;
+    private static final int MASK = CAPACITY - 1;
+    //the stages of a capture, in the order they normally happen
+    //the button was pressed (as reported by the button, if it tells us)
+    public static final int STAGE_PRESS = 0;
+    //the broadcast from the button was received
+    public static final int STAGE_RECEIVER = 1;
+    //the capture service got the command
+    public static final int STAGE_START_COMMAND = 2;
+    //the camera device was opened
+    public static final int STAGE_CAMERA_OPENED = 3;
+    //the capture session was configured
+    public static final int STAGE_SESSION_CONFIGURED = 4;
+    //the camera delivered the first frame to the encoder
+    public static final int STAGE_FIRST_FRAME = 5;
+    //the encoder was stopped and the file finalized
+    public static final int STAGE_STOPPED = 6;
+    //the video was added to the database
+    public static final int STAGE_SAVED = 7;
+    public static final int STAGE_COUNT = 8;
+    //stamps with this stage are not part of a capture: they record a change of the storage
+    //throttling level (see WriteThroughputMonitor), with the level and the bit rate (in
+    //kbps) in place of the trace id
+    private static final int STAGE_THROTTLE = 15;
+    private static final int THROTTLE_LEVEL_SHIFT = 27;
+
+    //every stamp takes two entries: the trace id and stage, then the time
+    private static final AtomicLongArray buffer = new AtomicLongArray(CAPACITY * 2);
+    //the number of stamps ever written to the buffer
+    private static final AtomicInteger writeCount = new AtomicInteger();
+    //the number of stamps flushed from the buffer (only touched by flush)
+    private static int readCount = 0;
+    //the id of the open trace, or 0 if there is none
+    private static final AtomicLong currentTrace = new AtomicLong();
+    //trace ids are seeded from the clock so they don't repeat in the file after a restart
+    private static final AtomicLong nextTrace = new AtomicLong((System.currentTimeMillis() / 100) & 0x7fffffff);
+
+    /**
+     * The distribution of one stage's latency, i.e. the time from the previous stage.
+     */
+    public static class StageSummary
+    {
+        private final int stage;
+        private final int count;
+        private final long p50;
+        private final long p95;
+        private final long p99;
+
+        private StageSummary(int stage, List<Long> latencies)
+        {
+            Collections.sort(latencies);
+            this.stage = stage;
+            count = latencies.size();
+            p50 = percentile(latencies, 50);
+            p95 = percentile(latencies, 95);
+            p99 = percentile(latencies, 99);
+        }
+
+        public int getStage()
+        {
+            return stage;
+        }
+
+        public int getCount()
+        {
+            return count;
+        }
+
+        /**
+         * @return the median latency, in milliseconds
+         */
+        public long getP50()
+        {
+            return p50;
+        }
+
+        public long getP95()
+        {
+            return p95;
+        }
+
+        public long getP99()
+        {
+            return p99;
+        }
+    }
+
+    /**
+     * Opens a new trace. A trace that is still open is left as is, without its last stages.
+     *
+     * @param pressTime when the request was made (elapsedRealtimeNanos)
+     */
+    public static void begin(long pressTime)
+    {
+        long id = nextTrace.getAndIncrement() & 0x7fffffff;
+        //0 stands for no open trace
+        if (id == 0)
+        {
+            id = 1;
+        }
+        currentTrace.set(id);
+        record(id, STAGE_PRESS, pressTime);
+    }
+
+    /**
+     * Stamps the open trace with the specified stage. Does nothing if no trace is open.
+     */
+    public static void mark(int stage)
+    {
+        long id = currentTrace.get();
+        if (id != 0)
+        {
+            record(id, stage, SystemClock.elapsedRealtimeNanos());
+        }
+    }
+
+    /**
+     * Stamps the open trace with the specified stage, at a time taken earlier (e.g. by the
+     * receiver, before the service was running).
+     *
+     * @param time when the stage was reached (elapsedRealtimeNanos)
+     */
+    public static void mark(int stage, long time)
+    {
+        long id = currentTrace.get();
+        if (id != 0)
+        {
+            record(id, stage, time);
+        }
+    }
+
+    /**
+     * Stamps the open trace with its last stage and closes it.
+     */
+    public static void end(int stage)
+    {
+        long id = currentTrace.getAndSet(0);
+        if (id != 0)
+        {
+            record(id, stage, SystemClock.elapsedRealtimeNanos());
+        }
+    }
+
+    /**
+     * @return the id of the open trace, or 0 if none is open
+     */
+    public static long current()
+    {
+        return currentTrace.get();
+    }
+
+    /**
+     * Stamps the specified trace with its last stage, and closes it if it's still the open
+     * one. This is for stages reached later on another thread, when other traces may have
+     * been opened in the meantime.
+     *
+     * @param id the id of the trace (see current), or 0 for none, in which case nothing happens
+     */
+    public static void end(long id, int stage)
+    {
+        if (id != 0)
+        {
+            currentTrace.compareAndSet(id, 0);
+            record(id, stage, SystemClock.elapsedRealtimeNanos());
+        }
+    }
+
+    /**
+     * Stamps a change of the storage throttling level. This doesn't touch the open trace.
+     *
+     * @param level the new throttling level
+     * @param bitRate the bit rate recorded at that level (in bits per second)
+     */
+    public static void throttle(int level, int bitRate)
+    {
+        long value = ((long)level << THROTTLE_LEVEL_SHIFT) | ((bitRate / 1000) & ((1 << THROTTLE_LEVEL_SHIFT) - 1));
+        record(value, STAGE_THROTTLE, SystemClock.elapsedRealtimeNanos());
+    }
+
+    private static void record(long id, int stage, long time)
+    {
+        int index = (writeCount.getAndIncrement() & MASK) * 2;
+        buffer.set(index + 1, time);
+        //the header goes last, flush treats a zero header as a stamp still being written
+        buffer.set(index, (id << 4) | stage);
+    }
+
+    /**
+     * Appends the stamps in the buffer to the trace file. Only to be called from one thread
+     * at a time.
+     */
+    public static synchronized void flush(Context context)
+    {
+        int written = writeCount.get();
+        if (written == readCount)
+        {
+            return;
+        }
+        //if the writers went around the buffer, the oldest stamps are lost
+        if (written - readCount > CAPACITY)
+        {
+            Log.w(TAG, "Lost " + (written - readCount - CAPACITY) + " stamps");
+            readCount = written - CAPACITY;
+        }
+        File file = new File(context.getFilesDir(), TRACE_FILE);
+        if (file.length() > MAX_FILE_SIZE)
+        {
+            file.renameTo(new File(context.getFilesDir(), OLD_TRACE_FILE));
+        }
+        DataOutputStream out = null;
+        try
+        {
+            boolean newFile = !file.exists() || file.length() == 0;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            if (newFile)
+            {
+                out.writeInt(TRACE_MAGIC);
+                out.writeInt(TRACE_VERSION);
+            }
+            while (readCount != written)
+            {
+                int index = (readCount & MASK) * 2;
+                long header = buffer.get(index);
+                if (header == 0)
+                {
+                    break;
+                }
+                long time = buffer.get(index + 1);
+                buffer.set(index, 0);
+                //each stamp is 13 bytes: trace id, stage, time
+                out.writeInt((int)(header >>> 4));
+                out.writeByte((int)(header & 0xf));
+                out.writeLong(time);
+                readCount++;
+            }
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Could not write trace file", e);
+        }
+        finally
+        {
+            if (out != null)
+            {
+                try
+                {
+                    out.close();
+                }
+                catch (IOException e)
+                {
+                    //nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the trace files and works out the latency distribution of each stage, i.e. the
+     * time it took to get to that stage from the one before it.
+     *
+     * @return the summary of every stage that was traced at least once
+     */
+    public static List<StageSummary> summarize(Context context)
+    {
+        //the stamps of each trace, indexed by stage
+        Map<Integer, long[]> traces = new HashMap<Integer, long[]>();
+        read(new File(context.getFilesDir(), OLD_TRACE_FILE), traces, null);
+        read(new File(context.getFilesDir(), TRACE_FILE), traces, null);
+        List<List<Long>> latencies = new ArrayList<List<Long>>();
+        for (int i = 0; i < STAGE_COUNT; i++)
+        {
+            latencies.add(new ArrayList<Long>());
+        }
+        for (long[] stamps : traces.values())
+        {
+            long previous = stamps[STAGE_PRESS];
+            for (int stage = STAGE_PRESS + 1; stage < STAGE_COUNT; stage++)
+            {
+                if (stamps[stage] == 0)
+                {
+                    continue;
+                }
+                if (previous != 0)
+                {
+                    latencies.get(stage).add((stamps[stage] - previous) / 1000000);
+                }
+                previous = stamps[stage];
+            }
+        }
+        List<StageSummary> summaries = new ArrayList<StageSummary>();
+        for (int stage = STAGE_PRESS + 1; stage < STAGE_COUNT; stage++)
+        {
+            if (!latencies.get(stage).isEmpty())
+            {
+                summaries.add(new StageSummary(stage, latencies.get(stage)));
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * Reads the storage throttling changes out of the trace files.
+     *
+     * @return the throttling level after each change, oldest first
+     */
+    public static List<Integer> getThrottleLevels(Context context)
+    {
+        Map<Integer, long[]> traces = new HashMap<Integer, long[]>();
+        List<Integer> levels = new ArrayList<Integer>();
+        read(new File(context.getFilesDir(), OLD_TRACE_FILE), traces, levels);
+        read(new File(context.getFilesDir(), TRACE_FILE), traces, levels);
+        return levels;
+    }
+
+    /**
+     * @param throttleLevels where to add the throttling levels found, or null to skip them
+     */
+    private static void read(File file, Map<Integer, long[]> traces, List<Integer> throttleLevels)
+    {
+        if (!file.exists())
+        {
+            return;
+        }
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != TRACE_MAGIC || in.readInt() != TRACE_VERSION)
+            {
+                return;
+            }
+            while (true)
+            {
+                int id = in.readInt();
+                int stage = in.readByte();
+                long time = in.readLong();
+                if (stage == STAGE_THROTTLE && throttleLevels != null)
+                {
+                    throttleLevels.add(id >>> THROTTLE_LEVEL_SHIFT);
+                }
+                if (stage < 0 || stage >= STAGE_COUNT)
+                {
+                    continue;
+                }
+                long[] stamps = traces.get(id);
+                if (stamps == null)
+                {
+                    stamps = new long[STAGE_COUNT];
+                    traces.put(id, stamps);
+                }
+                stamps[stage] = time;
+            }
+        }
+        catch (EOFException e)
+        {
+            //done
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Could not read trace file", e);
+        }
+        finally
+        {
+            if (in != null)
+            {
+                try
+                {
+                    in.close();
+                }
+                catch (IOException e)
+                {
+                    //nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the value below which the specified percentage of the sorted values fall
+     */
+    static long percentile(List<Long> sorted, int percent)
+    {
+        int index = (int)Math.ceil(percent / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+    }
+}
@@ -0,0 +1,127 @@
+package com.aramco.carwatcher;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Keeps track of the click-to-first-frame latency, i.e. the time from a capture being requested
+ * until the camera delivers the first frame of the recording, separately for captures that had
+ * to open the camera (cold) and captures started by an armed service. It also keeps the
+ * shutter-to-file latency of stills, from the button being held until the JPEG is written. The
+ * numbers are kept in shared prefs since a cold service doesn't outlive its capture.
+ */
+public class ClickLatencyStats
+{
+    private static final String TAG = "ClickLatencyStats";
+    private static final String LATENCY_FILE = "CarWatcherLatency";
+    private static final String COLD = "COLD_";
+    private static final String ARMED = "ARMED_";
+    private static final String STILL = "STILL_";
+
+    /**
+     * Adds a measurement.
+     *
+     * @param armed whether the capture was started by an armed service
+     * @param milliseconds the click-to-first-frame latency
+     */
+    public static void record(Context context, boolean armed, long milliseconds)
+    {
+        String prefix = armed ? ARMED : COLD;
+        int count = record(context, prefix, milliseconds);
+        Log.i(TAG, "Click to first frame (" + (armed ? "armed" : "cold") + "): " + milliseconds +
+                " ms, average " + getAverage(context, prefix) + " ms over " + count + " captures");
+    }
+
+    /**
+     * Adds a shutter-to-file measurement of a still.
+     *
+     * @param milliseconds the time from the button being held until the still was written
+     */
+    public static void recordStill(Context context, long milliseconds)
+    {
+        int count = record(context, STILL, milliseconds);
+        Log.i(TAG, "Shutter to file: " + milliseconds + " ms, average " + getAverage(context, STILL) +
+                " ms over " + count + " stills");
+    }
+
+    /**
+     * @return the number of measurements with the prefix, including the new one
+     */
+    private static int record(Context context, String prefix, long milliseconds)
+    {
+        SharedPreferences latency = context.getSharedPreferences(LATENCY_FILE, Context.MODE_PRIVATE);
+        int count = latency.getInt(prefix + "COUNT", 0) + 1;
+        long total = latency.getLong(prefix + "TOTAL", 0) + milliseconds;
+        long max = Math.max(latency.getLong(prefix + "MAX", 0), milliseconds);
+        latency.edit()
+            .putInt(prefix + "COUNT", count)
+            .putLong(prefix + "TOTAL", total)
+            .putLong(prefix + "MAX", max)
+            .apply();
+        return count;
+    }
+
+    /**
+     * @param armed whether to get the armed or cold measurements
+     * @return the number of measurements
+     */
+    public static int getCount(Context context, boolean armed)
+    {
+        SharedPreferences latency = context.getSharedPreferences(LATENCY_FILE, Context.MODE_PRIVATE);
+        return latency.getInt((armed ? ARMED : COLD) + "COUNT", 0);
+    }
+
+    /**
+     * @param armed whether to get the armed or cold measurements
+     * @return the average latency (in milliseconds), or 0 if there are no measurements
+     */
+    public static long getAverage(Context context, boolean armed)
+    {
+        return getAverage(context, armed ? ARMED : COLD);
+    }
+
+    private static long getAverage(Context context, String prefix)
+    {
+        SharedPreferences latency = context.getSharedPreferences(LATENCY_FILE, Context.MODE_PRIVATE);
+        int count = latency.getInt(prefix + "COUNT", 0);
+        return (count == 0) ? 0 : latency.getLong(prefix + "TOTAL", 0) / count;
+    }
+
+    /**
+     * @param armed whether to get the armed or cold measurements
+     * @return the highest latency measured (in milliseconds)
+     */
+    public static long getMax(Context context, boolean armed)
+    {
+        SharedPreferences latency = context.getSharedPreferences(LATENCY_FILE, Context.MODE_PRIVATE);
+        return latency.getLong((armed ? ARMED : COLD) + "MAX", 0);
+    }
+
+    /**
+     * @return the number of stills measured
+     */
+    public static int getStillCount(Context context)
+    {
+        SharedPreferences latency = context.getSharedPreferences(LATENCY_FILE, Context.MODE_PRIVATE);
+        return latency.getInt(STILL + "COUNT", 0);
+    }
+
+    /**
+     * @return the average shutter-to-file latency of stills (in milliseconds), or 0 if there
+     * are no measurements
+     */
+    public static long getStillAverage(Context context)
+    {
+        return getAverage(context, STILL);
+    }
+
+    /**
+     * @return the highest shutter-to-file latency measured (in milliseconds)
+     */
+    public static long getStillMax(Context context)
+    {
+        SharedPreferences latency = context.getSharedPreferences(LATENCY_FILE, Context.MODE_PRIVATE);
+        return latency.getLong(STILL + "MAX", 0);
+    }
+}
@@ -0,0 +1,314 @@
+package com.aramco.carwatcher;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.media.MediaMetadataRetriever;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Turns finished recordings into video entries on a worker thread of its own: the entry is
+ * added to the database there (after probing the duration, if the recorder didn't track it),
+ * so the camera thread only has to hand off a Clip and can start the next recording right
+ * away. A clip can also be cut out of recorded segments, and gets its thumbnail made, on the
+ * worker too, which then deletes old videos as needed to stay within the storage quota.
+ * Once a clip is in the database, the
+ * listener is called on the main thread to finish up (location, broadcasts).
+ */
+public class ClipFinalizer
+{
+    private static final String TAG = "ClipFinalizer";
+    //the most clips that can wait to be finalized
+    private static final int QUEUE_SIZE = 16;
+
+    /**
+     * Describes a finished recording.
+     */
+    public static class Clip
+    {
+        //the name of the video file, relative to the CarWatcher directory
+        public String fileName;
+        //the duration of the clip in milliseconds, or -1 to probe the file for it
+        public long duration = -1;
+        //the number of frames and the frame rate measured while recording (0 if unknown)
+        public int frameCount;
+        public float frameRate;
+        //the mime type of the video codec
+        public String codec;
+        //the capture tier the clip was recorded at
+        public int tier;
+        //how steadily the camera delivered frames (see FrameStats.encode), or null if unknown
+        public String frameStats;
+        //the name of the clip's proxy file, or null if none was recorded
+        public String proxy;
+        //the stills to link to the clip (see VideoStills.join), or null if there are none
+        public String stills;
+        //the path the clip was recorded along, or null if there was no location while recording
+        public GpsTrack track;
+        //when the clip was recorded (in milliseconds since the epoch)
+        public long time;
+        //the location and address of the clip, if already known
+        public LatLng latLng;
+        public String address;
+        //the segments to cut the clip out of (oldest first), or null if the file is already
+        //the clip; the clip is the last windowMillis of them, unless it has an anchor
+        public List<ClipRemuxer.Source> sources;
+        public long windowMillis;
+        //for a bookmark's clip: the segment and time (from the start of the segment) it's
+        //taken around, from preMillis before through postMillis after
+        public ClipRemuxer.Source anchor;
+        public long anchorUs;
+        public long preMillis;
+        public long postMillis;
+        //the bookmark the clip is extracted for, or 0 if none
+        public long bookmarkId;
+        //the capture trace of the request that stopped the clip (see CaptureTrace.current),
+        //ended once the clip is saved, or 0 if none
+        public long traceId;
+        //the rotation (in degrees) players should apply to a clip cut from segments
+        public int orientationHint;
+        //whatever the listener needs to finish up the clip
+        public Object tag;
+    }
+
+    /**
+     * Called on the main thread for every clip that was added to the database. The video is
+     * null if the clip could not be cut out of its segments.
+     */
+    public interface Listener
+    {
+        void onClipFinalized(Clip clip, Video video);
+    }
+
+    //tells the worker to stop once the clips before it are done
+    private static final Clip QUIT = new Clip();
+
+    private final Context context;
+    private final Listener listener;
+    private final BlockingQueue<Clip> queue = new ArrayBlockingQueue<Clip>(QUEUE_SIZE);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    //the clips submitted but not yet handed to the listener
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Thread worker;
+
+    public ClipFinalizer(Context context, Listener listener)
+    {
+        this.context = context.getApplicationContext();
+        this.listener = listener;
+        worker = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                work();
+            }
+        }, "ClipFinalizer");
+        worker.start();
+    }
+
+    /**
+     * Queues a clip to be finalized. This only blocks if the queue is full.
+     */
+    public void submit(Clip clip)
+    {
+        pending.incrementAndGet();
+        if (!queue.offer(clip))
+        {
+            //clips can't be dropped, so wait for the worker to catch up
+            Log.w(TAG, "Finalization queue is full");
+            try
+            {
+                queue.put(clip);
+            }
+            catch (InterruptedException e)
+            {
+                pending.decrementAndGet();
+                Log.e(TAG, "Could not queue " + clip.fileName, e);
+            }
+        }
+    }
+
+    /**
+     * @return whether there are clips that are not done yet
+     */
+    public boolean isBusy()
+    {
+        return pending.get() > 0;
+    }
+
+    /**
+     * Stops the worker once the clips already submitted are done.
+     */
+    public void quit()
+    {
+        try
+        {
+            queue.put(QUIT);
+        }
+        catch (InterruptedException e)
+        {
+            worker.interrupt();
+        }
+    }
+
+    private void work()
+    {
+        SQLiteDatabase database = new VideoBaseHelper(context).getWritableDatabase();
+        while (true)
+        {
+            final Clip clip;
+            try
+            {
+                clip = queue.take();
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            if (clip == QUIT)
+            {
+                return;
+            }
+            if (clip.sources != null && !remux(clip))
+            {
+                if (clip.bookmarkId != 0)
+                {
+                    VideoBaseHelper.setBookmarkVideo(clip.bookmarkId, Bookmark.VIDEO_FAILED, database);
+                }
+                new File(CaptureService.getVideoFilePath(clip.fileName, context)).delete();
+                if (clip.proxy != null)
+                {
+                    new File(CaptureService.getVideoFilePath(clip.proxy, context)).delete();
+                }
+                done(clip, null);
+                continue;
+            }
+            long duration = (clip.duration >= 0) ? clip.duration : probeDuration(clip.fileName);
+            String title = new SimpleDateFormat("yyyy/MM/dd - HH:mm").format(new Date(clip.time));
+            final Video video = new Video(0, title, clip.fileName, "", (int)(duration / 1000),
+                    clip.address, false, clip.latLng);
+            video.setCodec(clip.codec);
+            video.setTier(clip.tier);
+            video.setFrameStats(clip.frameStats);
+            video.setProxy(clip.proxy);
+            video.setStills(clip.stills);
+            video.setTrack(VideoTracks.write(context, clip.fileName, clip.track));
+            video.setFrameTiming(duration, clip.frameCount, clip.frameRate);
+            //the proxy makes the same thumbnail for a lot less decoding
+            if (VideoProxies.getFile(video, context) != null)
+            {
+                video.setThumbnail(VideoThumbnails.create(context, clip.proxy, VideoProxies.CODEC));
+            }
+            else
+            {
+                video.setThumbnail(VideoThumbnails.create(context, clip.fileName, clip.codec));
+            }
+            video.setSize(StorageQuota.measure(video, context));
+            if (!VideoBaseHelper.addVideo(video, database))
+            {
+                Log.e(TAG, "Could not add " + clip.fileName + " to the database");
+            }
+            else
+            {
+                if (clip.bookmarkId != 0)
+                {
+                    VideoBaseHelper.setBookmarkVideo(clip.bookmarkId, video.getId(), database);
+                }
+                //make room for the next one while the camera is busy with it
+                StorageQuota.enforce(context, database, video.getId());
+            }
+            CaptureTrace.end(clip.traceId, CaptureTrace.STAGE_SAVED);
+            done(clip, video);
+        }
+    }
+
+    /**
+     * Hands a clip over to the listener, on the main thread.
+     */
+    private void done(final Clip clip, final Video video)
+    {
+        mainHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                pending.decrementAndGet();
+                listener.onClipFinalized(clip, video);
+            }
+        });
+    }
+
+    /**
+     * Cuts the clip out of its segments into its file, and fills in its timing.
+     *
+     * @return false if the clip could not be written
+     */
+    private boolean remux(Clip clip)
+    {
+        ClipRemuxer remuxer = new ClipRemuxer(clip.sources);
+        try
+        {
+            remuxer.open();
+            long endUs = remuxer.getDuration();
+            long startUs = Math.max(0, endUs - clip.windowMillis * 1000);
+            if (clip.anchor != null)
+            {
+                long offset = remuxer.getOffset(clip.anchor);
+                if (offset < 0)
+                {
+                    throw new IOException("The bookmarked segment can't be read");
+                }
+                long anchorUs = offset + clip.anchorUs;
+                startUs = Math.max(0, anchorUs - clip.preMillis * 1000);
+                endUs = Math.min(endUs, anchorUs + clip.postMillis * 1000);
+            }
+            FrameTiming timing = remuxer.remux(startUs, endUs,
+                    CaptureService.getVideoFilePath(clip.fileName, context), clip.orientationHint);
+            clip.frameCount = timing.getFrameCount();
+            clip.duration = timing.getDurationMillis();
+            clip.frameRate = timing.getFrameRate();
+            return true;
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Could not cut " + clip.fileName + " out of its segments", e);
+            return false;
+        }
+        finally
+        {
+            remuxer.release();
+        }
+    }
+
+    /**
+     * @return the duration of the video file in milliseconds, or 0 if it can't be read
+     */
+    private long probeDuration(String fileName)
+    {
+        MediaMetadataRetriever mmr = new MediaMetadataRetriever();
+        try
+        {
+            mmr.setDataSource(CaptureService.getVideoFilePath(fileName, context));
+            return Long.parseLong(mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION));
+        }
+        catch (RuntimeException e)
+        {
+            Log.e(TAG, "Could not read the duration of " + fileName, e);
+            return 0;
+        }
+        finally
+        {
+            mmr.release();
+        }
+    }
+}
@@ -0,0 +1,505 @@
+package com.aramco.carwatcher;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cuts a clip out of consecutive segment files without re-encoding anything. The segments are
+ * laid end to end on a single timeline; the clip starts on the last key frame at or before the
+ * requested start and runs through the requested end, crossing segment boundaries as needed.
+ * Only the samples that end up in the clip are read, so the time it takes is proportional to
+ * the size of the clip rather than the size of the segments. The samples keep their
+ * presentation times (shifted by where their segment is on the timeline), so frames encoded
+ * out of order stay that way; only the start of a segment that overlaps the end of the one
+ * before it is left out, up to a key frame after the overlap. The location samples of the
+ * segments' metadata tracks (see LocationMetadata) within the clip are copied along; the
+ * clip only gets a metadata track if there are any.
+ */
+public class ClipRemuxer
+{
+    private static final String TAG = "ClipRemuxer";
+    //used for the sample buffer when a segment doesn't tell its largest sample
+    private static final int DEFAULT_SAMPLE_SIZE = 2 * 1024 * 1024;
+
+    /**
+     * A segment file to take samples from.
+     */
+    public static class Source
+    {
+        private final String path;
+        private final long length;
+        private final SegmentLoop.Slot slot;
+
+        /**
+         * @param path the path of the segment file
+         * @param length the number of bytes at the start of the file making up the segment
+         * (loop slots can hold leftovers of older segments after it), or 0 for the whole file
+         * @param slot the loop slot holding the segment, or null if it's a file of its own
+         */
+        public Source(String path, long length, SegmentLoop.Slot slot)
+        {
+            this.path = path;
+            this.length = length;
+            this.slot = slot;
+        }
+
+        public String getPath()
+        {
+            return path;
+        }
+
+        public SegmentLoop.Slot getSlot()
+        {
+            return slot;
+        }
+    }
+
+    private final List<Source> sources;
+    //an extractor with the video track selected, its format and where it starts on the
+    //timeline, for every source that could be opened
+    private final List<MediaExtractor> extractors = new ArrayList<MediaExtractor>();
+    private final List<MediaFormat> formats = new ArrayList<MediaFormat>();
+    private final List<Long> offsets = new ArrayList<Long>();
+    //the sources the extractors were opened from
+    private final List<Source> opened = new ArrayList<Source>();
+    //the index of the location metadata track of every opened source, or -1 if it has none
+    private final List<Integer> metadataTracks = new ArrayList<Integer>();
+    private long duration = 0;
+
+    /**
+     * @param sources the segments to cut from, oldest first
+     */
+    public ClipRemuxer(List<Source> sources)
+    {
+        this.sources = sources;
+    }
+
+    /**
+     * Opens the segments and lays them out on the timeline. Only the headers are read. A
+     * segment that can't be read leaves a hole of unknown length in the timeline, so the
+     * segments before it are left out along with it: clips are measured back from the end of
+     * the timeline (or from a bookmarked segment), and would come out shifted otherwise.
+     */
+    public void open()
+    {
+        for (Source source : sources)
+        {
+            MediaExtractor extractor = new MediaExtractor();
+            FileInputStream in = null;
+            try
+            {
+                File file = new File(source.path);
+                in = new FileInputStream(file);
+                long length = (source.length > 0) ? source.length : file.length();
+                extractor.setDataSource(in.getFD(), 0, length);
+                int track = findVideoTrack(extractor);
+                if (track < 0)
+                {
+                    throw new IOException("No video track");
+                }
+                extractor.selectTrack(track);
+                MediaFormat format = extractor.getTrackFormat(track);
+                extractors.add(extractor);
+                formats.add(format);
+                offsets.add(duration);
+                opened.add(source);
+                metadataTracks.add(findTrack(extractor, LocationMetadata.MIME_TYPE));
+                duration += format.containsKey(MediaFormat.KEY_DURATION) ? format.getLong(MediaFormat.KEY_DURATION) : 0;
+            }
+            catch (IOException | RuntimeException e)
+            {
+                Log.e(TAG, "Could not open " + source.path + ", leaving out the segments before it", e);
+                extractor.release();
+                release();
+                formats.clear();
+                offsets.clear();
+                opened.clear();
+                metadataTracks.clear();
+                duration = 0;
+            }
+            finally
+            {
+                closeQuietly(in);
+            }
+        }
+    }
+
+    /**
+     * @return the length of the timeline, i.e. the combined duration of the segments (in
+     * microseconds)
+     */
+    public long getDuration()
+    {
+        return duration;
+    }
+
+    /**
+     * @return where the specified source starts on the timeline (in microseconds), or -1 if
+     * it couldn't be opened
+     */
+    public long getOffset(Source source)
+    {
+        int index = opened.indexOf(source);
+        return (index < 0) ? -1 : offsets.get(index);
+    }
+
+    /**
+     * Writes the part of the timeline between the specified times to a new file.
+     *
+     * @param startUs where the clip should start on the timeline (it actually starts on the
+     * key frame at or before it)
+     * @param endUs where the clip should end on the timeline
+     * @param outputPath the path of the clip file to create
+     * @param orientationHint the rotation (in degrees) players should apply to the clip
+     * @return the timing of the frames written to the clip
+     */
+    public FrameTiming remux(long startUs, long endUs, String outputPath, int orientationHint) throws IOException
+    {
+        FrameTiming timing = new FrameTiming();
+        MediaMuxer muxer = null;
+        int track = -1;
+        int metadataTrack = -1;
+        //MediaMuxer only writes metadata tracks since API 26, and a track without samples
+        //would keep the muxer from finishing the file
+        List<LocationSample> locations = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) ?
+            readLocations(startUs, endUs) : new ArrayList<LocationSample>();
+        MediaFormat trackFormat = null;
+        ByteBuffer buffer = null;
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        //the timeline position of the first sample, which the clip starts at 0 from
+        long baseUs = -1;
+        //the latest presentation time written so far, and up to which the segment being
+        //read overlaps the ones before it
+        long lastPts = -1;
+        long overlapPts = -1;
+        try
+        {
+            for (int i = 0; i < extractors.size(); i++)
+            {
+                MediaExtractor extractor = extractors.get(i);
+                MediaFormat format = formats.get(i);
+                long offset = offsets.get(i);
+                long end = (i + 1 < offsets.size()) ? offsets.get(i + 1) : duration;
+                //segments entirely outside the clip are skipped without reading them
+                if (end <= startUs && i + 1 < extractors.size())
+                {
+                    continue;
+                }
+                if (offset > endUs)
+                {
+                    break;
+                }
+                if (muxer == null)
+                {
+                    muxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+                    muxer.setOrientationHint(orientationHint);
+                    track = muxer.addTrack(format);
+                    if (!locations.isEmpty())
+                    {
+                        MediaFormat metadataFormat = new MediaFormat();
+                        metadataFormat.setString(MediaFormat.KEY_MIME, LocationMetadata.MIME_TYPE);
+                        metadataTrack = muxer.addTrack(metadataFormat);
+                    }
+                    muxer.start();
+                    trackFormat = format;
+                    int size = format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE) ?
+                        format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) : DEFAULT_SAMPLE_SIZE;
+                    buffer = ByteBuffer.allocate(size);
+                    //the clip has to start on a key frame
+                    extractor.seekTo(Math.max(0, startUs - offset), MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                }
+                else if (!sameCodecConfig(trackFormat, format))
+                {
+                    //the samples of a segment encoded differently can't go in the same track
+                    Log.w(TAG, "Codec config changed at " + opened.get(i).path + ", ending clip");
+                    break;
+                }
+                else
+                {
+                    overlapPts = lastPts;
+                }
+                while (true)
+                {
+                    long sampleTime = extractor.getSampleTime();
+                    if (sampleTime < 0 || offset + sampleTime > endUs)
+                    {
+                        break;
+                    }
+                    int size = extractor.readSampleData(buffer, 0);
+                    if (size < 0)
+                    {
+                        break;
+                    }
+                    if (baseUs < 0)
+                    {
+                        baseUs = offset + sampleTime;
+                    }
+                    long pts = offset + sampleTime - baseUs;
+                    boolean keyFrame = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+                    //segments recorded back to back may overlap by a frame; the next segment
+                    //is only written from a key frame past the end of the previous one, so
+                    //nothing is written twice or without the frame it depends on
+                    if (overlapPts >= 0 && (pts <= overlapPts || !keyFrame))
+                    {
+                        extractor.advance();
+                        continue;
+                    }
+                    overlapPts = -1;
+                    info.set(0, size, pts, keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                    muxer.writeSampleData(track, buffer, info);
+                    timing.onFrame(pts);
+                    lastPts = Math.max(lastPts, pts);
+                    extractor.advance();
+                }
+            }
+            if (muxer == null || lastPts < 0)
+            {
+                throw new IOException("Nothing to remux");
+            }
+            if (metadataTrack >= 0)
+            {
+                writeLocations(locations, muxer, metadataTrack, baseUs);
+            }
+        }
+        catch (RuntimeException e)
+        {
+            throw new IOException("Could not remux " + outputPath, e);
+        }
+        finally
+        {
+            if (muxer != null)
+            {
+                try
+                {
+                    if (lastPts >= 0)
+                    {
+                        muxer.stop();
+                    }
+                }
+                catch (IllegalStateException e)
+                {
+                    Log.e(TAG, "Could not finish " + outputPath, e);
+                }
+                muxer.release();
+            }
+        }
+        return timing;
+    }
+
+    /**
+     * Reads the location samples of the segments that fall within the clip, along with the
+     * last one before it (where the car was when the clip starts). The segments are opened
+     * again for this, with only their metadata track selected, so none of their video is
+     * read; the metadata track is small enough to be read from its start.
+     *
+     * @param startUs where the clip should start on the timeline
+     * @param endUs where the clip should end on the timeline
+     * @return the samples, oldest first, which is empty if the clip has no locations
+     */
+    private List<LocationSample> readLocations(long startUs, long endUs)
+    {
+        List<LocationSample> samples = new ArrayList<LocationSample>();
+        LocationSample lead = null;
+        for (int i = 0; i < opened.size(); i++)
+        {
+            long offset = offsets.get(i);
+            long end = (i + 1 < offsets.size()) ? offsets.get(i + 1) : duration;
+            if (metadataTracks.get(i) < 0 || (end <= startUs && i + 1 < opened.size()))
+            {
+                continue;
+            }
+            if (offset > endUs)
+            {
+                break;
+            }
+            Source source = opened.get(i);
+            MediaExtractor extractor = new MediaExtractor();
+            FileInputStream in = null;
+            try
+            {
+                File file = new File(source.path);
+                in = new FileInputStream(file);
+                extractor.setDataSource(in.getFD(), 0, (source.length > 0) ? source.length : file.length());
+                extractor.selectTrack(metadataTracks.get(i));
+                ByteBuffer buffer = ByteBuffer.allocate(LocationMetadata.SIZE * 4);
+                while (true)
+                {
+                    long sampleTime = extractor.getSampleTime();
+                    if (sampleTime < 0 || offset + sampleTime > endUs)
+                    {
+                        break;
+                    }
+                    buffer.clear();
+                    int size = extractor.readSampleData(buffer, 0);
+                    if (size < 0)
+                    {
+                        break;
+                    }
+                    buffer.position(0);
+                    buffer.limit(size);
+                    //samples without a location (recorded before the first fix) are left out
+                    if (LocationMetadata.decode(buffer) != null)
+                    {
+                        byte[] data = new byte[size];
+                        buffer.get(data);
+                        LocationSample sample = new LocationSample(offset + sampleTime, data);
+                        if (sample.timeUs < startUs)
+                        {
+                            lead = sample;
+                        }
+                        else
+                        {
+                            samples.add(sample);
+                        }
+                    }
+                    extractor.advance();
+                }
+            }
+            catch (IOException | RuntimeException e)
+            {
+                //the clip is still good without the locations of this segment
+                Log.e(TAG, "Could not read the locations of " + source.path, e);
+            }
+            finally
+            {
+                extractor.release();
+                closeQuietly(in);
+            }
+        }
+        if (lead != null)
+        {
+            samples.add(0, lead);
+        }
+        return samples;
+    }
+
+    /**
+     * Writes the location samples read by readLocations to the clip's metadata track.
+     *
+     * @param baseUs the timeline position the clip starts at
+     */
+    private static void writeLocations(List<LocationSample> samples, MediaMuxer muxer, int metadataTrack, long baseUs)
+    {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        long lastPts = -1;
+        for (LocationSample sample : samples)
+        {
+            //the sample before the clip is where it starts
+            long pts = Math.max(0, sample.timeUs - baseUs);
+            //and a sample at the same time as the one before it (where segments overlap)
+            //is left out
+            if (pts <= lastPts)
+            {
+                continue;
+            }
+            info.set(0, sample.data.length, pts, 0);
+            muxer.writeSampleData(metadataTrack, ByteBuffer.wrap(sample.data), info);
+            lastPts = pts;
+        }
+    }
+
+    /**
+     * A location sample of a segment, and where it is on the timeline.
+     */
+    private static class LocationSample
+    {
+        final long timeUs;
+        final byte[] data;
+
+        LocationSample(long timeUs, byte[] data)
+        {
+            this.timeUs = timeUs;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Closes the segments.
+     */
+    public void release()
+    {
+        for (MediaExtractor extractor : extractors)
+        {
+            extractor.release();
+        }
+        extractors.clear();
+    }
+
+    /**
+     * @return the index of the first track of the specified mime type, or -1 if there is none
+     */
+    static int findTrack(MediaExtractor extractor, String mimeType)
+    {
+        for (int i = 0; i < extractor.getTrackCount(); i++)
+        {
+            if (mimeType.equals(extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME)))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index of the first video track, or -1 if there is none
+     */
+    private static int findVideoTrack(MediaExtractor extractor)
+    {
+        for (int i = 0; i < extractor.getTrackCount(); i++)
+        {
+            String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("video/"))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return whether the samples of both formats can be written to the same track
+     */
+    private static boolean sameCodecConfig(MediaFormat a, MediaFormat b)
+    {
+        if (!a.getString(MediaFormat.KEY_MIME).equals(b.getString(MediaFormat.KEY_MIME)))
+        {
+            return false;
+        }
+        for (String key : new String[] {"csd-0", "csd-1"})
+        {
+            ByteBuffer csdA = a.containsKey(key) ? a.getByteBuffer(key) : null;
+            ByteBuffer csdB = b.containsKey(key) ? b.getByteBuffer(key) : null;
+            if (csdA == null ? csdB != null : !csdA.equals(csdB))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void closeQuietly(FileInputStream in)
+    {
+        if (in != null)
+        {
+            try
+            {
+                in.close();
+            }
+            catch (IOException e)
+            {
+                //nothing to do
+            }
+        }
+    }
+}
@@ -54,6 +54,14 @@ public class DeleteVideosFragment extends DialogFragment
                             }
                         }
                     }
+                    //thumbnails, proxies, stills and tracks go with their entries
+                    for (Video v : videos)
+                    {
+                        VideoThumbnails.delete(v, getActivity());
+                        VideoProxies.delete(v, getActivity());
+                        VideoStills.delete(v, getActivity());
+                        VideoTracks.delete(v, getActivity());
+                    }
                     //need to access database to delete video entries
                     SQLiteDatabase database = new VideoBaseHelper(getActivity()).getWritableDatabase();
                     VideoBaseHelper.removeVideos(videos, database);
@@ -0,0 +1,195 @@
+package com.aramco.carwatcher;
+
+import android.media.MediaFormat;
+
+/**
+ * The encoding parameters a CaptureBackend should record with.
+ */
+public class EncoderConfig
+{
+    //the mime type of the video codec
+    private String mimeType = MediaFormat.MIMETYPE_VIDEO_AVC;
+    private int width;
+    private int height;
+    private int bitRate;
+    private int frameRate;
+    //the interval (in seconds) between key frames
+    private int keyFrameInterval;
+    //the rotation (in degrees) players should apply to recorded files
+    private int orientationHint;
+    //once an output file gets close to this size or duration (in milliseconds), the backend
+    //asks for the next one (0 means no limit)
+    private long maxFileSize;
+    private long maxDuration;
+    //the codec profile and level the encoder should use (0 leaves it to the encoder)
+    private int profile;
+    private int level;
+    //the most frames per second the encoder should take from its input (0 takes them all)
+    private int maxInputFrameRate;
+    //the frames per second taken from the camera for a time-lapse, played back at frameRate
+    //(0 records in real time)
+    private double captureRate;
+    //the location samples per second written to the metadata track (0 writes no such track)
+    private int metadataRate;
+
+    /**
+     * Constructor taking all the required parameters.
+     *
+     * @param width the width of the recorded video
+     * @param height the height of the recorded video
+     * @param bitRate the target bit rate (in bits per second)
+     * @param frameRate the target frame rate
+     * @param keyFrameInterval the interval (in seconds) between key frames
+     * @param orientationHint the rotation (in degrees) players should apply
+     */
+    public EncoderConfig(int width, int height, int bitRate, int frameRate,
+            int keyFrameInterval, int orientationHint)
+    {
+        this.width = width;
+        this.height = height;
+        this.bitRate = bitRate;
+        this.frameRate = frameRate;
+        this.keyFrameInterval = keyFrameInterval;
+        this.orientationHint = orientationHint;
+    }
+
+    public String getMimeType()
+    {
+        return mimeType;
+    }
+
+    /**
+     * Sets the video codec, which should be one the backend supports (see supportsCodec).
+     *
+     * @param mimeType the mime type of the video codec
+     */
+    public void setMimeType(String mimeType)
+    {
+        this.mimeType = mimeType;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public int getBitRate()
+    {
+        return bitRate;
+    }
+
+    public int getFrameRate()
+    {
+        return frameRate;
+    }
+
+    public int getKeyFrameInterval()
+    {
+        return keyFrameInterval;
+    }
+
+    public int getOrientationHint()
+    {
+        return orientationHint;
+    }
+
+    public long getMaxFileSize()
+    {
+        return maxFileSize;
+    }
+
+    public void setMaxFileSize(long maxFileSize)
+    {
+        this.maxFileSize = maxFileSize;
+    }
+
+    public long getMaxDuration()
+    {
+        return maxDuration;
+    }
+
+    /**
+     * Sets how long an output file should last, for segmented recordings.
+     *
+     * @param maxDuration the maximum duration (in milliseconds), or 0 for no limit
+     */
+    public void setMaxDuration(long maxDuration)
+    {
+        this.maxDuration = maxDuration;
+    }
+
+    public int getProfile()
+    {
+        return profile;
+    }
+
+    public int getLevel()
+    {
+        return level;
+    }
+
+    /**
+     * Sets the codec profile and level, for backends that allow setting them.
+     *
+     * @param profile the codec profile (one of MediaCodecInfo.CodecProfileLevel), or 0
+     * @param level the codec level (one of MediaCodecInfo.CodecProfileLevel), or 0
+     */
+    public void setProfileLevel(int profile, int level)
+    {
+        this.profile = profile;
+        this.level = level;
+    }
+
+    public int getMaxInputFrameRate()
+    {
+        return maxInputFrameRate;
+    }
+
+    /**
+     * Makes the encoder drop frames coming in faster than the specified rate, for backends
+     * that allow it. This is how the frame rate is lowered while the camera keeps its own.
+     *
+     * @param maxInputFrameRate the most frames per second to encode, or 0 for no limit
+     */
+    public void setMaxInputFrameRate(int maxInputFrameRate)
+    {
+        this.maxInputFrameRate = maxInputFrameRate;
+    }
+
+    public double getCaptureRate()
+    {
+        return captureRate;
+    }
+
+    /**
+     * Makes the backend record a time-lapse: frames are taken at the specified rate and
+     * played back at the frame rate.
+     *
+     * @param captureRate the frames per second to take, or 0 to record in real time
+     */
+    public void setCaptureRate(double captureRate)
+    {
+        this.captureRate = captureRate;
+    }
+
+    public int getMetadataRate()
+    {
+        return metadataRate;
+    }
+
+    /**
+     * Makes the backend write a timed metadata track of locations (see LocationMetadata) next
+     * to the video, for backends that allow it.
+     *
+     * @param metadataRate the location samples per second, or 0 for no metadata track
+     */
+    public void setMetadataRate(int metadataRate)
+    {
+        this.metadataRate = metadataRate;
+    }
+}
@@ -0,0 +1,81 @@
+package com.aramco.carwatcher;
+
+/**
+ * The recording parameters chosen for this device by EncoderProfileResolver.
+ */
+public class EncoderProfile
+{
+    private String mimeType;
+    private int width;
+    private int height;
+    private int bitRate;
+    private int frameRate;
+    //the codec profile and level to ask the encoder for (0 leaves it to the encoder)
+    private int profile;
+    private int level;
+
+    /**
+     * Constructor taking all the required parameters.
+     *
+     * @param mimeType the mime type of the video codec
+     * @param width the width of the recorded video
+     * @param height the height of the recorded video
+     * @param bitRate the target bit rate (in bits per second)
+     * @param frameRate the target frame rate
+     * @param profile the codec profile (one of MediaCodecInfo.CodecProfileLevel), or 0
+     * @param level the codec level (one of MediaCodecInfo.CodecProfileLevel), or 0
+     */
+    public EncoderProfile(String mimeType, int width, int height, int bitRate, int frameRate,
+            int profile, int level)
+    {
+        this.mimeType = mimeType;
+        this.width = width;
+        this.height = height;
+        this.bitRate = bitRate;
+        this.frameRate = frameRate;
+        this.profile = profile;
+        this.level = level;
+    }
+
+    public String getMimeType()
+    {
+        return mimeType;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public int getBitRate()
+    {
+        return bitRate;
+    }
+
+    public int getFrameRate()
+    {
+        return frameRate;
+    }
+
+    public int getProfile()
+    {
+        return profile;
+    }
+
+    public int getLevel()
+    {
+        return level;
+    }
+
+    @Override
+    public String toString()
+    {
+        return mimeType + " " + width + "x" + height + " " + bitRate + "bps " + frameRate + "fps" +
+            " profile " + profile + " level " + level;
+    }
+}
@@ -0,0 +1,470 @@
+package com.aramco.carwatcher;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.CamcorderProfile;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.util.Log;
+import android.util.Size;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.aramco.carwatcher.SettingsActivity.QUALITY_HIGH;
+import static com.aramco.carwatcher.SettingsActivity.QUALITY_SAVER;
+
+/**
+ * Picks the recording resolution, bit rate, frame rate and codec level that suit this device,
+ * based on what the camera (StreamConfigurationMap), the manufacturer's tuning (CamcorderProfile)
+ * and the hardware encoder (MediaCodecInfo) support. Probing all of that is slow, so the
+ * decision for each codec and quality tier is kept in memory and in its own shared prefs file,
+ * and only redone when the system is updated.
+ */
+public class EncoderProfileResolver
+{
+    private static final String TAG = "EncoderProfileResolver";
+    private static final String PROFILES_FILE = "CarWatcherEncoderProfiles";
+    private static final String FINGERPRINT_KEY = "FINGERPRINT";
+    //changed whenever the way profiles are worked out does, so the saved ones are probed again
+    private static final int PROBE_VERSION = 2;
+    public static final String MIME_AVC = MediaFormat.MIMETYPE_VIDEO_AVC;
+    public static final String MIME_HEVC = MediaFormat.MIMETYPE_VIDEO_HEVC;
+    //the quality of the low bit rate proxy recorded next to a video (not a setting)
+    public static final int QUALITY_PROXY = -1;
+    //the bit rate of the proxy, small enough to send over mobile data
+    private static final int PROXY_BIT_RATE = 1000000;
+    //HEVC needs a little over half the bit rate of AVC for the same quality
+    private static final double HEVC_BIT_RATE_FACTOR = 0.55;
+    //the frame rate we aim for, if everything supports it
+    private static final int TARGET_FRAME_RATE = 30;
+    //the bits per pixel used to work out a bit rate when there is no camcorder profile
+    private static final double BITS_PER_PIXEL = 0.15;
+    //the limits of the AVC levels (H.264 table A-1): the level, the macroblocks per second, the
+    //macroblocks per frame and the bit rate (in bits per second, for the Baseline and Main
+    //profiles; High allows a quarter more)
+    private static final long[][] AVC_LEVELS = {
+        {MediaCodecInfo.CodecProfileLevel.AVCLevel1, 1485, 99, 64000},
+        {MediaCodecInfo.CodecProfileLevel.AVCLevel1b, 1485, 99, 128000},
+        {MediaCodecInfo.CodecProfileLevel.AVCLevel11, 3000, 396, 192000},
+        {MediaCodecInfo.CodecProfileLevel.AVCLevel12, 6000, 396, 384000},
+        {MediaCodecInfo.CodecProfileLevel.AVCLevel13, 11880, 396, 768000},
+        {MediaCodecInfo.CodecProfileLevel.AVCLevel2, 11880, 396, 2000000},
+        {MediaCodecInfo.CodecProfileLevel.AVCLevel21, 19800, 792, 4000000},
+        {MediaCodecInfo.CodecProfileLevel.AVCLevel22, 20250, 1620, 4000000},
+        {MediaCodecInfo.CodecProfileLevel.AVCLevel3, 40500, 1620, 10000000},
+        {MediaCodecInfo.CodecProfileLevel.AVCLevel31, 108000, 3600, 14000000},
+        {MediaCodecInfo.CodecProfileLevel.AVCLevel32, 216000, 5120, 20000000},
+        {MediaCodecInfo.CodecProfileLevel.AVCLevel4, 245760, 8192, 20000000},
+        {MediaCodecInfo.CodecProfileLevel.AVCLevel41, 245760, 8192, 50000000},
+        {MediaCodecInfo.CodecProfileLevel.AVCLevel42, 522240, 8704, 50000000},
+        {MediaCodecInfo.CodecProfileLevel.AVCLevel5, 589824, 22080, 135000000},
+        {MediaCodecInfo.CodecProfileLevel.AVCLevel51, 983040, 36864, 240000000},
+        {MediaCodecInfo.CodecProfileLevel.AVCLevel52, 2073600, 36864, 240000000}
+    };
+    //the limits of the HEVC Main tier levels (H.265 tables A.8 and A.9): the level, the luma
+    //samples per second, the luma samples per frame and the bit rate (in bits per second)
+    private static final long[][] HEVC_LEVELS = {
+        {MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel1, 552960L, 36864, 128000},
+        {MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel2, 3686400L, 122880, 1500000},
+        {MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel21, 7372800L, 245760, 3000000},
+        {MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel3, 16588800L, 552960, 6000000},
+        {MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel31, 33177600L, 983040, 10000000},
+        {MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel4, 66846720L, 2228224, 12000000},
+        {MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel41, 133693440L, 2228224, 20000000},
+        {MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel5, 267386880L, 8912896, 25000000},
+        {MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel51, 534773760L, 8912896, 40000000},
+        {MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel52, 1069547520L, 8912896, 60000000},
+        {MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel6, 1069547520L, 35651584, 60000000},
+        {MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel61, 2139095040L, 35651584, 120000000},
+        {MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel62, 4278190080L, 35651584, 240000000}
+    };
+    //the profiles resolved during this process, by codec and quality tier
+    private static final Map<String, EncoderProfile> resolved = new HashMap<String, EncoderProfile>();
+    //whether a decoder is available for each mime type asked about so far
+    private static final Map<String, Boolean> decoders = new HashMap<String, Boolean>();
+
+    /**
+     * Gets the encoder profile for the specified codec and quality tier, probing the device the
+     * first time it's needed. HEVC is only used with a hardware encoder; without one, the AVC
+     * profile is returned instead.
+     *
+     * @param context the application context
+     * @param mimeType the codec to record with (MIME_AVC or MIME_HEVC)
+     * @param quality the quality tier (one of the QUALITY_ constants in SettingsActivity)
+     * @return the encoder profile to record with
+     */
+    public static synchronized EncoderProfile resolve(Context context, String mimeType, int quality)
+    {
+        String key = mimeType + "_" + quality;
+        if (resolved.containsKey(key))
+        {
+            return resolved.get(key);
+        }
+        SharedPreferences profiles = context.getSharedPreferences(PROFILES_FILE, Context.MODE_PRIVATE);
+        //a system update can change what the encoder supports
+        String fingerprint = Build.FINGERPRINT + "/" + PROBE_VERSION;
+        if (!fingerprint.equals(profiles.getString(FINGERPRINT_KEY, null)))
+        {
+            profiles.edit().clear().putString(FINGERPRINT_KEY, fingerprint).commit();
+        }
+        EncoderProfile profile = load(profiles, key);
+        if (profile == null)
+        {
+            MediaCodecInfo encoder = getEncoder(mimeType);
+            if (!mimeType.equals(MIME_AVC) && (encoder == null || isSoftwareCodec(encoder)))
+            {
+                //software encoders are way too slow to record with
+                Log.i(TAG, "No hardware encoder for " + mimeType + ", using " + MIME_AVC);
+                profile = resolve(context, MIME_AVC, quality);
+            }
+            else
+            {
+                MediaCodecInfo.CodecCapabilities capabilities =
+                    (encoder != null) ? encoder.getCapabilitiesForType(mimeType) : null;
+                profile = probe(context, mimeType, capabilities, quality);
+                Log.i(TAG, "Resolved encoder profile for quality " + quality + ": " + profile);
+            }
+            save(profiles, key, profile);
+        }
+        resolved.put(key, profile);
+        return profile;
+    }
+
+    /**
+     * Checks if this device can decode the specified codec, e.g. to show thumbnails of videos
+     * recorded with it.
+     *
+     * @param mimeType the mime type of the codec
+     * @return true if there is a decoder for mimeType
+     */
+    public static synchronized boolean hasDecoder(String mimeType)
+    {
+        Boolean hasDecoder = decoders.get(mimeType);
+        if (hasDecoder == null)
+        {
+            hasDecoder = false;
+            MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+            for (MediaCodecInfo info : codecList.getCodecInfos())
+            {
+                for (String type : info.getSupportedTypes())
+                {
+                    if (!info.isEncoder() && type.equalsIgnoreCase(mimeType))
+                    {
+                        hasDecoder = true;
+                    }
+                }
+            }
+            decoders.put(mimeType, hasDecoder);
+        }
+        return hasDecoder;
+    }
+
+    /**
+     * Works out the encoder profile for the specified codec and quality tier from the
+     * capabilities of the camera and encoder.
+     */
+    private static EncoderProfile probe(Context context, String mimeType,
+            MediaCodecInfo.CodecCapabilities capabilities, int quality)
+    {
+        //the proxy records 480p, the storage saver tier 720p, the others 1080p (if possible)
+        int targetHeight = (quality == QUALITY_PROXY) ? 480 : (quality == QUALITY_SAVER) ? 720 : 1080;
+        //the share of the manufacturer's (AVC) bit rate used by each tier
+        double bitRateFactor = (quality == QUALITY_HIGH) ? 1.0 : (quality == QUALITY_SAVER) ? 0.5 : 0.75;
+        if (mimeType.equals(MIME_HEVC))
+        {
+            bitRateFactor *= HEVC_BIT_RATE_FACTOR;
+        }
+        MediaCodecInfo.VideoCapabilities videoCapabilities =
+            (capabilities != null) ? capabilities.getVideoCapabilities() : null;
+
+        Size[] sizes = null;
+        StreamConfigurationMap map = null;
+        int cameraId = 0;
+        CameraManager manager = (CameraManager)context.getSystemService(Context.CAMERA_SERVICE);
+        try
+        {
+            //CaptureService always records with the first camera
+            String id = manager.getCameraIdList()[0];
+            CameraCharacteristics characteristics = manager.getCameraCharacteristics(id);
+            map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            sizes = (map != null) ? map.getOutputSizes(MediaRecorder.class) : null;
+            cameraId = Integer.parseInt(id);
+        }
+        catch (CameraAccessException | NumberFormatException e)
+        {
+            e.printStackTrace();
+        }
+        if (sizes == null || sizes.length == 0)
+        {
+            if (quality == QUALITY_PROXY)
+            {
+                return new EncoderProfile(mimeType, 640, 480, PROXY_BIT_RATE, TARGET_FRAME_RATE, 0, 0);
+            }
+            return new EncoderProfile(mimeType, 1280, 720, (int)(10000000 * bitRateFactor), TARGET_FRAME_RATE, 0, 0);
+        }
+
+        //the camcorder profile holds the manufacturer's tuned settings for its size
+        int camcorderQuality = (targetHeight == 480) ? CamcorderProfile.QUALITY_480P :
+            (targetHeight == 720) ? CamcorderProfile.QUALITY_720P : CamcorderProfile.QUALITY_1080P;
+        CamcorderProfile camcorderProfile = null;
+        if (CamcorderProfile.hasProfile(cameraId, camcorderQuality))
+        {
+            camcorderProfile = CamcorderProfile.get(cameraId, camcorderQuality);
+        }
+        Size size = null;
+        if (camcorderProfile != null)
+        {
+            Size profileSize = new Size(camcorderProfile.videoFrameWidth, camcorderProfile.videoFrameHeight);
+            for (Size s : sizes)
+            {
+                if (s.equals(profileSize) && isSizeSupported(videoCapabilities, s))
+                {
+                    size = s;
+                }
+            }
+        }
+        if (size == null)
+        {
+            //the profile is of no use if its size can't be recorded
+            camcorderProfile = null;
+            size = chooseVideoSize(sizes, targetHeight, videoCapabilities);
+        }
+
+        //the frame rate is limited by both the camera and the encoder at the chosen size
+        int frameRate = TARGET_FRAME_RATE;
+        if (camcorderProfile != null)
+        {
+            frameRate = Math.min(frameRate, camcorderProfile.videoFrameRate);
+        }
+        long minFrameDuration = map.getOutputMinFrameDuration(MediaRecorder.class, size);
+        if (minFrameDuration > 0)
+        {
+            frameRate = (int)Math.min(frameRate, 1000000000L / minFrameDuration);
+        }
+        if (videoCapabilities != null)
+        {
+            try
+            {
+                double maxFrameRate = videoCapabilities.getSupportedFrameRatesFor(size.getWidth(), size.getHeight()).getUpper();
+                frameRate = (int)Math.min(frameRate, maxFrameRate);
+            }
+            catch (IllegalArgumentException e)
+            {
+                //size is not supported by the encoder, keep the camera's frame rate
+            }
+        }
+
+        //use the manufacturer's bit rate if there is one, otherwise scale with the pixel rate
+        double baseBitRate = (camcorderProfile != null) ? camcorderProfile.videoBitRate :
+            size.getWidth() * size.getHeight() * frameRate * BITS_PER_PIXEL;
+        int bitRate = (quality == QUALITY_PROXY) ? PROXY_BIT_RATE : (int)(baseBitRate * bitRateFactor);
+        if (videoCapabilities != null)
+        {
+            bitRate = videoCapabilities.getBitrateRange().clamp(bitRate);
+        }
+
+        int profile = 0;
+        int level = 0;
+        if (capabilities != null)
+        {
+            profile = chooseProfile(mimeType, capabilities.profileLevels);
+            int maxLevel = 0;
+            for (MediaCodecInfo.CodecProfileLevel profileLevel : capabilities.profileLevels)
+            {
+                if (profileLevel.profile == profile)
+                {
+                    maxLevel = Math.max(maxLevel, profileLevel.level);
+                }
+            }
+            level = chooseLevel(mimeType, profile, maxLevel, size.getWidth(), size.getHeight(), frameRate, bitRate);
+        }
+        return new EncoderProfile(mimeType, size.getWidth(), size.getHeight(), bitRate, frameRate, profile, level);
+    }
+
+    /**
+     * Choose the largest video size not taller than the target height, preferring a 16:9
+     * aspect ratio and sizes supported by the encoder.
+     *
+     * @param choices the list of available sizes
+     * @param targetHeight the maximum height of the video
+     * @param videoCapabilities the capabilities of the encoder, or null if unknown
+     * @return the video size
+     */
+    private static Size chooseVideoSize(Size[] choices, int targetHeight,
+            MediaCodecInfo.VideoCapabilities videoCapabilities)
+    {
+        Size best = null;
+        Size bestWide = null;
+        for (Size size : choices)
+        {
+            if (size.getHeight() > targetHeight || !isSizeSupported(videoCapabilities, size))
+            {
+                continue;
+            }
+            int area = size.getWidth() * size.getHeight();
+            if (best == null || area > best.getWidth() * best.getHeight())
+            {
+                best = size;
+            }
+            if (size.getWidth() * 9 == size.getHeight() * 16 &&
+                    (bestWide == null || area > bestWide.getWidth() * bestWide.getHeight()))
+            {
+                bestWide = size;
+            }
+        }
+        if (bestWide != null)
+        {
+            return bestWide;
+        }
+        if (best != null)
+        {
+            return best;
+        }
+        Log.e(TAG, "Couldn't find a suitable video size");
+        return choices[choices.length - 1];
+    }
+
+    private static boolean isSizeSupported(MediaCodecInfo.VideoCapabilities videoCapabilities, Size size)
+    {
+        return videoCapabilities == null || videoCapabilities.isSizeSupported(size.getWidth(), size.getHeight());
+    }
+
+    /**
+     * Picks the most efficient 8-bit profile the encoder supports for the specified codec.
+     *
+     * @return the chosen profile, or 0 if the encoder doesn't list any known profile
+     */
+    private static int chooseProfile(String mimeType, MediaCodecInfo.CodecProfileLevel[] profileLevels)
+    {
+        int[] preferred;
+        if (mimeType.equals(MIME_HEVC))
+        {
+            preferred = new int[] {MediaCodecInfo.CodecProfileLevel.HEVCProfileMain};
+        }
+        else
+        {
+            preferred = new int[] {
+                MediaCodecInfo.CodecProfileLevel.AVCProfileHigh,
+                MediaCodecInfo.CodecProfileLevel.AVCProfileMain,
+                MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline
+            };
+        }
+        for (int profile : preferred)
+        {
+            for (MediaCodecInfo.CodecProfileLevel profileLevel : profileLevels)
+            {
+                if (profileLevel.profile == profile)
+                {
+                    return profile;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Picks the lowest level whose limits cover the stream, so the encoder doesn't size its
+     * buffers (and decoders don't have to be able to play the file) for the maximum level it
+     * supports.
+     *
+     * @param maxLevel the highest level the encoder supports for the profile
+     * @return the level, or maxLevel if none of the levels up to it covers the stream
+     */
+    static int chooseLevel(String mimeType, int profile, int maxLevel, int width, int height, int frameRate, int bitRate)
+    {
+        boolean hevc = mimeType.equals(MIME_HEVC);
+        long[][] levels = hevc ? HEVC_LEVELS : AVC_LEVELS;
+        //AVC limits are in 16x16 macroblocks, HEVC ones in luma samples
+        long frameSize = hevc ? (long)width * height : (long)((width + 15) / 16) * ((height + 15) / 16);
+        double bitRateFactor = (profile == MediaCodecInfo.CodecProfileLevel.AVCProfileHigh && !hevc) ? 1.25 : 1;
+        for (long[] limits : levels)
+        {
+            if (limits[0] > maxLevel)
+            {
+                break;
+            }
+            if (frameSize <= limits[2] && frameSize * frameRate <= limits[1] && bitRate <= limits[3] * bitRateFactor)
+            {
+                return (int)limits[0];
+            }
+        }
+        return maxLevel;
+    }
+
+    /**
+     * Finds the encoder used for the specified mime type, preferring hardware encoders over
+     * the software ones that ship with Android.
+     *
+     * @return the encoder, or null if there is no encoder for mimeType
+     */
+    static MediaCodecInfo getEncoder(String mimeType)
+    {
+        MediaCodecInfo software = null;
+        MediaCodecList codecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        for (MediaCodecInfo info : codecList.getCodecInfos())
+        {
+            if (!info.isEncoder())
+            {
+                continue;
+            }
+            for (String type : info.getSupportedTypes())
+            {
+                if (!type.equalsIgnoreCase(mimeType))
+                {
+                    continue;
+                }
+                if (!isSoftwareCodec(info))
+                {
+                    return info;
+                }
+                software = info;
+            }
+        }
+        return software;
+    }
+
+    static boolean isSoftwareCodec(MediaCodecInfo info)
+    {
+        String name = info.getName();
+        return name.startsWith("OMX.google.") || name.startsWith("c2.android.");
+    }
+
+    private static EncoderProfile load(SharedPreferences profiles, String key)
+    {
+        String prefix = key + "_";
+        String mimeType = profiles.getString(prefix + "MIME_TYPE", null);
+        if (mimeType == null)
+        {
+            return null;
+        }
+        return new EncoderProfile(mimeType,
+                profiles.getInt(prefix + "WIDTH", 0),
+                profiles.getInt(prefix + "HEIGHT", 0),
+                profiles.getInt(prefix + "BIT_RATE", 0),
+                profiles.getInt(prefix + "FRAME_RATE", 0),
+                profiles.getInt(prefix + "PROFILE", 0),
+                profiles.getInt(prefix + "LEVEL", 0));
+    }
+
+    private static void save(SharedPreferences profiles, String key, EncoderProfile profile)
+    {
+        String prefix = key + "_";
+        profiles.edit()
+            .putString(prefix + "MIME_TYPE", profile.getMimeType())
+            .putInt(prefix + "WIDTH", profile.getWidth())
+            .putInt(prefix + "HEIGHT", profile.getHeight())
+            .putInt(prefix + "BIT_RATE", profile.getBitRate())
+            .putInt(prefix + "FRAME_RATE", profile.getFrameRate())
+            .putInt(prefix + "PROFILE", profile.getProfile())
+            .putInt(prefix + "LEVEL", profile.getLevel())
+            .commit();
+    }
+}
@@ -0,0 +1,54 @@
+package com.aramco.carwatcher;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+import io.flic.lib.FlicBroadcastReceiver;
+import io.flic.lib.FlicButton;
+import io.flic.lib.FlicManager;
+
+/**
+ * Receives the events of a grabbed Flic button: a click starts/stops a capture, like the
+ * intent handled by CaptureReceiver, and a hold takes a still from the running capture.
+ */
+public class FlicReceiver extends FlicBroadcastReceiver
+{
+    private static final String TAG = "FlicReceiver";
+
+    /**
+     * Sets the credentials CarWatcher talks to the Flic app with.
+     */
+    public static void setAppCredentials()
+    {
+        FlicManager.setAppCredentials("5ae200b0-ff5e-4ea8-95bb-1cda697a3af6",
+                "ed95527e-0ce0-440f-a097-2c6dbd0493d8", "CarWatcher");
+    }
+
+    @Override
+    protected void onRequestAppCredentials(Context context)
+    {
+        setAppCredentials();
+    }
+
+    @Override
+    public void onButtonClickOrHold(Context context, FlicButton button, boolean wasQueued, int timeDiff,
+            boolean isClick, boolean isHold)
+    {
+        Log.i(TAG, "Button " + (isHold ? "held" : "clicked") + (wasQueued ? " (queued)" : ""));
+        //a still is only worth taking of what's in front of the camera right now
+        if (isHold && wasQueued)
+        {
+            return;
+        }
+        Intent captureIntent = isHold ? CaptureService.newStillIntent(context) : CaptureService.newIntent(context, false);
+        //let the capture trace start from the moment the button was pressed
+        long now = SystemClock.elapsedRealtimeNanos();
+        captureIntent.putExtra(CaptureService.EXTRA_PRESS_TIME, now - TimeUnit.SECONDS.toNanos(timeDiff));
+        captureIntent.putExtra(CaptureService.EXTRA_RECEIVE_TIME, now);
+        context.startService(captureIntent);
+    }
+}
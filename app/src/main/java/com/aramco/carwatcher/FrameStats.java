@@ -0,0 +1,302 @@
+package com.aramco.carwatcher;
+
+/**
+ * Keeps histograms of how steadily the camera delivers frames: the time between the sensor
+ * timestamps of consecutive frames, and the exposure time of every frame. A frame that comes
+ * more than LATE_PERCENT of the expected interval after the one before it is late, and the
+ * frames that should have come in between are counted as dropped. Captures the camera failed
+ * are counted on their own, and so are the cuts between the segments of a continuous capture
+ * with the largest gap one of them left (see SegmentGapMeter).
+ *
+ * The buckets are fixed and allocated up front, so counting a frame allocates nothing. The
+ * stats go with a saved video as a short string (see encode and decode).
+ */
+public class FrameStats
+{
+    //the upper bounds (in milliseconds) of the frame interval buckets; the last bucket takes
+    //everything longer
+    static final int[] INTERVAL_BOUNDS = {20, 30, 37, 45, 60, 100, 200};
+    //the upper bounds (in milliseconds) of the exposure time buckets
+    static final int[] EXPOSURE_BOUNDS = {1, 2, 4, 8, 16, 33, 66};
+    //a frame that comes later than this (in percent of the expected interval) is late
+    static final int LATE_PERCENT = 150;
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    private final int[] intervals = new int[INTERVAL_BOUNDS.length + 1];
+    private final int[] exposures = new int[EXPOSURE_BOUNDS.length + 1];
+    //the time between two frames at the expected frame rate (in nanoseconds)
+    private long expectedNanos;
+    //the timestamp of the last frame, -1 if the next frame has nothing to be compared with
+    private long lastTimestamp = -1;
+    private int frameCount = 0;
+    private int lateFrames = 0;
+    private int droppedFrames = 0;
+    private int failedFrames = 0;
+    private long maxIntervalNanos = 0;
+    private int segmentCuts = 0;
+    private int maxSegmentGap = 0;
+
+    /**
+     * @param frameRate the frame rate the camera is expected to run at
+     */
+    public FrameStats(int frameRate)
+    {
+        reset(frameRate);
+    }
+
+    /**
+     * Starts over.
+     *
+     * @param frameRate the frame rate the camera is expected to run at
+     */
+    public synchronized void reset(int frameRate)
+    {
+        expectedNanos = 1000000000L / Math.max(1, frameRate);
+        lastTimestamp = -1;
+        frameCount = 0;
+        lateFrames = 0;
+        droppedFrames = 0;
+        failedFrames = 0;
+        maxIntervalNanos = 0;
+        segmentCuts = 0;
+        maxSegmentGap = 0;
+        for (int i = 0; i < intervals.length; i++)
+        {
+            intervals[i] = 0;
+        }
+        for (int i = 0; i < exposures.length; i++)
+        {
+            exposures[i] = 0;
+        }
+    }
+
+    /**
+     * Called when the frames stop on purpose (e.g. the session is replaced), so the next frame
+     * isn't taken as a late one.
+     */
+    public synchronized void markBoundary()
+    {
+        lastTimestamp = -1;
+    }
+
+    /**
+     * Called for every frame the camera starts to capture.
+     *
+     * @param timestamp the sensor timestamp of the frame (in nanoseconds)
+     */
+    public synchronized void onFrame(long timestamp)
+    {
+        frameCount++;
+        long last = lastTimestamp;
+        lastTimestamp = timestamp;
+        if (last < 0 || timestamp <= last)
+        {
+            return;
+        }
+        long interval = timestamp - last;
+        intervals[getBucket(interval, INTERVAL_BOUNDS)]++;
+        maxIntervalNanos = Math.max(maxIntervalNanos, interval);
+        if (interval * 100 > expectedNanos * LATE_PERCENT)
+        {
+            lateFrames++;
+            //the frames that would have fit in between
+            droppedFrames += (int)Math.max(0, (interval + expectedNanos / 2) / expectedNanos - 1);
+        }
+    }
+
+    /**
+     * Called with the exposure time of every completed frame.
+     *
+     * @param exposureNanos the exposure time (in nanoseconds)
+     */
+    public synchronized void onExposure(long exposureNanos)
+    {
+        exposures[getBucket(exposureNanos, EXPOSURE_BOUNDS)]++;
+    }
+
+    /**
+     * Called for every capture the camera failed to deliver.
+     */
+    public synchronized void onFailure()
+    {
+        failedFrames++;
+    }
+
+    /**
+     * Called for every cut between two segments that was measured.
+     *
+     * @param gapFrames the number of frames missing at the cut
+     */
+    public synchronized void onSegmentGap(int gapFrames)
+    {
+        segmentCuts++;
+        maxSegmentGap = Math.max(maxSegmentGap, gapFrames);
+    }
+
+    private static int getBucket(long nanos, int[] bounds)
+    {
+        int bucket = 0;
+        while (bucket < bounds.length && nanos >= bounds[bucket] * NANOS_PER_MILLI)
+        {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    public synchronized int getFrameCount()
+    {
+        return frameCount;
+    }
+
+    public synchronized int getLateFrames()
+    {
+        return lateFrames;
+    }
+
+    public synchronized int getDroppedFrames()
+    {
+        return droppedFrames;
+    }
+
+    public synchronized int getFailedFrames()
+    {
+        return failedFrames;
+    }
+
+    public synchronized long getMaxIntervalMillis()
+    {
+        return maxIntervalNanos / NANOS_PER_MILLI;
+    }
+
+    public synchronized int getSegmentCuts()
+    {
+        return segmentCuts;
+    }
+
+    /**
+     * @return the most frames missing at one of the segment cuts
+     */
+    public synchronized int getMaxSegmentGap()
+    {
+        return maxSegmentGap;
+    }
+
+    /**
+     * @return the number of frame intervals in the specified bucket (see INTERVAL_BOUNDS)
+     */
+    public synchronized int getIntervalCount(int bucket)
+    {
+        return intervals[bucket];
+    }
+
+    /**
+     * @return the number of frames whose exposure falls in the specified bucket (see
+     * EXPOSURE_BOUNDS)
+     */
+    public synchronized int getExposureCount(int bucket)
+    {
+        return exposures[bucket];
+    }
+
+    /**
+     * @return the stats as a string,
+     * "frames,late,dropped,failed,maxIntervalMs,segmentCuts,maxSegmentGap;intervals;exposures"
+     * with the bucket counts separated by commas
+     */
+    public synchronized String encode()
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append(frameCount).append(',').append(lateFrames).append(',').append(droppedFrames)
+            .append(',').append(failedFrames).append(',').append(getMaxIntervalMillis())
+            .append(',').append(segmentCuts).append(',').append(maxSegmentGap);
+        append(builder, intervals);
+        append(builder, exposures);
+        return builder.toString();
+    }
+
+    private static void append(StringBuilder builder, int[] counts)
+    {
+        builder.append(';');
+        for (int i = 0; i < counts.length; i++)
+        {
+            if (i > 0)
+            {
+                builder.append(',');
+            }
+            builder.append(counts[i]);
+        }
+    }
+
+    /**
+     * Reads stats written by encode.
+     *
+     * @return the stats, or null if there are none (e.g. an older video) or they can't be read
+     */
+    public static FrameStats decode(String encoded)
+    {
+        if (encoded == null || encoded.isEmpty())
+        {
+            return null;
+        }
+        String[] parts = encoded.split(";");
+        if (parts.length != 3)
+        {
+            return null;
+        }
+        try
+        {
+            FrameStats stats = new FrameStats(1);
+            String[] totals = parts[0].split(",");
+            //videos saved before the segment cuts were counted have 5 totals
+            if ((totals.length != 5 && totals.length != 7) || !parse(parts[1], stats.intervals) || !parse(parts[2], stats.exposures))
+            {
+                return null;
+            }
+            stats.frameCount = Integer.parseInt(totals[0]);
+            stats.lateFrames = Integer.parseInt(totals[1]);
+            stats.droppedFrames = Integer.parseInt(totals[2]);
+            stats.failedFrames = Integer.parseInt(totals[3]);
+            stats.maxIntervalNanos = Long.parseLong(totals[4]) * NANOS_PER_MILLI;
+            if (totals.length == 7)
+            {
+                stats.segmentCuts = Integer.parseInt(totals[5]);
+                stats.maxSegmentGap = Integer.parseInt(totals[6]);
+            }
+            return stats;
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    private static boolean parse(String part, int[] counts)
+    {
+        String[] values = part.split(",");
+        if (values.length != counts.length)
+        {
+            return false;
+        }
+        for (int i = 0; i < counts.length; i++)
+        {
+            counts[i] = Integer.parseInt(values[i]);
+        }
+        return true;
+    }
+
+    /**
+     * @return the range of the specified bucket, e.g. "20-30 ms"
+     */
+    public static String getBucketLabel(int bucket, int[] bounds)
+    {
+        if (bucket == 0)
+        {
+            return "<" + bounds[0] + " ms";
+        }
+        if (bucket == bounds.length)
+        {
+            return ">=" + bounds[bounds.length - 1] + " ms";
+        }
+        return bounds[bucket - 1] + "-" + bounds[bucket] + " ms";
+    }
+}
@@ -0,0 +1,79 @@
+package com.aramco.carwatcher;
+
+/**
+ * Keeps track of the frames that go into a recording, from their timestamps: how many there
+ * are, how long they last and the frame rate they were actually recorded at. This way the
+ * timing of a clip is known as soon as it's done, without reading the file back.
+ */
+public class FrameTiming
+{
+    //timestamps of the first and last frames (in microseconds), -1 before the first frame;
+    //frames may come in decode order, so these are the earliest and latest ones
+    private long firstTimeUs = -1;
+    private long lastTimeUs = -1;
+    private int frameCount = 0;
+
+    /**
+     * Called for every frame of the recording.
+     *
+     * @param timeUs the timestamp of the frame in microseconds
+     */
+    public synchronized void onFrame(long timeUs)
+    {
+        if (firstTimeUs < 0 || timeUs < firstTimeUs)
+        {
+            firstTimeUs = timeUs;
+        }
+        lastTimeUs = Math.max(lastTimeUs, timeUs);
+        frameCount++;
+    }
+
+    /**
+     * Starts over, e.g. when a new segment starts.
+     */
+    public synchronized void reset()
+    {
+        firstTimeUs = -1;
+        lastTimeUs = -1;
+        frameCount = 0;
+    }
+
+    public synchronized int getFrameCount()
+    {
+        return frameCount;
+    }
+
+    /**
+     * @return how far into the recording the last frame is (in microseconds), i.e. where the
+     * recording is at right now
+     */
+    public synchronized long getMediaTimeUs()
+    {
+        return (frameCount == 0) ? 0 : lastTimeUs - firstTimeUs;
+    }
+
+    /**
+     * @return the duration of the frames in milliseconds; the last frame counts for as long
+     * as an average frame
+     */
+    public synchronized long getDurationMillis()
+    {
+        if (frameCount < 2)
+        {
+            return 0;
+        }
+        return (lastTimeUs - firstTimeUs) * frameCount / (frameCount - 1) / 1000;
+    }
+
+    /**
+     * @return the average frame rate, or 0 if there are not enough frames to tell
+     */
+    public synchronized float getFrameRate()
+    {
+        if (frameCount < 2 || lastTimeUs == firstTimeUs)
+        {
+            return 0;
+        }
+        return (frameCount - 1) * 1000000f / (lastTimeUs - firstTimeUs);
+    }
+}
@@ -0,0 +1,286 @@
+package com.aramco.carwatcher;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * The path a video was recorded along, as location samples (time, latitude, longitude, speed)
+ * packed into a byte array. Every field of a sample is stored as the difference from the
+ * sample before it, zigzag encoded (so small negative differences stay small) and written as
+ * a varint, so a sample taken a second after the last one mostly fits in 7 bytes and a one
+ * hour track at 1 Hz takes about 25 KB.
+ *
+ * The coordinates are stored in millionths of a degree (about 11 cm) and the speed in tenths
+ * of a meter per second. A Reader walks the samples of a packed track one at a time, without
+ * making an object for each of them.
+ */
+public class GpsTrack
+{
+    //the first byte of every track, changed whenever the encoding is
+    static final int VERSION = 1;
+    //the stored speed of a sample whose speed is unknown
+    private static final int NO_SPEED = -1;
+    private static final double COORDINATE_SCALE = 1000000;
+    private static final float SPEED_SCALE = 10;
+    private static final double EARTH_RADIUS = 6371000;
+
+    private byte[] data = new byte[64];
+    private int length = 0;
+    private int count = 0;
+    //the last sample added, which the next one is encoded against
+    private long lastTime = 0;
+    private int lastLatitude = 0;
+    private int lastLongitude = 0;
+    private int lastSpeed = 0;
+
+    public GpsTrack()
+    {
+        data[length++] = VERSION;
+    }
+
+    /**
+     * Adds a sample to the end of the track. Samples are expected in the order they were
+     * taken.
+     *
+     * @param time when the sample was taken (in milliseconds since the epoch)
+     * @param speed the speed (in meters per second), or less than 0 if unknown
+     */
+    public synchronized void add(long time, double latitude, double longitude, float speed)
+    {
+        int lat = (int)Math.round(latitude * COORDINATE_SCALE);
+        int lon = (int)Math.round(longitude * COORDINATE_SCALE);
+        int spd = (speed < 0) ? NO_SPEED : Math.round(speed * SPEED_SCALE);
+        writeVarint(zigzag(time - lastTime));
+        writeVarint(zigzag(lat - lastLatitude));
+        writeVarint(zigzag(lon - lastLongitude));
+        writeVarint(zigzag(spd - lastSpeed));
+        lastTime = time;
+        lastLatitude = lat;
+        lastLongitude = lon;
+        lastSpeed = spd;
+        count++;
+    }
+
+    private void writeVarint(long value)
+    {
+        //a long takes 10 bytes at the most
+        if (length + 10 > data.length)
+        {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        while ((value & ~0x7FL) != 0)
+        {
+            data[length++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[length++] = (byte)value;
+    }
+
+    private static long zigzag(long value)
+    {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value)
+    {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * @return the number of samples in the track
+     */
+    public synchronized int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * @return the size of the packed track (in bytes)
+     */
+    public synchronized int getSize()
+    {
+        return length;
+    }
+
+    /**
+     * @return the packed track
+     */
+    public synchronized byte[] toByteArray()
+    {
+        return Arrays.copyOf(data, length);
+    }
+
+    /**
+     * @return a new track with the samples taken between start and end (in milliseconds since
+     * the epoch, both included)
+     */
+    public GpsTrack slice(long start, long end)
+    {
+        GpsTrack track = new GpsTrack();
+        Reader reader = read(toByteArray());
+        while (reader.next())
+        {
+            if (reader.getTime() > end)
+            {
+                break;
+            }
+            if (reader.getTime() >= start)
+            {
+                track.add(reader.getTime(), reader.getLatitude(), reader.getLongitude(), reader.getSpeed());
+            }
+        }
+        return track;
+    }
+
+    /**
+     * @return a reader of the packed track, or null if it isn't one this version can read
+     */
+    public static Reader read(byte[] data)
+    {
+        if (data == null || data.length == 0 || data[0] != VERSION)
+        {
+            return null;
+        }
+        return new Reader(data);
+    }
+
+    /**
+     * Writes the rest of a track as GPX 1.0, one track point per sample, without holding more
+     * than one sample at a time.
+     *
+     * @param name the name of the track
+     */
+    public static void writeGpx(Reader reader, String name, Writer out) throws IOException
+    {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        out.write("<gpx version=\"1.0\" creator=\"CarWatcher\" xmlns=\"http://www.topografix.com/GPX/1/0\">\n");
+        out.write("<trk><name>" + escape(name) + "</name><trkseg>\n");
+        while (reader.next())
+        {
+            out.write(String.format(Locale.US, "<trkpt lat=\"%.6f\" lon=\"%.6f\"><time>%s</time>",
+                        reader.getLatitude(), reader.getLongitude(), format.format(new Date(reader.getTime()))));
+            if (reader.getSpeed() >= 0)
+            {
+                out.write(String.format(Locale.US, "<speed>%.1f</speed>", reader.getSpeed()));
+            }
+            out.write("</trkpt>\n");
+        }
+        out.write("</trkseg></trk>\n</gpx>\n");
+    }
+
+    private static String escape(String text)
+    {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    /**
+     * @return the distance (in meters) between two points, along the surface of the earth
+     */
+    public static double getDistance(double latitude1, double longitude1, double latitude2, double longitude2)
+    {
+        double dLat = Math.toRadians(latitude2 - latitude1);
+        double dLon = Math.toRadians(longitude2 - longitude1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) + Math.cos(Math.toRadians(latitude1)) *
+            Math.cos(Math.toRadians(latitude2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
+
+    /**
+     * Walks the samples of a packed track, oldest first. The getters return the sample the
+     * last call to next moved to.
+     */
+    public static class Reader
+    {
+        private final byte[] data;
+        //where the next sample starts
+        private int position = 1;
+        private long time = 0;
+        private int latitude = 0;
+        private int longitude = 0;
+        private int speed = 0;
+
+        private Reader(byte[] data)
+        {
+            this.data = data;
+        }
+
+        /**
+         * Moves to the next sample.
+         *
+         * @return false if there are no more samples (or the rest of the track is cut off)
+         */
+        public boolean next()
+        {
+            if (position >= data.length)
+            {
+                return false;
+            }
+            try
+            {
+                long nextTime = time + unzigzag(readVarint());
+                int nextLatitude = latitude + (int)unzigzag(readVarint());
+                int nextLongitude = longitude + (int)unzigzag(readVarint());
+                int nextSpeed = speed + (int)unzigzag(readVarint());
+                time = nextTime;
+                latitude = nextLatitude;
+                longitude = nextLongitude;
+                speed = nextSpeed;
+                return true;
+            }
+            catch (ArrayIndexOutOfBoundsException e)
+            {
+                position = data.length;
+                return false;
+            }
+        }
+
+        private long readVarint()
+        {
+            long value = 0;
+            int shift = 0;
+            while (true)
+            {
+                byte b = data[position++];
+                value |= (long)(b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                {
+                    return value;
+                }
+                shift += 7;
+            }
+        }
+
+        /**
+         * @return when the sample was taken (in milliseconds since the epoch)
+         */
+        public long getTime()
+        {
+            return time;
+        }
+
+        public double getLatitude()
+        {
+            return latitude / COORDINATE_SCALE;
+        }
+
+        public double getLongitude()
+        {
+            return longitude / COORDINATE_SCALE;
+        }
+
+        /**
+         * @return the speed (in meters per second), or -1 if unknown
+         */
+        public float getSpeed()
+        {
+            return (speed == NO_SPEED) ? -1 : speed / SPEED_SCALE;
+        }
+    }
+}
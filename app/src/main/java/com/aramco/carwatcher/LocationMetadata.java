@@ -0,0 +1,129 @@
+package com.aramco.carwatcher;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A location as a sample of the timed metadata track recorded inside a video, next to its
+ * video track, so the position at every frame goes wherever the file goes. A sample is a
+ * fixed 21 bytes, big endian: the version, when the fix was taken (milliseconds since the
+ * epoch), latitude and longitude (in ten millionths of a degree), speed (in hundredths of a
+ * meter per second) and heading (in tenths of a degree), the last two -1 if unknown. A sample
+ * with a time of -1 says no location was known yet; it's written at the start of a recording
+ * that starts before the first fix, since the track can't be left without samples.
+ */
+public class LocationMetadata
+{
+    //the mime type of the metadata track (MediaMuxer takes any "application/" type)
+    public static final String MIME_TYPE = "application/x-carwatcher-location";
+    //the size of a sample (in bytes)
+    public static final int SIZE = 21;
+    //the first byte of every sample, changed whenever the layout is
+    static final byte VERSION = 1;
+    private static final double COORDINATE_SCALE = 10000000;
+    private static final float SPEED_SCALE = 100;
+    private static final float HEADING_SCALE = 10;
+    //the time of a sample without a location
+    private static final long NO_FIX = -1;
+
+    private final long time;
+    private final double latitude;
+    private final double longitude;
+    private final float speed;
+    private final float heading;
+
+    /**
+     * @param time when the fix was taken (in milliseconds since the epoch)
+     * @param speed the speed (in meters per second), or less than 0 if unknown
+     * @param heading the direction of travel (in degrees east of true north), or less than 0
+     * if unknown
+     */
+    public LocationMetadata(long time, double latitude, double longitude, float speed, float heading)
+    {
+        this.time = time;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.speed = speed;
+        this.heading = heading;
+    }
+
+    public long getTime()
+    {
+        return time;
+    }
+
+    public double getLatitude()
+    {
+        return latitude;
+    }
+
+    public double getLongitude()
+    {
+        return longitude;
+    }
+
+    /**
+     * @return the speed (in meters per second), or -1 if unknown
+     */
+    public float getSpeed()
+    {
+        return speed;
+    }
+
+    /**
+     * @return the direction of travel (in degrees east of true north), or -1 if unknown
+     */
+    public float getHeading()
+    {
+        return heading;
+    }
+
+    /**
+     * @return the sample written to the metadata track
+     */
+    public byte[] encode()
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        buffer.put(VERSION);
+        buffer.putLong(time);
+        buffer.putInt((int)Math.round(latitude * COORDINATE_SCALE));
+        buffer.putInt((int)Math.round(longitude * COORDINATE_SCALE));
+        buffer.putShort((short)((speed < 0) ? -1 : Math.min(Short.MAX_VALUE, Math.round(speed * SPEED_SCALE))));
+        buffer.putShort((short)((heading < 0) ? -1 : Math.round(heading * HEADING_SCALE) % 3600));
+        return buffer.array();
+    }
+
+    /**
+     * @return the sample written to the metadata track when no location is known
+     */
+    public static byte[] encodeUnknown()
+    {
+        return new LocationMetadata(NO_FIX, 0, 0, -1, -1).encode();
+    }
+
+    /**
+     * Reads a sample of the metadata track, from the position of the buffer up to its limit.
+     *
+     * @return the location, or null if the sample has none or isn't one this version can
+     * read
+     */
+    public static LocationMetadata decode(ByteBuffer buffer)
+    {
+        if (buffer.remaining() < SIZE || buffer.get(buffer.position()) != VERSION)
+        {
+            return null;
+        }
+        ByteBuffer sample = buffer.duplicate();
+        sample.get();
+        long time = sample.getLong();
+        if (time == NO_FIX)
+        {
+            return null;
+        }
+        double latitude = sample.getInt() / COORDINATE_SCALE;
+        double longitude = sample.getInt() / COORDINATE_SCALE;
+        short speed = sample.getShort();
+        short heading = sample.getShort();
+        return new LocationMetadata(time, latitude, longitude, (speed < 0) ? -1 : speed / SPEED_SCALE,
+                (heading < 0) ? -1 : heading / HEADING_SCALE);
+    }
+}
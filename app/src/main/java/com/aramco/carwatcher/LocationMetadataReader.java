@@ -0,0 +1,103 @@
+package com.aramco.carwatcher;
+
+import android.media.MediaExtractor;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the locations recorded in the metadata track of a video file (see LocationMetadata).
+ * Only the metadata track is selected, so the video is never read, let alone decoded.
+ */
+public class LocationMetadataReader
+{
+    private static final String TAG = "LocationMetadataReader";
+
+    private final MediaExtractor extractor;
+    private final ByteBuffer buffer = ByteBuffer.allocate(LocationMetadata.SIZE * 4);
+    private LocationMetadata location;
+    private long timeUs = -1;
+
+    private LocationMetadataReader(MediaExtractor extractor)
+    {
+        this.extractor = extractor;
+    }
+
+    /**
+     * Opens a video file and selects its metadata track.
+     *
+     * @return the reader, which has to be released, or null if the file has no locations
+     */
+    public static LocationMetadataReader open(String path)
+    {
+        MediaExtractor extractor = new MediaExtractor();
+        try
+        {
+            extractor.setDataSource(path);
+            int track = ClipRemuxer.findTrack(extractor, LocationMetadata.MIME_TYPE);
+            if (track >= 0)
+            {
+                extractor.selectTrack(track);
+                return new LocationMetadataReader(extractor);
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            Log.e(TAG, "Could not open " + path, e);
+        }
+        extractor.release();
+        return null;
+    }
+
+    /**
+     * Moves to the next location of the track.
+     *
+     * @return false if there are no more locations
+     */
+    public boolean next()
+    {
+        while (extractor.getSampleTime() >= 0)
+        {
+            buffer.clear();
+            int size = extractor.readSampleData(buffer, 0);
+            timeUs = extractor.getSampleTime();
+            extractor.advance();
+            if (size < 0)
+            {
+                break;
+            }
+            buffer.position(0);
+            buffer.limit(size);
+            location = LocationMetadata.decode(buffer);
+            //samples without a location, or written by a later version, are skipped
+            if (location != null)
+            {
+                return true;
+            }
+        }
+        location = null;
+        return false;
+    }
+
+    /**
+     * @return the location the last call to next moved to
+     */
+    public LocationMetadata getLocation()
+    {
+        return location;
+    }
+
+    /**
+     * @return where in the video the location was recorded (in microseconds)
+     */
+    public long getTimeUs()
+    {
+        return timeUs;
+    }
+
+    public void release()
+    {
+        extractor.release();
+    }
+}
@@ -23,10 +23,12 @@ import java.util.List;
 import java.util.Locale;
 
 import io.flic.lib.FlicAppNotInstalledException;
+import io.flic.lib.FlicBroadcastReceiverFlags;
 import io.flic.lib.FlicButton;
 import io.flic.lib.FlicManager;
 import io.flic.lib.FlicManagerInitializedCallback;
 
+import static com.aramco.carwatcher.SettingsActivity.ARMED_SETTING;
 import static com.aramco.carwatcher.SettingsActivity.LANGUAGE_SETTING;
 import static com.aramco.carwatcher.SettingsActivity.SETTINGS_FILE;
 
@@ -91,6 +93,12 @@ public class MainActivity extends AppCompatActivity
             return;
         }
 
+        //get the camera ready for the next capture if the user asked for it
+        if (sharedPref.getInt(ARMED_SETTING, 0) == 1)
+        {
+            startService(CaptureService.newArmIntent(this, true));
+        }
+
         //replace the main video list fragment
         FragmentManager fm = getSupportFragmentManager();
         Fragment tempFragment = fm.findFragmentById(R.id.fragment_container);
@@ -168,8 +176,7 @@ public class MainActivity extends AppCompatActivity
 
     private void requestFlicButton()
     {
-        FlicManager.setAppCredentials("5ae200b0-ff5e-4ea8-95bb-1cda697a3af6",
-                "ed95527e-0ce0-440f-a097-2c6dbd0493d8", "CarWatcher");
+        FlicReceiver.setAppCredentials();
         try
         {
             FlicManager.getInstance(this, new FlicManagerInitializedCallback() {
@@ -195,6 +202,8 @@ public class MainActivity extends AppCompatActivity
                 FlicButton button = manager.completeGrabButton(requestCode, resultCode, data);
                 if (button != null)
                 {
+                    //clicks and holds are handled by FlicReceiver
+                    button.registerListenForBroadcast(FlicBroadcastReceiverFlags.CLICK_OR_HOLD);
                 }
                 else
                 {
@@ -0,0 +1,578 @@
+package com.aramco.carwatcher;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A capture backend that feeds the camera frames into a surface-input MediaCodec encoder and
+ * muxes its output with MediaMuxer. Since every encoded frame passes through here, this
+ * backend can report encoded frames to its listener and cut segments exactly on a key frame,
+ * without losing a single frame. Locations handed over while recording go to a timed metadata
+ * track next to the video (API 26+).
+ */
+public class MediaCodecBackend implements CaptureBackend
+{
+    private static final String TAG = "MediaCodecBackend";
+    //how long to wait for the encoder to flush its last frames when stopping
+    private static final long STOP_TIMEOUT = TimeUnit.SECONDS.toMillis(2);
+    //MediaFormat.KEY_MAX_FPS_TO_ENCODER, which is only public since API 29 but honored by
+    //surface input before that
+    private static final String KEY_MAX_FPS_TO_ENCODER = "max-fps-to-encoder";
+    private Listener listener;
+    //the encoder thread checks the buffers it gets come from the current encoder
+    private volatile MediaCodec codec;
+    private Surface surface;
+    //the persistent surface to record from, if any (it is not ours to release)
+    private Surface inputSurface;
+    //the muxer is written to on the encoder thread but finished on the thread driving the
+    //backend, which may happen while the encoder still hands over frames (e.g. after a stop
+    //timed out); the muxer and its tracks are only touched while holding this lock
+    private final Object muxerLock = new Object();
+    private MediaMuxer muxer;
+    private int track = -1;
+    private EncoderConfig config;
+    //the format reported by the encoder, needed to start every new muxer
+    private MediaFormat outputFormat;
+    //encoder callbacks are handled on their own thread
+    private HandlerThread encoderThread;
+    private Handler encoderHandler;
+    //the size and duration of the current output file, against the configured limits
+    private SegmentLimits segmentLimits;
+    //when a roll over is requested, the path of the next file (cut on the next key frame);
+    //handed over from the thread driving the backend, so it's guarded by muxerLock too
+    private String nextPath;
+    //counted down once the encoder has output its last frame
+    private CountDownLatch endOfStream;
+    //for a time-lapse, the timestamp of the first frame, which the others are squeezed
+    //towards (-1 before it)
+    private long timeLapseStartUs = -1;
+    //the presentation time of the last frame written to the muxer (-1 before the first one)
+    private long lastFrameUs = -1;
+    //the metadata track of the current file, or -1 if it has none
+    private int metadataTrack = -1;
+    //the latest location handed over, written to the metadata track at the configured rate
+    private volatile LocationMetadata location;
+    //the timestamp of the last location written (-1 before the first one of the file)
+    private long lastLocationUs = -1;
+
+    @Override
+    public void setListener(Listener listener)
+    {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setInputSurface(Surface surface)
+    {
+        inputSurface = surface;
+    }
+
+    @Override
+    public void prepare(EncoderConfig config, String outputPath) throws IOException
+    {
+        //an encoder that was prepared but never started is replaced
+        releaseCodec();
+        finishMuxer();
+        this.config = config;
+        if (encoderThread == null)
+        {
+            encoderThread = new HandlerThread("EncoderThread");
+            encoderThread.start();
+            encoderHandler = new Handler(encoderThread.getLooper());
+        }
+        codec = MediaCodec.createEncoderByType(config.getMimeType());
+        setCallback();
+        //the level can only be set along with the profile, and only on API 23+
+        boolean profileLevel = config.getProfile() != 0 && config.getLevel() != 0 &&
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+        try
+        {
+            codec.configure(createFormat(profileLevel), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        }
+        catch (IllegalArgumentException | IllegalStateException e)
+        {
+            if (!profileLevel)
+            {
+                throw e;
+            }
+            //some encoders list profiles they refuse to configure, let them use their default
+            codec.reset();
+            setCallback();
+            codec.configure(createFormat(false), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        }
+        if (inputSurface != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+        {
+            codec.setInputSurface(inputSurface);
+            surface = inputSurface;
+        }
+        else
+        {
+            surface = codec.createInputSurface();
+        }
+        synchronized (muxerLock)
+        {
+            muxer = newMuxer(outputPath);
+            track = -1;
+            nextPath = null;
+        }
+        segmentLimits = new SegmentLimits(config.getMaxFileSize(), config.getMaxDuration());
+        endOfStream = new CountDownLatch(1);
+        timeLapseStartUs = -1;
+        lastFrameUs = -1;
+    }
+
+    /**
+     * Creates the format the encoder is configured with.
+     *
+     * @param profileLevel whether to ask for the configured codec profile and level
+     */
+    private MediaFormat createFormat(boolean profileLevel)
+    {
+        MediaFormat format = MediaFormat.createVideoFormat(config.getMimeType(), config.getWidth(), config.getHeight());
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, config.getBitRate());
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, config.getFrameRate());
+        //the camera keeps sending frames at its own rate, the input surface drops the extra ones
+        if (config.getCaptureRate() > 0)
+        {
+            format.setFloat(KEY_MAX_FPS_TO_ENCODER, (float)config.getCaptureRate());
+            //the encoder sees the frames in real time, but the key frames should be as far
+            //apart as usual in the time-lapse
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL,
+                    (int)Math.max(1, Math.round(config.getKeyFrameInterval() * config.getFrameRate() / config.getCaptureRate())));
+        }
+        else
+        {
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, config.getKeyFrameInterval());
+            if (config.getMaxInputFrameRate() > 0)
+            {
+                format.setFloat(KEY_MAX_FPS_TO_ENCODER, config.getMaxInputFrameRate());
+            }
+        }
+        if (profileLevel)
+        {
+            format.setInteger(MediaFormat.KEY_PROFILE, config.getProfile());
+            format.setInteger(MediaFormat.KEY_LEVEL, config.getLevel());
+        }
+        return format;
+    }
+
+    /**
+     * Makes the encoder report to codecCallback, on the encoder thread where possible.
+     */
+    private void setCallback()
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+        {
+            codec.setCallback(codecCallback, encoderHandler);
+        }
+        else
+        {
+            codec.setCallback(codecCallback);
+        }
+    }
+
+    /**
+     * Adds the tracks to the muxer and starts it, once the encoder reported its output format.
+     * The metadata track, if any, goes next to the video track.
+     */
+    private void startMuxer(MediaFormat format)
+    {
+        track = muxer.addTrack(format);
+        metadataTrack = -1;
+        lastLocationUs = -1;
+        //MediaMuxer only writes metadata tracks since API 26
+        if (config.getMetadataRate() > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+        {
+            MediaFormat metadataFormat = new MediaFormat();
+            metadataFormat.setString(MediaFormat.KEY_MIME, LocationMetadata.MIME_TYPE);
+            metadataTrack = muxer.addTrack(metadataFormat);
+        }
+        muxer.start();
+    }
+
+    /**
+     * Writes the latest location to the metadata track, timed like the frame that was just
+     * written, unless the last one was written less than a sample interval before it. The
+     * first frame of a file always gets a sample, which says no location is known if there
+     * is none yet: MediaMuxer can't finish a file with an empty track.
+     */
+    private void writeLocation(long presentationTimeUs)
+    {
+        if (metadataTrack < 0)
+        {
+            return;
+        }
+        LocationMetadata latest = location;
+        byte[] sample;
+        if (lastLocationUs < 0)
+        {
+            sample = (latest != null) ? latest.encode() : LocationMetadata.encodeUnknown();
+        }
+        else if (latest != null && presentationTimeUs - lastLocationUs >= 1000000 / config.getMetadataRate())
+        {
+            sample = latest.encode();
+        }
+        else
+        {
+            return;
+        }
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(0, LocationMetadata.SIZE, presentationTimeUs, 0);
+        muxer.writeSampleData(metadataTrack, ByteBuffer.wrap(sample), info);
+        lastLocationUs = presentationTimeUs;
+    }
+
+    /**
+     * Creates a muxer for the specified file. The tracks are only added once the encoder
+     * reports its output format.
+     */
+    private MediaMuxer newMuxer(String path) throws IOException
+    {
+        MediaMuxer newMuxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        newMuxer.setOrientationHint(config.getOrientationHint());
+        return newMuxer;
+    }
+
+    @Override
+    public Surface getSurface()
+    {
+        return surface;
+    }
+
+    @Override
+    public void start()
+    {
+        codec.start();
+    }
+
+    @Override
+    public void stop()
+    {
+        try
+        {
+            codec.signalEndOfInputStream();
+            //wait for the encoder to hand over everything it still holds
+            if (!endOfStream.await(STOP_TIMEOUT, TimeUnit.MILLISECONDS))
+            {
+                Log.w(TAG, "The encoder did not hand over its last frames in time");
+            }
+            codec.stop();
+        }
+        catch (InterruptedException | IllegalStateException e)
+        {
+            e.printStackTrace();
+        }
+        //the encoder is stopped before the muxer is finished, and any frame still on its way
+        //is dropped by the encoder thread once the muxer is gone
+        releaseCodec();
+        finishMuxer();
+    }
+
+    /**
+     * Releases the encoder and its input surface (unless it's the persistent one).
+     */
+    private void releaseCodec()
+    {
+        if (codec != null)
+        {
+            codec.release();
+            codec = null;
+        }
+        if (surface != null && surface != inputSurface)
+        {
+            surface.release();
+        }
+        surface = null;
+    }
+
+    /**
+     * Stops and releases the current muxer.
+     */
+    private void finishMuxer()
+    {
+        synchronized (muxerLock)
+        {
+            if (muxer == null)
+            {
+                return;
+            }
+            try
+            {
+                //a muxer that was never started cannot be stopped
+                if (track >= 0)
+                {
+                    muxer.stop();
+                }
+            }
+            catch (IllegalStateException e)
+            {
+                e.printStackTrace();
+            }
+            muxer.release();
+            muxer = null;
+            track = -1;
+            metadataTrack = -1;
+        }
+    }
+
+    @Override
+    public void release()
+    {
+        releaseCodec();
+        finishMuxer();
+        if (encoderThread != null)
+        {
+            encoderThread.quitSafely();
+            encoderThread = null;
+            encoderHandler = null;
+        }
+    }
+
+    @Override
+    public boolean rollOver(String nextPath)
+    {
+        MediaCodec encoder = codec;
+        if (encoder == null)
+        {
+            return false;
+        }
+        synchronized (muxerLock)
+        {
+            this.nextPath = nextPath;
+        }
+        //ask for a key frame right away so the cut happens as soon as possible
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try
+        {
+            encoder.setParameters(params);
+            return true;
+        }
+        catch (IllegalStateException e)
+        {
+            //the encoder is being stopped
+            synchronized (muxerLock)
+            {
+                this.nextPath = null;
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public boolean setBitRate(int bitRate)
+    {
+        MediaCodec encoder = codec;
+        if (encoder == null)
+        {
+            return false;
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        try
+        {
+            encoder.setParameters(params);
+            return true;
+        }
+        catch (IllegalStateException e)
+        {
+            //the encoder is being stopped
+            return false;
+        }
+    }
+
+    @Override
+    public boolean setLocation(LocationMetadata location)
+    {
+        if (config == null || config.getMetadataRate() <= 0 || Build.VERSION.SDK_INT < Build.VERSION_CODES.O)
+        {
+            return false;
+        }
+        this.location = location;
+        return true;
+    }
+
+    @Override
+    public boolean providesEncodedFrames()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean isGapless()
+    {
+        return true;
+    }
+
+    @Override
+    public boolean supportsCodec(String mimeType)
+    {
+        //MediaMuxer can only write HEVC since API 24
+        if (mimeType.equals(MediaFormat.MIMETYPE_VIDEO_HEVC))
+        {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
+        }
+        return mimeType.equals(MediaFormat.MIMETYPE_VIDEO_AVC);
+    }
+
+    /**
+     * Switches to the file requested by rollOver. This is only called right before writing
+     * a key frame (holding muxerLock), so the new file starts decodable and no frame is lost. If the new file
+     * can't be created, the frames keep going to the current one and the listener is told
+     * the limit was reached, so the recording gets restarted.
+     *
+     * @param firstTimeUs the presentation time of the key frame the new file starts with
+     */
+    private void cutSegment(long firstTimeUs)
+    {
+        String path = nextPath;
+        nextPath = null;
+        MediaMuxer next;
+        try
+        {
+            next = newMuxer(path);
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            Log.e(TAG, "Could not create the next segment " + path, e);
+            if (listener != null)
+            {
+                listener.onSegmentLimitReached();
+            }
+            return;
+        }
+        finishMuxer();
+        muxer = next;
+        startMuxer(outputFormat);
+        segmentLimits.reset();
+        if (listener != null)
+        {
+            listener.onSegmentStarted(lastFrameUs, firstTimeUs);
+        }
+    }
+
+    /**
+     * The encoder reports its output here, on the encoder thread.
+     */
+    private MediaCodec.Callback codecCallback = new MediaCodec.Callback()
+    {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec mc, int index)
+        {
+            //input comes through the surface
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec mc, int index, @NonNull MediaCodec.BufferInfo info)
+        {
+            //an encoder that was released (after a stop timed out) or replaced may still
+            //hand over a buffer, which can't even be released anymore
+            if (mc != codec)
+            {
+                return;
+            }
+            ByteBuffer data;
+            try
+            {
+                data = mc.getOutputBuffer(index);
+            }
+            catch (IllegalStateException e)
+            {
+                return;
+            }
+            boolean codecConfig = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+            boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+            if (data != null && info.size > 0 && !codecConfig)
+            {
+                //a time-lapse is played back at the frame rate it's encoded with
+                if (config.getCaptureRate() > 0)
+                {
+                    if (timeLapseStartUs < 0)
+                    {
+                        timeLapseStartUs = info.presentationTimeUs;
+                    }
+                    info.presentationTimeUs = timeLapseStartUs + (long)((info.presentationTimeUs - timeLapseStartUs) *
+                            config.getCaptureRate() / config.getFrameRate());
+                }
+                boolean limitReached = false;
+                synchronized (muxerLock)
+                {
+                    if (keyFrame && nextPath != null)
+                    {
+                        cutSegment(info.presentationTimeUs);
+                    }
+                    //the muxer is gone once the backend is stopped
+                    if (muxer != null && track >= 0)
+                    {
+                        muxer.writeSampleData(track, data, info);
+                        lastFrameUs = info.presentationTimeUs;
+                        writeLocation(info.presentationTimeUs);
+                        limitReached = segmentLimits.onFrame(info.presentationTimeUs, info.size);
+                    }
+                }
+                if (listener != null)
+                {
+                    listener.onEncodedFrame(data, info);
+                    //ask for the next file a few frames before this one is full (or long
+                    //enough), the cut then happens on the key frame requested by rollOver
+                    if (limitReached)
+                    {
+                        listener.onNextSegmentNeeded();
+                    }
+                }
+            }
+            try
+            {
+                mc.releaseOutputBuffer(index, false);
+            }
+            catch (IllegalStateException e)
+            {
+                //the encoder was released in the meantime
+                return;
+            }
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+            {
+                endOfStream.countDown();
+            }
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec mc, @NonNull MediaCodec.CodecException e)
+        {
+            e.printStackTrace();
+            endOfStream.countDown();
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec mc, @NonNull MediaFormat format)
+        {
+            outputFormat = format;
+            synchronized (muxerLock)
+            {
+                if (muxer != null && track < 0)
+                {
+                    startMuxer(format);
+                }
+            }
+            if (listener != null)
+            {
+                listener.onEncoderFormatChanged(format);
+            }
+        }
+    };
+}
@@ -0,0 +1,232 @@
+package com.aramco.carwatcher;
+
+import android.media.MediaFormat;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The original capture backend, recording H.264 (or H.265 on API 24+) through MediaRecorder.
+ * It does not provide encoded frames, and can only switch output files by itself (API 26+)
+ * when the maximum file size is reached. When it reaches the maximum duration instead (or any
+ * limit before API 26), the recorder stops on its own and the listener has to restart the
+ * recording.
+ */
+public class MediaRecorderBackend implements CaptureBackend
+{
+    private MediaRecorder recorder;
+    private Listener listener;
+    //the persistent surface to record from, if any
+    private Surface inputSurface;
+    //true once the recorder was handed the next output file (by the thread driving the
+    //backend, while the info listener runs on the recorder's own)
+    private volatile boolean nextFileSet = false;
+    //true once the recorder stopped by itself on reaching a limit
+    private boolean limitReached = false;
+
+    @Override
+    public void setListener(Listener listener)
+    {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setInputSurface(Surface surface)
+    {
+        inputSurface = surface;
+    }
+
+    @Override
+    public void prepare(EncoderConfig config, String outputPath) throws IOException
+    {
+        //a new media recorder is needed to start each session (dont ask questions)
+        if (recorder != null)
+        {
+            recorder.release();
+        }
+        recorder = new MediaRecorder();
+        //recorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+        recorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
+        if (inputSurface != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+        {
+            recorder.setInputSurface(inputSurface);
+        }
+        recorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
+        recorder.setOutputFile(outputPath);
+        recorder.setVideoEncodingBitRate(config.getBitRate());
+        recorder.setVideoFrameRate(config.getFrameRate());
+        if (config.getCaptureRate() > 0)
+        {
+            recorder.setCaptureRate(config.getCaptureRate());
+        }
+        recorder.setVideoSize(config.getWidth(), config.getHeight());
+        if (config.getMimeType().equals(MediaFormat.MIMETYPE_VIDEO_HEVC) && supportsCodec(config.getMimeType()))
+        {
+            recorder.setVideoEncoder(MediaRecorder.VideoEncoder.HEVC);
+        }
+        else
+        {
+            recorder.setVideoEncoder(MediaRecorder.VideoEncoder.H264);
+        }
+        //recorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
+        recorder.setOrientationHint(config.getOrientationHint());
+        //let the recorder hand over to the next file by itself when possible
+        long maxFileSize = config.getMaxFileSize();
+        long maxDuration = config.getMaxDuration();
+        if (maxDuration > 0 && isGapless())
+        {
+            //the recorder only switches files on size, so cap the size at what the duration
+            //is worth at the target bit rate; the duration limit is a hard stop behind it
+            //for when the encoder undershoots (e.g. a static scene)
+            long durationSize = config.getBitRate() / 8 * maxDuration / 1000;
+            maxFileSize = (maxFileSize > 0) ? Math.min(maxFileSize, durationSize) : durationSize;
+            maxDuration = maxDuration * 11 / 10;
+        }
+        if (maxFileSize > 0)
+        {
+            recorder.setMaxFileSize(maxFileSize);
+        }
+        if (maxDuration > 0)
+        {
+            recorder.setMaxDuration((int)maxDuration);
+        }
+        recorder.setOnInfoListener(infoListener);
+        nextFileSet = false;
+        limitReached = false;
+        recorder.prepare();
+    }
+
+    @Override
+    public Surface getSurface()
+    {
+        return (inputSurface != null) ? inputSurface : recorder.getSurface();
+    }
+
+    @Override
+    public void start()
+    {
+        recorder.start();
+    }
+
+    @Override
+    public void stop()
+    {
+        //a recorder that stopped by itself has already finalized its file
+        if (!limitReached)
+        {
+            recorder.stop();
+        }
+        recorder.reset();
+    }
+
+    @Override
+    public void release()
+    {
+        if (recorder != null)
+        {
+            recorder.release();
+            recorder = null;
+        }
+    }
+
+    @Override
+    public boolean rollOver(String nextPath)
+    {
+        //MediaRecorder can only be handed the next file (API 26+), which it switches to when
+        //the maximum file size is reached
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O || recorder == null)
+        {
+            return false;
+        }
+        try
+        {
+            recorder.setNextOutputFile(new File(nextPath));
+            nextFileSet = true;
+            return true;
+        }
+        catch (IOException | IllegalStateException e)
+        {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    @Override
+    public boolean setBitRate(int bitRate)
+    {
+        //the recorder's bit rate can only be set before it's prepared
+        return false;
+    }
+
+    @Override
+    public boolean setLocation(LocationMetadata location)
+    {
+        //MediaRecorder only writes a single location, when it's prepared
+        return false;
+    }
+
+    @Override
+    public boolean providesEncodedFrames()
+    {
+        return false;
+    }
+
+    @Override
+    public boolean isGapless()
+    {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+    }
+
+    @Override
+    public boolean supportsCodec(String mimeType)
+    {
+        //MediaRecorder only has an HEVC encoder option since API 24
+        if (mimeType.equals(MediaFormat.MIMETYPE_VIDEO_HEVC))
+        {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
+        }
+        return mimeType.equals(MediaFormat.MIMETYPE_VIDEO_AVC);
+    }
+
+    /**
+     * This listener drives gapless rotations: when the current file approaches the maximum
+     * size it asks for the next file, and reports when the recorder switches to it.
+     * It also reports when the recorder stopped because it could not switch.
+     */
+    private MediaRecorder.OnInfoListener infoListener = new MediaRecorder.OnInfoListener()
+    {
+        @Override
+        public void onInfo(MediaRecorder mr, int what, int extra)
+        {
+            if (listener == null)
+            {
+                return;
+            }
+            if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED ||
+                what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED)
+            {
+                limitReached = true;
+                listener.onSegmentLimitReached();
+                return;
+            }
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O)
+            {
+                return;
+            }
+            if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_APPROACHING)
+            {
+                //the next file comes back through rollOver
+                listener.onNextSegmentNeeded();
+            }
+            else if (what == MediaRecorder.MEDIA_RECORDER_INFO_NEXT_OUTPUT_FILE_STARTED && nextFileSet)
+            {
+                nextFileSet = false;
+                //the recorder doesn't tell which frames went where
+                listener.onSegmentStarted(-1, -1);
+            }
+        }
+    };
+}
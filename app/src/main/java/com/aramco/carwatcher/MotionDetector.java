@@ -0,0 +1,145 @@
+package com.aramco.carwatcher;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Looks for motion in the luma plane of a low resolution analysis stream. The frame is split
+ * into BLOCK_SIZE blocks whose mean brightness is compared with a slowly updated background;
+ * a frame has motion if enough blocks moved away from their background. The mean change over
+ * all blocks is taken out first, so the camera adjusting its exposure (or a cloud passing)
+ * doesn't count as motion.
+ *
+ * The luma is read straight from the image buffer and every array is allocated up front, so
+ * analyzing a frame allocates nothing.
+ */
+public class MotionDetector
+{
+    //the size of a block (in pixels, along each side)
+    static final int BLOCK_SIZE = 16;
+    //only every SAMPLE_STEP-th pixel along each side of a block is read
+    static final int SAMPLE_STEP = 2;
+    //how far (in luma levels) a block's mean has to move from its background to have changed
+    static final int BLOCK_THRESHOLD = 12;
+    //the share of the blocks (in percent) that have to change for a frame to have motion
+    static final int MOTION_PERCENT = 2;
+    //how many frames in a row need motion before it's reported, so a single glitch isn't
+    static final int MOTION_FRAMES = 2;
+    //each frame moves the background 1/2^BACKGROUND_SHIFT of the way to the frame, so a
+    //parked car or a shadow becomes part of the background after a few seconds
+    private static final int BACKGROUND_SHIFT = 4;
+    //the background is kept in fixed point, with this many fractional bits
+    private static final int FRACTION_BITS = 8;
+
+    private final int columns;
+    private final int rows;
+    //the mean luma of every block in the current frame, and the background (in fixed point)
+    private final int[] means;
+    private final int[] background;
+    private boolean hasBackground = false;
+    //how many frames in a row had motion, up to MOTION_FRAMES
+    private int motionFrames = 0;
+    //how many blocks changed in the last frame
+    private int changedBlocks = 0;
+
+    /**
+     * @param width the width of the frames (in pixels)
+     * @param height the height of the frames (in pixels)
+     */
+    public MotionDetector(int width, int height)
+    {
+        //the pixels past the last whole block are left out
+        columns = Math.max(1, width / BLOCK_SIZE);
+        rows = Math.max(1, height / BLOCK_SIZE);
+        means = new int[columns * rows];
+        background = new int[columns * rows];
+    }
+
+    /**
+     * Starts over, e.g. when the camera was pointed elsewhere in the meantime.
+     */
+    public synchronized void reset()
+    {
+        hasBackground = false;
+        motionFrames = 0;
+        changedBlocks = 0;
+    }
+
+    /**
+     * Analyzes a frame.
+     *
+     * @param luma the luma plane of the frame; its position and limit are left as they are
+     * @param rowStride the distance between the starts of two rows (in bytes)
+     * @param pixelStride the distance between two pixels of a row (in bytes)
+     * @return true if there is motion in the frame
+     */
+    public synchronized boolean onFrame(ByteBuffer luma, int rowStride, int pixelStride)
+    {
+        int samples = (BLOCK_SIZE / SAMPLE_STEP) * (BLOCK_SIZE / SAMPLE_STEP);
+        int blocks = columns * rows;
+        //the mean of every block
+        for (int row = 0; row < rows; row++)
+        {
+            for (int column = 0; column < columns; column++)
+            {
+                int sum = 0;
+                int start = row * BLOCK_SIZE * rowStride + column * BLOCK_SIZE * pixelStride;
+                for (int y = 0; y < BLOCK_SIZE; y += SAMPLE_STEP)
+                {
+                    int index = start + y * rowStride;
+                    for (int x = 0; x < BLOCK_SIZE; x += SAMPLE_STEP)
+                    {
+                        sum += luma.get(index) & 0xff;
+                        index += SAMPLE_STEP * pixelStride;
+                    }
+                }
+                means[row * columns + column] = (sum << FRACTION_BITS) / samples;
+            }
+        }
+        if (!hasBackground)
+        {
+            System.arraycopy(means, 0, background, 0, blocks);
+            hasBackground = true;
+            return false;
+        }
+        //the change shared by every block is the lighting, not motion
+        long offset = 0;
+        for (int i = 0; i < blocks; i++)
+        {
+            offset += means[i] - background[i];
+        }
+        offset /= blocks;
+        int threshold = BLOCK_THRESHOLD << FRACTION_BITS;
+        changedBlocks = 0;
+        for (int i = 0; i < blocks; i++)
+        {
+            int difference = means[i] - background[i];
+            if (Math.abs(difference - offset) > threshold)
+            {
+                changedBlocks++;
+            }
+            background[i] += difference >> BACKGROUND_SHIFT;
+        }
+        if (changedBlocks * 100 >= blocks * MOTION_PERCENT)
+        {
+            motionFrames = Math.min(motionFrames + 1, MOTION_FRAMES);
+        }
+        else
+        {
+            motionFrames = 0;
+        }
+        return motionFrames >= MOTION_FRAMES;
+    }
+
+    /**
+     * @return how many blocks changed in the last frame
+     */
+    public synchronized int getChangedBlocks()
+    {
+        return changedBlocks;
+    }
+
+    public int getBlockCount()
+    {
+        return columns * rows;
+    }
+}
@@ -0,0 +1,122 @@
+package com.aramco.carwatcher;
+
+/**
+ * Tells from the accelerometer whether the car is parked. Gravity is tracked with a low-pass
+ * filter and taken out of every sample; what's left is split into one second windows. A
+ * moving (or idling) car shakes the phone enough to keep every window above STILL_RMS, so once
+ * the windows stayed below it for STATIONARY_DELAY the car is taken to be parked. A single
+ * window above it (someone opening a door, the engine starting) wakes it up right away.
+ */
+public class ParkingDetector
+{
+    //how long the car has to be still before it's taken to be parked (in nanoseconds); longer
+    //than a red light
+    static final long STATIONARY_DELAY = 3L * 60 * 1000000000L;
+    //the length of a window (in nanoseconds)
+    static final long WINDOW = 1000000000L;
+    //the acceleration (in m/s^2, root mean square over a window) below which a window is still
+    static final float STILL_RMS = 0.15f;
+    //how much of the gravity estimate each sample replaces
+    private static final float GRAVITY_ALPHA = 0.1f;
+
+    private boolean parked = false;
+    //the gravity estimate, not known before the first sample
+    private boolean hasGravity = false;
+    private float gravityX;
+    private float gravityY;
+    private float gravityZ;
+    //the window being filled, and since when the windows have been still (-1 if the last
+    //one wasn't)
+    private long windowStart = -1;
+    private double windowSum = 0;
+    private int windowCount = 0;
+    private long stillSince = -1;
+
+    /**
+     * Starts over, with the car not parked.
+     */
+    public synchronized void reset()
+    {
+        parked = false;
+        hasGravity = false;
+        windowStart = -1;
+        windowSum = 0;
+        windowCount = 0;
+        stillSince = -1;
+    }
+
+    /**
+     * Called for every accelerometer sample.
+     *
+     * @param timeNanos the timestamp of the sample
+     * @param x the acceleration along each axis (in m/s^2), gravity included
+     * @return true if the car was just found to be parked, or to be moving again
+     */
+    public synchronized boolean onSample(long timeNanos, float x, float y, float z)
+    {
+        if (!hasGravity)
+        {
+            gravityX = x;
+            gravityY = y;
+            gravityZ = z;
+            hasGravity = true;
+        }
+        gravityX += GRAVITY_ALPHA * (x - gravityX);
+        gravityY += GRAVITY_ALPHA * (y - gravityY);
+        gravityZ += GRAVITY_ALPHA * (z - gravityZ);
+        float dx = x - gravityX;
+        float dy = y - gravityY;
+        float dz = z - gravityZ;
+        if (windowStart < 0)
+        {
+            windowStart = timeNanos;
+        }
+        windowSum += dx * dx + dy * dy + dz * dz;
+        windowCount++;
+        if (timeNanos - windowStart < WINDOW)
+        {
+            return false;
+        }
+        boolean still = Math.sqrt(windowSum / windowCount) < STILL_RMS;
+        windowStart = timeNanos;
+        windowSum = 0;
+        windowCount = 0;
+        if (!still)
+        {
+            stillSince = -1;
+            return wake();
+        }
+        if (stillSince < 0)
+        {
+            stillSince = timeNanos;
+        }
+        if (!parked && timeNanos - stillSince >= STATIONARY_DELAY)
+        {
+            parked = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Takes the car to be moving, e.g. because someone asked for a recording. It is only
+     * taken to be parked again after STATIONARY_DELAY.
+     *
+     * @return true if the car was taken to be parked until now
+     */
+    public synchronized boolean wake()
+    {
+        stillSince = -1;
+        if (!parked)
+        {
+            return false;
+        }
+        parked = false;
+        return true;
+    }
+
+    public synchronized boolean isParked()
+    {
+        return parked;
+    }
+}
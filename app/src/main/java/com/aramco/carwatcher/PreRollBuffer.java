@@ -0,0 +1,238 @@
+package com.aramco.carwatcher;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A circular store holding the last few seconds of encoded video, so that a capture can be
+ * made to start before the moment it was requested.
+ *
+ * All storage is allocated up front: encoded frames are copied into a single direct buffer
+ * and their metadata is kept in parallel arrays, so writing frames creates no garbage no
+ * matter how long the buffer runs. The oldest stored frame is always a key frame, which means
+ * the buffer contents can be muxed into a playable file at any time.
+ */
+public class PreRollBuffer
+{
+    /**
+     * Receives the frames stored in the buffer, oldest first.
+     */
+    public interface FrameConsumer
+    {
+        /**
+         * @param store the buffer holding the frame data (do not modify or keep a reference)
+         * @param offset the offset of the frame in store
+         * @param size the size of the frame
+         * @param presentationTimeUs the presentation time of the frame
+         * @param keyFrame whether the frame is a key (sync) frame
+         */
+        void onFrame(ByteBuffer store, int offset, int size, long presentationTimeUs, boolean keyFrame);
+    }
+
+    //the frame data of all the stored frames
+    private final ByteBuffer store;
+    private final int capacity;
+    //how much video (in microseconds) should be kept
+    private final long windowUs;
+    //frame metadata, indexed circularly starting at head
+    private final int[] frameOffsets;
+    private final int[] frameSizes;
+    private final long[] framePts;
+    private final boolean[] frameKey;
+    private final int maxFrames;
+    private int head = 0;
+    private int count = 0;
+    //where the next frame will be copied in store
+    private int writePos = 0;
+
+    /**
+     * @param capacityBytes the maximum number of encoded bytes to store
+     * @param maxFrames the maximum number of frames to store
+     * @param windowUs how much video (in microseconds) to keep
+     */
+    public PreRollBuffer(int capacityBytes, int maxFrames, long windowUs)
+    {
+        this.capacity = capacityBytes;
+        this.maxFrames = maxFrames;
+        this.windowUs = windowUs;
+        store = ByteBuffer.allocateDirect(capacityBytes);
+        frameOffsets = new int[maxFrames];
+        frameSizes = new int[maxFrames];
+        framePts = new long[maxFrames];
+        frameKey = new boolean[maxFrames];
+    }
+
+    /**
+     * Copies an encoded frame into the buffer, dropping the oldest frames if needed. The
+     * position and limit of the source are left untouched.
+     *
+     * @param source the buffer containing the encoded frame
+     * @param offset the offset of the frame in source
+     * @param size the size of the frame
+     * @param presentationTimeUs the presentation time of the frame
+     * @param keyFrame whether the frame is a key (sync) frame
+     */
+    public synchronized void write(ByteBuffer source, int offset, int size, long presentationTimeUs, boolean keyFrame)
+    {
+        //a frame that can never fit means the buffer is useless until the next key frame
+        if (size > capacity)
+        {
+            clear();
+            return;
+        }
+        //until a key frame arrives there is nothing decodable to keep
+        if (count == 0 && !keyFrame)
+        {
+            return;
+        }
+        while (count > 0 && (count == maxFrames || placeFrame(size) < 0))
+        {
+            dropOldestGroup();
+        }
+        //if making room dropped everything, this frame has to start a new group
+        if (count == 0)
+        {
+            if (!keyFrame)
+            {
+                return;
+            }
+            writePos = 0;
+        }
+        int position = placeFrame(size);
+        //copy the frame data without disturbing the source
+        int sourcePosition = source.position();
+        int sourceLimit = source.limit();
+        source.limit(offset + size);
+        source.position(offset);
+        store.limit(position + size);
+        store.position(position);
+        store.put(source);
+        store.clear();
+        source.limit(sourceLimit);
+        source.position(sourcePosition);
+
+        int index = (head + count) % maxFrames;
+        frameOffsets[index] = position;
+        frameSizes[index] = size;
+        framePts[index] = presentationTimeUs;
+        frameKey[index] = keyFrame;
+        count++;
+        writePos = position + size;
+        //whenever a new group starts, older groups may no longer be needed
+        if (keyFrame)
+        {
+            trimToWindow(presentationTimeUs);
+        }
+    }
+
+    /**
+     * Finds where a frame of the specified size can be stored contiguously without
+     * overwriting any stored frame.
+     *
+     * @param size the size of the frame to store
+     * @return the offset for the frame, or -1 if there is no room
+     */
+    private int placeFrame(int size)
+    {
+        if (count == 0)
+        {
+            return 0;
+        }
+        int oldest = frameOffsets[head];
+        if (oldest < writePos)
+        {
+            //free space is after writePos and before the oldest frame
+            if (writePos + size <= capacity)
+            {
+                return writePos;
+            }
+            return (size <= oldest) ? 0 : -1;
+        }
+        //the stored frames have wrapped, free space is between writePos and the oldest frame
+        return (writePos + size <= oldest) ? writePos : -1;
+    }
+
+    /**
+     * Drops the oldest key frame and every frame depending on it.
+     */
+    private void dropOldestGroup()
+    {
+        do
+        {
+            head = (head + 1) % maxFrames;
+            count--;
+        }
+        while (count > 0 && !frameKey[head]);
+    }
+
+    /**
+     * Drops whole groups as long as the remaining frames still cover the buffer window.
+     *
+     * @param latestPts the presentation time of the newest frame
+     */
+    private void trimToWindow(long latestPts)
+    {
+        //find the newest key frame that is at least windowUs old; everything before it can go
+        int keep = -1;
+        for (int i = 1; i < count; i++)
+        {
+            int index = (head + i) % maxFrames;
+            if (latestPts - framePts[index] < windowUs)
+            {
+                break;
+            }
+            if (frameKey[index])
+            {
+                keep = i;
+            }
+        }
+        if (keep > 0)
+        {
+            head = (head + keep) % maxFrames;
+            count -= keep;
+        }
+    }
+
+    /**
+     * Hands all stored frames, oldest first, to the specified consumer.
+     *
+     * @param consumer the consumer receiving the frames
+     */
+    public synchronized void drain(FrameConsumer consumer)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            int index = (head + i) % maxFrames;
+            consumer.onFrame(store, frameOffsets[index], frameSizes[index], framePts[index], frameKey[index]);
+        }
+    }
+
+    /**
+     * Drops all stored frames.
+     */
+    public synchronized void clear()
+    {
+        head = 0;
+        count = 0;
+        writePos = 0;
+    }
+
+    /**
+     * @return the number of frames currently stored
+     */
+    public synchronized int getFrameCount()
+    {
+        return count;
+    }
+
+    /**
+     * @return the span (in microseconds) between the oldest and newest stored frames
+     */
+    public synchronized long getDurationUs()
+    {
+        if (count == 0)
+        {
+            return 0;
+        }
+        return framePts[(head + count - 1) % maxFrames] - framePts[head];
+    }
+}
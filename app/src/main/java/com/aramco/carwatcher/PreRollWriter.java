@@ -0,0 +1,97 @@
+package com.aramco.carwatcher;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a clip that starts with the contents of a PreRollBuffer and continues with the live
+ * encoded frames, without re-encoding anything.
+ */
+public class PreRollWriter implements PreRollBuffer.FrameConsumer
+{
+    private MediaMuxer muxer;
+    private int track;
+    //reused for every written frame
+    private MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    //the clip must start with a key frame
+    private boolean started = false;
+    //presentation time of the last written frame
+    private long lastPts = -1;
+    //the timing of the written frames
+    private FrameTiming timing = new FrameTiming();
+
+    /**
+     * @param path the path of the clip file to create
+     * @param format the output format reported by the encoder
+     * @param orientationHint the rotation (in degrees) players should apply to the clip
+     */
+    public PreRollWriter(String path, MediaFormat format, int orientationHint) throws IOException
+    {
+        muxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        muxer.setOrientationHint(orientationHint);
+        track = muxer.addTrack(format);
+        muxer.start();
+    }
+
+    /**
+     * Writes everything currently held by the specified buffer to the clip.
+     */
+    public void writeBuffered(PreRollBuffer buffer)
+    {
+        buffer.drain(this);
+    }
+
+    @Override
+    public void onFrame(ByteBuffer store, int offset, int size, long presentationTimeUs, boolean keyFrame)
+    {
+        writeFrame(store, offset, size, presentationTimeUs, keyFrame);
+    }
+
+    /**
+     * Appends an encoded frame to the clip. Frames preceding the first key frame, and frames
+     * that are not newer than the last written one, are skipped.
+     */
+    public void writeFrame(ByteBuffer data, int offset, int size, long presentationTimeUs, boolean keyFrame)
+    {
+        if (!started && !keyFrame)
+        {
+            return;
+        }
+        if (presentationTimeUs <= lastPts)
+        {
+            return;
+        }
+        started = true;
+        info.set(offset, size, presentationTimeUs, keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        muxer.writeSampleData(track, data, info);
+        timing.onFrame(presentationTimeUs);
+        lastPts = presentationTimeUs;
+    }
+
+    /**
+     * Finalizes the clip file.
+     *
+     * @return the timing of the frames written to the clip
+     */
+    public FrameTiming finish()
+    {
+        try
+        {
+            //a muxer that never received a sample cannot be stopped cleanly
+            if (started)
+            {
+                muxer.stop();
+            }
+        }
+        catch (IllegalStateException e)
+        {
+            e.printStackTrace();
+        }
+        muxer.release();
+        return timing;
+    }
+}
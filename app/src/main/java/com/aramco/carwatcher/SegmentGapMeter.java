@@ -0,0 +1,134 @@
+package com.aramco.carwatcher;
+
+/**
+ * Measures the hole left in the footage whenever a continuous capture rolls over from one
+ * segment file to the next; the gap is the number of frames missing between the last frame
+ * of a segment and the first frame of the next one.
+ *
+ * When the backend switches files by itself, it knows both frames and reports them with
+ * onCut. When the recording is restarted instead, the meter is fed the sensor timestamp of
+ * every frame delivered by the camera and is told when the boundary happens. MediaRecorder
+ * switches files by itself without telling which frames went where, so its cuts are measured
+ * like a restart, from the camera frames on both sides of the moment it reports the switch:
+ * that catches the camera stalling at the cut, but not frames the recorder drops itself.
+ */
+public class SegmentGapMeter
+{
+    //the expected time between two consecutive frames (in nanoseconds)
+    private final long frameIntervalNs;
+    //sensor timestamp of the most recently delivered frame
+    private long lastFrameNs = -1;
+    //sensor timestamp of the last frame before a boundary (-1 when no boundary is pending)
+    private long boundaryFrameNs = -1;
+    //true between a call to markBoundary and the first frame after it
+    private boolean boundaryPending = false;
+    //gap figures for all measured boundaries
+    private int lastGapFrames = 0;
+    private int maxGapFrames = 0;
+    private long totalGapFrames = 0;
+    private int boundaries = 0;
+
+    /**
+     * @param frameRate the frame rate the camera is expected to deliver
+     */
+    public SegmentGapMeter(int frameRate)
+    {
+        frameIntervalNs = 1000000000L / frameRate;
+    }
+
+    /**
+     * Called for every frame the camera delivers to the recorder.
+     *
+     * @param timestampNs the sensor timestamp of the frame
+     * @return true if this frame closed a boundary (i.e. a new gap figure is available)
+     */
+    public synchronized boolean onFrame(long timestampNs)
+    {
+        boolean measured = false;
+        if (boundaryPending && boundaryFrameNs >= 0)
+        {
+            record(timestampNs - boundaryFrameNs);
+            boundaryPending = false;
+            measured = true;
+        }
+        lastFrameNs = timestampNs;
+        return measured;
+    }
+
+    /**
+     * Called when the backend switched files by itself, with the frames on both sides of the
+     * cut. Nothing is measured if either of them is unknown.
+     *
+     * @param lastTimeUs the presentation time of the last frame written to the old file
+     * @param firstTimeUs the presentation time of the first frame written to the new file
+     * @return true if a new gap figure is available
+     */
+    public synchronized boolean onCut(long lastTimeUs, long firstTimeUs)
+    {
+        if (lastTimeUs < 0 || firstTimeUs < 0)
+        {
+            return false;
+        }
+        record((firstTimeUs - lastTimeUs) * 1000);
+        return true;
+    }
+
+    private void record(long gapNs)
+    {
+        //a delta of one frame interval means no frames were lost, so round to the
+        //nearest interval and subtract that one
+        int gapFrames = (int)Math.max(0, (gapNs + frameIntervalNs / 2) / frameIntervalNs - 1);
+        lastGapFrames = gapFrames;
+        maxGapFrames = Math.max(maxGapFrames, gapFrames);
+        totalGapFrames += gapFrames;
+        boundaries++;
+    }
+
+    /**
+     * Marks the end of a segment. The next frame to arrive is considered the first frame
+     * of the following segment.
+     */
+    public synchronized void markBoundary()
+    {
+        boundaryFrameNs = lastFrameNs;
+        boundaryPending = true;
+    }
+
+    /**
+     * Discards any pending boundary, e.g. when the capture is stopped for good.
+     */
+    public synchronized void reset()
+    {
+        boundaryPending = false;
+        boundaryFrameNs = -1;
+        lastFrameNs = -1;
+    }
+
+    public synchronized int getLastGapFrames()
+    {
+        return lastGapFrames;
+    }
+
+    public synchronized int getMaxGapFrames()
+    {
+        return maxGapFrames;
+    }
+
+    public synchronized long getTotalGapFrames()
+    {
+        return totalGapFrames;
+    }
+
+    public synchronized int getBoundaries()
+    {
+        return boundaries;
+    }
+
+    /**
+     * @return the measured gap of the last boundary in milliseconds
+     */
+    public synchronized long getLastGapMillis()
+    {
+        return lastGapFrames * frameIntervalNs / 1000000L;
+    }
+}
@@ -0,0 +1,114 @@
+package com.aramco.carwatcher;
+
+/**
+ * Keeps track of the size and duration of the segment a backend is writing, and tells it when
+ * to move on to the next one. A segment can only be cut on a key frame, so the next file is
+ * asked for a few frames before a limit is reached; the backend then requests a key frame and
+ * cuts on it, which keeps segments just under their limits instead of drifting past them.
+ * Durations count the last frame for as long as an average frame.
+ */
+public class SegmentLimits
+{
+    //the most frames a backend writes to a segment after asking for the next one, i.e. the
+    //time it takes the encoder to come up with the requested key frame
+    static final int LEAD_FRAMES = 3;
+
+    //the most bytes and microseconds a segment should hold (0 means no limit)
+    private final long maxBytes;
+    private final long maxDurationUs;
+    //the timestamp of the first frame of the segment, -1 before it
+    private long firstTimeUs = -1;
+    private long lastTimeUs = -1;
+    private int frameCount = 0;
+    private long bytes = 0;
+    //the largest frame of the segment so far (normally a key frame)
+    private int largestFrame = 0;
+    //true once the segment was found to need cutting
+    private boolean reached = false;
+
+    /**
+     * @param maxBytes the most bytes a segment should hold, or 0 for no limit
+     * @param maxDurationMillis the longest a segment should last (in milliseconds), or 0 for
+     * no limit
+     */
+    public SegmentLimits(long maxBytes, long maxDurationMillis)
+    {
+        this.maxBytes = maxBytes;
+        this.maxDurationUs = maxDurationMillis * 1000;
+    }
+
+    /**
+     * Starts over with a new segment.
+     */
+    public void reset()
+    {
+        firstTimeUs = -1;
+        lastTimeUs = -1;
+        frameCount = 0;
+        bytes = 0;
+        largestFrame = 0;
+        reached = false;
+    }
+
+    /**
+     * Called for every frame written to the segment.
+     *
+     * @param timeUs the presentation time of the frame in microseconds
+     * @param size the size of the frame in bytes
+     * @return true (only once per segment) if the segment should be cut as soon as possible
+     */
+    public boolean onFrame(long timeUs, int size)
+    {
+        if (firstTimeUs < 0)
+        {
+            firstTimeUs = timeUs;
+        }
+        lastTimeUs = timeUs;
+        frameCount++;
+        bytes += size;
+        largestFrame = Math.max(largestFrame, size);
+        if (reached)
+        {
+            return false;
+        }
+        //if the next frame could leave no room for the frames written before the cut, it's
+        //time to ask for the next segment
+        int frames = LEAD_FRAMES + 1;
+        if (maxBytes > 0 && bytes + (long)frames * largestFrame > maxBytes)
+        {
+            reached = true;
+        }
+        else if (maxDurationUs > 0 && frameCount > 1 &&
+                getDurationUs() + frames * getFrameIntervalUs() > maxDurationUs)
+        {
+            reached = true;
+        }
+        return reached;
+    }
+
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * @return the duration of the segment in microseconds; the last frame counts for as long
+     * as an average frame
+     */
+    public long getDurationUs()
+    {
+        if (frameCount < 2)
+        {
+            return 0;
+        }
+        return lastTimeUs - firstTimeUs + getFrameIntervalUs();
+    }
+
+    /**
+     * @return the average time between two frames in microseconds
+     */
+    private long getFrameIntervalUs()
+    {
+        return (lastTimeUs - firstTimeUs) / (frameCount - 1);
+    }
+}
@@ -0,0 +1,510 @@
+package com.aramco.carwatcher;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The loop recording store used by continuous capture. It is a fixed pool of segment files
+ * ("slots") that are allocated once and then reused round-robin, so the oldest footage is
+ * overwritten in place instead of deleting and creating files on every rotation. A small
+ * index file keeps track of what each slot holds.
+ *
+ * Saving a segment as a video is just a rename of its slot file; the slot is allocated again
+ * the next time it comes around. A slot can also be pinned while something reads from it,
+ * in which case it is skipped until it is unpinned.
+ */
+public class SegmentLoop
+{
+    private static final String TAG = "SegmentLoop";
+    private static final String INDEX_FILE = "loop.idx";
+    private static final int INDEX_MAGIC = 0x43574c50;
+    private static final int INDEX_VERSION = 1;
+    //the slot holds nothing worth keeping
+    public static final int STATE_FREE = 0;
+    //the slot is being recorded into
+    public static final int STATE_RECORDING = 1;
+    //the slot holds a finished segment
+    public static final int STATE_DONE = 2;
+    //the top level MP4 boxes a finished segment can contain
+    private static final String[] MP4_BOXES = {"ftyp", "moov", "mdat", "free", "skip", "wide", "uuid", "udta", "meta"};
+
+    /**
+     * A single segment file of the loop.
+     */
+    public class Slot
+    {
+        private final int index;
+        private long sequence;
+        private long startTime;
+        private long length;
+        private int state = STATE_FREE;
+        //the number of readers that need the segment, which keep the slot from being reused
+        private int pins = 0;
+
+        private Slot(int index)
+        {
+            this.index = index;
+        }
+
+        /**
+         * @return the file name of the slot, relative to the CarWatcher directory
+         */
+        public String getFileName()
+        {
+            return dir.getName() + "/" + String.format("slot_%02d.mp4", index);
+        }
+
+        public File getFile()
+        {
+            return new File(dir, String.format("slot_%02d.mp4", index));
+        }
+
+        /**
+         * @return the recording order of the segment (higher is newer)
+         */
+        public long getSequence()
+        {
+            return sequence;
+        }
+
+        /**
+         * @return when recording of the segment started (in milliseconds since the epoch)
+         */
+        public long getStartTime()
+        {
+            return startTime;
+        }
+
+        /**
+         * @return the number of bytes of the slot file holding the finished segment
+         */
+        public long getLength()
+        {
+            return length;
+        }
+
+        public int getState()
+        {
+            return state;
+        }
+    }
+
+    private final File dir;
+    private final long slotBytes;
+    private final Slot[] slots;
+    //the number of slots actually usable; can end up lower than slots.length if there
+    //isn't enough free space to allocate them all
+    private int usableSlots;
+    //the slot that was acquired last
+    private int lastIndex = -1;
+    private long nextSequence = 1;
+
+    /**
+     * @param dir the directory holding the slot files and the index
+     * @param slotCount the number of segments kept by the loop
+     * @param slotBytes the size each slot file is allocated with
+     */
+    public SegmentLoop(File dir, int slotCount, long slotBytes)
+    {
+        this.dir = dir;
+        this.slotBytes = slotBytes;
+        slots = new Slot[slotCount];
+        for (int i = 0; i < slotCount; i++)
+        {
+            slots[i] = new Slot(i);
+        }
+        usableSlots = slotCount;
+    }
+
+    /**
+     * Loads the loop index, if there is one. A slot that was still being recorded into
+     * (e.g. the app was killed) is treated as a finished segment.
+     */
+    public synchronized void open()
+    {
+        if (!dir.exists())
+        {
+            dir.mkdirs();
+        }
+        File indexFile = new File(dir, INDEX_FILE);
+        if (!indexFile.exists())
+        {
+            return;
+        }
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new FileInputStream(indexFile));
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION)
+            {
+                return;
+            }
+            int count = in.readInt();
+            lastIndex = in.readInt();
+            nextSequence = in.readLong();
+            for (int i = 0; i < count; i++)
+            {
+                long sequence = in.readLong();
+                long startTime = in.readLong();
+                long length = in.readLong();
+                int state = in.readByte();
+                //the loop may have been resized since the index was written
+                if (i >= slots.length)
+                {
+                    continue;
+                }
+                Slot slot = slots[i];
+                slot.sequence = sequence;
+                slot.startTime = startTime;
+                slot.length = length;
+                slot.state = state;
+                if (state == STATE_RECORDING)
+                {
+                    slot.length = validLength(slot.getFile());
+                    slot.state = (slot.length > 0) ? STATE_DONE : STATE_FREE;
+                }
+            }
+            if (lastIndex >= slots.length)
+            {
+                lastIndex = -1;
+            }
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Could not read loop index", e);
+        }
+        finally
+        {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Hands out the next slot to record into, overwriting its previous segment. Pinned slots
+     * are skipped.
+     *
+     * @return the slot to record into, or null if no slot could be allocated
+     */
+    public synchronized Slot acquire()
+    {
+        while (usableSlots > 0)
+        {
+            int index = nextUnpinned();
+            if (index < 0)
+            {
+                Log.w(TAG, "All slots are pinned");
+                return null;
+            }
+            Slot slot = slots[index];
+            if (allocate(slot.getFile()))
+            {
+                lastIndex = index;
+                slot.sequence = nextSequence++;
+                slot.startTime = System.currentTimeMillis();
+                slot.length = 0;
+                slot.state = STATE_RECORDING;
+                saveIndex();
+                return slot;
+            }
+            //out of space: the loop can only use the slots before this one
+            Log.w(TAG, "Could not allocate slot " + index + ", shrinking loop");
+            usableSlots = index;
+            lastIndex = -1;
+        }
+        return null;
+    }
+
+    /**
+     * @return the index of the next slot in round-robin order that isn't pinned, or -1
+     */
+    private int nextUnpinned()
+    {
+        for (int i = 1; i <= usableSlots; i++)
+        {
+            int index = (lastIndex + i) % usableSlots;
+            if (slots[index].pins == 0)
+            {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Keeps the segment held by a slot from being overwritten until it is unpinned, e.g.
+     * while a clip is being cut out of it.
+     */
+    public synchronized void pin(Slot slot)
+    {
+        slot.pins++;
+    }
+
+    public synchronized void unpin(Slot slot)
+    {
+        if (slot.pins > 0)
+        {
+            slot.pins--;
+        }
+    }
+
+    /**
+     * Marks a slot as holding a finished segment.
+     */
+    public synchronized void commit(Slot slot)
+    {
+        if (slot.state != STATE_RECORDING)
+        {
+            return;
+        }
+        slot.length = validLength(slot.getFile());
+        slot.state = STATE_DONE;
+        saveIndex();
+    }
+
+    /**
+     * Returns a slot that was acquired but never recorded into.
+     */
+    public synchronized void discard(Slot slot)
+    {
+        slot.state = STATE_FREE;
+        slot.length = 0;
+        saveIndex();
+    }
+
+    /**
+     * Turns the segment held by a slot into a standalone file, by trimming the slot file to
+     * the segment's length and renaming it. No video data is copied.
+     *
+     * @param slot the slot holding the segment
+     * @param destination the file the segment should become
+     * @return true if the segment was moved to destination
+     */
+    public synchronized boolean promote(Slot slot, File destination)
+    {
+        commit(slot);
+        if (slot.state != STATE_DONE || slot.length <= 0)
+        {
+            return false;
+        }
+        RandomAccessFile file = null;
+        try
+        {
+            file = new RandomAccessFile(slot.getFile(), "rw");
+            file.setLength(slot.length);
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Could not trim slot " + slot.index, e);
+            return false;
+        }
+        finally
+        {
+            closeQuietly(file);
+        }
+        if (!slot.getFile().renameTo(destination))
+        {
+            return false;
+        }
+        //the slot file is gone, it will be allocated again when the slot is reused
+        slot.state = STATE_FREE;
+        slot.length = 0;
+        saveIndex();
+        return true;
+    }
+
+    /**
+     * @return the slots holding finished segments, oldest first
+     */
+    public synchronized List<Slot> getSegments()
+    {
+        List<Slot> segments = new ArrayList<Slot>();
+        for (Slot slot : slots)
+        {
+            if (slot.state == STATE_DONE)
+            {
+                segments.add(slot);
+            }
+        }
+        Collections.sort(segments, new Comparator<Slot>() {
+            @Override
+            public int compare(Slot a, Slot b)
+            {
+                return Long.compare(a.sequence, b.sequence);
+            }
+        });
+        return segments;
+    }
+
+    /**
+     * Makes sure the specified slot file has all of its blocks allocated. Blocks that are
+     * already allocated are kept, so reusing a slot doesn't touch the file system metadata.
+     *
+     * @return false if the file could not be allocated because the storage is full
+     */
+    private boolean allocate(File file)
+    {
+        RandomAccessFile raf = null;
+        try
+        {
+            raf = new RandomAccessFile(file, "rw");
+            try
+            {
+                Os.posix_fallocate(raf.getFD(), 0, slotBytes);
+            }
+            catch (ErrnoException e)
+            {
+                if (e.errno == OsConstants.ENOSPC)
+                {
+                    raf.close();
+                    raf = null;
+                    file.delete();
+                    return false;
+                }
+                //the file system doesn't support allocation, a plain resize will have to do
+                if (raf.length() < slotBytes)
+                {
+                    raf.setLength(slotBytes);
+                }
+            }
+            return true;
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Could not allocate " + file, e);
+            return false;
+        }
+        finally
+        {
+            closeQuietly(raf);
+        }
+    }
+
+    /**
+     * Finds how many bytes at the start of a slot file make up a complete MP4 file, by walking
+     * its top level boxes. Whatever follows is left over from older segments.
+     *
+     * @return the length of the MP4 file at the start of the slot, or 0 if there is none
+     */
+    static long validLength(File file)
+    {
+        RandomAccessFile raf = null;
+        try
+        {
+            raf = new RandomAccessFile(file, "r");
+            long fileLength = raf.length();
+            long offset = 0;
+            boolean hasMovie = false;
+            byte[] type = new byte[4];
+            while (offset + 8 <= fileLength)
+            {
+                raf.seek(offset);
+                long size = raf.readInt() & 0xffffffffL;
+                raf.readFully(type);
+                if (size == 1)
+                {
+                    size = raf.readLong();
+                }
+                if (size < 8 || offset + size > fileLength || !isMp4Box(type))
+                {
+                    break;
+                }
+                if (type[0] == 'm' && type[1] == 'o' && type[2] == 'o' && type[3] == 'v')
+                {
+                    hasMovie = true;
+                }
+                offset += size;
+            }
+            //without a movie box the data can't be played
+            return hasMovie ? offset : 0;
+        }
+        catch (IOException e)
+        {
+            return 0;
+        }
+        finally
+        {
+            closeQuietly(raf);
+        }
+    }
+
+    private static boolean isMp4Box(byte[] type)
+    {
+        String name = new String(type);
+        for (String box : MP4_BOXES)
+        {
+            if (box.equals(name))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the index to a temporary file and moves it in place, so a crash can never
+     * leave a half-written index behind.
+     */
+    private void saveIndex()
+    {
+        File indexFile = new File(dir, INDEX_FILE);
+        File tempFile = new File(dir, INDEX_FILE + ".tmp");
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream(new FileOutputStream(tempFile));
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(slots.length);
+            out.writeInt(lastIndex);
+            out.writeLong(nextSequence);
+            for (Slot slot : slots)
+            {
+                out.writeLong(slot.sequence);
+                out.writeLong(slot.startTime);
+                out.writeLong(slot.length);
+                out.writeByte(slot.state);
+            }
+            out.close();
+            out = null;
+            tempFile.renameTo(indexFile);
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Could not write loop index", e);
+        }
+        finally
+        {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable)
+    {
+        if (closeable == null)
+        {
+            return;
+        }
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException e)
+        {
+            //nothing to do
+        }
+    }
+}
@@ -10,6 +10,7 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.support.v4.app.ActivityCompat;
 import android.support.v7.app.AppCompatActivity;
+import android.os.Build;
 import android.os.Bundle;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -20,7 +21,9 @@ import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.RadioButton;
 import android.widget.Spinner;
+import android.widget.TextView;
 
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -33,6 +36,23 @@ public class SettingsActivity extends AppCompatActivity
     private CheckBox bluetoothCheckBox;
     private Spinner pairedNamesSpinner;
     private Spinner timeoutSpinner;
+    private Spinner preRollSpinner;
+    private Spinner engineSpinner;
+    private Spinner loopSpinner;
+    private Spinner qualitySpinner;
+    private Spinner codecSpinner;
+    private Spinner quotaSpinner;
+    private Spinner metadataRateSpinner;
+    private CheckBox evictSubmittedCheckBox;
+    private TextView quotaTextView;
+    private CheckBox armedCheckBox;
+    private CheckBox parkingCheckBox;
+    private CheckBox motionCheckBox;
+    private CheckBox proxyCheckBox;
+    private CheckBox stillCheckBox;
+    private CheckBox bookmarkCheckBox;
+    private TextView latencyTextView;
+    private TextView traceTextView;
     //the current language setting (0: english, 1: arabic)
     private int language;
     //the current bluetooth enabled setting
@@ -46,6 +66,38 @@ public class SettingsActivity extends AppCompatActivity
     public final static String BLUETOOTH_SETTING = "BLUETOOTH_SETTING";
     public final static String TIMEOUT_SETTING = "TIMEOUT_SETTING";
     public final static int DEFAULT_TIMEOUT = 120;
+    public final static String PRE_ROLL_SETTING = "PRE_ROLL_SETTING";
+    public final static int DEFAULT_PRE_ROLL = 10;
+    public final static String ENGINE_SETTING = "ENGINE_SETTING";
+    public final static int ENGINE_MEDIA_RECORDER = 0;
+    public final static int ENGINE_MEDIA_CODEC = 1;
+    public final static String LOOP_SETTING = "LOOP_SETTING";
+    public final static int DEFAULT_LOOP = 120;
+    public final static String QUALITY_SETTING = "QUALITY_SETTING";
+    public final static int QUALITY_SAVER = 0;
+    public final static int QUALITY_BALANCED = 1;
+    public final static int QUALITY_HIGH = 2;
+    public final static String CODEC_SETTING = "CODEC_SETTING";
+    public final static int CODEC_H264 = 0;
+    public final static int CODEC_HEVC = 1;
+    public final static String ARMED_SETTING = "ARMED_SETTING";
+    //whether a continuous capture turns into a time-lapse while the car is parked
+    public final static String PARKING_SETTING = "PARKING_SETTING";
+    //whether motion in front of the camera saves a clip of a continuous capture
+    public final static String MOTION_SETTING = "MOTION_SETTING";
+    //whether a low bit rate proxy is recorded next to every standalone recording
+    public final static String PROXY_SETTING = "PROXY_SETTING";
+    //whether holding the button takes a full resolution still from the running capture
+    public final static String STILL_SETTING = "STILL_SETTING";
+    //whether a click during a continuous capture bookmarks the moment instead of saving a clip
+    public final static String BOOKMARK_SETTING = "BOOKMARK_SETTING";
+    //the location samples per second embedded in every recording (0 embeds none)
+    public final static String METADATA_RATE_SETTING = "METADATA_RATE_SETTING";
+    public final static int DEFAULT_METADATA_RATE = 1;
+    //the storage budget for captured videos (in GB)
+    public final static String QUOTA_SETTING = "QUOTA_SETTING";
+    public final static int DEFAULT_QUOTA = 8;
+    public final static String EVICT_SUBMITTED_SETTING = "EVICT_SUBMITTED_SETTING";
     public final static String SETTINGS_FILE = "CarWatcherSettings";
     //the list of paired bluetooth devices
     private List<BluetoothDevice> pairedDevices;
@@ -66,11 +118,42 @@ public class SettingsActivity extends AppCompatActivity
         bluetoothCheckBox = (CheckBox)findViewById(R.id.settings_bluetooth_enabled);
         pairedNamesSpinner = (Spinner)findViewById(R.id.settings_bluetooth_spinner);
         timeoutSpinner = (Spinner)findViewById(R.id.settings_timeout_spinner);
+        preRollSpinner = (Spinner)findViewById(R.id.settings_pre_roll_spinner);
+        engineSpinner = (Spinner)findViewById(R.id.settings_engine_spinner);
+        loopSpinner = (Spinner)findViewById(R.id.settings_loop_spinner);
+        qualitySpinner = (Spinner)findViewById(R.id.settings_quality_spinner);
+        codecSpinner = (Spinner)findViewById(R.id.settings_codec_spinner);
+        quotaSpinner = (Spinner)findViewById(R.id.settings_quota_spinner);
+        metadataRateSpinner = (Spinner)findViewById(R.id.settings_metadata_rate_spinner);
+        evictSubmittedCheckBox = (CheckBox)findViewById(R.id.settings_evict_submitted);
+        quotaTextView = (TextView)findViewById(R.id.settings_quota);
+        armedCheckBox = (CheckBox)findViewById(R.id.settings_armed);
+        parkingCheckBox = (CheckBox)findViewById(R.id.settings_parking);
+        motionCheckBox = (CheckBox)findViewById(R.id.settings_motion);
+        proxyCheckBox = (CheckBox)findViewById(R.id.settings_proxy);
+        stillCheckBox = (CheckBox)findViewById(R.id.settings_still);
+        bookmarkCheckBox = (CheckBox)findViewById(R.id.settings_bookmark);
+        latencyTextView = (TextView)findViewById(R.id.settings_latency);
+        traceTextView = (TextView)findViewById(R.id.settings_trace);
         //get current settings (if they've been configured previously)
         SharedPreferences sharedPref = getSharedPreferences(SETTINGS_FILE, Context.MODE_PRIVATE);
         language = sharedPref.getInt(LANGUAGE_SETTING, 0);
         bluetooth = sharedPref.getInt(BLUETOOTH_ENABLED_SETTING, 0) == 1;
         int timeout = sharedPref.getInt(TIMEOUT_SETTING, DEFAULT_TIMEOUT);
+        int preRoll = sharedPref.getInt(PRE_ROLL_SETTING, DEFAULT_PRE_ROLL);
+        int engine = sharedPref.getInt(ENGINE_SETTING, ENGINE_MEDIA_RECORDER);
+        int loop = sharedPref.getInt(LOOP_SETTING, DEFAULT_LOOP);
+        int quality = sharedPref.getInt(QUALITY_SETTING, QUALITY_BALANCED);
+        int codec = sharedPref.getInt(CODEC_SETTING, CODEC_H264);
+        boolean armed = sharedPref.getInt(ARMED_SETTING, 0) == 1;
+        boolean parking = sharedPref.getInt(PARKING_SETTING, 1) == 1;
+        boolean motion = sharedPref.getInt(MOTION_SETTING, 0) == 1;
+        boolean proxy = sharedPref.getInt(PROXY_SETTING, 0) == 1;
+        boolean still = sharedPref.getInt(STILL_SETTING, 0) == 1;
+        boolean bookmark = sharedPref.getInt(BOOKMARK_SETTING, 0) == 1;
+        int metadataRate = sharedPref.getInt(METADATA_RATE_SETTING, DEFAULT_METADATA_RATE);
+        int quota = sharedPref.getInt(QUOTA_SETTING, DEFAULT_QUOTA);
+        boolean evictSubmitted = sharedPref.getInt(EVICT_SUBMITTED_SETTING, 0) == 1;
 
         //need permission to use bluetooth
         if (ActivityCompat.checkSelfPermission(this, android.Manifest.permission.BLUETOOTH)
@@ -125,6 +208,149 @@ public class SettingsActivity extends AppCompatActivity
             }
         }
 
+        List<String> preRolls = new LinkedList<String>();
+        preRolls.add("0");
+        preRolls.add("5");
+        preRolls.add("10");
+        preRolls.add("20");
+        preRolls.add("30");
+        ArrayAdapter<String> preRollAdapter =
+            new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1, preRolls);
+        preRollAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        preRollSpinner.setAdapter(preRollAdapter);
+        for (int i = 0; i < preRolls.size(); i++)
+        {
+            if (Integer.valueOf(preRolls.get(i)) == preRoll)
+            {
+                preRollSpinner.setSelection(i);
+            }
+        }
+
+        //the position of each engine in the list is its setting value
+        List<String> engines = new LinkedList<String>();
+        engines.add(getResources().getString(R.string.engine_media_recorder));
+        engines.add(getResources().getString(R.string.engine_media_codec));
+        ArrayAdapter<String> engineAdapter =
+            new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1, engines);
+        engineAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        engineSpinner.setAdapter(engineAdapter);
+        engineSpinner.setSelection(engine);
+
+        List<String> loops = new LinkedList<String>();
+        loops.add("30");
+        loops.add("60");
+        loops.add("120");
+        loops.add("240");
+        ArrayAdapter<String> loopAdapter =
+            new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1, loops);
+        loopAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        loopSpinner.setAdapter(loopAdapter);
+        for (int i = 0; i < loops.size(); i++)
+        {
+            if (Integer.valueOf(loops.get(i)) == loop)
+            {
+                loopSpinner.setSelection(i);
+            }
+        }
+
+        //the position of each quality tier in the list is its setting value
+        List<String> qualities = new LinkedList<String>();
+        qualities.add(getResources().getString(R.string.quality_saver));
+        qualities.add(getResources().getString(R.string.quality_balanced));
+        qualities.add(getResources().getString(R.string.quality_high));
+        ArrayAdapter<String> qualityAdapter =
+            new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1, qualities);
+        qualityAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        qualitySpinner.setAdapter(qualityAdapter);
+        qualitySpinner.setSelection(quality);
+
+        //the position of each codec in the list is its setting value
+        List<String> codecs = new LinkedList<String>();
+        codecs.add(getResources().getString(R.string.codec_h264));
+        codecs.add(getResources().getString(R.string.codec_hevc));
+        ArrayAdapter<String> codecAdapter =
+            new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1, codecs);
+        codecAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        codecSpinner.setAdapter(codecAdapter);
+        codecSpinner.setSelection(codec);
+
+        List<String> quotas = new LinkedList<String>();
+        quotas.add("2");
+        quotas.add("4");
+        quotas.add("8");
+        quotas.add("16");
+        quotas.add("32");
+        quotas.add("64");
+        ArrayAdapter<String> quotaAdapter =
+            new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1, quotas);
+        quotaAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        quotaSpinner.setAdapter(quotaAdapter);
+        for (int i = 0; i < quotas.size(); i++)
+        {
+            if (Integer.valueOf(quotas.get(i)) == quota)
+            {
+                quotaSpinner.setSelection(i);
+            }
+        }
+
+        List<String> metadataRates = new LinkedList<String>();
+        metadataRates.add("0");
+        metadataRates.add("1");
+        metadataRates.add("2");
+        metadataRates.add("5");
+        metadataRates.add("10");
+        ArrayAdapter<String> metadataRateAdapter =
+            new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1, metadataRates);
+        metadataRateAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        metadataRateSpinner.setAdapter(metadataRateAdapter);
+        for (int i = 0; i < metadataRates.size(); i++)
+        {
+            if (Integer.valueOf(metadataRates.get(i)) == metadataRate)
+            {
+                metadataRateSpinner.setSelection(i);
+            }
+        }
+        evictSubmittedCheckBox.setChecked(evictSubmitted);
+        parkingCheckBox.setChecked(parking);
+        motionCheckBox.setChecked(motion);
+        proxyCheckBox.setChecked(proxy);
+        stillCheckBox.setChecked(still);
+        bookmarkCheckBox.setChecked(bookmark);
+        quotaTextView.setText(getResources().getString(R.string.quota_summary,
+                StorageQuota.getEvictedCount(this), StorageQuota.getReclaimed(this) / (1024 * 1024)));
+
+        //keeping the camera ready requires a persistent encoder surface (API 23)
+        armedCheckBox.setChecked(armed);
+        armedCheckBox.setEnabled(Build.VERSION.SDK_INT >= Build.VERSION_CODES.M);
+        StringBuilder latency = new StringBuilder(getResources().getString(R.string.latency_summary,
+                ClickLatencyStats.getAverage(this, false), ClickLatencyStats.getCount(this, false),
+                ClickLatencyStats.getAverage(this, true), ClickLatencyStats.getCount(this, true)));
+        if (ClickLatencyStats.getStillCount(this) > 0)
+        {
+            latency.append("\n").append(getResources().getString(R.string.still_latency_summary,
+                    ClickLatencyStats.getStillAverage(this), ClickLatencyStats.getStillMax(this),
+                    ClickLatencyStats.getStillCount(this)));
+        }
+        latencyTextView.setText(latency);
+        //show where the time goes in each stage of a capture
+        CaptureTrace.flush(this);
+        String[] stageNames = getResources().getStringArray(R.array.trace_stages);
+        StringBuilder trace = new StringBuilder(getResources().getString(R.string.trace_summary));
+        for (CaptureTrace.StageSummary summary : CaptureTrace.summarize(this))
+        {
+            trace.append("\n").append(getResources().getString(R.string.trace_stage,
+                    stageNames[summary.getStage()], summary.getP50(), summary.getP95(),
+                    summary.getP99(), summary.getCount()));
+        }
+        //and whether the storage ever had the recording throttled
+        List<Integer> throttleLevels = CaptureTrace.getThrottleLevels(this);
+        if (!throttleLevels.isEmpty())
+        {
+            trace.append("\n").append(getResources().getString(R.string.throttle_summary,
+                    throttleLevels.size(), Collections.max(throttleLevels)));
+        }
+        traceTextView.setText(trace);
+
         //set up the views according to last saved settings
         if (language == 1)
         {
@@ -193,7 +419,32 @@ public class SettingsActivity extends AppCompatActivity
                 editor.putString(BLUETOOTH_SETTING, bluetoothAddress);
                 int timeout = Integer.valueOf(timeoutSpinner.getSelectedItem().toString());
                 editor.putInt(TIMEOUT_SETTING, timeout);
+                int preRoll = Integer.valueOf(preRollSpinner.getSelectedItem().toString());
+                editor.putInt(PRE_ROLL_SETTING, preRoll);
+                editor.putInt(ENGINE_SETTING, engineSpinner.getSelectedItemPosition());
+                int loop = Integer.valueOf(loopSpinner.getSelectedItem().toString());
+                editor.putInt(LOOP_SETTING, loop);
+                editor.putInt(QUALITY_SETTING, qualitySpinner.getSelectedItemPosition());
+                editor.putInt(CODEC_SETTING, codecSpinner.getSelectedItemPosition());
+                int quota = Integer.valueOf(quotaSpinner.getSelectedItem().toString());
+                editor.putInt(QUOTA_SETTING, quota);
+                int metadataRate = Integer.valueOf(metadataRateSpinner.getSelectedItem().toString());
+                editor.putInt(METADATA_RATE_SETTING, metadataRate);
+                editor.putInt(EVICT_SUBMITTED_SETTING, evictSubmittedCheckBox.isChecked() ? 1 : 0);
+                boolean armed = armedCheckBox.isChecked();
+                boolean armedChanged = armed != (sharedPref.getInt(ARMED_SETTING, 0) == 1);
+                editor.putInt(ARMED_SETTING, armed ? 1 : 0);
+                editor.putInt(PARKING_SETTING, parkingCheckBox.isChecked() ? 1 : 0);
+                editor.putInt(MOTION_SETTING, motionCheckBox.isChecked() ? 1 : 0);
+                editor.putInt(PROXY_SETTING, proxyCheckBox.isChecked() ? 1 : 0);
+                editor.putInt(STILL_SETTING, stillCheckBox.isChecked() ? 1 : 0);
+                editor.putInt(BOOKMARK_SETTING, bookmarkCheckBox.isChecked() ? 1 : 0);
                 editor.commit();
+                //let the service know right away
+                if (armedChanged)
+                {
+                    startService(CaptureService.newArmIntent(this, armed));
+                }
                 finish();
                 return true;
             default:
@@ -0,0 +1,235 @@
+package com.aramco.carwatcher;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+import com.aramco.carwatcher.VideoDbSchema.VideoTable;
+
+import java.io.File;
+
+import static com.aramco.carwatcher.SettingsActivity.DEFAULT_QUOTA;
+import static com.aramco.carwatcher.SettingsActivity.EVICT_SUBMITTED_SETTING;
+import static com.aramco.carwatcher.SettingsActivity.QUOTA_SETTING;
+import static com.aramco.carwatcher.SettingsActivity.SETTINGS_FILE;
+
+/**
+ * Keeps the captured videos within the storage budget set in the settings. The size of every
+ * video is kept in the database, so the total is added up from the eviction index instead of
+ * going through the files on disk. When the total is over the budget, the oldest videos that
+ * were not submitted are deleted first; submitted videos are only deleted if the settings allow
+ * it. The quota is enforced after every video is added, which only ever has to delete a few.
+ */
+public class StorageQuota
+{
+    private static final String TAG = "StorageQuota";
+    private static final String QUOTA_FILE = "CarWatcherQuota";
+    private static final String EVICTED = "EVICTED";
+    private static final String RECLAIMED = "RECLAIMED";
+    //set once every video has its size in the database
+    private static final String SIZES_KNOWN = "SIZES_KNOWN";
+    //the most videos looked at in one go, both to delete and to find the size of
+    private static final int BATCH_SIZE = 8;
+    private static final long BYTES_PER_GB = 1024L * 1024 * 1024;
+
+    /**
+     * @return the storage budget (in bytes), or 0 if there is none
+     */
+    public static long getBudget(Context context)
+    {
+        SharedPreferences sharedPref = context.getSharedPreferences(SETTINGS_FILE, Context.MODE_PRIVATE);
+        return sharedPref.getInt(QUOTA_SETTING, DEFAULT_QUOTA) * BYTES_PER_GB;
+    }
+
+    /**
+     * @return the bytes taken up by a video file, its thumbnail, its proxy, its stills and its
+     * track
+     */
+    public static long measure(Video video, Context context)
+    {
+        long size = new File(CaptureService.getVideoFilePath(video.getFileName(), context)).length();
+        File thumbnail = VideoThumbnails.getFile(video, context);
+        if (thumbnail != null)
+        {
+            size += thumbnail.length();
+        }
+        File proxy = VideoProxies.getFile(video, context);
+        if (proxy != null)
+        {
+            size += proxy.length();
+        }
+        for (File still : VideoStills.getFiles(video, context))
+        {
+            size += still.length();
+        }
+        File track = VideoTracks.getFile(video, context);
+        if (track != null)
+        {
+            size += track.length();
+        }
+        return size;
+    }
+
+    /**
+     * Deletes the oldest videos until the total is within the budget. This deletes files, so it
+     * should not be called on the main thread.
+     *
+     * @param database the database holding the videos
+     * @param keepId the id of a video that must not be deleted (the one just added)
+     * @return the number of bytes reclaimed
+     */
+    public static long enforce(Context context, SQLiteDatabase database, long keepId)
+    {
+        long budget = getBudget(context);
+        if (budget <= 0)
+        {
+            return 0;
+        }
+        measureUnknown(context, database);
+        long total = getTotal(database);
+        if (total <= budget)
+        {
+            return 0;
+        }
+        SharedPreferences sharedPref = context.getSharedPreferences(SETTINGS_FILE, Context.MODE_PRIVATE);
+        boolean evictSubmitted = sharedPref.getInt(EVICT_SUBMITTED_SETTING, 0) == 1;
+        long reclaimed = 0;
+        int evicted = 0;
+        //unsubmitted videos go first, then (if allowed) submitted ones
+        for (int submitted = 0; submitted <= (evictSubmitted ? 1 : 0) && total > budget; submitted++)
+        {
+            long afterId = 0;
+            while (total > budget)
+            {
+                Cursor cursor = database.query(VideoTable.NAME, null,
+                        VideoTable.Cols.SUBMITTED + " = ? AND _id > ?",
+                        new String[] {String.valueOf(submitted), String.valueOf(afterId)},
+                        null, null, "_id", String.valueOf(BATCH_SIZE));
+                VideoCursorWrapper videoCursor = new VideoCursorWrapper(cursor);
+                int count = 0;
+                try
+                {
+                    videoCursor.moveToFirst();
+                    while (!videoCursor.isAfterLast() && total > budget)
+                    {
+                        Video video = videoCursor.getVideo();
+                        afterId = video.getId();
+                        count++;
+                        videoCursor.moveToNext();
+                        if (video.getId() == keepId)
+                        {
+                            continue;
+                        }
+                        long size = Math.max(0, video.getSize());
+                        new File(CaptureService.getVideoFilePath(video.getFileName(), context)).delete();
+                        VideoThumbnails.delete(video, context);
+                        VideoProxies.delete(video, context);
+                        VideoStills.delete(video, context);
+                        VideoTracks.delete(video, context);
+                        VideoBaseHelper.removeVideo(video, database);
+                        Log.i(TAG, "Evicted " + video.getFileName() + " (" + size + " bytes)");
+                        total -= size;
+                        reclaimed += size;
+                        evicted++;
+                    }
+                }
+                finally
+                {
+                    videoCursor.close();
+                }
+                //nothing older is left to delete
+                if (count == 0)
+                {
+                    break;
+                }
+            }
+        }
+        if (evicted > 0)
+        {
+            SharedPreferences quota = context.getSharedPreferences(QUOTA_FILE, Context.MODE_PRIVATE);
+            quota.edit()
+                .putInt(EVICTED, quota.getInt(EVICTED, 0) + evicted)
+                .putLong(RECLAIMED, quota.getLong(RECLAIMED, 0) + reclaimed)
+                .apply();
+        }
+        if (total > budget)
+        {
+            Log.w(TAG, "Still " + (total - budget) + " bytes over the budget");
+        }
+        Log.i(TAG, "Reclaimed " + reclaimed + " bytes from " + evicted + " videos, " + total + " bytes in use");
+        return reclaimed;
+    }
+
+    /**
+     * @return the bytes taken up by all the videos with a known size
+     */
+    public static long getTotal(SQLiteDatabase database)
+    {
+        Cursor cursor = database.rawQuery("SELECT SUM(" + VideoTable.Cols.SIZE + ") FROM " +
+                VideoTable.NAME + " WHERE " + VideoTable.Cols.SIZE + " > 0", null);
+        try
+        {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the number of videos deleted to stay within the budget so far
+     */
+    public static int getEvictedCount(Context context)
+    {
+        SharedPreferences quota = context.getSharedPreferences(QUOTA_FILE, Context.MODE_PRIVATE);
+        return quota.getInt(EVICTED, 0);
+    }
+
+    /**
+     * @return the bytes reclaimed by deleting videos to stay within the budget so far
+     */
+    public static long getReclaimed(Context context)
+    {
+        SharedPreferences quota = context.getSharedPreferences(QUOTA_FILE, Context.MODE_PRIVATE);
+        return quota.getLong(RECLAIMED, 0);
+    }
+
+    /**
+     * Fills in the size of a few videos that were added before sizes were kept in the
+     * database, until there are none left.
+     */
+    private static void measureUnknown(Context context, SQLiteDatabase database)
+    {
+        SharedPreferences quota = context.getSharedPreferences(QUOTA_FILE, Context.MODE_PRIVATE);
+        if (quota.getBoolean(SIZES_KNOWN, false))
+        {
+            return;
+        }
+        Cursor cursor = database.query(VideoTable.NAME, null, VideoTable.Cols.SIZE + " < 0",
+                null, null, null, "_id", String.valueOf(BATCH_SIZE));
+        VideoCursorWrapper videoCursor = new VideoCursorWrapper(cursor);
+        int count = 0;
+        try
+        {
+            videoCursor.moveToFirst();
+            while (!videoCursor.isAfterLast())
+            {
+                Video video = videoCursor.getVideo();
+                video.setSize(measure(video, context));
+                VideoBaseHelper.updateVideo(video, database);
+                count++;
+                videoCursor.moveToNext();
+            }
+        }
+        finally
+        {
+            videoCursor.close();
+        }
+        if (count < BATCH_SIZE)
+        {
+            quota.edit().putBoolean(SIZES_KNOWN, true).apply();
+        }
+    }
+}
@@ -8,6 +8,8 @@ import java.io.File;
 
 public class Video implements Parcelable
 {
+    //the codec of videos that don't specify one
+    public static final String DEFAULT_CODEC = "video/avc";
     private long id;
     private String title;
     private String fileName;
@@ -16,6 +18,30 @@ public class Video implements Parcelable
     private boolean submitted;
     private String address;
     private LatLng latLng;
+    //the mime type of the video codec
+    private String codec = DEFAULT_CODEC;
+    //the frame timing measured while recording (0 if unknown, e.g. older videos)
+    private long durationMillis;
+    private int frameCount;
+    private float frameRate;
+    //the name of the thumbnail file made at capture time, or null if there is none
+    private String thumbnail;
+    //the bytes the video and its thumbnail take up, or -1 if unknown
+    private long size = -1;
+    //the capture tier the video was recorded at (one of the TIER_ constants in CaptureGovernor)
+    private int tier = CaptureGovernor.TIER_FULL;
+    //how steadily the camera delivered frames while recording (see FrameStats.encode), or
+    //null if unknown
+    private String frameStats;
+    //the name of the low bit rate rendition recorded with the video (see VideoProxies), or
+    //null if there is none
+    private String proxy;
+    //the stills taken while the video was recorded, or just before it (see VideoStills.join),
+    //or null if there are none
+    private String stills;
+    //the name of the file holding the path the video was recorded along (see VideoTracks), or
+    //null if there is none
+    private String track;
 
     /**
      * Constructor taking all the required parameters.
@@ -109,6 +135,143 @@ public class Video implements Parcelable
         this.address = address;
     }
 
+    public String getCodec()
+    {
+        return codec;
+    }
+
+    public void setCodec(String codec)
+    {
+        this.codec = (codec != null) ? codec : DEFAULT_CODEC;
+    }
+
+    /**
+     * @return the duration of the video in milliseconds, or 0 if unknown
+     */
+    public long getDurationMillis()
+    {
+        return durationMillis;
+    }
+
+    public int getFrameCount()
+    {
+        return frameCount;
+    }
+
+    /**
+     * @return the average frame rate measured while recording, or 0 if unknown
+     */
+    public float getFrameRate()
+    {
+        return frameRate;
+    }
+
+    /**
+     * Sets the frame timing measured while recording the video.
+     *
+     * @param durationMillis the duration of the video (in milliseconds)
+     * @param frameCount the number of frames in the video
+     * @param frameRate the average frame rate of the video
+     */
+    public void setFrameTiming(long durationMillis, int frameCount, float frameRate)
+    {
+        this.durationMillis = durationMillis;
+        this.frameCount = frameCount;
+        this.frameRate = frameRate;
+    }
+
+    /**
+     * @return the name of the video's thumbnail file (relative to the CarWatcher directory),
+     * or null if it has none
+     */
+    public String getThumbnail()
+    {
+        return thumbnail;
+    }
+
+    public void setThumbnail(String thumbnail)
+    {
+        this.thumbnail = thumbnail;
+    }
+
+    /**
+     * @return the bytes the video file and its thumbnail take up, or -1 if unknown
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
+    public void setSize(long size)
+    {
+        this.size = size;
+    }
+
+    public int getTier()
+    {
+        return tier;
+    }
+
+    public void setTier(int tier)
+    {
+        this.tier = tier;
+    }
+
+    /**
+     * @return the frame stats of the video as encoded by FrameStats, or null if unknown
+     */
+    public String getFrameStats()
+    {
+        return frameStats;
+    }
+
+    public void setFrameStats(String frameStats)
+    {
+        this.frameStats = frameStats;
+    }
+
+    /**
+     * @return the name of the video's proxy file (relative to the CarWatcher directory), or
+     * null if it has none
+     */
+    public String getProxy()
+    {
+        return proxy;
+    }
+
+    public void setProxy(String proxy)
+    {
+        this.proxy = proxy;
+    }
+
+    /**
+     * @return the names of the video's still files, separated by commas (see VideoStills), or
+     * null if it has none
+     */
+    public String getStills()
+    {
+        return stills;
+    }
+
+    public void setStills(String stills)
+    {
+        this.stills = stills;
+    }
+
+    /**
+     * @return the name of the video's track file (relative to the CarWatcher directory), or
+     * null if it has none
+     */
+    public String getTrack()
+    {
+        return track;
+    }
+
+    public void setTrack(String track)
+    {
+        this.track = track;
+    }
+
     //PARCELABLE IMPLEMENTATION
     @Override
     public void writeToParcel(Parcel dest, int flags)
@@ -121,6 +284,17 @@ public class Video implements Parcelable
         dest.writeInt((submitted)? 1 : 0);
         dest.writeString(address);
         dest.writeParcelable(latLng, flags);
+        dest.writeString(codec);
+        dest.writeLong(durationMillis);
+        dest.writeInt(frameCount);
+        dest.writeFloat(frameRate);
+        dest.writeString(thumbnail);
+        dest.writeLong(size);
+        dest.writeInt(tier);
+        dest.writeString(frameStats);
+        dest.writeString(proxy);
+        dest.writeString(stills);
+        dest.writeString(track);
     }
 
     public static final Parcelable.Creator CREATOR = new Parcelable.Creator()
@@ -146,6 +320,17 @@ public class Video implements Parcelable
         submitted = source.readInt() != 0;
         address = source.readString();
         latLng = source.readParcelable(LatLng.class.getClassLoader());
+        codec = source.readString();
+        durationMillis = source.readLong();
+        frameCount = source.readInt();
+        frameRate = source.readFloat();
+        thumbnail = source.readString();
+        size = source.readLong();
+        tier = source.readInt();
+        frameStats = source.readString();
+        proxy = source.readString();
+        stills = source.readString();
+        track = source.readString();
     }
 
     @Override
@@ -5,6 +5,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import com.aramco.carwatcher.VideoDbSchema.BookmarkTable;
 import com.aramco.carwatcher.VideoDbSchema.VideoTable;
 
 import java.util.ArrayList;
@@ -12,7 +13,7 @@ import java.util.List;
 
 public class VideoBaseHelper extends SQLiteOpenHelper
 {
-    private static final int VERSION = 1;
+    private static final int VERSION = 11;
     private static final String DATABASE_NAME = "videoBase.db";
 
     public VideoBaseHelper(Context context)
@@ -32,13 +33,113 @@ public class VideoBaseHelper extends SQLiteOpenHelper
                 VideoTable.Cols.SUBMITTED + " INTEGER, " +
                 VideoTable.Cols.ADDRESS + " VARCHAR(100), " +
                 VideoTable.Cols.LATITUDE + " DOUBLE, " +
-                VideoTable.Cols.LONGITUDE + " DOUBLE)"
+                VideoTable.Cols.LONGITUDE + " DOUBLE, " +
+                VideoTable.Cols.CODEC + " VARCHAR(20) DEFAULT '" + Video.DEFAULT_CODEC + "', " +
+                VideoTable.Cols.DURATION_MS + " INTEGER DEFAULT 0, " +
+                VideoTable.Cols.FRAME_COUNT + " INTEGER DEFAULT 0, " +
+                VideoTable.Cols.FRAME_RATE + " REAL DEFAULT 0, " +
+                VideoTable.Cols.THUMBNAIL + " CHAR(50), " +
+                VideoTable.Cols.SIZE + " INTEGER DEFAULT -1, " +
+                VideoTable.Cols.TIER + " INTEGER DEFAULT 0, " +
+                VideoTable.Cols.FRAME_STATS + " TEXT, " +
+                VideoTable.Cols.PROXY + " CHAR(50), " +
+                VideoTable.Cols.STILLS + " TEXT, " +
+                VideoTable.Cols.TRACK + " CHAR(50))"
                 );
+        createEvictionIndex(db);
+        createBookmarkTable(db);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
     {
+        //videos recorded before version 2 were all H.264
+        if (oldVersion < 2)
+        {
+            db.execSQL("ALTER TABLE " + VideoTable.NAME + " ADD COLUMN " +
+                    VideoTable.Cols.CODEC + " VARCHAR(20) DEFAULT '" + Video.DEFAULT_CODEC + "'");
+        }
+        //the frame timing of older videos is unknown (0)
+        if (oldVersion < 3)
+        {
+            db.execSQL("ALTER TABLE " + VideoTable.NAME + " ADD COLUMN " +
+                    VideoTable.Cols.DURATION_MS + " INTEGER DEFAULT 0");
+            db.execSQL("ALTER TABLE " + VideoTable.NAME + " ADD COLUMN " +
+                    VideoTable.Cols.FRAME_COUNT + " INTEGER DEFAULT 0");
+            db.execSQL("ALTER TABLE " + VideoTable.NAME + " ADD COLUMN " +
+                    VideoTable.Cols.FRAME_RATE + " REAL DEFAULT 0");
+        }
+        //older videos have no thumbnail (null), the list falls back to the video file
+        if (oldVersion < 4)
+        {
+            db.execSQL("ALTER TABLE " + VideoTable.NAME + " ADD COLUMN " +
+                    VideoTable.Cols.THUMBNAIL + " CHAR(50)");
+        }
+        //the size of older videos is unknown (-1) until the storage quota gets to them
+        if (oldVersion < 5)
+        {
+            db.execSQL("ALTER TABLE " + VideoTable.NAME + " ADD COLUMN " +
+                    VideoTable.Cols.SIZE + " INTEGER DEFAULT -1");
+            createEvictionIndex(db);
+        }
+        //older videos were all recorded at the configured quality
+        if (oldVersion < 6)
+        {
+            db.execSQL("ALTER TABLE " + VideoTable.NAME + " ADD COLUMN " +
+                    VideoTable.Cols.TIER + " INTEGER DEFAULT 0");
+        }
+        //the frame stats of older videos are unknown (null)
+        if (oldVersion < 7)
+        {
+            db.execSQL("ALTER TABLE " + VideoTable.NAME + " ADD COLUMN " +
+                    VideoTable.Cols.FRAME_STATS + " TEXT");
+        }
+        //older videos have no proxy (null)
+        if (oldVersion < 8)
+        {
+            db.execSQL("ALTER TABLE " + VideoTable.NAME + " ADD COLUMN " +
+                    VideoTable.Cols.PROXY + " CHAR(50)");
+        }
+        //older videos have no stills (null)
+        if (oldVersion < 9)
+        {
+            db.execSQL("ALTER TABLE " + VideoTable.NAME + " ADD COLUMN " +
+                    VideoTable.Cols.STILLS + " TEXT");
+        }
+        if (oldVersion < 10)
+        {
+            createBookmarkTable(db);
+        }
+        //older videos have no track (null)
+        if (oldVersion < 11)
+        {
+            db.execSQL("ALTER TABLE " + VideoTable.NAME + " ADD COLUMN " +
+                    VideoTable.Cols.TRACK + " CHAR(50)");
+        }
+    }
+
+    private static void createBookmarkTable(SQLiteDatabase db)
+    {
+        db.execSQL("CREATE TABLE " + BookmarkTable.NAME + "(" +
+                "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                BookmarkTable.Cols.SEGMENT + " CHAR(50), " +
+                BookmarkTable.Cols.SEQUENCE + " INTEGER, " +
+                BookmarkTable.Cols.TIME + " INTEGER, " +
+                BookmarkTable.Cols.MEDIA_TIME + " INTEGER, " +
+                BookmarkTable.Cols.PRE + " INTEGER, " +
+                BookmarkTable.Cols.POST + " INTEGER, " +
+                BookmarkTable.Cols.VIDEO_ID + " INTEGER DEFAULT " + Bookmark.VIDEO_PENDING + ")"
+                );
+    }
+
+    /**
+     * Creates the index the storage quota uses to find the oldest videos, and to add up their
+     * sizes, without reading the table itself.
+     */
+    private static void createEvictionIndex(SQLiteDatabase db)
+    {
+        db.execSQL("CREATE INDEX " + VideoTable.EVICTION_INDEX + " ON " + VideoTable.NAME + "(" +
+                VideoTable.Cols.SUBMITTED + ", _id, " + VideoTable.Cols.SIZE + ")");
     }
 
     /**
@@ -99,6 +200,17 @@ public class VideoBaseHelper extends SQLiteOpenHelper
         values.put(VideoTable.Cols.DURATION, video.getDuration());
         values.put(VideoTable.Cols.SUBMITTED, video.isSubmitted());
         values.put(VideoTable.Cols.ADDRESS, video.getAddress());
+        values.put(VideoTable.Cols.CODEC, video.getCodec());
+        values.put(VideoTable.Cols.DURATION_MS, video.getDurationMillis());
+        values.put(VideoTable.Cols.FRAME_COUNT, video.getFrameCount());
+        values.put(VideoTable.Cols.FRAME_RATE, video.getFrameRate());
+        values.put(VideoTable.Cols.THUMBNAIL, video.getThumbnail());
+        values.put(VideoTable.Cols.SIZE, video.getSize());
+        values.put(VideoTable.Cols.TIER, video.getTier());
+        values.put(VideoTable.Cols.FRAME_STATS, video.getFrameStats());
+        values.put(VideoTable.Cols.PROXY, video.getProxy());
+        values.put(VideoTable.Cols.STILLS, video.getStills());
+        values.put(VideoTable.Cols.TRACK, video.getTrack());
         //special treatment for LatLng
         LatLng latLng = video.getLatLng();
         if (latLng != null)
@@ -218,7 +330,8 @@ public class VideoBaseHelper extends SQLiteOpenHelper
     }
 
     /**
-     * Removes the specified videos from the database.
+     * Removes the specified videos from the database, along with the bookmarks their clips
+     * were extracted for.
      *
      * @param videos the videos to be removed from the database.
      * @param database the database instance from which the videos should be removed
@@ -226,18 +339,33 @@ public class VideoBaseHelper extends SQLiteOpenHelper
     public static boolean removeVideos(List<Video> videos, SQLiteDatabase database)
     {
         StringBuilder whereClause = new StringBuilder();
+        StringBuilder bookmarkClause = new StringBuilder();
         whereClause.append("_id=?");
+        bookmarkClause.append(BookmarkTable.Cols.VIDEO_ID + "=?");
         //for each additional video after first, tack on a OR
         for (int i = 1; i < videos.size(); i++)
         {
             whereClause.append(" OR _id=?");
+            bookmarkClause.append(" OR " + BookmarkTable.Cols.VIDEO_ID + "=?");
         }
         String[] whereArgs = new String[videos.size()];
         for (int i = 0; i < videos.size(); i++)
         {
             whereArgs[i] = Long.toString(videos.get(i).getId());
         }
-        return database.delete(VideoTable.NAME, whereClause.toString(), whereArgs) == videos.size();
+        //a bookmark is never left pointing at a video that's gone
+        database.beginTransaction();
+        try
+        {
+            database.delete(BookmarkTable.NAME, bookmarkClause.toString(), whereArgs);
+            boolean removed = database.delete(VideoTable.NAME, whereClause.toString(), whereArgs) == videos.size();
+            database.setTransactionSuccessful();
+            return removed;
+        }
+        finally
+        {
+            database.endTransaction();
+        }
     }
 
     /**
@@ -266,4 +394,74 @@ public class VideoBaseHelper extends SQLiteOpenHelper
         String id = String.valueOf(video.getId());
         database.update(VideoTable.NAME, values, "_id = ?", new String[] {id});
     }
+
+    /**
+     * Adds a new bookmark to the database.
+     *
+     * @param bookmark the bookmark to be added to the database
+     * @param database the database instance to which the bookmark should be added
+     */
+    public static boolean addBookmark(Bookmark bookmark, SQLiteDatabase database)
+    {
+        ContentValues values = new ContentValues();
+        values.put(BookmarkTable.Cols.SEGMENT, bookmark.getSegment());
+        values.put(BookmarkTable.Cols.SEQUENCE, bookmark.getSequence());
+        values.put(BookmarkTable.Cols.TIME, bookmark.getTime());
+        values.put(BookmarkTable.Cols.MEDIA_TIME, bookmark.getMediaTimeUs());
+        values.put(BookmarkTable.Cols.PRE, bookmark.getPreMillis());
+        values.put(BookmarkTable.Cols.POST, bookmark.getPostMillis());
+        values.put(BookmarkTable.Cols.VIDEO_ID, bookmark.getVideoId());
+        long id = database.insert(BookmarkTable.NAME, null, values);
+        if (id != -1)
+        {
+            bookmark.setId(id);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the bookmarks no clip has been extracted for yet, oldest first
+     */
+    public static List<Bookmark> getPendingBookmarks(SQLiteDatabase database)
+    {
+        List<Bookmark> bookmarks = new ArrayList<Bookmark>();
+        Cursor cursor = database.query(
+                BookmarkTable.NAME,
+                null,
+                BookmarkTable.Cols.VIDEO_ID + "=?",
+                new String[] {Long.toString(Bookmark.VIDEO_PENDING)},
+                null,
+                null,
+                "_id"
+                );
+        BookmarkCursorWrapper bookmarkCursor = new BookmarkCursorWrapper(cursor);
+        try
+        {
+            bookmarkCursor.moveToFirst();
+            while (!bookmarkCursor.isAfterLast())
+            {
+                bookmarks.add(bookmarkCursor.getBookmark());
+                bookmarkCursor.moveToNext();
+            }
+        }
+        finally
+        {
+            bookmarkCursor.close();
+        }
+        return bookmarks;
+    }
+
+    /**
+     * Sets the video extracted for a bookmark.
+     *
+     * @param videoId the id of the video, or Bookmark.VIDEO_FAILED if none could be
+     */
+    public static boolean setBookmarkVideo(long bookmarkId, long videoId, SQLiteDatabase database)
+    {
+        ContentValues values = new ContentValues();
+        values.put(BookmarkTable.Cols.VIDEO_ID, videoId);
+        String id = Long.toString(bookmarkId);
+        return (database.update(BookmarkTable.NAME, values, "_id=?", new String[] {id}) == 1);
+    }
 }
@@ -29,7 +29,20 @@ public class VideoCursorWrapper extends CursorWrapper
         double latitude = getDouble(getColumnIndex(VideoTable.Cols.LATITUDE));
         double longitude = getDouble(getColumnIndex(VideoTable.Cols.LONGITUDE));
         LatLng latLng = new LatLng(latitude, longitude);
+        String codec = getString(getColumnIndex(VideoTable.Cols.CODEC));
 
-        return new Video(id, title, fileName, comment, duration, address, submitted, latLng);
+        Video video = new Video(id, title, fileName, comment, duration, address, submitted, latLng);
+        video.setCodec(codec);
+        video.setFrameTiming(getLong(getColumnIndex(VideoTable.Cols.DURATION_MS)),
+                getInt(getColumnIndex(VideoTable.Cols.FRAME_COUNT)),
+                getFloat(getColumnIndex(VideoTable.Cols.FRAME_RATE)));
+        video.setThumbnail(getString(getColumnIndex(VideoTable.Cols.THUMBNAIL)));
+        video.setSize(getLong(getColumnIndex(VideoTable.Cols.SIZE)));
+        video.setTier(getInt(getColumnIndex(VideoTable.Cols.TIER)));
+        video.setFrameStats(getString(getColumnIndex(VideoTable.Cols.FRAME_STATS)));
+        video.setProxy(getString(getColumnIndex(VideoTable.Cols.PROXY)));
+        video.setStills(getString(getColumnIndex(VideoTable.Cols.STILLS)));
+        video.setTrack(getString(getColumnIndex(VideoTable.Cols.TRACK)));
+        return video;
     }
 }
@@ -6,6 +6,8 @@ public class VideoDbSchema
     {
         //the name of the table in sqllite
         public static final String NAME = "videos";
+        //the index the storage quota looks up the oldest videos with
+        public static final String EVICTION_INDEX = "videos_eviction";
         //and the table columns
         public static final class Cols
         {
@@ -17,6 +19,32 @@ public class VideoDbSchema
             public static final String SUBMITTED = "submitted";
             public static final String LATITUDE = "latitude";
             public static final String LONGITUDE = "longitude";
+            public static final String CODEC = "codec";
+            public static final String DURATION_MS = "duration_ms";
+            public static final String FRAME_COUNT = "frame_count";
+            public static final String FRAME_RATE = "frame_rate";
+            public static final String THUMBNAIL = "thumbnail";
+            public static final String SIZE = "size";
+            public static final String TIER = "tier";
+            public static final String FRAME_STATS = "frame_stats";
+            public static final String PROXY = "proxy";
+            public static final String STILLS = "stills";
+            public static final String TRACK = "track";
+        }
+    }
+
+    public static final class BookmarkTable
+    {
+        public static final String NAME = "bookmarks";
+        public static final class Cols
+        {
+            public static final String SEGMENT = "segment";
+            public static final String SEQUENCE = "sequence";
+            public static final String TIME = "time";
+            public static final String MEDIA_TIME = "media_time";
+            public static final String PRE = "pre";
+            public static final String POST = "post";
+            public static final String VIDEO_ID = "video_id";
         }
     }
 }
@@ -28,6 +28,8 @@ import java.util.List;
  */
 public class VideoFragment extends DialogFragment
 {
+    //the size of the still previews, in dp
+    private static final int STILL_SIZE = 80;
     //the nameTextView is an instance var since it's the only
     //one that may change
     private TextView nameTextView;
@@ -53,6 +55,10 @@ public class VideoFragment extends DialogFragment
         TextView durationTextView = (TextView)view.findViewById(R.id.video_item_duration_textview);
         ImageView nameEditImageView = (ImageView)view.findViewById(R.id.video_item_name_edit_imageview);
         TextView locationTextView = (TextView)view.findViewById(R.id.video_item_location_textview);
+        TextView frameStatsTextView = (TextView)view.findViewById(R.id.video_item_frame_stats_textview);
+        TextView trackTextView = (TextView)view.findViewById(R.id.video_item_track_textview);
+        View stillsContainer = view.findViewById(R.id.video_item_stills_container);
+        LinearLayout stillsLayout = (LinearLayout)view.findViewById(R.id.video_item_stills_layout);
         ImageView thumbnailImageView = (ImageView)view.findViewById(R.id.video_item_thumbnail_imageview);
         //only one of these will be shown depending on submission status
         ImageView submitImageView = (ImageView)view.findViewById(R.id.video_item_submit_imageview);
@@ -64,6 +70,64 @@ public class VideoFragment extends DialogFragment
         int seconds = video.getDuration() - minutes * 60;
         durationTextView.setText(String.format("%02dm:%02ds", minutes, seconds));
         locationTextView.setText(video.getAddress());
+        //older videos have no frame stats
+        FrameStats frameStats = FrameStats.decode(video.getFrameStats());
+        if (frameStats != null && frameStats.getFrameCount() > 0)
+        {
+            frameStatsTextView.setText(formatFrameStats(frameStats));
+            frameStatsTextView.setVisibility(View.VISIBLE);
+        }
+        //the path the video was recorded along is summed up, and exported as GPX when clicked
+        GpsTrack.Reader track = VideoTracks.read(video, getActivity());
+        String trackSummary = (track != null) ? formatTrack(track) : null;
+        if (trackSummary != null)
+        {
+            trackTextView.setText(trackSummary);
+            trackTextView.setVisibility(View.VISIBLE);
+            trackTextView.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v)
+                {
+                    File gpxFile = VideoTracks.exportGpx(video, getActivity());
+                    if (gpxFile != null)
+                    {
+                        Intent intent = new Intent(Intent.ACTION_VIEW);
+                        intent.setDataAndType(Uri.parse(gpxFile.getAbsolutePath()), "application/gpx+xml");
+                        startActivity(intent);
+                    }
+                }
+            });
+        }
+        //stills taken with the video are shown under it, and open in the gallery when clicked
+        List<File> stills = VideoStills.getFiles(video, getActivity());
+        if (!stills.isEmpty())
+        {
+            int size = (int)(STILL_SIZE * getResources().getDisplayMetrics().density);
+            for (File still : stills)
+            {
+                ImageView stillImageView = new ImageView(getActivity());
+                LinearLayout.LayoutParams params = new LinearLayout.LayoutParams(size, size);
+                params.setMarginEnd(size / 10);
+                stillImageView.setLayoutParams(params);
+                stillImageView.setScaleType(ImageView.ScaleType.CENTER_CROP);
+                GlideApp
+                    .with(getActivity().getApplicationContext())
+                    .load(still)
+                    .into(stillImageView);
+                final String stillFilePath = still.getAbsolutePath();
+                stillImageView.setOnClickListener(new View.OnClickListener() {
+                    @Override
+                    public void onClick(View v)
+                    {
+                        Intent intent = new Intent(Intent.ACTION_VIEW);
+                        intent.setDataAndType(Uri.parse(stillFilePath), "image/jpeg");
+                        startActivity(intent);
+                    }
+                });
+                stillsLayout.addView(stillImageView);
+            }
+            stillsContainer.setVisibility(View.VISIBLE);
+        }
         //clicking on edit image should open the name fragment
         nameEditImageView.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -92,7 +156,25 @@ public class VideoFragment extends DialogFragment
             CaptureService.getVideoFilePath(video.getFileName(), getActivity());
         //check if file exists, and if not, offer to delete entry
         File videoFile = new File(videoFilePath);
-        if (videoFile.exists())
+        //the thumbnail made at capture time is a lot cheaper to load than the video
+        File thumbnailFile = VideoThumbnails.getFile(video, getActivity());
+        if (videoFile.exists() && thumbnailFile != null)
+        {
+            GlideApp
+                .with(getActivity().getApplicationContext())
+                .load(thumbnailFile)
+                .into(thumbnailImageView);
+        }
+        //the proxy is a lot cheaper to decode a frame from than the video
+        else if (videoFile.exists() && VideoProxies.getFile(video, getActivity()) != null)
+        {
+            GlideApp
+                .with(getActivity().getApplicationContext())
+                .load(Uri.fromFile(VideoProxies.getFile(video, getActivity())))
+                .into(thumbnailImageView);
+        }
+        //thumbnails can only be extracted if the device can decode the video's codec
+        else if (videoFile.exists() && EncoderProfileResolver.hasDecoder(video.getCodec()))
         {
             //if the video file exists, show its thumbnail
             GlideApp
@@ -117,13 +199,17 @@ public class VideoFragment extends DialogFragment
             submitImageView.setVisibility(View.VISIBLE);
             submittedImageView.setVisibility(View.GONE);
         }
+        //a device that can't decode the video can still play its proxy
+        File proxyFile = VideoProxies.getFile(video, getActivity());
+        final String playFilePath = (proxyFile != null && !EncoderProfileResolver.hasDecoder(video.getCodec())) ?
+            proxyFile.getAbsolutePath() : videoFilePath;
         thumbnailImageView.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v)
             {
                 //when user clicks on video item, play it in the media player
-                Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse(videoFilePath));
-                intent.setDataAndType(Uri.parse(videoFilePath), "video/mp4");
+                Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse(playFilePath));
+                intent.setDataAndType(Uri.parse(playFilePath), "video/mp4");
                 startActivity(intent);
             }
         });
@@ -157,6 +243,88 @@ public class VideoFragment extends DialogFragment
         return dialog;
     }
 
+    /**
+     * Sums up a track as the distance covered and the top speed, reading it one sample at a
+     * time.
+     *
+     * @return the summary, or null if the track has no samples
+     */
+    private String formatTrack(GpsTrack.Reader reader)
+    {
+        if (!reader.next())
+        {
+            return null;
+        }
+        double distance = 0;
+        float topSpeed = Math.max(0, reader.getSpeed());
+        double latitude = reader.getLatitude();
+        double longitude = reader.getLongitude();
+        while (reader.next())
+        {
+            distance += GpsTrack.getDistance(latitude, longitude, reader.getLatitude(), reader.getLongitude());
+            topSpeed = Math.max(topSpeed, reader.getSpeed());
+            latitude = reader.getLatitude();
+            longitude = reader.getLongitude();
+        }
+        //speeds are shown in km/h
+        return getResources().getString(R.string.track_summary, distance / 1000, Math.round(topSpeed * 3.6f));
+    }
+
+    /**
+     * Formats the frame stats of the video as a summary line followed by its histograms, one
+     * bar per bucket.
+     */
+    private String formatFrameStats(FrameStats stats)
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append(getResources().getString(R.string.frame_stats_summary, stats.getFrameCount(), stats.getLateFrames(),
+                    stats.getDroppedFrames(), stats.getFailedFrames(), stats.getMaxIntervalMillis()));
+        if (stats.getSegmentCuts() > 0)
+        {
+            builder.append('\n').append(getResources().getString(R.string.frame_stats_segments, stats.getSegmentCuts(),
+                        stats.getMaxSegmentGap()));
+        }
+        int[] intervals = new int[FrameStats.INTERVAL_BOUNDS.length + 1];
+        for (int i = 0; i < intervals.length; i++)
+        {
+            intervals[i] = stats.getIntervalCount(i);
+        }
+        appendHistogram(builder, getResources().getString(R.string.frame_intervals), intervals, FrameStats.INTERVAL_BOUNDS);
+        int[] exposures = new int[FrameStats.EXPOSURE_BOUNDS.length + 1];
+        for (int i = 0; i < exposures.length; i++)
+        {
+            exposures[i] = stats.getExposureCount(i);
+        }
+        appendHistogram(builder, getResources().getString(R.string.exposure_times), exposures, FrameStats.EXPOSURE_BOUNDS);
+        return builder.toString();
+    }
+
+    private static void appendHistogram(StringBuilder builder, String title, int[] counts, int[] bounds)
+    {
+        int max = 0;
+        for (int count : counts)
+        {
+            max = Math.max(max, count);
+        }
+        //devices that don't report exposure times have nothing to show
+        if (max == 0)
+        {
+            return;
+        }
+        builder.append("\n\n").append(title);
+        for (int i = 0; i < counts.length; i++)
+        {
+            builder.append(String.format("\n%-10s ", FrameStats.getBucketLabel(i, bounds)));
+            //a bucket with any frames in it gets at least one block
+            int width = (counts[i] == 0) ? 0 : Math.max(1, counts[i] * 20 / max);
+            for (int j = 0; j < width; j++)
+            {
+                builder.append('\u2588');
+            }
+            builder.append(' ').append(counts[i]);
+        }
+    }
+
     /**
      * Update the title of the video fragment with the specified string.
      *
@@ -200,7 +200,25 @@ public class VideoListFragment extends Fragment
                 CaptureService.getVideoFilePath(v.getFileName(), getActivity());
             //check if file exists, and if not, offer to delete entry
             File videoFile = new File(videoFilePath);
-            if (videoFile.exists())
+            //the thumbnail made at capture time is a lot cheaper to load than the video
+            File thumbnailFile = VideoThumbnails.getFile(v, getActivity());
+            if (videoFile.exists() && thumbnailFile != null)
+            {
+                GlideApp
+                    .with(getActivity().getApplicationContext())
+                    .load(thumbnailFile)
+                    .into(thumbnailImageView);
+            }
+            //the proxy is a lot cheaper to decode a frame from than the video
+            else if (videoFile.exists() && VideoProxies.getFile(v, getActivity()) != null)
+            {
+                GlideApp
+                    .with(getActivity().getApplicationContext())
+                    .load(Uri.fromFile(VideoProxies.getFile(v, getActivity())))
+                    .into(thumbnailImageView);
+            }
+            //thumbnails can only be extracted if the device can decode the video's codec
+            else if (videoFile.exists() && EncoderProfileResolver.hasDecoder(v.getCodec()))
             {
                 //if the video file exists, show its thumbnail
                 GlideApp
@@ -0,0 +1,52 @@
+package com.aramco.carwatcher;
+
+import android.content.Context;
+
+import java.io.File;
+
+/**
+ * A proxy is a low bit rate (480p, about 1 Mbps) H.264 rendition of a video, recorded from the
+ * same camera frames at the same time as the video itself. It sits next to the video file and
+ * is a lot cheaper to decode, preview or send over mobile data.
+ */
+public class VideoProxies
+{
+    //proxies are always H.264, so every device can play them
+    public static final String CODEC = EncoderProfileResolver.MIME_AVC;
+    private static final String PROXY_SUFFIX = "_proxy.mp4";
+
+    /**
+     * @param fileName the name of the video file
+     * @return the name of the video's proxy file
+     */
+    public static String getFileName(String fileName)
+    {
+        int extension = fileName.lastIndexOf('.');
+        return ((extension > 0) ? fileName.substring(0, extension) : fileName) + PROXY_SUFFIX;
+    }
+
+    /**
+     * @return the proxy file of the video, or null if it has none
+     */
+    public static File getFile(Video video, Context context)
+    {
+        if (video.getProxy() == null)
+        {
+            return null;
+        }
+        File file = new File(CaptureService.getVideoFilePath(video.getProxy(), context));
+        return file.exists() ? file : null;
+    }
+
+    /**
+     * Deletes the proxy of a video, if it has one.
+     */
+    public static void delete(Video video, Context context)
+    {
+        File file = getFile(video, context);
+        if (file != null)
+        {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.aramco.carwatcher;
+
+import android.content.Context;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stills are full resolution JPEGs taken from the running capture session when the button is
+ * held, without interrupting the recording. They sit next to the videos and are linked to the
+ * video being recorded when they were taken, or to the next one.
+ */
+public class VideoStills
+{
+    private static final String STILL_PREFIX = "still_";
+    private static final String STILL_SUFFIX = ".jpg";
+    private static final String SEPARATOR = ",";
+
+    /**
+     * @param time when the still was taken (in milliseconds since the epoch)
+     * @return the name of a new still file
+     */
+    public static String getFileName(long time)
+    {
+        return STILL_PREFIX + time + STILL_SUFFIX;
+    }
+
+    /**
+     * @return the file names as stored with a video, or null if there are none
+     */
+    public static String join(List<String> fileNames)
+    {
+        if (fileNames.isEmpty())
+        {
+            return null;
+        }
+        StringBuilder builder = new StringBuilder();
+        for (String fileName : fileNames)
+        {
+            if (builder.length() > 0)
+            {
+                builder.append(SEPARATOR);
+            }
+            builder.append(fileName);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return the still files of the video that exist, oldest first
+     */
+    public static List<File> getFiles(Video video, Context context)
+    {
+        List<File> files = new ArrayList<File>();
+        if (video.getStills() == null || video.getStills().isEmpty())
+        {
+            return files;
+        }
+        for (String fileName : video.getStills().split(SEPARATOR))
+        {
+            File file = new File(CaptureService.getVideoFilePath(fileName, context));
+            if (file.exists())
+            {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Deletes the stills of a video, if it has any.
+     */
+    public static void delete(Video video, Context context)
+    {
+        for (File file : getFiles(video, context))
+        {
+            file.delete();
+        }
+    }
+}
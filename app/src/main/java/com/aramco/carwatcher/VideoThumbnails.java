@@ -0,0 +1,138 @@
+package com.aramco.carwatcher;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.media.MediaMetadataRetriever;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Thumbnails are made once for every captured video, when it is finalized, and kept as small
+ * JPEG files in the thumbnails directory. The video list loads those instead of decoding a
+ * frame of every video it shows.
+ */
+public class VideoThumbnails
+{
+    private static final String TAG = "VideoThumbnails";
+    //the directory holding the thumbnails, relative to the CarWatcher directory
+    private static final String THUMBNAIL_DIR = "thumbnails";
+    //thumbnails fit within a square of this size (in pixels)
+    private static final int THUMBNAIL_SIZE = 320;
+    private static final int JPEG_QUALITY = 80;
+    //the thumbnail is the key frame closest to this time (in microseconds), since the very
+    //first frames can be dark while the camera settles its exposure
+    private static final long FRAME_TIME = 1000000;
+
+    /**
+     * Makes the thumbnail of a video file. This decodes a frame of the video, so it should
+     * not be called on the main thread.
+     *
+     * @param fileName the name of the video file, relative to the CarWatcher directory
+     * @param codec the mime type of the video's codec
+     * @return the name of the thumbnail file (relative to the CarWatcher directory), or null
+     * if no thumbnail could be made
+     */
+    public static String create(Context context, String fileName, String codec)
+    {
+        //frames can only be extracted if the device can decode the video's codec
+        if (!EncoderProfileResolver.hasDecoder(codec))
+        {
+            return null;
+        }
+        String name = new File(fileName).getName();
+        int dot = name.lastIndexOf('.');
+        String thumbnail = THUMBNAIL_DIR + "/" + ((dot > 0) ? name.substring(0, dot) : name) + ".jpg";
+        Bitmap bitmap = null;
+        MediaMetadataRetriever mmr = new MediaMetadataRetriever();
+        FileOutputStream out = null;
+        try
+        {
+            mmr.setDataSource(CaptureService.getVideoFilePath(fileName, context));
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1)
+            {
+                //the frame is scaled while it's extracted, so the full size one is never held
+                bitmap = mmr.getScaledFrameAtTime(FRAME_TIME, MediaMetadataRetriever.OPTION_CLOSEST_SYNC,
+                        THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+            }
+            else
+            {
+                Bitmap frame = mmr.getFrameAtTime(FRAME_TIME, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+                if (frame != null)
+                {
+                    float scale = Math.min(1f, (float)THUMBNAIL_SIZE / Math.max(frame.getWidth(), frame.getHeight()));
+                    bitmap = Bitmap.createScaledBitmap(frame, Math.round(frame.getWidth() * scale),
+                            Math.round(frame.getHeight() * scale), true);
+                    if (bitmap != frame)
+                    {
+                        frame.recycle();
+                    }
+                }
+            }
+            if (bitmap == null)
+            {
+                return null;
+            }
+            File file = new File(CaptureService.getVideoFilePath(thumbnail, context));
+            file.getParentFile().mkdirs();
+            out = new FileOutputStream(file);
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out))
+            {
+                return null;
+            }
+            return thumbnail;
+        }
+        catch (IOException | RuntimeException e)
+        {
+            Log.e(TAG, "Could not make thumbnail of " + fileName, e);
+            return null;
+        }
+        finally
+        {
+            mmr.release();
+            if (bitmap != null)
+            {
+                bitmap.recycle();
+            }
+            if (out != null)
+            {
+                try
+                {
+                    out.close();
+                }
+                catch (IOException e)
+                {
+                    //nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the thumbnail file of the video, or null if it has none
+     */
+    public static File getFile(Video video, Context context)
+    {
+        if (video.getThumbnail() == null)
+        {
+            return null;
+        }
+        File file = new File(CaptureService.getVideoFilePath(video.getThumbnail(), context));
+        return file.exists() ? file : null;
+    }
+
+    /**
+     * Deletes the thumbnail of a video, if it has one.
+     */
+    public static void delete(Video video, Context context)
+    {
+        File file = getFile(video, context);
+        if (file != null)
+        {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.aramco.carwatcher;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A track is the path a video was recorded along, sampled from GPS about once a second while
+ * recording (see GpsTrack for the encoding). It sits next to the video file, so the video list
+ * never loads it; it's only read when the video is shown. A video without a track file can
+ * still have its locations in its metadata track (see LocationMetadata), which they're read
+ * from instead.
+ */
+public class VideoTracks
+{
+    private static final String TAG = "VideoTracks";
+    private static final String TRACK_SUFFIX = "_track.bin";
+    private static final String GPX_SUFFIX = ".gpx";
+
+    /**
+     * @param fileName the name of the video file
+     * @return the name of the video's track file
+     */
+    public static String getFileName(String fileName)
+    {
+        int extension = fileName.lastIndexOf('.');
+        return ((extension > 0) ? fileName.substring(0, extension) : fileName) + TRACK_SUFFIX;
+    }
+
+    /**
+     * Writes the track of a video file. This should not be called on the main thread.
+     *
+     * @param fileName the name of the video file
+     * @return the name of the track file, or null if the track is empty or can't be written
+     */
+    public static String write(Context context, String fileName, GpsTrack track)
+    {
+        if (track == null || track.getCount() == 0)
+        {
+            return null;
+        }
+        String trackFileName = getFileName(fileName);
+        FileOutputStream out = null;
+        try
+        {
+            out = new FileOutputStream(CaptureService.getVideoFilePath(trackFileName, context));
+            out.write(track.toByteArray());
+            return trackFileName;
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Could not write the track of " + fileName, e);
+            return null;
+        }
+        finally
+        {
+            if (out != null)
+            {
+                try
+                {
+                    out.close();
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the track file of the video, or null if it has none
+     */
+    public static File getFile(Video video, Context context)
+    {
+        if (video.getTrack() == null)
+        {
+            return null;
+        }
+        File file = new File(CaptureService.getVideoFilePath(video.getTrack(), context));
+        return file.exists() ? file : null;
+    }
+
+    /**
+     * Reads the track of a video, from its track file or else from the metadata track of the
+     * video file.
+     *
+     * @return a reader of the track, or null if the video has none or it can't be read
+     */
+    public static GpsTrack.Reader read(Video video, Context context)
+    {
+        File file = getFile(video, context);
+        if (file == null)
+        {
+            return readMetadata(video, context);
+        }
+        byte[] data = new byte[(int)file.length()];
+        FileInputStream in = null;
+        try
+        {
+            in = new FileInputStream(file);
+            int read = 0;
+            while (read < data.length)
+            {
+                int count = in.read(data, read, data.length - read);
+                if (count < 0)
+                {
+                    return null;
+                }
+                read += count;
+            }
+            return GpsTrack.read(data);
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Could not read " + file.getName(), e);
+            return null;
+        }
+        finally
+        {
+            if (in != null)
+            {
+                try
+                {
+                    in.close();
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the locations in the metadata track of a video file into a track, leaving out the
+     * samples that repeat the fix before them.
+     *
+     * @return a reader of the track, or null if the video file has no locations
+     */
+    private static GpsTrack.Reader readMetadata(Video video, Context context)
+    {
+        LocationMetadataReader reader =
+            LocationMetadataReader.open(CaptureService.getVideoFilePath(video.getFileName(), context));
+        if (reader == null)
+        {
+            return null;
+        }
+        GpsTrack track = new GpsTrack();
+        long lastTime = -1;
+        try
+        {
+            while (reader.next())
+            {
+                LocationMetadata location = reader.getLocation();
+                if (location.getTime() != lastTime)
+                {
+                    track.add(location.getTime(), location.getLatitude(), location.getLongitude(), location.getSpeed());
+                    lastTime = location.getTime();
+                }
+            }
+        }
+        finally
+        {
+            reader.release();
+        }
+        return (track.getCount() > 0) ? GpsTrack.read(track.toByteArray()) : null;
+    }
+
+    /**
+     * @return the path of the GPX export of a video's track
+     */
+    private static String getGpxPath(Video video, Context context)
+    {
+        String fileName = video.getFileName();
+        int extension = fileName.lastIndexOf('.');
+        return CaptureService.getVideoFilePath(((extension > 0) ? fileName.substring(0, extension) : fileName) +
+                GPX_SUFFIX, context);
+    }
+
+    /**
+     * Writes the track of a video as a GPX file next to it, for other apps to open.
+     *
+     * @return the GPX file, or null if the video has no track or it can't be written
+     */
+    public static File exportGpx(Video video, Context context)
+    {
+        GpsTrack.Reader reader = read(video, context);
+        if (reader == null)
+        {
+            return null;
+        }
+        File file = new File(getGpxPath(video, context));
+        Writer out = null;
+        try
+        {
+            out = new FileWriter(file);
+            GpsTrack.writeGpx(reader, video.getTitle(), out);
+            return file;
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Could not export the track of " + video.getFileName(), e);
+            return null;
+        }
+        finally
+        {
+            if (out != null)
+            {
+                try
+                {
+                    out.close();
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the track of a video, and its GPX export, if it has one.
+     */
+    public static void delete(Video video, Context context)
+    {
+        File file = getFile(video, context);
+        if (file != null)
+        {
+            file.delete();
+        }
+        new File(getGpxPath(video, context)).delete();
+    }
+}
@@ -0,0 +1,143 @@
+package com.aramco.carwatcher;
+
+/**
+ * Watches whether the storage keeps up with a recording, and picks how far the recording
+ * should be throttled. The bytes the recording writes are counted (when the backend hands
+ * them over) to get its rate, and a small synchronous write to the same directory is timed every
+ * now and then: once the storage falls behind, its write-back queue grows and this probe has
+ * to wait for it. A couple of slow probes in a row raise the throttling level, and a long run
+ * of fast ones lowers it again, so the level doesn't flap around the storage's limit.
+ */
+public class WriteThroughputMonitor
+{
+    //the highest throttling level
+    static final int MAX_LEVEL = 3;
+    //the share of the target bit rate (in percent) recorded at each level
+    private static final int[] BIT_RATE_PERCENT = {100, 75, 50, 35};
+    //from this level on, the frame rate is halved as well
+    private static final int FRAME_RATE_LEVEL = 3;
+    //a probe taking longer than this means the storage is falling behind
+    static final long SLOW_PROBE_NANOS = 400L * 1000000;
+    //a probe taking less than this means the storage has room to spare
+    static final long FAST_PROBE_NANOS = 100L * 1000000;
+    //the slow probes in a row it takes to raise the level, and the fast ones to lower it
+    static final int SLOW_PROBES = 2;
+    static final int FAST_PROBES = 15;
+
+    private int level = 0;
+    //the bytes written since the last probe, and when that was (-1 before the first)
+    private long bytes = 0;
+    private long lastProbeTime = -1;
+    private long bytesPerSecond = 0;
+    private long latencyNanos = 0;
+    private int slowProbes = 0;
+    private int fastProbes = 0;
+
+    /**
+     * Starts measuring a new recording. The throttling level is kept.
+     */
+    public synchronized void reset()
+    {
+        bytes = 0;
+        lastProbeTime = -1;
+        bytesPerSecond = 0;
+        slowProbes = 0;
+        fastProbes = 0;
+    }
+
+    /**
+     * Called for every chunk of data the recording writes.
+     */
+    public synchronized void onBytesWritten(long count)
+    {
+        bytes += count;
+    }
+
+    /**
+     * Called after every probe.
+     *
+     * @param latencyNanos how long the probe took to write synchronously
+     * @param timeNanos when the probe finished (on a monotonic clock)
+     * @return true if the throttling level changed
+     */
+    public synchronized boolean onProbe(long latencyNanos, long timeNanos)
+    {
+        this.latencyNanos = latencyNanos;
+        if (lastProbeTime >= 0 && timeNanos > lastProbeTime)
+        {
+            bytesPerSecond = bytes * 1000000000L / (timeNanos - lastProbeTime);
+        }
+        bytes = 0;
+        lastProbeTime = timeNanos;
+        slowProbes = (latencyNanos > SLOW_PROBE_NANOS) ? slowProbes + 1 : 0;
+        fastProbes = (latencyNanos < FAST_PROBE_NANOS) ? fastProbes + 1 : 0;
+        if (slowProbes >= SLOW_PROBES && level < MAX_LEVEL)
+        {
+            level++;
+            slowProbes = 0;
+            return true;
+        }
+        if (fastProbes >= FAST_PROBES && level > 0)
+        {
+            level--;
+            fastProbes = 0;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the throttling level, from 0 (not throttled) to MAX_LEVEL
+     */
+    public synchronized int getLevel()
+    {
+        return level;
+    }
+
+    /**
+     * @param bitRate the bit rate the recording is meant to have
+     * @return the bit rate to record at the current level
+     */
+    public synchronized int getBitRate(int bitRate)
+    {
+        return (int)((long)bitRate * BIT_RATE_PERCENT[level] / 100);
+    }
+
+    /**
+     * @param frameRate the frame rate the recording is meant to have
+     * @return the frame rate to record at the current level
+     */
+    public synchronized int getFrameRate(int frameRate)
+    {
+        return (level >= FRAME_RATE_LEVEL) ? Math.max(1, frameRate / 2) : frameRate;
+    }
+
+    /**
+     * The probes add to the writes they measure, so they are spaced out while the storage is
+     * keeping up easily: not throttled, and a long run of fast probes.
+     *
+     * @param interval the time between probes (in any unit)
+     * @param idleInterval the time between probes while the storage is keeping up easily
+     * @return the time to wait until the next probe
+     */
+    public synchronized long getProbeInterval(long interval, long idleInterval)
+    {
+        return (level == 0 && fastProbes >= FAST_PROBES) ? idleInterval : interval;
+    }
+
+    /**
+     * @return the rate the recording wrote at between the last two probes, or 0 if unknown
+     */
+    public synchronized long getBytesPerSecond()
+    {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @return how long the last probe took (in milliseconds)
+     */
+    public synchronized long getLatencyMillis()
+    {
+        return latencyNanos / 1000000;
+    }
+}
@@ -0,0 +1,9 @@
+package com.aramco.carwatcher;
+
+/**
+ * JUnit category of the tests that measure performance rather than check behavior. They take
+ * seconds and depend on the machine, so the unit test run leaves them out unless it's asked
+ * for them (gradlew test -Pbenchmarks).
+ */
+public interface Benchmark {
+}
@@ -0,0 +1,367 @@
+package com.aramco.carwatcher;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static com.aramco.carwatcher.CaptureController.*;
+import static org.junit.Assert.*;
+
+/**
+ * Drives CaptureController with a simulated clock and capture service.
+ */
+public class CaptureControllerTest {
+    /**
+     * A capture service that takes a random amount of time to start and stop recordings, and
+     * checks that every action makes sense for what it's doing at the time.
+     */
+    private static class FakeHost implements CaptureController.Host {
+        private final Random random;
+        private final PriorityQueue<Task> tasks = new PriorityQueue<Task>();
+        private long now = 0;
+        private long sequence = 0;
+        private CaptureController controller;
+        //what the simulated service is doing
+        private boolean recording = false;
+        private boolean monitoring = false;
+        private boolean clip = false;
+        private boolean busy = false;
+        //whether a continuous capture is recording a time-lapse of the parked car
+        private boolean parked = false;
+        //whether the service ever finishes its transitions
+        private boolean stuck = false;
+        private final List<Integer> actions = new ArrayList<Integer>();
+
+        private static class Task implements Comparable<Task> {
+            final long time;
+            final long sequence;
+            final Runnable runnable;
+
+            Task(long time, long sequence, Runnable runnable) {
+                this.time = time;
+                this.sequence = sequence;
+                this.runnable = runnable;
+            }
+
+            @Override
+            public int compareTo(Task other) {
+                if (time != other.time) {
+                    return Long.compare(time, other.time);
+                }
+                return Long.compare(sequence, other.sequence);
+            }
+        }
+
+        FakeHost(long seed) {
+            random = new Random(seed);
+        }
+
+        @Override
+        public long now() {
+            return now;
+        }
+
+        @Override
+        public void schedule(Runnable task, long delay) {
+            tasks.add(new Task(now + delay, sequence++, task));
+        }
+
+        @Override
+        public boolean isRecording() {
+            return recording;
+        }
+
+        @Override
+        public boolean perform(int action) {
+            assertFalse("Action " + action + " while another one is in progress", busy);
+            actions.add(action);
+            switch (action) {
+                case ACTION_START_RECORDING:
+                    assertFalse(recording);
+                    return finishLater(true, false, false);
+                case ACTION_STOP_RECORDING:
+                    assertTrue(recording && !monitoring);
+                    return finishLater(false, false, false);
+                case ACTION_START_MONITORING:
+                    assertFalse(recording);
+                    return finishLater(true, true, false);
+                case ACTION_STOP_MONITORING:
+                    assertTrue(recording && monitoring);
+                    return finishLater(false, false, false);
+                case ACTION_START_CLIP:
+                    assertTrue(monitoring && !clip);
+                    //a time-lapse is restarted in real time for the clip
+                    if (parked) {
+                        parked = false;
+                        return finishLater(true, true, true);
+                    }
+                    clip = true;
+                    return false;
+                case ACTION_STOP_CLIP:
+                    assertTrue(monitoring && clip);
+                    //clips either come from the pre-roll buffer or need a restart
+                    if (random.nextBoolean()) {
+                        clip = false;
+                        return false;
+                    }
+                    return finishLater(true, true, false);
+                case ACTION_ROTATE:
+                    assertTrue(monitoring && !clip);
+                    return finishLater(true, true, false);
+                case ACTION_BOOKMARK:
+                    assertTrue(monitoring && !clip);
+                    return false;
+            }
+            fail("Unknown action " + action);
+            return false;
+        }
+
+        private boolean finishLater(final boolean recording, final boolean monitoring, final boolean clip) {
+            busy = true;
+            if (stuck) {
+                return true;
+            }
+            schedule(new Runnable() {
+                @Override
+                public void run() {
+                    busy = false;
+                    FakeHost.this.recording = recording;
+                    FakeHost.this.monitoring = monitoring;
+                    FakeHost.this.clip = clip;
+                    if (recording) {
+                        controller.onRecordingStarted();
+                    } else {
+                        controller.onRecordingStopped();
+                    }
+                }
+            }, 50 + random.nextInt(1500));
+            return true;
+        }
+
+        /**
+         * Runs the scheduled tasks up to the specified time.
+         */
+        void advance(long time) {
+            while (!tasks.isEmpty() && tasks.peek().time <= time) {
+                Task task = tasks.poll();
+                now = task.time;
+                task.runnable.run();
+            }
+            now = time;
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                advance(tasks.peek().time);
+            }
+        }
+    }
+
+    private FakeHost newHost(long seed) {
+        FakeHost host = new FakeHost(seed);
+        host.controller = new CaptureController(host);
+        return host;
+    }
+
+    private void assertSettled(FakeHost host) {
+        CaptureController controller = host.controller;
+        assertEquals(0, controller.getQueueSize());
+        assertFalse(host.busy);
+        int state = controller.getState();
+        if (!host.recording) {
+            assertEquals(STATE_IDLE, state);
+        } else if (!host.monitoring) {
+            assertEquals(STATE_RECORDING, state);
+        } else {
+            assertEquals(host.clip ? STATE_CLIP : STATE_MONITORING, state);
+        }
+    }
+
+    @Test
+    public void randomCommandSequences() throws Exception {
+        for (long seed = 0; seed < 5000; seed++) {
+            FakeHost host = newHost(seed);
+            Random random = new Random(seed);
+            host.controller.setBookmarking(random.nextBoolean());
+            int commands = 1 + random.nextInt(40);
+            for (int i = 0; i < commands; i++) {
+                //mostly bursts of presses, with the odd long pause
+                host.advance(host.now() + (random.nextInt(4) == 0 ? random.nextInt(5000) : random.nextInt(400)));
+                host.parked |= random.nextInt(8) == 0;
+                host.controller.submit(random.nextInt(6));
+                //whatever happens, no action overlaps the previous one (checked by the host)
+            }
+            host.runAll();
+            assertSettled(host);
+        }
+    }
+
+    @Test
+    public void doublePressesCancelOut() throws Exception {
+        FakeHost host = newHost(1);
+        host.controller.submit(COMMAND_TOGGLE);
+        host.advance(100);
+        host.controller.submit(COMMAND_TOGGLE);
+        host.advance(200);
+        host.controller.submit(COMMAND_TOGGLE);
+        host.runAll();
+        //start, stop, start within the window is a single start
+        assertEquals(1, host.actions.size());
+        assertEquals(ACTION_START_RECORDING, (int)host.actions.get(0));
+        assertEquals(STATE_RECORDING, host.controller.getState());
+    }
+
+    @Test
+    public void slowPressesAreAllRun() throws Exception {
+        FakeHost host = newHost(2);
+        host.controller.submit(COMMAND_TOGGLE);
+        host.runAll();
+        host.advance(host.now() + 1000);
+        host.controller.submit(COMMAND_TOGGLE);
+        host.runAll();
+        assertEquals(2, host.actions.size());
+        assertEquals(ACTION_STOP_RECORDING, (int)host.actions.get(1));
+        assertEquals(STATE_IDLE, host.controller.getState());
+    }
+
+    @Test
+    public void bluetoothFlapsAreCoalesced() throws Exception {
+        FakeHost host = newHost(3);
+        host.controller.submit(COMMAND_MONITOR_START);
+        host.advance(50);
+        host.controller.submit(COMMAND_MONITOR_STOP);
+        host.advance(100);
+        host.controller.submit(COMMAND_MONITOR_START);
+        host.advance(150);
+        //already started
+        assertFalse(host.controller.submit(COMMAND_MONITOR_START));
+        host.runAll();
+        assertEquals(1, host.actions.size());
+        assertEquals(STATE_MONITORING, host.controller.getState());
+    }
+
+    @Test
+    public void rotationsAreRejectedDuringTransitions() throws Exception {
+        FakeHost host = newHost(4);
+        host.controller.submit(COMMAND_MONITOR_START);
+        assertEquals(STATE_STARTING, host.controller.getState());
+        assertFalse(host.controller.submit(COMMAND_ROTATE));
+        host.runAll();
+        assertTrue(host.controller.submit(COMMAND_ROTATE));
+        assertEquals(STATE_STOPPING, host.controller.getState());
+        assertFalse(host.controller.submit(COMMAND_ROTATE));
+        host.runAll();
+        assertEquals(STATE_MONITORING, host.controller.getState());
+        //no rotations while the user's clip is being saved either
+        host.controller.submit(COMMAND_TOGGLE);
+        assertEquals(STATE_CLIP, host.controller.getState());
+        assertFalse(host.controller.submit(COMMAND_ROTATE));
+    }
+
+    @Test
+    public void motionOnlyStartsClipsOfContinuousCaptures() throws Exception {
+        FakeHost host = newHost(7);
+        assertFalse(host.controller.submit(COMMAND_MOTION));
+        host.controller.submit(COMMAND_TOGGLE);
+        host.runAll();
+        assertFalse(host.controller.submit(COMMAND_MOTION));
+        host.advance(host.now() + 1000);
+        host.controller.submit(COMMAND_TOGGLE);
+        host.controller.submit(COMMAND_MONITOR_START);
+        assertFalse(host.controller.submit(COMMAND_MOTION));
+        host.runAll();
+        assertTrue(host.controller.submit(COMMAND_MOTION));
+        assertEquals(STATE_CLIP, host.controller.getState());
+        //more motion doesn't start another one, and the user can still stop it
+        assertFalse(host.controller.submit(COMMAND_MOTION));
+        host.advance(host.now() + 1000);
+        host.controller.submit(COMMAND_TOGGLE);
+        host.runAll();
+        assertEquals(STATE_MONITORING, host.controller.getState());
+    }
+
+    @Test
+    public void clipRequestedWhileParked() throws Exception {
+        FakeHost host = newHost(9);
+        host.controller.submit(COMMAND_MONITOR_START);
+        host.runAll();
+        host.parked = true;
+        //the clip starts with the restart in real time, not after it
+        assertTrue(host.controller.submit(COMMAND_MOTION));
+        assertEquals(STATE_STARTING, host.controller.getState());
+        assertFalse(host.controller.submit(COMMAND_ROTATE));
+        host.runAll();
+        assertEquals(STATE_CLIP, host.controller.getState());
+        assertFalse(host.parked);
+        assertEquals(0, countActions(host, ACTION_ROTATE));
+        //and the user stops it like any other clip
+        host.advance(host.now() + 1000);
+        host.controller.submit(COMMAND_TOGGLE);
+        host.runAll();
+        assertEquals(STATE_MONITORING, host.controller.getState());
+        assertEquals(1, countActions(host, ACTION_STOP_CLIP));
+    }
+
+    @Test
+    public void monitoringWaitsForUserRecording() throws Exception {
+        FakeHost host = newHost(5);
+        host.controller.submit(COMMAND_TOGGLE);
+        host.runAll();
+        host.controller.submit(COMMAND_MONITOR_START);
+        assertEquals(STATE_RECORDING, host.controller.getState());
+        host.advance(host.now() + 1000);
+        host.controller.submit(COMMAND_TOGGLE);
+        host.runAll();
+        assertEquals(STATE_MONITORING, host.controller.getState());
+    }
+
+    @Test
+    public void bookmarksLeaveTheCaptureAlone() throws Exception {
+        FakeHost host = newHost(8);
+        host.controller.setBookmarking(true);
+        host.controller.submit(COMMAND_MONITOR_START);
+        host.runAll();
+        host.advance(host.now() + 1000);
+        assertTrue(host.controller.submit(COMMAND_TOGGLE));
+        assertEquals(STATE_MONITORING, host.controller.getState());
+        host.advance(host.now() + 1000);
+        host.controller.submit(COMMAND_TOGGLE);
+        assertEquals(ACTION_BOOKMARK, (int)host.actions.get(1));
+        assertEquals(ACTION_BOOKMARK, (int)host.actions.get(2));
+        //rotations and motion go on as before
+        assertTrue(host.controller.submit(COMMAND_ROTATE));
+        host.runAll();
+        assertTrue(host.controller.submit(COMMAND_MOTION));
+        assertEquals(STATE_CLIP, host.controller.getState());
+        //and a clip is still stopped by the user
+        host.advance(host.now() + 1000);
+        host.controller.submit(COMMAND_TOGGLE);
+        host.runAll();
+        assertEquals(STATE_MONITORING, host.controller.getState());
+        assertEquals(3, countActions(host, ACTION_BOOKMARK) + countActions(host, ACTION_STOP_CLIP));
+    }
+
+    private static int countActions(FakeHost host, int action) {
+        int count = 0;
+        for (int performed : host.actions) {
+            if (performed == action) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void stuckTransitionsTimeOut() throws Exception {
+        FakeHost host = newHost(6);
+        host.stuck = true;
+        host.controller.submit(COMMAND_TOGGLE);
+        assertEquals(STATE_STARTING, host.controller.getState());
+        host.advance(TRANSITION_TIMEOUT + 1);
+        //the host never started recording
+        assertEquals(STATE_IDLE, host.controller.getState());
+    }
+}
@@ -0,0 +1,154 @@
+package com.aramco.carwatcher;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.aramco.carwatcher.CaptureGovernor.*;
+import static org.junit.Assert.*;
+
+/**
+ * Replays battery traces (in src/test/resources/governor) through CaptureGovernor. Every line
+ * of a trace is a battery update: seconds since the start, temperature in tenths of a degree,
+ * battery level and whether the phone is charging.
+ */
+public class CaptureGovernorTest {
+    private static class Sample {
+        long timeMillis;
+        int temperature;
+        int batteryLevel;
+        boolean charging;
+    }
+
+    private static class Change {
+        final long timeMillis;
+        final int tier;
+
+        Change(long timeMillis, int tier) {
+            this.timeMillis = timeMillis;
+            this.tier = tier;
+        }
+    }
+
+    private static List<Sample> load(String name) throws Exception {
+        List<Sample> samples = new ArrayList<Sample>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                CaptureGovernorTest.class.getResourceAsStream("/governor/" + name), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                Sample sample = new Sample();
+                sample.timeMillis = Long.parseLong(fields[0]) * 1000;
+                sample.temperature = Integer.parseInt(fields[1]);
+                sample.batteryLevel = Integer.parseInt(fields[2]);
+                sample.charging = Integer.parseInt(fields[3]) != 0;
+                samples.add(sample);
+            }
+        } finally {
+            reader.close();
+        }
+        assertFalse(samples.isEmpty());
+        return samples;
+    }
+
+    /**
+     * Replays a trace, checking the tier against every sample on the way.
+     *
+     * @return every change of tier
+     */
+    private static List<Change> replay(List<Sample> samples) {
+        CaptureGovernor governor = new CaptureGovernor();
+        List<Change> changes = new ArrayList<Change>();
+        for (Sample sample : samples) {
+            int before = governor.getTier();
+            boolean changed = governor.onSample(sample.timeMillis, sample.temperature,
+                    sample.batteryLevel, sample.charging);
+            int tier = governor.getTier();
+            assertEquals(changed, tier != before);
+            if (changed) {
+                //going down happens one tier at a time
+                assertTrue(tier > before || tier == before - 1);
+                changes.add(new Change(sample.timeMillis, tier));
+            }
+            //a crossed threshold is never ignored
+            if (sample.temperature >= 480 || (!sample.charging && sample.batteryLevel <= 10)) {
+                assertEquals(TIER_CRITICAL, tier);
+            } else if (sample.temperature >= 450 || (!sample.charging && sample.batteryLevel <= 20)) {
+                assertTrue(tier >= TIER_SAVER);
+            } else if (sample.temperature >= 420 || (!sample.charging && sample.batteryLevel <= 30)) {
+                assertTrue(tier >= TIER_REDUCED);
+            }
+        }
+        //a tier that was left was kept for at least the cool down
+        for (int i = 1; i < changes.size(); i++) {
+            if (changes.get(i).tier < changes.get(i - 1).tier) {
+                assertTrue(changes.get(i).timeMillis - changes.get(i - 1).timeMillis >= COOL_DOWN);
+            }
+        }
+        return changes;
+    }
+
+    private static int maxTier(List<Change> changes) {
+        int max = TIER_FULL;
+        for (Change change : changes) {
+            max = Math.max(max, change.tier);
+        }
+        return max;
+    }
+
+    @Test
+    public void hotDashboardStepsDownWithoutFlapping() throws Exception {
+        List<Sample> samples = load("hot_dashboard.csv");
+        List<Change> changes = replay(samples);
+        assertEquals(TIER_CRITICAL, maxTier(changes));
+        //the temperature hovers around the critical threshold for a long time; going up and
+        //back down through every tier takes 6 changes, hovering adds only a few
+        assertTrue("Tier changed " + changes.size() + " times", changes.size() <= 10);
+        //once the AC cools the phone down, it's back to full quality
+        assertEquals(TIER_FULL, changes.get(changes.size() - 1).tier);
+    }
+
+    @Test
+    public void drainingBatteryRecoversOncePluggedIn() throws Exception {
+        List<Sample> samples = load("draining_battery.csv");
+        List<Change> changes = replay(samples);
+        assertEquals(TIER_CRITICAL, maxTier(changes));
+        //the battery only drains, so the tiers only go up until the phone is plugged in
+        long pluggedIn = -1;
+        for (Sample sample : samples) {
+            if (sample.charging) {
+                pluggedIn = sample.timeMillis;
+                break;
+            }
+        }
+        int tier = TIER_FULL;
+        for (Change change : changes) {
+            if (change.timeMillis < pluggedIn) {
+                assertEquals(tier + 1, change.tier);
+            } else {
+                assertTrue(change.timeMillis - pluggedIn >= COOL_DOWN);
+            }
+            tier = change.tier;
+        }
+        assertEquals(TIER_FULL, tier);
+    }
+
+    @Test
+    public void tierSettings() throws Exception {
+        assertEquals(10000000, getBitRate(TIER_FULL, 10000000));
+        assertEquals(7500000, getBitRate(TIER_REDUCED, 10000000));
+        assertEquals(30, getFrameRate(TIER_SAVER, 30));
+        assertEquals(15, getFrameRate(TIER_CRITICAL, 30));
+        assertTrue(keepsCodec(TIER_REDUCED));
+        assertFalse(keepsCodec(TIER_SAVER));
+        assertFalse(lowersResolution(TIER_REDUCED));
+        assertTrue(lowersResolution(TIER_CRITICAL));
+    }
+}
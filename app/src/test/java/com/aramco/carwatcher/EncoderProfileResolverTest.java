@@ -0,0 +1,44 @@
+package com.aramco.carwatcher;
+
+import android.media.MediaCodecInfo.CodecProfileLevel;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Picks levels for the streams the quality tiers record, on encoders supporting up to level
+ * 5.1 (or 3.1).
+ */
+public class EncoderProfileResolverTest {
+    private static final String AVC = EncoderProfileResolver.MIME_AVC;
+    private static final String HEVC = EncoderProfileResolver.MIME_HEVC;
+
+    @Test
+    public void theLowestCoveringLevelIsPicked() throws Exception {
+        assertEquals(CodecProfileLevel.AVCLevel4, EncoderProfileResolver.chooseLevel(AVC,
+                    CodecProfileLevel.AVCProfileHigh, CodecProfileLevel.AVCLevel51, 1920, 1080, 30, 12000000));
+        assertEquals(CodecProfileLevel.AVCLevel31, EncoderProfileResolver.chooseLevel(AVC,
+                    CodecProfileLevel.AVCProfileHigh, CodecProfileLevel.AVCLevel51, 1280, 720, 30, 4000000));
+        assertEquals(CodecProfileLevel.AVCLevel3, EncoderProfileResolver.chooseLevel(AVC,
+                    CodecProfileLevel.AVCProfileHigh, CodecProfileLevel.AVCLevel51, 720, 480, 30, 1000000));
+        assertEquals(CodecProfileLevel.HEVCMainTierLevel4, EncoderProfileResolver.chooseLevel(HEVC,
+                    CodecProfileLevel.HEVCProfileMain, CodecProfileLevel.HEVCMainTierLevel51, 1920, 1080, 30, 6600000));
+    }
+
+    @Test
+    public void theBitRateCanRaiseTheLevel() throws Exception {
+        //24 Mb/s is over the level 4 limit of Main, but not of High
+        assertEquals(CodecProfileLevel.AVCLevel41, EncoderProfileResolver.chooseLevel(AVC,
+                    CodecProfileLevel.AVCProfileMain, CodecProfileLevel.AVCLevel51, 1920, 1080, 30, 24000000));
+        assertEquals(CodecProfileLevel.AVCLevel4, EncoderProfileResolver.chooseLevel(AVC,
+                    CodecProfileLevel.AVCProfileHigh, CodecProfileLevel.AVCLevel51, 1920, 1080, 30, 24000000));
+    }
+
+    @Test
+    public void theEncoderMaximumIsKeptWhenNothingCovers() throws Exception {
+        assertEquals(CodecProfileLevel.AVCLevel31, EncoderProfileResolver.chooseLevel(AVC,
+                    CodecProfileLevel.AVCProfileHigh, CodecProfileLevel.AVCLevel31, 1920, 1080, 30, 12000000));
+        assertEquals(0, EncoderProfileResolver.chooseLevel(AVC, 0, 0, 1920, 1080, 30, 12000000));
+    }
+}
@@ -0,0 +1,121 @@
+package com.aramco.carwatcher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds FrameStats with the timestamps of a camera running at 30 fps, with a few hiccups.
+ */
+public class FrameStatsTest {
+    private static final long FRAME = 1000000000L / 30;
+    private static final long MILLI = 1000000;
+
+    private long now = 0;
+
+    private void frames(FrameStats stats, int count) {
+        for (int i = 0; i < count; i++) {
+            now += FRAME;
+            stats.onFrame(now);
+        }
+    }
+
+    @Test
+    public void steadyFramesAreOnTime() throws Exception {
+        FrameStats stats = new FrameStats(30);
+        frames(stats, 300);
+        assertEquals(300, stats.getFrameCount());
+        assertEquals(0, stats.getLateFrames());
+        assertEquals(0, stats.getDroppedFrames());
+        assertEquals(33, stats.getMaxIntervalMillis());
+        //33 ms falls between 30 and 37 ms
+        assertEquals(299, stats.getIntervalCount(2));
+    }
+
+    @Test
+    public void gapsCountAsLateAndDropped() throws Exception {
+        FrameStats stats = new FrameStats(30);
+        frames(stats, 10);
+        //three frames missing
+        now += FRAME * 3;
+        frames(stats, 10);
+        //a frame that's only a bit late
+        now += FRAME * 2 / 3;
+        frames(stats, 1);
+        assertEquals(2, stats.getLateFrames());
+        assertEquals(4, stats.getDroppedFrames());
+        assertEquals(133, stats.getMaxIntervalMillis());
+        assertEquals(1, stats.getIntervalCount(FrameStats.INTERVAL_BOUNDS.length - 1));
+        //a new session isn't a gap
+        stats.markBoundary();
+        now += 1000 * MILLI;
+        frames(stats, 10);
+        assertEquals(2, stats.getLateFrames());
+        stats.onFailure();
+        assertEquals(1, stats.getFailedFrames());
+        stats.reset(30);
+        assertEquals(0, stats.getFrameCount());
+        assertEquals(0, stats.getLateFrames());
+        assertEquals(0, stats.getIntervalCount(2));
+    }
+
+    @Test
+    public void exposuresAreBucketed() throws Exception {
+        FrameStats stats = new FrameStats(30);
+        stats.onExposure(500000);
+        stats.onExposure(10 * MILLI);
+        stats.onExposure(16 * MILLI);
+        stats.onExposure(100 * MILLI);
+        assertEquals(1, stats.getExposureCount(0));
+        assertEquals(1, stats.getExposureCount(4));
+        assertEquals(1, stats.getExposureCount(5));
+        assertEquals(1, stats.getExposureCount(FrameStats.EXPOSURE_BOUNDS.length));
+    }
+
+    @Test
+    public void encodedStatsAreReadBack() throws Exception {
+        FrameStats stats = new FrameStats(30);
+        frames(stats, 50);
+        now += FRAME * 3;
+        frames(stats, 50);
+        stats.onExposure(20 * MILLI);
+        stats.onFailure();
+        FrameStats decoded = FrameStats.decode(stats.encode());
+        assertNotNull(decoded);
+        assertEquals(stats.encode(), decoded.encode());
+        assertEquals(100, decoded.getFrameCount());
+        assertEquals(1, decoded.getLateFrames());
+        assertEquals(3, decoded.getDroppedFrames());
+        assertEquals(1, decoded.getFailedFrames());
+        assertEquals(133, decoded.getMaxIntervalMillis());
+        assertNull(FrameStats.decode(null));
+        //videos from before the segment cuts were counted are still read
+        FrameStats old = FrameStats.decode("100,1,3,1,133;0,0,98,0,1,0,0,0;0,0,0,0,0,1,0,0");
+        assertNotNull(old);
+        assertEquals(100, old.getFrameCount());
+        assertEquals(0, old.getSegmentCuts());
+        assertNull(FrameStats.decode(""));
+        assertNull(FrameStats.decode("1,2,3;4;5"));
+        assertNull(FrameStats.decode("a,0,0,0,0;0,0,0,0,0,0,0,0;0,0,0,0,0,0,0,0"));
+        assertEquals("<20 ms", FrameStats.getBucketLabel(0, FrameStats.INTERVAL_BOUNDS));
+        assertEquals("20-30 ms", FrameStats.getBucketLabel(1, FrameStats.INTERVAL_BOUNDS));
+        assertEquals(">=200 ms", FrameStats.getBucketLabel(FrameStats.INTERVAL_BOUNDS.length, FrameStats.INTERVAL_BOUNDS));
+    }
+
+    @Test
+    public void segmentGapsAreKept() throws Exception {
+        FrameStats stats = new FrameStats(30);
+        frames(stats, 10);
+        stats.onSegmentGap(0);
+        stats.onSegmentGap(2);
+        stats.onSegmentGap(1);
+        assertEquals(3, stats.getSegmentCuts());
+        assertEquals(2, stats.getMaxSegmentGap());
+        FrameStats decoded = FrameStats.decode(stats.encode());
+        assertEquals(3, decoded.getSegmentCuts());
+        assertEquals(2, decoded.getMaxSegmentGap());
+        stats.reset(30);
+        assertEquals(0, stats.getSegmentCuts());
+        assertEquals(0, stats.getMaxSegmentGap());
+    }
+}
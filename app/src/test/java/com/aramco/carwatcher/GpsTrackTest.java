@@ -0,0 +1,98 @@
+package com.aramco.carwatcher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Packs the track of a car driving north at about 25 m/s, one sample a second.
+ */
+public class GpsTrackTest {
+    private static final long START = 1500000000000L;
+
+    private GpsTrack drive(int seconds) {
+        GpsTrack track = new GpsTrack();
+        for (int i = 0; i < seconds; i++) {
+            track.add(START + i * 1000, 26.3 + i * 0.000225, 50.1 + i * 0.00001, 25f + (i % 5) / 10f);
+        }
+        return track;
+    }
+
+    @Test
+    public void samplesAreReadBack() throws Exception {
+        GpsTrack track = drive(100);
+        assertEquals(100, track.getCount());
+        GpsTrack.Reader reader = GpsTrack.read(track.toByteArray());
+        assertNotNull(reader);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(reader.next());
+            assertEquals(START + i * 1000, reader.getTime());
+            assertEquals(26.3 + i * 0.000225, reader.getLatitude(), 0.000001);
+            assertEquals(50.1 + i * 0.00001, reader.getLongitude(), 0.000001);
+            assertEquals(25f + (i % 5) / 10f, reader.getSpeed(), 0.05f);
+        }
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void anHourFitsInFiftyKilobytes() throws Exception {
+        GpsTrack track = drive(3600);
+        assertTrue(track.getSize() < 50 * 1024);
+        //mostly 7 bytes a sample
+        assertTrue(track.getSize() < 3600 * 8);
+    }
+
+    @Test
+    public void unknownSpeedsAndNegativeCoordinates() throws Exception {
+        GpsTrack track = new GpsTrack();
+        track.add(START, -33.9, -70.6, -1f);
+        track.add(START + 1000, -33.9001, -70.6001, 3.4f);
+        GpsTrack.Reader reader = GpsTrack.read(track.toByteArray());
+        assertTrue(reader.next());
+        assertEquals(-33.9, reader.getLatitude(), 0.000001);
+        assertEquals(-70.6, reader.getLongitude(), 0.000001);
+        assertEquals(-1f, reader.getSpeed(), 0f);
+        assertTrue(reader.next());
+        assertEquals(3.4f, reader.getSpeed(), 0.05f);
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void slicesKeepTheirWindow() throws Exception {
+        GpsTrack slice = drive(600).slice(START + 100000, START + 159000);
+        assertEquals(60, slice.getCount());
+        GpsTrack.Reader reader = GpsTrack.read(slice.toByteArray());
+        assertTrue(reader.next());
+        assertEquals(START + 100000, reader.getTime());
+        assertEquals(26.3 + 100 * 0.000225, reader.getLatitude(), 0.000001);
+        assertEquals(0, drive(10).slice(START + 20000, START + 30000).getCount());
+    }
+
+    @Test
+    public void badTracksAreNotRead() throws Exception {
+        assertNull(GpsTrack.read(null));
+        assertNull(GpsTrack.read(new byte[0]));
+        assertNull(GpsTrack.read(new byte[] {(byte)(GpsTrack.VERSION + 1)}));
+        byte[] data = drive(2).toByteArray();
+        GpsTrack.Reader reader = GpsTrack.read(java.util.Arrays.copyOf(data, data.length - 1));
+        assertTrue(reader.next());
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void distancesAlongTheEarth() throws Exception {
+        //a degree of latitude is about 111 km
+        assertEquals(111195, GpsTrack.getDistance(26, 50, 27, 50), 10);
+        assertEquals(0, GpsTrack.getDistance(26, 50, 26, 50), 0);
+    }
+
+    @Test
+    public void gpxHasAPointPerSample() throws Exception {
+        java.io.StringWriter out = new java.io.StringWriter();
+        GpsTrack.writeGpx(GpsTrack.read(drive(3).toByteArray()), "a & b", out);
+        String gpx = out.toString();
+        assertTrue(gpx.contains("<name>a &amp; b</name>"));
+        assertTrue(gpx.contains("<trkpt lat=\"26.300000\" lon=\"50.100000\"><time>2017-07-14T02:40:00Z</time><speed>25.0</speed></trkpt>"));
+        assertEquals(3, gpx.split("<trkpt ").length - 1);
+    }
+}
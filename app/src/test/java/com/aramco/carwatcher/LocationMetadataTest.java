@@ -0,0 +1,55 @@
+package com.aramco.carwatcher;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class LocationMetadataTest {
+    @Test
+    public void samplesAreReadBack() throws Exception {
+        byte[] sample = new LocationMetadata(1500000000123L, 26.2884571, -50.1138902, 27.45f, 359.9f).encode();
+        assertEquals(LocationMetadata.SIZE, sample.length);
+        LocationMetadata location = LocationMetadata.decode(ByteBuffer.wrap(sample));
+        assertNotNull(location);
+        assertEquals(1500000000123L, location.getTime());
+        assertEquals(26.2884571, location.getLatitude(), 0.0000001);
+        assertEquals(-50.1138902, location.getLongitude(), 0.0000001);
+        assertEquals(27.45f, location.getSpeed(), 0.01f);
+        assertEquals(359.9f, location.getHeading(), 0.01f);
+    }
+
+    @Test
+    public void unknownSpeedAndHeading() throws Exception {
+        byte[] sample = new LocationMetadata(0, 0, 0, -1, -1).encode();
+        LocationMetadata location = LocationMetadata.decode(ByteBuffer.wrap(sample));
+        assertEquals(-1f, location.getSpeed(), 0f);
+        assertEquals(-1f, location.getHeading(), 0f);
+        //a full turn is north again
+        assertEquals(0f, LocationMetadata.decode(ByteBuffer.wrap(new LocationMetadata(0, 0, 0, 0, 360).encode())).getHeading(), 0f);
+    }
+
+    @Test
+    public void samplesAreReadFromWhereTheBufferIs() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(LocationMetadata.SIZE + 3);
+        buffer.position(3);
+        buffer.put(new LocationMetadata(42, 1, 2, 3, 4).encode());
+        buffer.position(3);
+        assertEquals(42, LocationMetadata.decode(buffer).getTime());
+        //reading doesn't move the buffer
+        assertEquals(3, buffer.position());
+        assertNull(LocationMetadata.decode(ByteBuffer.allocate(LocationMetadata.SIZE - 1)));
+        byte[] sample = new LocationMetadata(42, 1, 2, 3, 4).encode();
+        sample[0]++;
+        assertNull(LocationMetadata.decode(ByteBuffer.wrap(sample)));
+    }
+
+    @Test
+    public void unknownSamplesHaveNoLocation() throws Exception {
+        byte[] sample = LocationMetadata.encodeUnknown();
+        assertEquals(LocationMetadata.SIZE, sample.length);
+        assertEquals(LocationMetadata.VERSION, sample[0]);
+        assertNull(LocationMetadata.decode(ByteBuffer.wrap(sample)));
+    }
+}
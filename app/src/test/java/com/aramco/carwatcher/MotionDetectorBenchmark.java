@@ -0,0 +1,79 @@
+package com.aramco.carwatcher;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures how many frames per second MotionDetector analyzes on one core, for a few analysis
+ * resolutions, on synthetic frames with an object moving across them. The frames are drawn up
+ * front so only the detector is timed. It also checks that analyzing a frame allocates nothing
+ * (on JVMs that count allocations per thread). The behavior of the detector is checked by
+ * MotionDetectorTest.
+ */
+@Category(Benchmark.class)
+public class MotionDetectorBenchmark {
+    private static final int FRAMES = 32;
+    private static final long WARM_UP_NANOS = 500L * 1000000;
+    private static final long RUN_NANOS = 1000L * 1000000;
+
+    private static double measure(int width, int height) {
+        MotionDetectorTest.Scene scene = new MotionDetectorTest.Scene(width, height);
+        ByteBuffer[] frames = new ByteBuffer[FRAMES];
+        for (int i = 0; i < FRAMES; i++) {
+            frames[i] = scene.newFrame();
+            scene.draw(frames[i], i * (width - MotionDetectorTest.Scene.OBJECT_SIZE) / FRAMES, 0);
+        }
+        MotionDetector detector = new MotionDetector(width, height);
+        run(detector, frames, scene.rowStride, WARM_UP_NANOS);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long allocated = getAllocatedBytes(threads);
+        long start = System.nanoTime();
+        long count = run(detector, frames, scene.rowStride, RUN_NANOS);
+        double framesPerSecond = count * 1e9 / (System.nanoTime() - start);
+        if (allocated >= 0) {
+            //a few bytes may go to the timing itself, but nothing per frame
+            assertTrue(getAllocatedBytes(threads) - allocated < 1024);
+        }
+        System.out.println(String.format("MotionDetector %dx%d: %.0f frames/s on one core",
+                width, height, framesPerSecond));
+        return framesPerSecond;
+    }
+
+    private static long run(MotionDetector detector, ByteBuffer[] frames, int rowStride, long nanos) {
+        long end = System.nanoTime() + nanos;
+        long count = 0;
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < FRAMES; i++) {
+                detector.onFrame(frames[i], rowStride, 1);
+            }
+            count += FRAMES;
+        }
+        return count;
+    }
+
+    private static long getAllocatedBytes(ThreadMXBean threads) {
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean)threads;
+        if (!allocations.isThreadAllocatedMemorySupported() || !allocations.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        return allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void framesPerSecondPerCore() throws Exception {
+        //the analysis stream runs at up to 30 frames per second, the detector should be far
+        //ahead of it on any machine running the tests
+        assertTrue(measure(320, 240) > 300);
+        measure(640, 480);
+        measure(1280, 720);
+    }
+}
@@ -0,0 +1,131 @@
+package com.aramco.carwatcher;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds MotionDetector with synthetic frames: a noisy scene, with or without an object moving
+ * across it and with the exposure changing.
+ */
+public class MotionDetectorTest {
+    /**
+     * Draws the luma plane of a synthetic scene, with padding at the end of every row like a
+     * camera buffer.
+     */
+    static class Scene {
+        static final int OBJECT_SIZE = 40;
+
+        final int width;
+        final int height;
+        final int rowStride;
+        private final byte[] noise;
+        private final Random random = new Random(1);
+
+        Scene(int width, int height) {
+            this.width = width;
+            this.height = height;
+            rowStride = width + 16;
+            noise = new byte[rowStride * height * 2];
+            for (int i = 0; i < noise.length; i++) {
+                noise[i] = (byte)(random.nextInt(9) - 4);
+            }
+        }
+
+        ByteBuffer newFrame() {
+            return ByteBuffer.allocateDirect(rowStride * height);
+        }
+
+        /**
+         * @param objectX where the object is (its left edge), or -1 for no object
+         * @param brightness added to every pixel
+         */
+        void draw(ByteBuffer frame, int objectX, int brightness) {
+            int noiseStart = random.nextInt(rowStride * height);
+            int objectY = height / 2 - OBJECT_SIZE / 2;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int luma = 20 + (x + 2 * y) % 160;
+                    if (objectX >= 0 && x >= objectX && x < objectX + OBJECT_SIZE &&
+                            y >= objectY && y < objectY + OBJECT_SIZE) {
+                        luma = 230;
+                    }
+                    luma += brightness + noise[noiseStart + y * rowStride + x];
+                    frame.put(y * rowStride + x, (byte)Math.max(0, Math.min(255, luma)));
+                }
+            }
+        }
+    }
+
+    private final Scene scene = new Scene(320, 240);
+    private final ByteBuffer frame = scene.newFrame();
+
+    private boolean analyze(MotionDetector detector, int objectX, int brightness) {
+        scene.draw(frame, objectX, brightness);
+        return detector.onFrame(frame, scene.rowStride, 1);
+    }
+
+    @Test
+    public void noiseIsNotMotion() throws Exception {
+        MotionDetector detector = new MotionDetector(scene.width, scene.height);
+        for (int i = 0; i < 100; i++) {
+            assertFalse(analyze(detector, -1, 0));
+        }
+        assertEquals(0, detector.getChangedBlocks());
+    }
+
+    @Test
+    public void exposureChangeIsNotMotion() throws Exception {
+        MotionDetector detector = new MotionDetector(scene.width, scene.height);
+        analyze(detector, -1, 0);
+        //the camera brightens the whole frame quickly, then darkens it again
+        for (int i = 0; i <= 10; i++) {
+            assertFalse(analyze(detector, -1, i * 4));
+        }
+        for (int i = 10; i >= 0; i--) {
+            assertFalse(analyze(detector, -1, i * 4));
+        }
+    }
+
+    @Test
+    public void movingObjectIsMotionUntilItStops() throws Exception {
+        MotionDetector detector = new MotionDetector(scene.width, scene.height);
+        for (int i = 0; i < 10; i++) {
+            analyze(detector, -1, 0);
+        }
+        //the first frame with the object isn't enough
+        int x = 0;
+        assertFalse(analyze(detector, x, 0));
+        for (x = 6; x < 200; x += 6) {
+            assertTrue(analyze(detector, x, 0));
+        }
+        //once it stops, it becomes part of the background
+        int frames = 0;
+        while (analyze(detector, x, 0)) {
+            frames++;
+            assertTrue("Still motion after " + frames + " frames", frames < 100);
+        }
+        for (int i = 0; i < 20; i++) {
+            assertFalse(analyze(detector, x, 0));
+        }
+    }
+
+    @Test
+    public void singleFrameGlitchIsNotMotion() throws Exception {
+        MotionDetector detector = new MotionDetector(scene.width, scene.height);
+        analyze(detector, -1, 0);
+        assertFalse(analyze(detector, 100, 0));
+        assertTrue(detector.getChangedBlocks() > 0);
+        assertFalse(analyze(detector, -1, 0));
+        assertFalse(analyze(detector, -1, 0));
+        //and reset forgets the background
+        analyze(detector, 100, 0);
+        detector.reset();
+        assertFalse(analyze(detector, -1, 0));
+        assertFalse(analyze(detector, -1, 0));
+        assertEquals(0, detector.getChangedBlocks());
+    }
+}
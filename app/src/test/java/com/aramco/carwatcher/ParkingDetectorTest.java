@@ -0,0 +1,82 @@
+package com.aramco.carwatcher;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds ParkingDetector with a simulated accelerometer (at 5 Hz, like SENSOR_DELAY_NORMAL)
+ * through a drive, a red light, a stop in the car park and someone getting in.
+ */
+public class ParkingDetectorTest {
+    private static final long SAMPLE_INTERVAL = 200000000L;
+    private static final float GRAVITY = 9.81f;
+
+    private final Random random = new Random(1);
+    private long now = 0;
+    //the phone is mounted at an angle
+    private float tilt = 0.5f;
+
+    /**
+     * Simulates the specified number of seconds with the specified shaking (in m/s^2).
+     *
+     * @return how many times the detector changed its mind
+     */
+    private int run(ParkingDetector detector, int seconds, double shaking) {
+        int changes = 0;
+        for (long end = now + seconds * 1000000000L; now < end; now += SAMPLE_INTERVAL) {
+            float x = (float)(GRAVITY * Math.sin(tilt) + random.nextGaussian() * shaking);
+            float y = (float)(random.nextGaussian() * shaking);
+            float z = (float)(GRAVITY * Math.cos(tilt) + random.nextGaussian() * shaking);
+            if (detector.onSample(now, x, y, z)) {
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+    @Test
+    public void parksAfterTheCarStaysStillAndWakesOnMotion() throws Exception {
+        ParkingDetector detector = new ParkingDetector();
+        //driving, then an idling engine at a long red light
+        assertEquals(0, run(detector, 600, 0.8));
+        assertEquals(0, run(detector, 120, 0.3));
+        assertFalse(detector.isParked());
+        //parked with the engine off
+        assertEquals(0, run(detector, 170, 0.02));
+        assertFalse(detector.isParked());
+        assertEquals(1, run(detector, 20, 0.02));
+        assertTrue(detector.isParked());
+        //the phone slowly settling in its mount doesn't count as motion
+        for (int i = 0; i < 100; i++) {
+            tilt += 0.002f;
+            assertEquals(0, run(detector, 1, 0.02));
+        }
+        assertTrue(detector.isParked());
+        //someone gets in and shuts the door
+        assertEquals(1, run(detector, 2, 1.5));
+        assertFalse(detector.isParked());
+        //and parks again only after the whole delay
+        run(detector, (int)(ParkingDetector.STATIONARY_DELAY / 1000000000L) - 10, 0.02);
+        assertFalse(detector.isParked());
+        run(detector, 15, 0.02);
+        assertTrue(detector.isParked());
+    }
+
+    @Test
+    public void wakeStartsTheDelayOver() throws Exception {
+        ParkingDetector detector = new ParkingDetector();
+        run(detector, 200, 0.02);
+        assertTrue(detector.isParked());
+        assertTrue(detector.wake());
+        assertFalse(detector.wake());
+        run(detector, 120, 0.02);
+        assertFalse(detector.isParked());
+        run(detector, 70, 0.02);
+        assertTrue(detector.isParked());
+        detector.reset();
+        assertFalse(detector.isParked());
+    }
+}
@@ -0,0 +1,141 @@
+package com.aramco.carwatcher;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes a 30 fps stream with a key frame every 10 frames into PreRollBuffer. Every byte of a
+ * frame holds the number of the frame, so the frames read back can be checked.
+ */
+public class PreRollBufferTest {
+    private static final long FRAME_US = 1000000 / 30;
+    private static final int GOP = 10;
+
+    private static class Frame {
+        final int number;
+        final int size;
+        final boolean keyFrame;
+
+        Frame(int number, int size, boolean keyFrame) {
+            this.number = number;
+            this.size = size;
+            this.keyFrame = keyFrame;
+        }
+    }
+
+    private static void write(PreRollBuffer buffer, int number, int size) {
+        ByteBuffer source = ByteBuffer.allocate(size + 8);
+        for (int i = 0; i < size; i++) {
+            source.put(4 + i, (byte)number);
+        }
+        buffer.write(source, 4, size, number * FRAME_US, number % GOP == 0);
+        //the source is left as it was
+        assertEquals(0, source.position());
+        assertEquals(size + 8, source.limit());
+    }
+
+    private static List<Frame> drain(PreRollBuffer buffer) {
+        final List<Frame> frames = new ArrayList<Frame>();
+        buffer.drain(new PreRollBuffer.FrameConsumer() {
+            @Override
+            public void onFrame(ByteBuffer store, int offset, int size, long presentationTimeUs, boolean keyFrame) {
+                int number = (int)(presentationTimeUs / FRAME_US);
+                for (int i = offset; i < offset + size; i++) {
+                    assertEquals("frame " + number, (byte)number, store.get(i));
+                }
+                frames.add(new Frame(number, size, keyFrame));
+            }
+        });
+        return frames;
+    }
+
+    /**
+     * Checks the frames start on a key frame and follow each other without a hole.
+     */
+    private static void assertDecodable(List<Frame> frames) {
+        assertFalse(frames.isEmpty());
+        assertTrue(frames.get(0).keyFrame);
+        for (int i = 1; i < frames.size(); i++) {
+            assertEquals(frames.get(i - 1).number + 1, frames.get(i).number);
+        }
+    }
+
+    @Test
+    public void nothingIsKeptBeforeTheFirstKeyFrame() throws Exception {
+        PreRollBuffer buffer = new PreRollBuffer(100000, 100, 1000000);
+        for (int i = 1; i < GOP; i++) {
+            write(buffer, i, 500);
+        }
+        assertEquals(0, buffer.getFrameCount());
+        write(buffer, GOP, 500);
+        write(buffer, GOP + 1, 500);
+        List<Frame> frames = drain(buffer);
+        assertEquals(2, frames.size());
+        assertEquals(GOP, frames.get(0).number);
+        assertDecodable(frames);
+    }
+
+    @Test
+    public void theWindowIsTrimmedToWholeGroups() throws Exception {
+        PreRollBuffer buffer = new PreRollBuffer(1000000, 1000, 1000000);
+        for (int i = 0; i < 300; i++) {
+            write(buffer, i, 1000);
+        }
+        List<Frame> frames = drain(buffer);
+        assertDecodable(frames);
+        assertEquals(299, frames.get(frames.size() - 1).number);
+        //at least the window is kept, from a key frame: a group at most before the window,
+        //which starts at the newest key frame, and the group of that key frame after it
+        assertTrue(buffer.getDurationUs() >= 1000000);
+        assertTrue(buffer.getDurationUs() < 1000000 + 2 * GOP * FRAME_US);
+    }
+
+    @Test
+    public void framesWrapAroundTheStore() throws Exception {
+        //room for a little over two groups, with a window longer than that
+        PreRollBuffer buffer = new PreRollBuffer(23 * 1000 + 500, 1000, 10000000);
+        for (int i = 0; i < 95; i++) {
+            //sizes that don't divide the store, so frames land all over it
+            write(buffer, i, (i % GOP == 0) ? 1500 : 700 + (i % 7) * 50);
+            List<Frame> frames = drain(buffer);
+            assertDecodable(frames);
+            assertEquals(i, frames.get(frames.size() - 1).number);
+            int bytes = 0;
+            for (Frame frame : frames) {
+                bytes += frame.size;
+            }
+            assertTrue(bytes <= 23 * 1000 + 500);
+        }
+        //the oldest groups were dropped to make room
+        assertTrue(drain(buffer).get(0).number >= 70);
+    }
+
+    @Test
+    public void theFrameLimitDropsWholeGroups() throws Exception {
+        PreRollBuffer buffer = new PreRollBuffer(1000000, 25, 10000000);
+        for (int i = 0; i < 100; i++) {
+            write(buffer, i, 100);
+            assertTrue(buffer.getFrameCount() <= 25);
+            assertDecodable(drain(buffer));
+        }
+    }
+
+    @Test
+    public void aFrameBiggerThanTheStoreEmptiesIt() throws Exception {
+        PreRollBuffer buffer = new PreRollBuffer(10000, 100, 1000000);
+        write(buffer, 0, 1000);
+        write(buffer, 1, 1000);
+        write(buffer, 2, 20000);
+        assertEquals(0, buffer.getFrameCount());
+        //and it stays empty until the next key frame
+        write(buffer, 3, 1000);
+        assertEquals(0, buffer.getFrameCount());
+        write(buffer, GOP, 1000);
+        assertEquals(1, buffer.getFrameCount());
+    }
+}
@@ -0,0 +1,61 @@
+package com.aramco.carwatcher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures segment boundaries of a 30 fps recording, both the ones cut by the backend and
+ * the ones where the recording is restarted.
+ */
+public class SegmentGapMeterTest {
+    private static final long FRAME_US = 1000000 / 30;
+    private static final long FRAME_NS = FRAME_US * 1000;
+
+    @Test
+    public void aCutOnTheNextFrameHasNoGap() throws Exception {
+        SegmentGapMeter meter = new SegmentGapMeter(30);
+        assertTrue(meter.onCut(10 * FRAME_US, 11 * FRAME_US));
+        assertEquals(0, meter.getLastGapFrames());
+        assertEquals(1, meter.getBoundaries());
+    }
+
+    @Test
+    public void aCutCountsTheFramesInBetween() throws Exception {
+        SegmentGapMeter meter = new SegmentGapMeter(30);
+        assertTrue(meter.onCut(10 * FRAME_US, 14 * FRAME_US));
+        assertEquals(3, meter.getLastGapFrames());
+        assertEquals(99, meter.getLastGapMillis());
+        assertTrue(meter.onCut(100 * FRAME_US, 101 * FRAME_US));
+        assertEquals(0, meter.getLastGapFrames());
+        assertEquals(3, meter.getMaxGapFrames());
+        assertEquals(3, meter.getTotalGapFrames());
+        assertEquals(2, meter.getBoundaries());
+    }
+
+    @Test
+    public void unknownFramesAreNotMeasured() throws Exception {
+        SegmentGapMeter meter = new SegmentGapMeter(30);
+        assertFalse(meter.onCut(-1, -1));
+        assertFalse(meter.onCut(-1, FRAME_US));
+        assertEquals(0, meter.getBoundaries());
+    }
+
+    @Test
+    public void aRestartIsMeasuredFromTheCameraFrames() throws Exception {
+        SegmentGapMeter meter = new SegmentGapMeter(30);
+        long now = 0;
+        for (int i = 0; i < 10; i++) {
+            now += FRAME_NS;
+            assertFalse(meter.onFrame(now));
+        }
+        meter.markBoundary();
+        //the new session takes 10 frames to deliver
+        now += FRAME_NS * 11;
+        assertTrue(meter.onFrame(now));
+        assertEquals(10, meter.getLastGapFrames());
+        now += FRAME_NS;
+        assertFalse(meter.onFrame(now));
+        assertEquals(1, meter.getBoundaries());
+    }
+}
@@ -0,0 +1,146 @@
+package com.aramco.carwatcher;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs SegmentLimits the way MediaCodecBackend does, over a simulated drive: the encoder
+ * output is cut on the first key frame after the next segment is asked for.
+ */
+public class SegmentLimitsTest {
+    private static final long MAX_BYTES = 256L * 1024 * 1024;
+    private static final long MAX_DURATION = 5 * 60 * 1000;
+    private static final int FRAME_RATE = 30;
+    private static final long FRAME_INTERVAL_US = 1000000 / FRAME_RATE;
+
+    private static class Segment {
+        long bytes;
+        long firstTimeUs = -1;
+        long lastTimeUs;
+        int frames;
+        boolean startsOnKeyFrame;
+
+        long getDurationUs() {
+            return lastTimeUs - firstTimeUs + FRAME_INTERVAL_US;
+        }
+    }
+
+    /**
+     * Simulates the encoder output over a drive of the specified length, with the bit rate
+     * changing as the car parks, drives through town and gets on the highway.
+     */
+    private List<Segment> drive(long seed, long hours) {
+        Random random = new Random(seed);
+        SegmentLimits limits = new SegmentLimits(MAX_BYTES, MAX_DURATION);
+        List<Segment> segments = new ArrayList<Segment>();
+        Segment segment = new Segment();
+        segments.add(segment);
+        long endUs = hours * 3600 * 1000000;
+        long timeUs = 0;
+        int bitRate = 4000000;
+        //the encoder starts on a key frame
+        int framesSinceKey = FRAME_RATE;
+        //the frames left before the requested key frame, -1 if none was requested
+        int keyFrameDelay = -1;
+        boolean nextRequested = false;
+        while (timeUs < endUs) {
+            //every minute or so the scene changes
+            if (random.nextInt(FRAME_RATE * 60) == 0) {
+                int[] bitRates = {500000, 2000000, 6000000, 12000000, 16000000};
+                bitRate = bitRates[random.nextInt(bitRates.length)];
+            }
+            boolean keyFrame = framesSinceKey >= FRAME_RATE || keyFrameDelay == 0;
+            int size = bitRate / 8 / FRAME_RATE;
+            size = keyFrame ? size * 4 : size * (50 + random.nextInt(100)) / 100;
+            if (keyFrame) {
+                framesSinceKey = 0;
+                keyFrameDelay = -1;
+                //the cut happens right before writing the key frame
+                if (nextRequested) {
+                    segment = new Segment();
+                    segments.add(segment);
+                    limits.reset();
+                    nextRequested = false;
+                }
+            }
+            framesSinceKey++;
+            if (keyFrameDelay > 0) {
+                keyFrameDelay--;
+            }
+            if (segment.firstTimeUs < 0) {
+                segment.firstTimeUs = timeUs;
+                segment.startsOnKeyFrame = keyFrame;
+            }
+            segment.lastTimeUs = timeUs;
+            segment.bytes += size;
+            segment.frames++;
+            if (limits.onFrame(timeUs, size)) {
+                //the encoder takes a frame or two to honor a key frame request
+                nextRequested = true;
+                keyFrameDelay = 1 + random.nextInt(2);
+            }
+            //the odd frame comes late or gets dropped
+            timeUs += (random.nextInt(200) == 0) ? FRAME_INTERVAL_US * 2 : FRAME_INTERVAL_US;
+        }
+        return segments;
+    }
+
+    @Test
+    public void eightHourDriveIsCutIntoBoundedSegments() throws Exception {
+        for (long seed = 0; seed < 5; seed++) {
+            List<Segment> segments = drive(seed, 8);
+            long bytes = 0;
+            long frames = 0;
+            for (int i = 0; i < segments.size(); i++) {
+                Segment segment = segments.get(i);
+                bytes += segment.bytes;
+                frames += segment.frames;
+                assertTrue("Segment " + i + " doesn't start on a key frame", segment.startsOnKeyFrame);
+                assertTrue("Segment " + i + " is " + segment.bytes + " bytes", segment.bytes <= MAX_BYTES);
+                assertTrue("Segment " + i + " lasts " + segment.getDurationUs() + " us",
+                        segment.getDurationUs() <= MAX_DURATION * 1000);
+                //every segment but the last ends close to one of its limits
+                if (i < segments.size() - 1) {
+                    boolean full = segment.bytes >= MAX_BYTES * 95 / 100;
+                    boolean over = segment.getDurationUs() >= MAX_DURATION * 1000 * 98 / 100;
+                    assertTrue("Segment " + i + " was cut early", full || over);
+                }
+            }
+            //8 hours is at least 96 segments, and nothing gets lost between them
+            assertTrue(segments.size() >= 96);
+            assertTrue(frames > 8L * 3600 * FRAME_RATE * 9 / 10);
+            assertTrue(bytes > 0);
+        }
+    }
+
+    @Test
+    public void durationLimitWithoutSizeLimit() throws Exception {
+        SegmentLimits limits = new SegmentLimits(0, 1000);
+        int frames = 0;
+        while (!limits.onFrame(frames * FRAME_INTERVAL_US, 1000000)) {
+            frames++;
+        }
+        //asked for the next segment while the frames written before the cut still fit
+        long leadUs = SegmentLimits.LEAD_FRAMES * FRAME_INTERVAL_US;
+        assertTrue(limits.getDurationUs() + leadUs <= 1000000);
+        assertTrue(limits.getDurationUs() + leadUs + FRAME_INTERVAL_US > 1000000);
+        //only once per segment
+        assertFalse(limits.onFrame(frames * FRAME_INTERVAL_US, 1000000));
+        limits.reset();
+        assertEquals(0, limits.getBytes());
+        assertEquals(0, limits.getDurationUs());
+    }
+
+    @Test
+    public void sizeLimitLeavesRoomForKeyFrames() throws Exception {
+        SegmentLimits limits = new SegmentLimits(1000, 0);
+        assertFalse(limits.onFrame(0, 200));
+        //the next frame would leave no room for three more of the largest one
+        assertTrue(limits.onFrame(FRAME_INTERVAL_US, 200));
+    }
+}
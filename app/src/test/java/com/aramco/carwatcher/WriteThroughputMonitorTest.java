@@ -0,0 +1,104 @@
+package com.aramco.carwatcher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds WriteThroughputMonitor with probes from storage that falls behind and recovers.
+ */
+public class WriteThroughputMonitorTest {
+    private static final long PROBE_INTERVAL = 2000L * 1000000;
+    private static final long SLOW = WriteThroughputMonitor.SLOW_PROBE_NANOS + 1;
+    private static final long FAST = WriteThroughputMonitor.FAST_PROBE_NANOS - 1;
+    private static final long MEDIUM = (WriteThroughputMonitor.SLOW_PROBE_NANOS + WriteThroughputMonitor.FAST_PROBE_NANOS) / 2;
+
+    private long now = 0;
+
+    private boolean probe(WriteThroughputMonitor monitor, long latency) {
+        now += PROBE_INTERVAL;
+        return monitor.onProbe(latency, now);
+    }
+
+    @Test
+    public void slowStorageRaisesTheLevelUpToTheMaximum() throws Exception {
+        WriteThroughputMonitor monitor = new WriteThroughputMonitor();
+        //a single slow probe is not enough
+        assertFalse(probe(monitor, SLOW));
+        assertFalse(probe(monitor, FAST));
+        assertFalse(probe(monitor, SLOW));
+        assertEquals(0, monitor.getLevel());
+        assertTrue(probe(monitor, SLOW));
+        assertEquals(1, monitor.getLevel());
+        for (int i = 0; i < 20; i++) {
+            probe(monitor, SLOW);
+        }
+        assertEquals(WriteThroughputMonitor.MAX_LEVEL, monitor.getLevel());
+        assertEquals(35, monitor.getBitRate(100));
+        assertEquals(15, monitor.getFrameRate(30));
+    }
+
+    @Test
+    public void levelOnlyComesDownAfterALongRunOfFastProbes() throws Exception {
+        WriteThroughputMonitor monitor = new WriteThroughputMonitor();
+        probe(monitor, SLOW);
+        probe(monitor, SLOW);
+        assertEquals(1, monitor.getLevel());
+        assertEquals(7500000, monitor.getBitRate(10000000));
+        assertEquals(30, monitor.getFrameRate(30));
+        //a probe in between keeps the level where it is
+        for (int i = 0; i < 40; i++) {
+            assertFalse(probe(monitor, (i % 10 == 9) ? MEDIUM : FAST));
+        }
+        assertEquals(1, monitor.getLevel());
+        for (int i = 0; i < WriteThroughputMonitor.FAST_PROBES - 1; i++) {
+            assertFalse(probe(monitor, FAST));
+        }
+        assertTrue(probe(monitor, FAST));
+        assertEquals(0, monitor.getLevel());
+        assertEquals(10000000, monitor.getBitRate(10000000));
+        //and doesn't go below 0
+        for (int i = 0; i < WriteThroughputMonitor.FAST_PROBES * 2; i++) {
+            assertFalse(probe(monitor, FAST));
+        }
+    }
+
+    @Test
+    public void measuresTheRecordingRate() throws Exception {
+        WriteThroughputMonitor monitor = new WriteThroughputMonitor();
+        probe(monitor, FAST);
+        for (int i = 0; i < 60; i++) {
+            monitor.onBytesWritten(1250000 / 30);
+        }
+        probe(monitor, 250L * 1000000);
+        assertEquals(1250000 / 30 * 60 / 2, monitor.getBytesPerSecond());
+        assertEquals(250, monitor.getLatencyMillis());
+        //a new recording starts from scratch, but keeps its level
+        probe(monitor, SLOW);
+        probe(monitor, SLOW);
+        monitor.reset();
+        assertEquals(0, monitor.getBytesPerSecond());
+        assertEquals(1, monitor.getLevel());
+    }
+
+    @Test
+    public void probesAreSpacedOutWhileTheStorageKeepsUp() throws Exception {
+        WriteThroughputMonitor monitor = new WriteThroughputMonitor();
+        assertEquals(2, monitor.getProbeInterval(2, 10));
+        for (int i = 0; i < WriteThroughputMonitor.FAST_PROBES; i++) {
+            probe(monitor, FAST);
+        }
+        assertEquals(10, monitor.getProbeInterval(2, 10));
+        //a probe that isn't fast brings the interval back
+        probe(monitor, MEDIUM);
+        assertEquals(2, monitor.getProbeInterval(2, 10));
+        //and so does throttling
+        probe(monitor, SLOW);
+        probe(monitor, SLOW);
+        for (int i = 0; i < WriteThroughputMonitor.FAST_PROBES - 1; i++) {
+            probe(monitor, FAST);
+        }
+        assertEquals(1, monitor.getLevel());
+        assertEquals(2, monitor.getProbeInterval(2, 10));
+    }
+}